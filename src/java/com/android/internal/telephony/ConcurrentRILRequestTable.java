@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.util.SparseArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free {@link RILRequestTable}.
+ *
+ * Requests are stored in an open-addressed array indexed by the low bits of the serial number.
+ * Since serials are handed out sequentially, in-flight requests almost always land on their home
+ * slot and insert, lookup and removal are a single compare-and-set with no boxing of the serial.
+ * Collisions are resolved by linear probing, bounded by the largest probe distance used since
+ * the table was last empty, so removal can simply clear the slot without tombstones. If every
+ * slot is taken, requests spill over into a locked {@link SparseArray}.
+ *
+ * {@hide}
+ */
+public class ConcurrentRILRequestTable implements RILRequestTable {
+    /** Default number of slots. Must be a power of two. */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private final AtomicReferenceArray<RILRequest> mSlots;
+    private final int mMask;
+    // The largest distance from its home slot at which a request was stored since the table was
+    // last empty, in the high 32 bits, and the number of requests, in the low 32 bits. They are
+    // updated together so that the probe distance is only reset when no request can need it.
+    private final AtomicLong mState = new AtomicLong(0);
+
+    // Used only when all slots are occupied.
+    private final SparseArray<RILRequest> mOverflow = new SparseArray<>();
+    private volatile boolean mHasOverflow = false;
+
+    public ConcurrentRILRequestTable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity number of slots in the table, must be a power of two.
+     */
+    public ConcurrentRILRequestTable(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        mSlots = new AtomicReferenceArray<>(capacity);
+        mMask = capacity - 1;
+    }
+
+    @Override
+    public void put(RILRequest rr) {
+        final int home = rr.mSerial & mMask;
+        for (int probe = 0; probe <= mMask; probe++) {
+            if (mSlots.compareAndSet((home + probe) & mMask, null, rr)) {
+                onAdded(probe);
+                return;
+            }
+        }
+
+        synchronized (mOverflow) {
+            mOverflow.put(rr.mSerial, rr);
+            mHasOverflow = true;
+        }
+        onAdded(0);
+    }
+
+    @Override
+    public RILRequest get(int serial) {
+        final int home = serial & mMask;
+        final int maxProbe = getMaxProbe();
+        for (int probe = 0; probe <= maxProbe; probe++) {
+            RILRequest rr = mSlots.get((home + probe) & mMask);
+            if (rr != null && rr.mSerial == serial) {
+                return rr;
+            }
+        }
+
+        if (mHasOverflow) {
+            synchronized (mOverflow) {
+                return mOverflow.get(serial);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public RILRequest remove(int serial) {
+        final int home = serial & mMask;
+        final int maxProbe = getMaxProbe();
+        for (int probe = 0; probe <= maxProbe; probe++) {
+            final int index = (home + probe) & mMask;
+            RILRequest rr = mSlots.get(index);
+            if (rr != null && rr.mSerial == serial) {
+                if (mSlots.compareAndSet(index, rr, null)) {
+                    onRemoved();
+                    return rr;
+                }
+                // Lost the race against another remover of the same serial.
+                return null;
+            }
+        }
+
+        if (mHasOverflow) {
+            synchronized (mOverflow) {
+                RILRequest rr = mOverflow.get(serial);
+                if (rr != null) {
+                    mOverflow.remove(serial);
+                    mHasOverflow = mOverflow.size() > 0;
+                    onRemoved();
+                }
+                return rr;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public List<RILRequest> removeAll() {
+        List<RILRequest> removed = new ArrayList<>();
+        for (int i = 0; i <= mMask; i++) {
+            RILRequest rr = mSlots.getAndSet(i, null);
+            if (rr != null) {
+                onRemoved();
+                removed.add(rr);
+            }
+        }
+
+        if (mHasOverflow) {
+            synchronized (mOverflow) {
+                for (int i = 0; i < mOverflow.size(); i++) {
+                    removed.add(mOverflow.valueAt(i));
+                    onRemoved();
+                }
+                mOverflow.clear();
+                mHasOverflow = false;
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public List<RILRequest> snapshot() {
+        List<RILRequest> requests = new ArrayList<>(Math.max(size(), 0));
+        for (int i = 0; i <= mMask; i++) {
+            RILRequest rr = mSlots.get(i);
+            if (rr != null) {
+                requests.add(rr);
+            }
+        }
+
+        if (mHasOverflow) {
+            synchronized (mOverflow) {
+                for (int i = 0; i < mOverflow.size(); i++) {
+                    requests.add(mOverflow.valueAt(i));
+                }
+            }
+        }
+        return requests;
+    }
+
+    @Override
+    public int size() {
+        return (int) mState.get();
+    }
+
+    /**
+     * @return the largest distance from its home slot at which a request was stored since the
+     * table was last empty.
+     */
+    @VisibleForTesting
+    public int getMaxProbe() {
+        return (int) (mState.get() >>> 32);
+    }
+
+    private void onAdded(int probe) {
+        long state;
+        long next;
+        do {
+            state = mState.get();
+            int maxProbe = Math.max((int) (state >>> 32), probe);
+            next = ((long) maxProbe << 32) | (((int) state + 1) & 0xFFFFFFFFL);
+        } while (!mState.compareAndSet(state, next));
+    }
+
+    private void onRemoved() {
+        long state;
+        long next;
+        do {
+            state = mState.get();
+            int size = (int) state - 1;
+            // Requests still being added are not counted yet, and raise the distance again.
+            next = size == 0 ? 0 : (state & 0xFFFFFFFF00000000L) | (size & 0xFFFFFFFFL);
+        } while (!mState.compareAndSet(state, next));
+    }
+}
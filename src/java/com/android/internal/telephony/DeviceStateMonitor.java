@@ -34,6 +34,8 @@ import android.os.BatteryManager;
 import android.os.Handler;
 import android.os.Message;
 import android.os.PowerManager;
+import android.os.Registrant;
+import android.os.RegistrantList;
 import android.telephony.AccessNetworkConstants.AccessNetworkType;
 import android.telephony.CarrierConfigManager;
 import android.telephony.Rlog;
@@ -68,6 +70,7 @@ public class DeviceStateMonitor extends Handler {
     static final int EVENT_UPDATE_MODE_CHANGED          = 1;
     @VisibleForTesting
     static final int EVENT_SCREEN_STATE_CHANGED         = 2;
+    @VisibleForTesting
     static final int EVENT_POWER_SAVE_MODE_CHANGED      = 3;
     @VisibleForTesting
     static final int EVENT_CHARGING_STATE_CHANGED       = 4;
@@ -170,6 +173,19 @@ public class DeviceStateMonitor extends Handler {
     /** The minimum required wait time between cell info requests to the modem */
     private int mCellInfoMinInterval = CELL_INFO_INTERVAL_SHORT_MS;
 
+    /** Signal strength is not polled. */
+    @VisibleForTesting
+    static final int SIGNAL_STRENGTH_POLL_DISABLED = 0;
+    @VisibleForTesting
+    static final int SIGNAL_STRENGTH_POLL_INTERVAL_SHORT_MS = 20 * 1000;
+    @VisibleForTesting
+    static final int SIGNAL_STRENGTH_POLL_INTERVAL_LONG_MS = 60 * 1000;
+
+    /** The base period between signal strength polls for radios without unsolicited updates */
+    private int mSignalStrengthPollInterval;
+
+    private final RegistrantList mSignalStrengthPollIntervalRegistrants = new RegistrantList();
+
 
     private SparseIntArray mUpdateModes = new SparseIntArray();
 
@@ -255,6 +271,7 @@ public class DeviceStateMonitor extends Handler {
         // Assuming tethering is always off after boot up.
         mIsTetheringOn = false;
         mIsLowDataExpected = false;
+        mSignalStrengthPollInterval = computeSignalStrengthPollInterval();
 
         log("DeviceStateMonitor mIsPowerSaveOn=" + mIsPowerSaveOn + ",mIsScreenOn="
                 + mIsScreenOn + ",mIsCharging=" + mIsCharging, false);
@@ -302,6 +319,52 @@ public class DeviceStateMonitor extends Handler {
         }
     }
 
+    /**
+     * @return The base period between signal strength polls, or
+     * {@link #SIGNAL_STRENGTH_POLL_DISABLED} if signal strength should not be polled.
+     */
+    @VisibleForTesting
+    public int computeSignalStrengthPollInterval() {
+        // Poll under the same conditions the modem reports signal strength changes.
+        if (shouldTurnOffSignalStrength()) {
+            return SIGNAL_STRENGTH_POLL_DISABLED;
+        }
+        // Nobody is looking at the signal bars, or we are saving power.
+        if (!mIsScreenOn || mIsPowerSaveOn) {
+            return SIGNAL_STRENGTH_POLL_INTERVAL_LONG_MS;
+        }
+        return SIGNAL_STRENGTH_POLL_INTERVAL_SHORT_MS;
+    }
+
+    /**
+     * Register for changes of the signal strength poll interval. The current interval is
+     * delivered immediately. AsyncResult.result is the new interval in milliseconds as an
+     * Integer, or {@link #SIGNAL_STRENGTH_POLL_DISABLED}.
+     *
+     * @param h handler to notify
+     * @param what what code of message when delivered
+     * @param obj placed in Message.obj
+     */
+    public void registerForSignalStrengthPollIntervalChanged(Handler h, int what, Object obj) {
+        Registrant r = new Registrant(h, what, obj);
+        mSignalStrengthPollIntervalRegistrants.add(r);
+        r.notifyResult(mSignalStrengthPollInterval);
+    }
+
+    public void unregisterForSignalStrengthPollIntervalChanged(Handler h) {
+        mSignalStrengthPollIntervalRegistrants.remove(h);
+    }
+
+    private void updateSignalStrengthPollInterval() {
+        final int newSignalStrengthPollInterval = computeSignalStrengthPollInterval();
+        if (mSignalStrengthPollInterval != newSignalStrengthPollInterval) {
+            mSignalStrengthPollInterval = newSignalStrengthPollInterval;
+            log("Signal strength poll interval updated to " + newSignalStrengthPollInterval,
+                    true);
+            mSignalStrengthPollIntervalRegistrants.notifyResult(newSignalStrengthPollInterval);
+        }
+    }
+
     /**
      * @return True if signal strength update should be turned off.
      */
@@ -425,6 +488,7 @@ public class DeviceStateMonitor extends Handler {
         if ((filters & TelephonyManager.INDICATION_FILTER_PHYSICAL_CHANNEL_CONFIG) != 0) {
             mUpdateModes.put(TelephonyManager.INDICATION_FILTER_PHYSICAL_CHANNEL_CONFIG, mode);
         }
+        updateSignalStrengthPollInterval();
     }
 
     /**
@@ -499,6 +563,8 @@ public class DeviceStateMonitor extends Handler {
             log("CellInfo Min Interval Updated to " + newCellInfoMinInterval, true);
         }
 
+        updateSignalStrengthPollInterval();
+
         if (mIsLowDataExpected != isLowDataExpected()) {
             mIsLowDataExpected = !mIsLowDataExpected;
             sendDeviceState(LOW_DATA_EXPECTED, mIsLowDataExpected);
@@ -691,6 +757,7 @@ public class DeviceStateMonitor extends Handler {
         ipw.println("mIsLowDataExpected=" + mIsLowDataExpected);
         ipw.println("mUnsolicitedResponseFilter=" + mUnsolicitedResponseFilter);
         ipw.println("mIsWifiConnected=" + mIsWifiConnected);
+        ipw.println("mSignalStrengthPollInterval=" + mSignalStrengthPollInterval);
         ipw.println("Local logs:");
         ipw.increaseIndent();
         mLocalLog.dump(fd, ipw, args);
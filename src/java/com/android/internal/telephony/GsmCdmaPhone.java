@@ -256,6 +256,8 @@ public class GsmCdmaPhone extends Phone {
         mSST.registerForNetworkAttached(this, EVENT_REGISTERED_TO_NETWORK, null);
         mDeviceStateMonitor = mTelephonyComponentFactory.inject(DeviceStateMonitor.class.getName())
                 .makeDeviceStateMonitor(this);
+        mDeviceStateMonitor.registerForSignalStrengthPollIntervalChanged(mSST,
+                ServiceStateTracker.EVENT_SIGNAL_STRENGTH_POLL_INTERVAL_CHANGED, null);
 
         mSST.registerForVoiceRegStateOrRatChanged(this, EVENT_VRS_OR_RAT_CHANGED, null);
 
@@ -118,23 +118,27 @@ public abstract class InboundSmsHandler extends StateMachine {
             put(DELETED_FLAG_COLUMN, 1);
             }};
 
-    /** Query projection for combining concatenated message segments. */
-    private static final String[] PDU_SEQUENCE_PORT_PROJECTION = {
+    /** Query projection for loading all segments of a message, including deleted ones. */
+    private static final String[] PDU_SEGMENT_PROJECTION = {
             "pdu",
             "sequence",
             "destination_port",
             "display_originating_addr",
-            "date"
+            "date",
+            "message_body",
+            "deleted"
     };
 
-    /** Mapping from DB COLUMN to PDU_SEQUENCE_PORT PROJECTION index */
-    private static final Map<Integer, Integer> PDU_SEQUENCE_PORT_PROJECTION_INDEX_MAPPING =
+    /** Mapping from DB COLUMN to PDU_SEGMENT_PROJECTION index */
+    private static final Map<Integer, Integer> PDU_SEGMENT_PROJECTION_INDEX_MAPPING =
             new HashMap<Integer, Integer>() {{
                 put(PDU_COLUMN, 0);
                 put(SEQUENCE_COLUMN, 1);
                 put(DESTINATION_PORT_COLUMN, 2);
                 put(DISPLAY_ADDRESS_COLUMN, 3);
                 put(DATE_COLUMN, 4);
+                put(MESSAGE_BODY_COLUMN, 5);
+                put(DELETED_FLAG_COLUMN, 6);
     }};
 
     public static final int PDU_COLUMN = 0;
@@ -194,6 +198,12 @@ public abstract class InboundSmsHandler extends StateMachine {
     @UnsupportedAppUsage
     private final ContentResolver mResolver;
 
+    /**
+     * Raw table segments of recent multi-part messages, to avoid a query per segment. Shared
+     * with the other handlers; only used holding its lock.
+     */
+    private final MultipartSmsIndex mMultipartSmsIndex;
+
     /** Special handler for WAP push messages. */
     @UnsupportedAppUsage
     private final WapPushOverSms mWapPush;
@@ -271,6 +281,7 @@ public abstract class InboundSmsHandler extends StateMachine {
         mPhone = phone;
         mCellBroadcastHandler = cellBroadcastHandler;
         mResolver = context.getContentResolver();
+        mMultipartSmsIndex = MultipartSmsIndex.getInstance(mResolver);
         mWapPush = new WapPushOverSms(context);
 
         boolean smsCapable = mContext.getResources().getBoolean(
@@ -819,7 +830,6 @@ public abstract class InboundSmsHandler extends StateMachine {
         long[] timestamps;
         int destPort = tracker.getDestPort();
         boolean block = false;
-        String address = tracker.getAddress();
 
         // Do not process when the message count is invalid.
         if (messageCount <= 0) {
@@ -835,84 +845,68 @@ public abstract class InboundSmsHandler extends StateMachine {
             block = BlockChecker.isBlocked(mContext, tracker.getDisplayAddress(), null);
         } else {
             // multi-part message
-            Cursor cursor = null;
-            try {
-                // used by several query selection arguments
-                String refNumber = Integer.toString(tracker.getReferenceNumber());
-                String count = Integer.toString(tracker.getMessageCount());
-
-                // query for all segments and broadcast message if we have all the parts
-                String[] whereArgs = {address, refNumber, count};
-                cursor = mResolver.query(sRawUri, PDU_SEQUENCE_PORT_PROJECTION,
-                        tracker.getQueryForSegments(), whereArgs, null);
-
-                int cursorCount = cursor.getCount();
-                if (cursorCount < messageCount) {
-                    // Wait for the other message parts to arrive. It's also possible for the last
-                    // segment to arrive before processing the EVENT_BROADCAST_SMS for one of the
-                    // earlier segments. In that case, the broadcast will be sent as soon as all
-                    // segments are in the table, and any later EVENT_BROADCAST_SMS messages will
-                    // get a row count of 0 and return.
+            MultipartSmsIndex.Segment[] segments;
+            synchronized (mMultipartSmsIndex) {
+                MultipartSmsIndex.Message message;
+                try {
+                    message = getIndexedMessage(tracker);
+                } catch (SQLException e) {
+                    loge("Can't access multipart SMS database", e);
                     return false;
                 }
 
-                // All the parts are in place, deal with them
-                pdus = new byte[messageCount][];
-                timestamps = new long[messageCount];
-                while (cursor.moveToNext()) {
-                    // subtract offset to convert sequence to 0-based array index
-                    int index = cursor.getInt(PDU_SEQUENCE_PORT_PROJECTION_INDEX_MAPPING
-                            .get(SEQUENCE_COLUMN)) - tracker.getIndexOffset();
-
-                    // The invalid PDUs can be received and stored in the raw table. The range
-                    // check ensures the process not crash even if the seqNumber in the
-                    // UserDataHeader is invalid.
-                    if (index >= pdus.length || index < 0) {
-                        loge(String.format(
-                                "processMessagePart: invalid seqNumber = %d, messageCount = %d",
-                                index + tracker.getIndexOffset(),
-                                messageCount));
-                        continue;
-                    }
+                if (message.getPendingCount() < messageCount) {
+                    // Wait for the other message parts to arrive. It's also possible for the
+                    // last segment to arrive before processing the EVENT_BROADCAST_SMS for one
+                    // of the earlier segments. In that case, the broadcast will be sent as soon
+                    // as all segments are in the table, and any later EVENT_BROADCAST_SMS
+                    // messages will find no pending segments and return.
+                    return false;
+                }
+                segments = message.getPendingSegments();
+            }
 
-                    pdus[index] = HexDump.hexStringToByteArray(cursor.getString(
-                            PDU_SEQUENCE_PORT_PROJECTION_INDEX_MAPPING.get(PDU_COLUMN)));
-
-                    // Read the destination port from the first segment (needed for CDMA WAP PDU).
-                    // It's not a bad idea to prefer the port from the first segment in other cases.
-                    if (index == 0 && !cursor.isNull(PDU_SEQUENCE_PORT_PROJECTION_INDEX_MAPPING
-                            .get(DESTINATION_PORT_COLUMN))) {
-                        int port = cursor.getInt(PDU_SEQUENCE_PORT_PROJECTION_INDEX_MAPPING
-                                .get(DESTINATION_PORT_COLUMN));
-                        // strip format flags and convert to real port number, or -1
-                        port = InboundSmsTracker.getRealDestPort(port);
-                        if (port != -1) {
-                            destPort = port;
-                        }
-                    }
+            // All the parts are in place, deal with them
+            pdus = new byte[messageCount][];
+            timestamps = new long[messageCount];
+            for (MultipartSmsIndex.Segment segment : segments) {
+                // subtract offset to convert sequence to 0-based array index
+                int index = segment.sequence - tracker.getIndexOffset();
+
+                // The invalid PDUs can be received and stored in the raw table. The range
+                // check ensures the process not crash even if the seqNumber in the
+                // UserDataHeader is invalid.
+                if (index >= pdus.length || index < 0) {
+                    loge(String.format(
+                            "processMessagePart: invalid seqNumber = %d, messageCount = %d",
+                            index + tracker.getIndexOffset(),
+                            messageCount));
+                    continue;
+                }
+
+                pdus[index] = segment.pdu;
 
-                    timestamps[index] = cursor.getLong(
-                            PDU_SEQUENCE_PORT_PROJECTION_INDEX_MAPPING.get(DATE_COLUMN));
-
-                    // check if display address should be blocked or not
-                    if (!block) {
-                        // Depending on the nature of the gateway, the display origination address
-                        // is either derived from the content of the SMS TP-OA field, or the TP-OA
-                        // field contains a generic gateway address and the from address is added
-                        // at the beginning in the message body. In that case only the first SMS
-                        // (part of Multi-SMS) comes with the display originating address which
-                        // could be used for block checking purpose.
-                        block = BlockChecker.isBlocked(mContext,
-                                cursor.getString(PDU_SEQUENCE_PORT_PROJECTION_INDEX_MAPPING
-                                        .get(DISPLAY_ADDRESS_COLUMN)), null);
+                // Read the destination port from the first segment (needed for CDMA WAP PDU).
+                // It's not a bad idea to prefer the port from the first segment in other cases.
+                if (index == 0 && segment.destPort != null) {
+                    // strip format flags and convert to real port number, or -1
+                    int port = InboundSmsTracker.getRealDestPort(segment.destPort);
+                    if (port != -1) {
+                        destPort = port;
                     }
                 }
-            } catch (SQLException e) {
-                loge("Can't access multipart SMS database", e);
-                return false;
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
+
+                timestamps[index] = segment.date;
+
+                // check if display address should be blocked or not
+                if (!block) {
+                    // Depending on the nature of the gateway, the display origination address
+                    // is either derived from the content of the SMS TP-OA field, or the TP-OA
+                    // field contains a generic gateway address and the from address is added
+                    // at the beginning in the message body. In that case only the first SMS
+                    // (part of Multi-SMS) comes with the display originating address which
+                    // could be used for block checking purpose.
+                    block = BlockChecker.isBlocked(mContext, segment.displayAddress, null);
                 }
             }
         }
@@ -1183,7 +1177,12 @@ public abstract class InboundSmsHandler extends StateMachine {
     private void deleteFromRawTable(String deleteWhere, String[] deleteWhereArgs,
                                     int deleteType) {
         Uri uri = deleteType == DELETE_PERMANENTLY ? sRawUriPermanentDelete : sRawUri;
-        int rows = mResolver.delete(uri, deleteWhere, deleteWhereArgs);
+        int rows;
+        synchronized (mMultipartSmsIndex) {
+            rows = mResolver.delete(uri, deleteWhere, deleteWhereArgs);
+            mMultipartSmsIndex.onRawTableDelete(deleteWhere, deleteWhereArgs,
+                    deleteType == DELETE_PERMANENTLY);
+        }
         if (rows == 0) {
             loge("No rows were deleted from raw table!");
         } else if (DBG) {
@@ -1291,6 +1290,10 @@ public abstract class InboundSmsHandler extends StateMachine {
      * false otherwise
      */
     private boolean checkAndHandleDuplicate(InboundSmsTracker tracker) throws SQLException {
+        if (MultipartSmsIndex.isIndexable(tracker)) {
+            return checkAndHandleDuplicateSegment(tracker);
+        }
+
         Pair<String, String[]> exactMatchQuery = tracker.getExactMatchDupDetectQuery();
 
         Cursor cursor = null;
@@ -1363,11 +1366,97 @@ public abstract class InboundSmsHandler extends StateMachine {
         return false;
     }
 
+    /**
+     * Same as the query based checks of {@link #checkAndHandleDuplicate}, for a multi-part
+     * message segment, answered from the multipart index.
+     */
+    private boolean checkAndHandleDuplicateSegment(InboundSmsTracker tracker)
+            throws SQLException {
+        MultipartSmsIndex.Message message = getIndexedMessage(tracker);
+
+        // if an exact matching segment is marked deleted, that means this message has already
+        // been received and processed, and can be discarded as dup
+        MultipartSmsIndex.Segment deleted = message.findDeletedExactMatch(tracker);
+        if (deleted != null) {
+            loge("Discarding duplicate message segment: " + tracker);
+            logDupPduMismatch(deleted.pdu, tracker);
+            return true;   // reject message
+        }
+
+        // if there is a message segment that conflicts this new one (may not be an exact
+        // match), replace the old message segment with this one.
+        MultipartSmsIndex.Segment pending = message.getPending(tracker.getSequenceNumber());
+        if (pending != null) {
+            Pair<String, String[]> inexactMatchQuery = tracker.getInexactMatchDupDetectQuery();
+            // delete the old message segment permanently
+            deleteFromRawTable(inexactMatchQuery.first, inexactMatchQuery.second,
+                    DELETE_PERMANENTLY);
+            message.removePending(tracker.getSequenceNumber());
+            loge("Replacing duplicate message segment: " + tracker);
+            logDupPduMismatch(pending.pdu, tracker);
+        }
+        return false;
+    }
+
+    /**
+     * Get the raw table segments of the tracker's message, loading them into the multipart index
+     * if needed. Must be called holding the index's lock.
+     */
+    private MultipartSmsIndex.Message getIndexedMessage(InboundSmsTracker tracker)
+            throws SQLException {
+        MultipartSmsIndex.Message message = mMultipartSmsIndex.get(tracker);
+        if (message != null) {
+            return message;
+        }
+
+        message = new MultipartSmsIndex.Message();
+        String[] whereArgs = {tracker.getAddress(),
+                Integer.toString(tracker.getReferenceNumber()),
+                Integer.toString(tracker.getMessageCount())};
+        Cursor cursor = null;
+        try {
+            cursor = mResolver.query(sRawUri, PDU_SEGMENT_PROJECTION,
+                    tracker.getQueryForAllSegments(), whereArgs, null);
+            if (cursor == null) {
+                // don't remember a message we could not load
+                return message;
+            }
+            while (cursor.moveToNext()) {
+                int destPortColumn = PDU_SEGMENT_PROJECTION_INDEX_MAPPING
+                        .get(DESTINATION_PORT_COLUMN);
+                MultipartSmsIndex.Segment segment = new MultipartSmsIndex.Segment(
+                        cursor.getInt(PDU_SEGMENT_PROJECTION_INDEX_MAPPING.get(SEQUENCE_COLUMN)),
+                        HexDump.hexStringToByteArray(cursor.getString(
+                                PDU_SEGMENT_PROJECTION_INDEX_MAPPING.get(PDU_COLUMN))),
+                        cursor.isNull(destPortColumn) ? null : cursor.getInt(destPortColumn),
+                        cursor.getString(PDU_SEGMENT_PROJECTION_INDEX_MAPPING
+                                .get(DISPLAY_ADDRESS_COLUMN)),
+                        cursor.getLong(PDU_SEGMENT_PROJECTION_INDEX_MAPPING.get(DATE_COLUMN)),
+                        cursor.getString(PDU_SEGMENT_PROJECTION_INDEX_MAPPING
+                                .get(MESSAGE_BODY_COLUMN)));
+                if (cursor.getInt(PDU_SEGMENT_PROJECTION_INDEX_MAPPING
+                        .get(DELETED_FLAG_COLUMN)) == 1) {
+                    message.addDeleted(segment);
+                } else {
+                    message.addPending(segment);
+                }
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        mMultipartSmsIndex.put(tracker, message);
+        return message;
+    }
+
     private void logDupPduMismatch(Cursor cursor, InboundSmsTracker tracker) {
-        String oldPduString = cursor.getString(
-                PDU_DELETED_FLAG_PROJECTION_INDEX_MAPPING.get(PDU_COLUMN));
+        logDupPduMismatch(HexDump.hexStringToByteArray(cursor.getString(
+                PDU_DELETED_FLAG_PROJECTION_INDEX_MAPPING.get(PDU_COLUMN))), tracker);
+    }
+
+    private void logDupPduMismatch(byte[] oldPdu, InboundSmsTracker tracker) {
         byte[] pdu = tracker.getPdu();
-        byte[] oldPdu = HexDump.hexStringToByteArray(oldPduString);
         if (!Arrays.equals(oldPdu, tracker.getPdu())) {
             loge("Warning: dup message PDU of length " + pdu.length
                     + " is different from existing PDU of length " + oldPdu.length);
@@ -1385,27 +1474,36 @@ public abstract class InboundSmsHandler extends StateMachine {
      * @return true on success; false on failure to write to database
      */
     private int addTrackerToRawTable(InboundSmsTracker tracker, boolean deDup) {
-        if (deDup) {
-            try {
-                if (checkAndHandleDuplicate(tracker)) {
-                    return Intents.RESULT_SMS_DUPLICATED;   // reject message
-                }
-            } catch (SQLException e) {
-                loge("Can't access SMS database", e);
-                return Intents.RESULT_SMS_GENERIC_ERROR;    // reject message
-            }
-        } else {
-            logd("Skipped message de-duping logic");
-        }
-
         String address = tracker.getAddress();
         String refNumber = Integer.toString(tracker.getReferenceNumber());
         String count = Integer.toString(tracker.getMessageCount());
         ContentValues values = tracker.getContentValues();
 
-        if (VDBG) log("adding content values to raw table: " + values.toString());
-        Uri newUri = mResolver.insert(sRawUri, values);
-        if (DBG) log("URI of new row -> " + newUri);
+        Uri newUri;
+        // Check for duplicates and insert under the lock of the multipart index, so that the
+        // other handlers sharing it see the raw table and the index change together.
+        synchronized (mMultipartSmsIndex) {
+            if (deDup) {
+                try {
+                    if (checkAndHandleDuplicate(tracker)) {
+                        return Intents.RESULT_SMS_DUPLICATED;   // reject message
+                    }
+                } catch (SQLException e) {
+                    loge("Can't access SMS database", e);
+                    return Intents.RESULT_SMS_GENERIC_ERROR;    // reject message
+                }
+            } else {
+                logd("Skipped message de-duping logic");
+            }
+
+            if (VDBG) log("adding content values to raw table: " + values.toString());
+            newUri = mResolver.insert(sRawUri, values);
+            if (DBG) log("URI of new row -> " + newUri);
+            if (newUri != null && MultipartSmsIndex.isIndexable(tracker)) {
+                mMultipartSmsIndex.onSegmentInserted(tracker,
+                        values.getAsInteger("destination_port"));
+            }
+        }
 
         try {
             long rowId = ContentUris.parseId(newUri);
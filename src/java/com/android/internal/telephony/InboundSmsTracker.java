@@ -321,6 +321,10 @@ public class InboundSmsTracker {
         return mIs3gpp2;
     }
 
+    public boolean is3gpp2WapPdu() {
+        return mIs3gpp2WapPdu;
+    }
+
     public boolean isClass0() {
         return mIsClass0;
     }
@@ -338,6 +342,14 @@ public class InboundSmsTracker {
         return mIs3gpp2WapPdu ? SELECT_BY_REFERENCE_3GPP2WAP : SELECT_BY_REFERENCE;
     }
 
+    /**
+     * Like {@link #getQueryForSegments()}, but also matching the segments marked deleted.
+     * @return the selection; the selection args are address, reference number and count
+     */
+    public String getQueryForAllSegments() {
+        return addDestPortQuery("address=? AND reference_number=? AND count=?");
+    }
+
     /**
      * Get the query to find the exact same message/message segment in the db.
      * @return Pair with where as Pair.first and whereArgs as Pair.second
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.content.ContentResolver;
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * In-memory mirror of the raw table rows of concatenated SMS messages, so that
+ * {@link InboundSmsHandler} can check for duplicate and missing segments without querying the
+ * SMS provider for every segment. The raw table stays the source of truth: a message is only
+ * held here once it was loaded from the raw table, and messages may be dropped at any time, to
+ * be loaded again on next use.
+ *
+ * Messages are keyed by address, reference number, segment count and whether they are 3GPP2
+ * WAP PDUs, matching {@link InboundSmsTracker#getQueryForSegments()}.
+ *
+ * There is one index per raw table, shared by the handlers of all phones, as the segments of a
+ * message are matched regardless of the handler which received them. Not thread safe: the
+ * handlers hold the index's lock while using it, and across the raw table accesses it mirrors.
+ */
+class MultipartSmsIndex {
+    /** Maximum number of messages kept; the least recently used ones are dropped first. */
+    static final int MAX_MESSAGES = 64;
+
+    /**
+     * Messages loaded longer ago than this are loaded again, so that rows removed from the raw
+     * table behind the handler's back (e.g. expired partial messages removed by
+     * {@link SmsBroadcastUndelivered}) are not held on to.
+     */
+    static final long MAX_MESSAGE_AGE_MS = 60 * 60 * 1000;
+
+    /** One raw table row. */
+    static class Segment {
+        final int sequence;
+        final byte[] pdu;
+        /** destination_port column, with format flags, or null. */
+        final Integer destPort;
+        final String displayAddress;
+        final long date;
+        final String messageBody;
+
+        Segment(int sequence, byte[] pdu, Integer destPort, String displayAddress, long date,
+                String messageBody) {
+            this.sequence = sequence;
+            this.pdu = pdu;
+            this.destPort = destPort;
+            this.displayAddress = displayAddress;
+            this.date = date;
+            this.messageBody = messageBody;
+        }
+
+        /** Same match as {@link InboundSmsTracker#getExactMatchDupDetectQuery()}. */
+        boolean isExactMatch(InboundSmsTracker tracker) {
+            return sequence == tracker.getSequenceNumber() && date == tracker.getTimestamp()
+                    && messageBody != null && messageBody.equals(tracker.getMessageBody());
+        }
+    }
+
+    /** The raw table rows of one message. */
+    static class Message {
+        /** Segments not yet marked deleted, by sequence number. */
+        private final SparseArray<Segment> mPending = new SparseArray<>();
+        /** Segments marked deleted, kept to detect duplicates of delivered messages. */
+        private final List<Segment> mDeleted = new ArrayList<>();
+        private final long mLoadTime = SystemClock.elapsedRealtime();
+
+        void addPending(Segment segment) {
+            mPending.put(segment.sequence, segment);
+        }
+
+        void addDeleted(Segment segment) {
+            mDeleted.add(segment);
+        }
+
+        int getPendingCount() {
+            return mPending.size();
+        }
+
+        /**
+         * @return the segments not marked deleted, by sequence number.
+         */
+        Segment[] getPendingSegments() {
+            Segment[] segments = new Segment[mPending.size()];
+            for (int i = 0; i < segments.length; i++) {
+                segments[i] = mPending.valueAt(i);
+            }
+            return segments;
+        }
+
+        Segment getPending(int sequence) {
+            return mPending.get(sequence);
+        }
+
+        void removePending(int sequence) {
+            mPending.remove(sequence);
+        }
+
+        /**
+         * @return an exactly matching segment marked deleted, or null.
+         */
+        Segment findDeletedExactMatch(InboundSmsTracker tracker) {
+            for (int i = mDeleted.size() - 1; i >= 0; i--) {
+                if (mDeleted.get(i).isExactMatch(tracker)) {
+                    return mDeleted.get(i);
+                }
+            }
+            return null;
+        }
+
+        void markAllDeleted() {
+            for (int i = 0; i < mPending.size(); i++) {
+                mDeleted.add(mPending.valueAt(i));
+            }
+            mPending.clear();
+        }
+
+        void deleteAllPending() {
+            mPending.clear();
+        }
+    }
+
+    /** Indexes by the resolver of the raw table they mirror. */
+    private static final WeakHashMap<ContentResolver, MultipartSmsIndex> sIndexes =
+            new WeakHashMap<>();
+
+    private final LinkedHashMap<String, Message> mMessages =
+            new LinkedHashMap<String, Message>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Message> eldest) {
+                    return size() > MAX_MESSAGES;
+                }
+            };
+
+    /**
+     * @return the index of the raw table accessed through the resolver.
+     */
+    static MultipartSmsIndex getInstance(ContentResolver resolver) {
+        synchronized (sIndexes) {
+            MultipartSmsIndex index = sIndexes.get(resolver);
+            if (index == null) {
+                index = new MultipartSmsIndex();
+                sIndexes.put(resolver, index);
+            }
+            return index;
+        }
+    }
+
+    private static String getKey(String address, String refNumber, String count,
+            boolean is3gpp2WapPdu) {
+        return address + '/' + refNumber + '/' + count + '/' + is3gpp2WapPdu;
+    }
+
+    private static String getKey(InboundSmsTracker tracker) {
+        return getKey(tracker.getAddress(), Integer.toString(tracker.getReferenceNumber()),
+                Integer.toString(tracker.getMessageCount()), tracker.is3gpp2WapPdu());
+    }
+
+    /**
+     * @return whether the tracker's message can be indexed.
+     */
+    static boolean isIndexable(InboundSmsTracker tracker) {
+        return tracker.getMessageCount() > 1;
+    }
+
+    /**
+     * @return the message of the tracker's segment, or null if it has to be loaded.
+     */
+    Message get(InboundSmsTracker tracker) {
+        String key = getKey(tracker);
+        Message message = mMessages.get(key);
+        if (message != null
+                && SystemClock.elapsedRealtime() - message.mLoadTime > MAX_MESSAGE_AGE_MS) {
+            mMessages.remove(key);
+            return null;
+        }
+        return message;
+    }
+
+    /**
+     * Add a message loaded from the raw table.
+     */
+    void put(InboundSmsTracker tracker, Message message) {
+        mMessages.put(getKey(tracker), message);
+    }
+
+    /**
+     * Record a segment just inserted into the raw table. Ignored if its message is not loaded,
+     * as the segment will be loaded with it.
+     */
+    void onSegmentInserted(InboundSmsTracker tracker, Integer destPort) {
+        Message message = mMessages.get(getKey(tracker));
+        if (message != null) {
+            message.addPending(new Segment(tracker.getSequenceNumber(), tracker.getPdu(),
+                    destPort, tracker.getDisplayAddress(), tracker.getTimestamp(),
+                    tracker.getMessageBody()));
+        }
+    }
+
+    /**
+     * Update the index after rows were deleted from the raw table. Only deletions of whole
+     * messages by {@link InboundSmsTracker#getQueryForSegments()} are tracked here.
+     *
+     * @param permanently whether the rows were removed rather than marked deleted
+     */
+    void onRawTableDelete(String deleteWhere, String[] deleteWhereArgs, boolean permanently) {
+        boolean is3gpp2WapPdu;
+        if (InboundSmsTracker.SELECT_BY_REFERENCE.equals(deleteWhere)) {
+            is3gpp2WapPdu = false;
+        } else if (InboundSmsTracker.SELECT_BY_REFERENCE_3GPP2WAP.equals(deleteWhere)) {
+            is3gpp2WapPdu = true;
+        } else {
+            return;
+        }
+        Message message = mMessages.get(getKey(deleteWhereArgs[0], deleteWhereArgs[1],
+                deleteWhereArgs[2], is3gpp2WapPdu));
+        if (message == null) {
+            return;
+        }
+        if (permanently) {
+            message.deleteAllPending();
+        } else {
+            message.markAllDeleted();
+        }
+    }
+
+    int size() {
+        return mMessages.size();
+    }
+
+    void clear() {
+        mMessages.clear();
+    }
+}
@@ -155,6 +155,9 @@ public class RIL extends BaseCommands implements CommandsInterface {
 
     private static final int DEFAULT_BLOCKING_MESSAGE_RESPONSE_TIMEOUT_MS = 2000;
 
+    // Number of pooled RILRequest instances kept per phone
+    private static final String PROPERTY_REQUEST_POOL_SIZE = "ro.telephony.ril.request_pool_size";
+
     // Variables used to differentiate ack messages from request while calling clearWakeLock()
     public static final int INVALID_WAKELOCK = -1;
     public static final int FOR_WAKELOCK = 0;
@@ -197,8 +200,11 @@ public class RIL extends BaseCommands implements CommandsInterface {
     volatile int mWlSequenceNum = 0;
     volatile int mAckWlSequenceNum = 0;
 
+    // No longer used: the requests are kept in mRequestTable. Left for greylisted access.
     @UnsupportedAppUsage
     SparseArray<RILRequest> mRequestList = new SparseArray<RILRequest>();
+    final RILRequestTable mRequestTable = new ConcurrentRILRequestTable();
+    final RILRequestPool mRequestPool;
     static SparseArray<TelephonyHistogram> mRilTimeHistograms = new
             SparseArray<TelephonyHistogram>();
 
@@ -261,6 +267,8 @@ public class RIL extends BaseCommands implements CommandsInterface {
     static final String EMPTY_ALPHA_LONG = "";
     static final String EMPTY_ALPHA_SHORT = "";
 
+    private static final byte[] EMPTY_BYTE_ARRAY = new byte[0];
+
     public static List<TelephonyHistogram> getTelephonyRILTimingHistograms() {
         List<TelephonyHistogram> list;
         synchronized (mRilTimeHistograms) {
@@ -289,26 +297,25 @@ public class RIL extends BaseCommands implements CommandsInterface {
 
                     // The timer of WAKE_LOCK_TIMEOUT is reset with each
                     // new send request. So when WAKE_LOCK_TIMEOUT occurs
-                    // all requests in mRequestList already waited at
+                    // all requests in mRequestTable already waited at
                     // least DEFAULT_WAKE_LOCK_TIMEOUT_MS but no response.
                     //
-                    // Note: Keep mRequestList so that delayed response
+                    // Note: Keep mRequestTable so that delayed response
                     // can still be handled when response finally comes.
 
-                    synchronized (mRequestList) {
-                        if (msg.arg1 == mWlSequenceNum && clearWakeLock(FOR_WAKELOCK)) {
-                            if (mRadioBugDetector != null) {
-                                mRadioBugDetector.processWakelockTimeout();
-                            }
-                            if (RILJ_LOGD) {
-                                int count = mRequestList.size();
-                                Rlog.d(RILJ_LOG_TAG, "WAKE_LOCK_TIMEOUT " +
-                                        " mRequestList=" + count);
-                                for (int i = 0; i < count; i++) {
-                                    rr = mRequestList.valueAt(i);
-                                    Rlog.d(RILJ_LOG_TAG, i + ": [" + rr.mSerial + "] "
-                                            + requestToString(rr.mRequest));
-                                }
+                    if (msg.arg1 == mWlSequenceNum && clearWakeLock(FOR_WAKELOCK)) {
+                        if (mRadioBugDetector != null) {
+                            mRadioBugDetector.processWakelockTimeout();
+                        }
+                        if (RILJ_LOGD) {
+                            List<RILRequest> requests = mRequestTable.snapshot();
+                            int count = requests.size();
+                            Rlog.d(RILJ_LOG_TAG, "WAKE_LOCK_TIMEOUT " +
+                                    " mRequestList=" + count);
+                            for (int i = 0; i < count; i++) {
+                                rr = requests.get(i);
+                                Rlog.d(RILJ_LOG_TAG, i + ": [" + rr.mSerial + "] "
+                                        + requestToString(rr.mRequest));
                             }
                         }
                     }
@@ -609,6 +616,8 @@ public class RIL extends BaseCommands implements CommandsInterface {
         mAckWakeLockTimeout = SystemProperties.getInt(
                 TelephonyProperties.PROPERTY_WAKE_LOCK_TIMEOUT, DEFAULT_ACK_WAKE_LOCK_TIMEOUT_MS);
         mWakeLockCount = 0;
+        mRequestPool = new RILRequestPool(SystemProperties.getInt(PROPERTY_REQUEST_POOL_SIZE,
+                RILRequestPool.DEFAULT_POOL_SIZE));
         mRILDefaultWorkSource = new WorkSource(context.getApplicationInfo().uid,
                 context.getPackageName());
         mActiveWakelockWorkSource = new WorkSource();
@@ -647,20 +656,18 @@ public class RIL extends BaseCommands implements CommandsInterface {
 
     private void addRequest(RILRequest rr) {
         acquireWakeLock(rr, FOR_WAKELOCK);
-        synchronized (mRequestList) {
-            rr.mStartTimeMs = SystemClock.elapsedRealtime();
-            mRequestList.append(rr.mSerial, rr);
-        }
+        rr.mStartTimeMs = SystemClock.elapsedRealtime();
+        mRequestTable.put(rr);
     }
 
     private RILRequest obtainRequest(int request, Message result, WorkSource workSource) {
-        RILRequest rr = RILRequest.obtain(request, result, workSource);
+        RILRequest rr = mRequestPool.obtain(request, result, workSource);
         addRequest(rr);
         return rr;
     }
 
     protected int obtainRequestSerial(int request, Message result, WorkSource workSource) {
-        RILRequest rr = RILRequest.obtain(request, result, workSource);
+        RILRequest rr = mRequestPool.obtain(request, result, workSource);
         addRequest(rr);
         return rr.mSerial;
     }
@@ -3796,13 +3803,9 @@ public class RIL extends BaseCommands implements CommandsInterface {
                         + IccUtils.bytesToHexString(preferredRoamingList));
             }
 
-            ArrayList<Byte> arrList = new ArrayList<>();
-            for (int i = 0; i < preferredRoamingList.length; i++) {
-                arrList.add(preferredRoamingList[i]);
-            }
-
             try {
-                radioProxy.nvWriteCdmaPrl(rr.mSerial, arrList);
+                radioProxy.nvWriteCdmaPrl(rr.mSerial,
+                        primitiveArrayToArrayList(preferredRoamingList));
             } catch (RemoteException | RuntimeException e) {
                 handleRadioProxyExceptionForRR(rr, "nvWriteCdmaPrl", e);
             }
@@ -4712,10 +4715,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
     }
 
     void processRequestAck(int serial) {
-        RILRequest rr;
-        synchronized (mRequestList) {
-            rr = mRequestList.get(serial);
-        }
+        RILRequest rr = mRequestTable.get(serial);
         if (rr == null) {
             Rlog.w(RIL.RILJ_LOG_TAG, "processRequestAck: Unexpected solicited ack response! "
                     + "serial: " + serial);
@@ -4743,9 +4743,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
         RILRequest rr = null;
 
         if (type == RadioResponseType.SOLICITED_ACK) {
-            synchronized (mRequestList) {
-                rr = mRequestList.get(serial);
-            }
+            rr = mRequestTable.get(serial);
             if (rr == null) {
                 Rlog.w(RILJ_LOG_TAG, "Unexpected solicited ack response! sn: " + serial);
             } else {
@@ -4884,7 +4882,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
      */
     private void sendAck() {
         // TODO: Remove rr and clean up acquireWakelock for response and ack
-        RILRequest rr = RILRequest.obtain(RIL_RESPONSE_ACKNOWLEDGEMENT, null,
+        RILRequest rr = mRequestPool.obtain(RIL_RESPONSE_ACKNOWLEDGEMENT, null,
                 mRILDefaultWorkSource);
         acquireWakeLock(rr, RIL.FOR_ACK_WAKELOCK);
         IRadio radioProxy = getRadioProxy(null);
@@ -4979,8 +4977,8 @@ public class RIL extends BaseCommands implements CommandsInterface {
 
     /** Returns the Ril request list. */
     @VisibleForTesting
-    public SparseArray<RILRequest> getRilRequestList() {
-        return mRequestList;
+    public RILRequestTable getRilRequestList() {
+        return mRequestTable;
     }
 
     @UnsupportedAppUsage
@@ -5041,45 +5039,35 @@ public class RIL extends BaseCommands implements CommandsInterface {
     }
 
     /**
-     * Release each request in mRequestList then clear the list
+     * Release each request in mRequestTable then clear the list
      * @param error is the RIL_Errno sent back
-     * @param loggable true means to print all requests in mRequestList
+     * @param loggable true means to print all requests in mRequestTable
      */
     @UnsupportedAppUsage
     private void clearRequestList(int error, boolean loggable) {
         RILRequest rr;
-        synchronized (mRequestList) {
-            int count = mRequestList.size();
-            if (RILJ_LOGD && loggable) {
-                Rlog.d(RILJ_LOG_TAG, "clearRequestList " + " mWakeLockCount="
-                        + mWakeLockCount + " mRequestList=" + count);
-            }
+        List<RILRequest> requests = mRequestTable.removeAll();
+        int count = requests.size();
+        if (RILJ_LOGD && loggable) {
+            Rlog.d(RILJ_LOG_TAG, "clearRequestList " + " mWakeLockCount="
+                    + mWakeLockCount + " mRequestList=" + count);
+        }
 
-            for (int i = 0; i < count; i++) {
-                rr = mRequestList.valueAt(i);
-                if (RILJ_LOGD && loggable) {
-                    Rlog.d(RILJ_LOG_TAG, i + ": [" + rr.mSerial + "] "
-                            + requestToString(rr.mRequest));
-                }
-                rr.onError(error, null);
-                decrementWakeLock(rr);
-                rr.release();
+        for (int i = 0; i < count; i++) {
+            rr = requests.get(i);
+            if (RILJ_LOGD && loggable) {
+                Rlog.d(RILJ_LOG_TAG, i + ": [" + rr.mSerial + "] "
+                        + requestToString(rr.mRequest));
             }
-            mRequestList.clear();
+            rr.onError(error, null);
+            decrementWakeLock(rr);
+            rr.release();
         }
     }
 
     @UnsupportedAppUsage
     private RILRequest findAndRemoveRequestFromList(int serial) {
-        RILRequest rr = null;
-        synchronized (mRequestList) {
-            rr = mRequestList.get(serial);
-            if (rr != null) {
-                mRequestList.remove(serial);
-            }
-        }
-
-        return rr;
+        return mRequestTable.remove(serial);
     }
 
     private void addToRilHistogram(RILRequest rr) {
@@ -5758,17 +5746,17 @@ public class RIL extends BaseCommands implements CommandsInterface {
         pw.println("RIL: " + this);
         pw.println(" mWakeLock=" + mWakeLock);
         pw.println(" mWakeLockTimeout=" + mWakeLockTimeout);
-        synchronized (mRequestList) {
-            synchronized (mWakeLock) {
-                pw.println(" mWakeLockCount=" + mWakeLockCount);
-            }
-            int count = mRequestList.size();
-            pw.println(" mRequestList count=" + count);
-            for (int i = 0; i < count; i++) {
-                RILRequest rr = mRequestList.valueAt(i);
-                pw.println("  [" + rr.mSerial + "] " + requestToString(rr.mRequest));
-            }
+        synchronized (mWakeLock) {
+            pw.println(" mWakeLockCount=" + mWakeLockCount);
+        }
+        List<RILRequest> requests = mRequestTable.snapshot();
+        int count = requests.size();
+        pw.println(" mRequestList count=" + count);
+        for (int i = 0; i < count; i++) {
+            RILRequest rr = requests.get(i);
+            pw.println("  [" + rr.mSerial + "] " + requestToString(rr.mRequest));
         }
+        mRequestPool.dump(pw);
         pw.println(" mLastNITZTimeInfo=" + Arrays.toString(mLastNITZTimeInfo));
         pw.println(" mTestingEmergencyCall=" + mTestingEmergencyCall.get());
         mClientWakelockTracker.dumpClientRequestTracker(pw);
@@ -5780,6 +5768,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
 
     /** Append the data to the end of an ArrayList */
     public static void appendPrimitiveArrayToArrayList(byte[] src, ArrayList<Byte> dst) {
+        dst.ensureCapacity(dst.size() + src.length);
         for (byte b : src) {
             dst.add(b);
         }
@@ -5804,8 +5793,14 @@ public class RIL extends BaseCommands implements CommandsInterface {
 
     /** Convert an ArrayList of Bytes to an exactly-sized primitive array */
     public static byte[] arrayListToPrimitiveArray(ArrayList<Byte> bytes) {
-        byte[] ret = new byte[bytes.size()];
-        for (int i = 0; i < ret.length; i++) {
+        final int size = bytes.size();
+        if (size == 0) return EMPTY_BYTE_ARRAY;
+
+        // Decode straight into an exactly sized array. Callers such as SmsMessage.newFromCMT and
+        // the cell broadcast handlers keep a reference to the returned array, so it can't come
+        // from a shared buffer.
+        byte[] ret = new byte[size];
+        for (int i = 0; i < size; i++) {
             ret[i] = bytes.get(i);
         }
         return ret;
@@ -51,6 +51,10 @@ public class RILRequest {
     @UnsupportedAppUsage
     Message mResult;
     RILRequest mNext;
+    // Pool this request is returned to on release, or null for the global pool.
+    RILRequestPool mPool;
+    // Shard of mPool this request was obtained from
+    int mPoolShard;
     int mWakeLockType;
     WorkSource mWorkSource;
     String mClientId;
@@ -93,20 +97,42 @@ public class RILRequest {
             rr = new RILRequest();
         }
 
+        rr.init(request, result);
+        return rr;
+    }
+
+    /**
+     * Initialize a new or recycled instance for a request.
+     *
+     * @param request RIL_REQUEST_*
+     * @param result sent when operation completes
+     */
+    void init(int request, Message result) {
         // Increment serial number. Wrap to 0 when reaching Integer.MAX_VALUE.
-        rr.mSerial = sNextSerial.getAndUpdate(n -> ((n + 1) % Integer.MAX_VALUE));
+        mSerial = sNextSerial.getAndUpdate(n -> ((n + 1) % Integer.MAX_VALUE));
 
-        rr.mRequest = request;
-        rr.mResult = result;
+        mRequest = request;
+        mResult = result;
 
-        rr.mWakeLockType = RIL.INVALID_WAKELOCK;
-        rr.mWorkSource = null;
-        rr.mStartTimeMs = SystemClock.elapsedRealtime();
+        mWakeLockType = RIL.INVALID_WAKELOCK;
+        mWorkSource = null;
+        mClientId = null;
+        mStartTimeMs = SystemClock.elapsedRealtime();
         if (result != null && result.getTarget() == null) {
             throw new NullPointerException("Message target must not be null");
         }
+    }
 
-        return rr;
+    /**
+     * Set the WorkSource used to track the client of this request.
+     */
+    void setWorkSource(WorkSource workSource) {
+        if (workSource != null) {
+            mWorkSource = workSource;
+            mClientId = getWorkSourceClientId();
+        } else {
+            Rlog.e(LOG_TAG, "null workSource " + mRequest);
+        }
     }
 
 
@@ -121,14 +147,7 @@ public class RILRequest {
     // @VisibleForTesting
     public static RILRequest obtain(int request, Message result, WorkSource workSource) {
         RILRequest rr = obtain(request, result);
-
-        if (workSource != null) {
-            rr.mWorkSource = workSource;
-            rr.mClientId = rr.getWorkSourceClientId();
-        } else {
-            Rlog.e(LOG_TAG, "null workSource " + request);
-        }
-
+        rr.setWorkSource(workSource);
         return rr;
     }
 
@@ -161,24 +180,35 @@ public class RILRequest {
      */
     @UnsupportedAppUsage
     void release() {
+        if (mPool != null) {
+            mResult = null;
+            checkWakeLockOnRelease();
+            mPool.recycle(this);
+            return;
+        }
+
         synchronized (sPoolSync) {
             if (sPoolSize < MAX_POOL_SIZE) {
                 mNext = sPool;
                 sPool = this;
                 sPoolSize++;
                 mResult = null;
-                if (mWakeLockType != RIL.INVALID_WAKELOCK) {
-                    //This is OK for some wakelock types and not others
-                    if (mWakeLockType == RIL.FOR_WAKELOCK) {
-                        Rlog.e(LOG_TAG, "RILRequest releasing with held wake lock: "
-                                + serialString());
-                    }
-                }
+                checkWakeLockOnRelease();
+            }
+        }
+    }
+
+    private void checkWakeLockOnRelease() {
+        if (mWakeLockType != RIL.INVALID_WAKELOCK) {
+            //This is OK for some wakelock types and not others
+            if (mWakeLockType == RIL.FOR_WAKELOCK) {
+                Rlog.e(LOG_TAG, "RILRequest releasing with held wake lock: "
+                        + serialString());
             }
         }
     }
 
-    private RILRequest() {
+    RILRequest() {
     }
 
     static void resetSerial() {
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Message;
+import android.os.WorkSource;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-phone pool of {@link RILRequest} instances.
+ *
+ * The pool is split into shards, each with its own lock and free list, and a thread always
+ * obtains from the same shard so that concurrent binder threads rarely contend. Requests obtained
+ * from the pool remember it and their shard, and are returned to that shard by
+ * {@link RILRequest#release()} once their response has been processed, whichever thread that
+ * happens on.
+ *
+ * {@hide}
+ */
+public class RILRequestPool {
+    /** Default total number of pooled instances. */
+    public static final int DEFAULT_POOL_SIZE = 32;
+
+    private static final int SHARD_COUNT = 4;
+
+    private static class Shard {
+        RILRequest mHead;
+        int mSize;
+    }
+
+    private final Shard[] mShards = new Shard[SHARD_COUNT];
+    private final int mMaxShardSize;
+
+    private final AtomicLong mHits = new AtomicLong(0);
+    private final AtomicLong mMisses = new AtomicLong(0);
+    private final AtomicLong mDrops = new AtomicLong(0);
+    private final AtomicInteger mInUse = new AtomicInteger(0);
+    private final AtomicInteger mHighWater = new AtomicInteger(0);
+
+    /**
+     * @param poolSize maximum number of idle instances kept across all shards.
+     */
+    public RILRequestPool(int poolSize) {
+        mMaxShardSize = Math.max(1, (poolSize + SHARD_COUNT - 1) / SHARD_COUNT);
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            mShards[i] = new Shard();
+        }
+    }
+
+    private static int shardIndexForCurrentThread() {
+        return (int) (Thread.currentThread().getId() & (SHARD_COUNT - 1));
+    }
+
+    /**
+     * Retrieves a RILRequest instance from the pool, allocating a new one if the pool is empty.
+     *
+     * @param request RIL_REQUEST_*
+     * @param result sent when operation completes
+     * @param workSource WorkSource to track the client
+     * @return a RILRequest instance owned by this pool.
+     */
+    public RILRequest obtain(int request, Message result, WorkSource workSource) {
+        RILRequest rr = null;
+        int shardIndex = shardIndexForCurrentThread();
+        Shard shard = mShards[shardIndex];
+        synchronized (shard) {
+            if (shard.mHead != null) {
+                rr = shard.mHead;
+                shard.mHead = rr.mNext;
+                rr.mNext = null;
+                shard.mSize--;
+            }
+        }
+
+        if (rr == null) {
+            mMisses.incrementAndGet();
+            rr = new RILRequest();
+            rr.mPool = this;
+        } else {
+            mHits.incrementAndGet();
+        }
+
+        int inUse = mInUse.incrementAndGet();
+        int highWater;
+        while (inUse > (highWater = mHighWater.get())) {
+            if (mHighWater.compareAndSet(highWater, inUse)) break;
+        }
+
+        rr.mPoolShard = shardIndex;
+        rr.init(request, result);
+        rr.setWorkSource(workSource);
+        return rr;
+    }
+
+    /**
+     * Returns a RILRequest instance to the pool. Called by {@link RILRequest#release()}.
+     */
+    void recycle(RILRequest rr) {
+        mInUse.decrementAndGet();
+        // Responses are processed on another thread than the one the request was obtained on:
+        // return the request to the shard of the thread obtaining it.
+        Shard shard = mShards[rr.mPoolShard];
+        synchronized (shard) {
+            if (shard.mSize < mMaxShardSize) {
+                rr.mNext = shard.mHead;
+                shard.mHead = rr;
+                shard.mSize++;
+                return;
+            }
+        }
+        mDrops.incrementAndGet();
+    }
+
+    /** @return number of requests served from the pool. */
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    /** @return number of requests which needed a new allocation. */
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    /** @return highest number of requests obtained from this pool and not yet released. */
+    public int getHighWaterMark() {
+        return mHighWater.get();
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.println(" mRequestPool: capacity=" + (mMaxShardSize * SHARD_COUNT)
+                + " hits=" + mHits.get()
+                + " misses=" + mMisses.get()
+                + " drops=" + mDrops.get()
+                + " inUse=" + mInUse.get()
+                + " highWater=" + mHighWater.get());
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import java.util.List;
+
+/**
+ * Table of in-flight solicited {@link RILRequest}s, indexed by serial number.
+ *
+ * Implementations must be safe for concurrent use by request issuing threads and the HIDL
+ * response thread.
+ *
+ * {@hide}
+ */
+public interface RILRequestTable {
+    /**
+     * Add a request to the table. The request's serial must not already be present.
+     */
+    void put(RILRequest rr);
+
+    /**
+     * @return the request with the given serial, or {@code null} if there is none.
+     */
+    RILRequest get(int serial);
+
+    /**
+     * Remove the request with the given serial.
+     *
+     * @return the removed request, or {@code null} if there is none.
+     */
+    RILRequest remove(int serial);
+
+    /**
+     * Remove all requests from the table.
+     *
+     * @return the requests which were removed by this call.
+     */
+    List<RILRequest> removeAll();
+
+    /**
+     * @return a weakly consistent snapshot of the requests currently in the table.
+     */
+    List<RILRequest> snapshot();
+
+    /**
+     * @return the number of requests currently in the table.
+     */
+    int size();
+}
@@ -481,7 +481,7 @@ public class RadioIndication extends IRadioIndication.Stub {
         mRil.processIndication(indicationType);
 
         byte response[] = RIL.arrayListToPrimitiveArray(data);
-        if (RIL.RILJ_LOGD) {
+        if (RIL.RILJ_LOGV) {
             mRil.unsljLogvRet(RIL_UNSOL_RESPONSE_NEW_BROADCAST_SMS,
                     IccUtils.bytesToHexString(response));
         }
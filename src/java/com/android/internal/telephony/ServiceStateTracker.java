@@ -191,6 +191,41 @@ public class ServiceStateTracker extends Handler {
      */
     @VisibleForTesting
     public int[] mPollingContext;
+
+    /** Sources of poll state requests, for the counters in {@link #mPollStateRequestCounts}. */
+    @VisibleForTesting
+    public static final int POLL_TRIGGER_OTHER = 0;
+    @VisibleForTesting
+    public static final int POLL_TRIGGER_NETWORK_STATE_CHANGED = 1;
+    @VisibleForTesting
+    public static final int POLL_TRIGGER_RADIO_STATE_CHANGED = 2;
+    private static final int POLL_TRIGGER_COUNT = 3;
+
+    /**
+     * Minimum time between the starts of two poll rounds requested by network state changed
+     * indications. Indications arriving in between are merged into one follow-up round.
+     */
+    private static final long MIN_COALESCED_POLL_INTERVAL_MS = 50;
+
+    /**
+     * Time after which a poll round still waiting for responses is given up, so that a lost
+     * response does not hold back the network state changed indications merged behind it.
+     */
+    @VisibleForTesting
+    public static final long POLL_STATE_ROUND_TIMEOUT_MS = 10000;
+
+    /** Poll state requests received, by trigger source. */
+    private final int[] mPollStateRequestCounts = new int[POLL_TRIGGER_COUNT];
+    /** Poll state requests merged into a poll round requested by another trigger. */
+    private int mPollStateRequestsCoalesced;
+    /** Poll rounds started. */
+    private int mPollStateRounds;
+    /** Poll rounds restarted before all their responses arrived. */
+    private int mPollStateRoundsAbandoned;
+    /** Whether a network state changed indication is waiting for the next poll round. */
+    private boolean mPollStatePending;
+    /** {@link SystemClock#elapsedRealtime()} when the last poll round started. */
+    private long mLastPollStateTime;
     @UnsupportedAppUsage
     private boolean mDesiredPowerState;
 
@@ -201,6 +236,23 @@ public class ServiceStateTracker extends Handler {
      */
     private boolean mDontPollSignalStrength = false;
 
+    /**
+     * Base period between signal strength polls provided by {@link DeviceStateMonitor}, or
+     * {@link DeviceStateMonitor#SIGNAL_STRENGTH_POLL_DISABLED} if signal strength should not be
+     * polled, e.g. while the screen is off.
+     */
+    private int mSignalStrengthPollInterval = POLL_PERIOD_MILLIS;
+    /** Consecutive signal strength polls which returned an unchanged signal strength. */
+    private int mSignalStrengthStablePolls;
+    /** Signal strength polls sent to the modem. */
+    private int mSignalStrengthPolls;
+
+    /**
+     * Phone ids of the active opportunistic subscriptions, updated on subscription changes so
+     * that {@link #getSignalStrength} does not need to look up the subscriptions.
+     */
+    private volatile int[] mOpportunisticPhoneIds = new int[0];
+
     @UnsupportedAppUsage
     private RegistrantList mVoiceRoamingOnRegistrants = new RegistrantList();
     @UnsupportedAppUsage
@@ -229,6 +281,12 @@ public class ServiceStateTracker extends Handler {
     /** Signal strength poll rate. */
     private static final int POLL_PERIOD_MILLIS = 20 * 1000;
 
+    /**
+     * The signal strength poll period doubles after each poll returning an unchanged signal
+     * strength, up to 2^MAX_SIGNAL_STRENGTH_POLL_BACKOFF times the base period.
+     */
+    private static final int MAX_SIGNAL_STRENGTH_POLL_BACKOFF = 2;
+
     /** Waiting period before recheck gprs and voice registration. */
     public static final int DEFAULT_GPRS_CHECK_PERIOD_MILLIS = 60 * 1000;
 
@@ -280,6 +338,8 @@ public class ServiceStateTracker extends Handler {
     protected static final int EVENT_PHYSICAL_CHANNEL_CONFIG           = 55;
     protected static final int EVENT_CELL_LOCATION_RESPONSE            = 56;
     protected static final int EVENT_CARRIER_CONFIG_CHANGED            = 57;
+    protected static final int EVENT_POLL_STATE_COALESCED              = 58;
+    protected static final int EVENT_SIGNAL_STRENGTH_POLL_INTERVAL_CHANGED = 59;
 
     @Retention(RetentionPolicy.SOURCE)
     @IntDef(prefix = {"CARRIER_NAME_DISPLAY_BITMASK"},
@@ -367,6 +427,7 @@ public class ServiceStateTracker extends Handler {
         @Override
         public void onSubscriptionsChanged() {
             if (DBG) log("SubscriptionListener.onSubscriptionInfoChanged");
+            updateOpportunisticPhoneIds();
             // Set the network type, in case the radio does not restore it.
             int subId = mPhone.getSubId();
             ServiceStateTracker.this.mPrevSubId = mPreviousSubId.get();
@@ -796,6 +857,9 @@ public class ServiceStateTracker extends Handler {
         mCi.unregisterForImsNetworkStateChanged(this);
         mPhone.getCarrierActionAgent().unregisterForCarrierAction(this,
                 CARRIER_ACTION_SET_RADIO_ENABLED);
+        if (mPhone.mDeviceStateMonitor != null) {
+            mPhone.mDeviceStateMonitor.unregisterForSignalStrengthPollIntervalChanged(this);
+        }
         if (mCSST != null) {
             mCSST.dispose();
             mCSST = null;
@@ -1212,11 +1276,19 @@ public class ServiceStateTracker extends Handler {
                 // This will do nothing in the 'radio not available' case
                 setPowerStateToDesired();
                 // These events are modem triggered, so pollState() needs to be forced
+                mPollStateRequestCounts[POLL_TRIGGER_RADIO_STATE_CHANGED]++;
                 modemTriggeredPollState();
                 break;
 
             case EVENT_NETWORK_STATE_CHANGED:
-                modemTriggeredPollState();
+                requestCoalescedPollState();
+                break;
+
+            case EVENT_POLL_STATE_COALESCED:
+                if (mPollStatePending && (!isPollStateInFlight() || isPollStateRoundTimedOut())) {
+                    mPollStatePending = false;
+                    modemTriggeredPollState();
+                }
                 break;
 
             case EVENT_GET_SIGNAL_STRENGTH:
@@ -1228,11 +1300,30 @@ public class ServiceStateTracker extends Handler {
                     return;
                 }
                 ar = (AsyncResult) msg.obj;
-                onSignalStrengthResult(ar);
+                if (onSignalStrengthResult(ar)) {
+                    mSignalStrengthStablePolls = 0;
+                } else {
+                    mSignalStrengthStablePolls++;
+                }
                 queueNextSignalStrengthPoll();
 
                 break;
 
+            case EVENT_SIGNAL_STRENGTH_POLL_INTERVAL_CHANGED:
+                ar = (AsyncResult) msg.obj;
+                int oldInterval = mSignalStrengthPollInterval;
+                mSignalStrengthPollInterval = (Integer) ar.result;
+                mSignalStrengthStablePolls = 0;
+                if (mCi.getRadioState() != TelephonyManager.RADIO_POWER_ON) {
+                    // Polling will start when radio turns on
+                    break;
+                }
+                // Refresh right away when polling resumes, e.g. when the screen turns on, since
+                // the last value may be old.
+                scheduleSignalStrengthPoll(
+                        oldInterval == DeviceStateMonitor.SIGNAL_STRENGTH_POLL_DISABLED);
+                break;
+
             case EVENT_GET_LOC_DONE:
                 ar = (AsyncResult) msg.obj;
                 if (ar.exception == null) {
@@ -1276,6 +1367,7 @@ public class ServiceStateTracker extends Handler {
             case EVENT_POLL_SIGNAL_STRENGTH:
                 // Just poll signal strength...not part of pollState()
 
+                mSignalStrengthPolls++;
                 mCi.getSignalStrength(obtainMessage(EVENT_GET_SIGNAL_STRENGTH));
                 break;
 
@@ -1924,6 +2016,9 @@ public class ServiceStateTracker extends Handler {
             pollStateDone();
         }
 
+        if (mPollStatePending && !isPollStateInFlight()) {
+            scheduleCoalescedPollState();
+        }
     }
 
     /**
@@ -3007,7 +3102,67 @@ public class ServiceStateTracker extends Handler {
         pollState(true);
     }
 
+    /**
+     * Poll the service state for a network state changed indication. If a poll round is in
+     * progress, or the last one started less than {@link #MIN_COALESCED_POLL_INTERVAL_MS} ago,
+     * the request is merged with any other such request into one follow-up round, as the
+     * responses of the current round may already predate the change. The follow-up round
+     * starts when the current one completes, or after {@link #POLL_STATE_ROUND_TIMEOUT_MS} if
+     * it never does.
+     */
+    private void requestCoalescedPollState() {
+        mPollStateRequestCounts[POLL_TRIGGER_NETWORK_STATE_CHANGED]++;
+        if (isPollStateRoundTimedOut() || (!mPollStatePending && !isPollStateInFlight()
+                && SystemClock.elapsedRealtime() - mLastPollStateTime
+                        >= MIN_COALESCED_POLL_INTERVAL_MS)) {
+            modemTriggeredPollState();
+            return;
+        }
+        if (mPollStatePending) {
+            mPollStateRequestsCoalesced++;
+        }
+        mPollStatePending = true;
+        scheduleCoalescedPollState();
+    }
+
+    /**
+     * Schedule the pending poll round, once the minimum interval since the last round has
+     * elapsed if no round is in progress, or when the one in progress times out.
+     */
+    private void scheduleCoalescedPollState() {
+        removeMessages(EVENT_POLL_STATE_COALESCED);
+        long delay = mLastPollStateTime - SystemClock.elapsedRealtime() + (isPollStateInFlight()
+                ? POLL_STATE_ROUND_TIMEOUT_MS : MIN_COALESCED_POLL_INTERVAL_MS);
+        sendEmptyMessageDelayed(EVENT_POLL_STATE_COALESCED, Math.max(delay, 0));
+    }
+
+    private boolean isPollStateInFlight() {
+        return mPollingContext != null && mPollingContext[0] > 0;
+    }
+
+    private boolean isPollStateRoundTimedOut() {
+        return isPollStateInFlight()
+                && SystemClock.elapsedRealtime() - mLastPollStateTime
+                        >= POLL_STATE_ROUND_TIMEOUT_MS;
+    }
+
     public void pollState(boolean modemTriggered) {
+        if (isPollStateInFlight()) {
+            // the responses of the current round will be discarded
+            mPollStateRoundsAbandoned++;
+        }
+        if (!modemTriggered) {
+            mPollStateRequestCounts[POLL_TRIGGER_OTHER]++;
+        }
+        if (mPollStatePending) {
+            // this round also covers the pending network state change
+            mPollStateRequestsCoalesced++;
+            mPollStatePending = false;
+        }
+        removeMessages(EVENT_POLL_STATE_COALESCED);
+        mPollStateRounds++;
+        mLastPollStateTime = SystemClock.elapsedRealtime();
+
         mPollingContext = new int[1];
         mPollingContext[0] = 0;
 
@@ -4312,6 +4467,15 @@ public class ServiceStateTracker extends Handler {
     }
 
     private void queueNextSignalStrengthPoll() {
+        scheduleSignalStrengthPoll(false);
+    }
+
+    /**
+     * Schedule the next signal strength poll, replacing any pending one.
+     *
+     * @param immediately true to poll now instead of after the poll period
+     */
+    private void scheduleSignalStrengthPoll(boolean immediately) {
         if (mDontPollSignalStrength) {
             // The radio is telling us about signal strength changes
             // we don't have to ask it
@@ -4325,15 +4489,28 @@ public class ServiceStateTracker extends Handler {
             return;
         }
 
+        removeMessages(EVENT_POLL_SIGNAL_STRENGTH);
+        if (mSignalStrengthPollInterval == DeviceStateMonitor.SIGNAL_STRENGTH_POLL_DISABLED) {
+            // Polling resumes when the device state changes
+            return;
+        }
+
         Message msg;
 
         msg = obtainMessage();
         msg.what = EVENT_POLL_SIGNAL_STRENGTH;
 
-        long nextTime;
+        sendMessageDelayed(msg, immediately ? 0 : getSignalStrengthPollDelay());
+    }
 
-        // TODO Don't poll signal strength if screen is off
-        sendMessageDelayed(msg, POLL_PERIOD_MILLIS);
+    /**
+     * @return the delay before the next signal strength poll, backing off while the signal
+     * strength does not change.
+     */
+    @VisibleForTesting
+    public long getSignalStrengthPollDelay() {
+        return (long) mSignalStrengthPollInterval
+                << Math.min(mSignalStrengthStablePolls, MAX_SIGNAL_STRENGTH_POLL_BACKOFF);
     }
 
     private void notifyCdmaSubscriptionInfoReady() {
@@ -4808,6 +4985,33 @@ public class ServiceStateTracker extends Handler {
     protected void cancelPollState() {
         // This will effectively cancel the rest of the poll requests.
         mPollingContext = new int[1];
+        // Along with any poll round waiting for them to complete
+        mPollStatePending = false;
+        removeMessages(EVENT_POLL_STATE_COALESCED);
+    }
+
+    /**
+     * @return the number of poll state rounds started.
+     */
+    @VisibleForTesting
+    public int getPollStateRounds() {
+        return mPollStateRounds;
+    }
+
+    /**
+     * @return the number of poll state requests received from a trigger source.
+     */
+    @VisibleForTesting
+    public int getPollStateRequestCount(int trigger) {
+        return mPollStateRequestCounts[trigger];
+    }
+
+    /**
+     * @return the number of poll state requests merged into a later poll round.
+     */
+    @VisibleForTesting
+    public int getPollStateRequestsCoalesced() {
+        return mPollStateRequestsCoalesced;
     }
 
     /**
@@ -4931,25 +5135,37 @@ public class ServiceStateTracker extends Handler {
                 || (curTime - mSignalStrengthUpdatedTime > SIGNAL_STRENGTH_REFRESH_THRESHOLD_IN_MS);
         if (!isStale) return false;
 
-        List<SubscriptionInfo> subInfoList = SubscriptionController.getInstance()
-                .getActiveSubscriptionInfoList(mPhone.getContext().getOpPackageName());
-        for (SubscriptionInfo info : subInfoList) {
-            // If we have an active opportunistic subscription whose data is IN_SERVICE, we needs
-            // to get signal strength to decide data switching threshold. In this case, we poll
-            // latest signal strength from modem.
-            if (info.isOpportunistic()) {
-                TelephonyManager tm = TelephonyManager.from(mPhone.getContext())
-                        .createForSubscriptionId(info.getSubscriptionId());
-                ServiceState ss = tm.getServiceState();
-                if (ss != null && ss.getDataRegState() == ServiceState.STATE_IN_SERVICE) {
-                    return true;
-                }
+        // If we have an active opportunistic subscription whose data is IN_SERVICE, we needs
+        // to get signal strength to decide data switching threshold. In this case, we poll
+        // latest signal strength from modem.
+        for (int phoneId : mOpportunisticPhoneIds) {
+            Phone phone = PhoneFactory.getPhone(phoneId);
+            ServiceState ss = phone != null ? phone.getServiceState() : null;
+            if (ss != null && ss.getDataRegState() == ServiceState.STATE_IN_SERVICE) {
+                return true;
             }
         }
 
         return false;
     }
 
+    private void updateOpportunisticPhoneIds() {
+        List<SubscriptionInfo> subInfoList = mSubscriptionController
+                .getActiveSubscriptionInfoList(mPhone.getContext().getOpPackageName());
+        int[] phoneIds = new int[subInfoList != null ? subInfoList.size() : 0];
+        int count = 0;
+        if (subInfoList != null) {
+            for (SubscriptionInfo info : subInfoList) {
+                if (!info.isOpportunistic()) continue;
+                int phoneId = mSubscriptionController.getPhoneId(info.getSubscriptionId());
+                if (SubscriptionManager.isValidPhoneId(phoneId)) {
+                    phoneIds[count++] = phoneId;
+                }
+            }
+        }
+        mOpportunisticPhoneIds = Arrays.copyOf(phoneIds, count);
+    }
+
     /**
      * Registration point for subscription info ready
      * @param h handler to notify
@@ -5043,8 +5259,16 @@ public class ServiceStateTracker extends Handler {
         pw.println(" mRestrictedState=" + mRestrictedState);
         pw.println(" mPollingContext=" + mPollingContext + " - " +
                 (mPollingContext != null ? mPollingContext[0] : ""));
+        pw.println(" mPollStateRounds=" + mPollStateRounds
+                + " mPollStateRequestCounts=" + Arrays.toString(mPollStateRequestCounts)
+                + " mPollStateRequestsCoalesced=" + mPollStateRequestsCoalesced
+                + " mPollStateRoundsAbandoned=" + mPollStateRoundsAbandoned);
         pw.println(" mDesiredPowerState=" + mDesiredPowerState);
         pw.println(" mDontPollSignalStrength=" + mDontPollSignalStrength);
+        pw.println(" mSignalStrengthPollInterval=" + mSignalStrengthPollInterval
+                + " mSignalStrengthStablePolls=" + mSignalStrengthStablePolls
+                + " mSignalStrengthPolls=" + mSignalStrengthPolls);
+        pw.println(" mOpportunisticPhoneIds=" + Arrays.toString(mOpportunisticPhoneIds));
         pw.println(" mSignalStrength=" + mSignalStrength);
         pw.println(" mLastSignalStrength=" + mLastSignalStrength);
         pw.println(" mRestrictedState=" + mRestrictedState);
@@ -0,0 +1,500 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.telephony.SmsManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Deterministic automaton classifying a destination address against the four short code
+ * patterns of a country at once, with the same result as matching the patterns in
+ * {@code ShortCodePatternMatcher} order with {@link java.util.regex.Matcher#matches()}.
+ *
+ * Only the regex subset used by the short code tables is supported: digits, {@code \d},
+ * {@code \D}, {@code .}, character classes of digits and digit ranges, groups, alternation and
+ * the greedy or reluctant {@code ? * + {n} {n,} {n,m}} quantifiers. {@link #compile} returns null
+ * for anything else, and the caller keeps using the regexes.
+ *
+ * Classifying a number walks one table entry per character and does not allocate.
+ */
+final class ShortCodeDfa {
+    // Input symbols: '0'-'9', any other character but line terminators, and line terminators,
+    // which '.' does not match.
+    private static final int SYMBOL_OTHER = 10;
+    private static final int SYMBOL_LINE_TERMINATOR = 11;
+    private static final int SYMBOL_COUNT = 12;
+
+    private static final int MASK_DIGITS = (1 << 10) - 1;
+    private static final int MASK_ALL = (1 << SYMBOL_COUNT) - 1;
+    private static final int MASK_DOT = MASK_ALL & ~(1 << SYMBOL_LINE_TERMINATOR);
+
+    /** Limits keeping pathological patterns from using too much memory. */
+    private static final int MAX_NFA_STATES = 4096;
+    private static final int MAX_DFA_STATES = 4096;
+
+    /** Categories in the order the patterns are tried, most specific first. */
+    private static final int[] CATEGORIES = {
+            SmsManager.SMS_CATEGORY_FREE_SHORT_CODE,
+            SmsManager.SMS_CATEGORY_STANDARD_SHORT_CODE,
+            SmsManager.SMS_CATEGORY_PREMIUM_SHORT_CODE,
+            SmsManager.SMS_CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE,
+    };
+
+    // mTransitions[state * SYMBOL_COUNT + symbol] is the next state, or -1 if no pattern can
+    // match any more.
+    private final int[] mTransitions;
+    private final int[] mCategories;
+
+    private ShortCodeDfa(int[] transitions, int[] categories) {
+        mTransitions = transitions;
+        mCategories = categories;
+    }
+
+    /**
+     * Compile the short code patterns of a country. Null patterns never match.
+     *
+     * @return the automaton, or null if a pattern uses an unsupported construct
+     */
+    static ShortCodeDfa compile(String shortCodeRegex, String premiumShortCodeRegex,
+            String freeShortCodeRegex, String standardShortCodeRegex) {
+        // same order as CATEGORIES
+        String[] regexes = {freeShortCodeRegex, standardShortCodeRegex, premiumShortCodeRegex,
+                shortCodeRegex};
+        try {
+            Nfa nfa = new Nfa();
+            int start = nfa.newState();
+            int[] acceptCategory = new int[MAX_NFA_STATES];
+            Arrays.fill(acceptCategory, -1);
+            for (int i = 0; i < regexes.length; i++) {
+                if (regexes[i] == null) continue;
+                Node node = new Parser(regexes[i]).parse();
+                int[] fragment = node.compile(nfa);
+                nfa.addEpsilon(start, fragment[0]);
+                acceptCategory[fragment[1]] = i;
+            }
+            return determinize(nfa, start, acceptCategory);
+        } catch (UnsupportedPatternException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the {@link SmsManager} short code category of the number.
+     */
+    int getNumberCategory(String phoneNumber) {
+        int state = 0;
+        for (int i = 0; i < phoneNumber.length(); ) {
+            int c = phoneNumber.codePointAt(i);
+            i += Character.charCount(c);
+            state = mTransitions[state * SYMBOL_COUNT + getSymbol(c)];
+            if (state < 0) {
+                return SmsManager.SMS_CATEGORY_NOT_SHORT_CODE;
+            }
+        }
+        return mCategories[state];
+    }
+
+    private static int getSymbol(int c) {
+        if (c >= '0' && c <= '9') return c - '0';
+        switch (c) {
+            case '\n':
+            case '\r':
+            case '\u0085':
+            case '\u2028':
+            case '\u2029':
+                return SYMBOL_LINE_TERMINATOR;
+            default:
+                return SYMBOL_OTHER;
+        }
+    }
+
+    private static ShortCodeDfa determinize(Nfa nfa, int start, int[] acceptCategory)
+            throws UnsupportedPatternException {
+        Map<BitSet, Integer> stateIds = new HashMap<>();
+        List<BitSet> states = new ArrayList<>();
+        BitSet initial = new BitSet();
+        nfa.addClosure(initial, start);
+        stateIds.put(initial, 0);
+        states.add(initial);
+
+        int[] transitions = new int[SYMBOL_COUNT * 16];
+        int[] categories = new int[16];
+        for (int id = 0; id < states.size(); id++) {
+            BitSet current = states.get(id);
+            if (transitions.length < (id + 1) * SYMBOL_COUNT) {
+                transitions = Arrays.copyOf(transitions, transitions.length * 2);
+                categories = Arrays.copyOf(categories, categories.length * 2);
+            }
+
+            int best = -1;
+            for (int s = current.nextSetBit(0); s >= 0; s = current.nextSetBit(s + 1)) {
+                int category = acceptCategory[s];
+                if (category >= 0 && (best < 0 || category < best)) best = category;
+            }
+            categories[id] = best < 0 ? SmsManager.SMS_CATEGORY_NOT_SHORT_CODE
+                    : CATEGORIES[best];
+
+            for (int symbol = 0; symbol < SYMBOL_COUNT; symbol++) {
+                BitSet next = new BitSet();
+                for (int s = current.nextSetBit(0); s >= 0; s = current.nextSetBit(s + 1)) {
+                    if ((nfa.mMasks[s] & (1 << symbol)) != 0) {
+                        nfa.addClosure(next, nfa.mTargets[s]);
+                    }
+                }
+                int nextId = -1;
+                if (!next.isEmpty()) {
+                    Integer existing = stateIds.get(next);
+                    if (existing == null) {
+                        if (states.size() == MAX_DFA_STATES) {
+                            throw new UnsupportedPatternException("too many states");
+                        }
+                        existing = states.size();
+                        stateIds.put(next, existing);
+                        states.add(next);
+                    }
+                    nextId = existing;
+                }
+                transitions[id * SYMBOL_COUNT + symbol] = nextId;
+            }
+        }
+        return new ShortCodeDfa(Arrays.copyOf(transitions, states.size() * SYMBOL_COUNT),
+                Arrays.copyOf(categories, states.size()));
+    }
+
+    /** Thrown for the patterns which cannot be compiled, to fall back to the regexes. */
+    private static final class UnsupportedPatternException extends Exception {
+        UnsupportedPatternException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Thompson NFA. Each state has at most one symbol transition and any number of epsilon
+     * transitions.
+     */
+    private static final class Nfa {
+        final int[] mMasks = new int[MAX_NFA_STATES];
+        final int[] mTargets = new int[MAX_NFA_STATES];
+        final int[][] mEpsilons = new int[MAX_NFA_STATES][];
+        int mSize;
+
+        int newState() throws UnsupportedPatternException {
+            if (mSize == MAX_NFA_STATES) {
+                throw new UnsupportedPatternException("too many states");
+            }
+            mEpsilons[mSize] = new int[0];
+            return mSize++;
+        }
+
+        void addTransition(int from, int mask, int to) {
+            mMasks[from] = mask;
+            mTargets[from] = to;
+        }
+
+        void addEpsilon(int from, int to) {
+            int[] epsilons = Arrays.copyOf(mEpsilons[from], mEpsilons[from].length + 1);
+            epsilons[epsilons.length - 1] = to;
+            mEpsilons[from] = epsilons;
+        }
+
+        void addClosure(BitSet set, int state) {
+            if (set.get(state)) return;
+            set.set(state);
+            for (int next : mEpsilons[state]) {
+                addClosure(set, next);
+            }
+        }
+    }
+
+    /** Regex syntax tree. */
+    private abstract static class Node {
+        /** @return the start and end states of a new NFA fragment matching this node. */
+        abstract int[] compile(Nfa nfa) throws UnsupportedPatternException;
+    }
+
+    private static final class CharSetNode extends Node {
+        final int mMask;
+
+        CharSetNode(int mask) {
+            mMask = mask;
+        }
+
+        @Override
+        int[] compile(Nfa nfa) throws UnsupportedPatternException {
+            int start = nfa.newState();
+            int end = nfa.newState();
+            nfa.addTransition(start, mMask, end);
+            return new int[] {start, end};
+        }
+    }
+
+    private static final class ConcatNode extends Node {
+        final List<Node> mChildren;
+
+        ConcatNode(List<Node> children) {
+            mChildren = children;
+        }
+
+        @Override
+        int[] compile(Nfa nfa) throws UnsupportedPatternException {
+            int start = nfa.newState();
+            int end = start;
+            for (Node child : mChildren) {
+                int[] fragment = child.compile(nfa);
+                nfa.addEpsilon(end, fragment[0]);
+                end = fragment[1];
+            }
+            return new int[] {start, end};
+        }
+    }
+
+    private static final class AltNode extends Node {
+        final List<Node> mChildren;
+
+        AltNode(List<Node> children) {
+            mChildren = children;
+        }
+
+        @Override
+        int[] compile(Nfa nfa) throws UnsupportedPatternException {
+            int start = nfa.newState();
+            int end = nfa.newState();
+            for (Node child : mChildren) {
+                int[] fragment = child.compile(nfa);
+                nfa.addEpsilon(start, fragment[0]);
+                nfa.addEpsilon(fragment[1], end);
+            }
+            return new int[] {start, end};
+        }
+    }
+
+    private static final class RepeatNode extends Node {
+        final Node mChild;
+        final int mMin;
+        // -1 for no upper bound
+        final int mMax;
+
+        RepeatNode(Node child, int min, int max) {
+            mChild = child;
+            mMin = min;
+            mMax = max;
+        }
+
+        @Override
+        int[] compile(Nfa nfa) throws UnsupportedPatternException {
+            int start = nfa.newState();
+            int end = start;
+            for (int i = 0; i < mMin; i++) {
+                int[] fragment = mChild.compile(nfa);
+                nfa.addEpsilon(end, fragment[0]);
+                end = fragment[1];
+            }
+            if (mMax < 0) {
+                int[] fragment = mChild.compile(nfa);
+                int loopEnd = nfa.newState();
+                nfa.addEpsilon(end, fragment[0]);
+                nfa.addEpsilon(end, loopEnd);
+                nfa.addEpsilon(fragment[1], fragment[0]);
+                nfa.addEpsilon(fragment[1], loopEnd);
+                end = loopEnd;
+            } else {
+                int optionalEnd = nfa.newState();
+                for (int i = mMin; i < mMax; i++) {
+                    int[] fragment = mChild.compile(nfa);
+                    nfa.addEpsilon(end, fragment[0]);
+                    nfa.addEpsilon(end, optionalEnd);
+                    end = fragment[1];
+                }
+                nfa.addEpsilon(end, optionalEnd);
+                end = optionalEnd;
+            }
+            return new int[] {start, end};
+        }
+    }
+
+    /** Recursive descent parser for the supported regex subset. */
+    private static final class Parser {
+        private final String mRegex;
+        private int mPos;
+
+        Parser(String regex) {
+            mRegex = regex;
+        }
+
+        Node parse() throws UnsupportedPatternException {
+            Node node = parseAlternation();
+            if (mPos != mRegex.length()) {
+                throw unsupported();
+            }
+            return node;
+        }
+
+        private UnsupportedPatternException unsupported() {
+            return new UnsupportedPatternException("unsupported regex " + mRegex + " at "
+                    + mPos);
+        }
+
+        private boolean peek(char c) {
+            return mPos < mRegex.length() && mRegex.charAt(mPos) == c;
+        }
+
+        private Node parseAlternation() throws UnsupportedPatternException {
+            List<Node> alternatives = new ArrayList<>();
+            alternatives.add(parseConcatenation());
+            while (peek('|')) {
+                mPos++;
+                alternatives.add(parseConcatenation());
+            }
+            return alternatives.size() == 1 ? alternatives.get(0) : new AltNode(alternatives);
+        }
+
+        private Node parseConcatenation() throws UnsupportedPatternException {
+            List<Node> children = new ArrayList<>();
+            while (mPos < mRegex.length() && !peek('|') && !peek(')')) {
+                children.add(parseRepetition());
+            }
+            return children.size() == 1 ? children.get(0) : new ConcatNode(children);
+        }
+
+        private Node parseRepetition() throws UnsupportedPatternException {
+            Node node = parseAtom();
+            while (mPos < mRegex.length()) {
+                int min;
+                int max;
+                char c = mRegex.charAt(mPos);
+                if (c == '?') {
+                    min = 0;
+                    max = 1;
+                    mPos++;
+                } else if (c == '*') {
+                    min = 0;
+                    max = -1;
+                    mPos++;
+                } else if (c == '+') {
+                    min = 1;
+                    max = -1;
+                    mPos++;
+                } else if (c == '{') {
+                    mPos++;
+                    min = parseNumber();
+                    max = min;
+                    if (peek(',')) {
+                        mPos++;
+                        max = peek('}') ? -1 : parseNumber();
+                    }
+                    if (!peek('}') || (max >= 0 && max < min)) throw unsupported();
+                    mPos++;
+                } else {
+                    break;
+                }
+                if (peek('?')) {
+                    // reluctant quantifiers match the same strings as a whole
+                    mPos++;
+                } else if (peek('+')) {
+                    // possessive quantifiers do not
+                    throw unsupported();
+                }
+                node = new RepeatNode(node, min, max);
+            }
+            return node;
+        }
+
+        private int parseNumber() throws UnsupportedPatternException {
+            int start = mPos;
+            while (mPos < mRegex.length() && Character.isDigit(mRegex.charAt(mPos))
+                    && mPos - start < 4) {
+                mPos++;
+            }
+            if (start == mPos) throw unsupported();
+            return Integer.parseInt(mRegex.substring(start, mPos));
+        }
+
+        private Node parseAtom() throws UnsupportedPatternException {
+            char c = mRegex.charAt(mPos++);
+            if (c >= '0' && c <= '9') {
+                return new CharSetNode(1 << (c - '0'));
+            }
+            switch (c) {
+                case '.':
+                    return new CharSetNode(MASK_DOT);
+                case '\\':
+                    return new CharSetNode(parseEscape());
+                case '[':
+                    return new CharSetNode(parseCharClass());
+                case '(':
+                    if (peek('?')) {
+                        if (mPos + 1 < mRegex.length() && mRegex.charAt(mPos + 1) == ':') {
+                            mPos += 2;
+                        } else {
+                            throw unsupported();
+                        }
+                    }
+                    Node node = parseAlternation();
+                    if (!peek(')')) throw unsupported();
+                    mPos++;
+                    return node;
+                default:
+                    throw unsupported();
+            }
+        }
+
+        private int parseEscape() throws UnsupportedPatternException {
+            if (mPos >= mRegex.length()) throw unsupported();
+            char c = mRegex.charAt(mPos++);
+            if (c == 'd') return MASK_DIGITS;
+            if (c == 'D') return MASK_ALL & ~MASK_DIGITS;
+            throw unsupported();
+        }
+
+        private int parseCharClass() throws UnsupportedPatternException {
+            boolean negated = peek('^');
+            if (negated) mPos++;
+            int mask = 0;
+            boolean first = true;
+            while (mPos < mRegex.length() && (first || !peek(']'))) {
+                first = false;
+                char c = mRegex.charAt(mPos++);
+                if (c == '\\') {
+                    mask |= parseEscape();
+                } else if (c >= '0' && c <= '9') {
+                    if (peek('-') && mPos + 1 < mRegex.length()
+                            && mRegex.charAt(mPos + 1) != ']') {
+                        char last = mRegex.charAt(mPos + 1);
+                        if (last < c || last > '9') throw unsupported();
+                        mPos += 2;
+                        for (char d = c; d <= last; d++) {
+                            mask |= 1 << (d - '0');
+                        }
+                    } else {
+                        mask |= 1 << (c - '0');
+                    }
+                } else {
+                    throw unsupported();
+                }
+            }
+            if (!peek(']')) throw unsupported();
+            mPos++;
+            return negated ? MASK_ALL & ~mask : mask;
+        }
+    }
+}
@@ -30,12 +30,15 @@ import android.telephony.CarrierConfigManager;
 import android.telephony.Rlog;
 import android.telephony.SubscriptionManager;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.cdma.CdmaInboundSmsHandler;
 import com.android.internal.telephony.gsm.GsmInboundSmsHandler;
 import com.android.internal.telephony.metrics.TelephonyMetrics;
 
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -52,6 +55,13 @@ public class SmsBroadcastUndelivered {
     /** Delete any partial message segments older than 7 days. */
     static final long DEFAULT_PARTIAL_SEGMENT_EXPIRE_AGE = (long) (60 * 60 * 1000) * 24 * 7;
 
+    /**
+     * Maximum number of incomplete messages removed by one provider delete. Each message adds
+     * three selection arguments, so this stays well below SQLite's limit of 999.
+     */
+    @VisibleForTesting
+    static final int MAX_MESSAGES_PER_DELETE = 100;
+
     /**
      * Query projection for dispatching pending messages at boot time.
      * Column order must match the {@code *_COLUMN} constants in {@link InboundSmsHandler}.
@@ -89,6 +99,9 @@ public class SmsBroadcastUndelivered {
 
     private static SmsBroadcastUndelivered instance;
 
+    /** Result of the last raw table scan, or null if none completed yet. */
+    private static volatile ScanStats sLastScanStats;
+
     /** Content resolver to use to access raw table from SmsProvider. */
     private final ContentResolver mResolver;
 
@@ -164,15 +177,23 @@ public class SmsBroadcastUndelivered {
 
     /**
      * Scan the raw table for complete SMS messages to broadcast, and old PDUs to delete.
+     *
+     * The table is read in a single pass: single-part messages are dispatched as they are read,
+     * multi-part messages as soon as their last segment is read, and the segments of incomplete
+     * messages are counted per message so that the expired ones can be removed afterwards with
+     * a few batched deletes.
      */
     static void scanRawTable(Context context, CdmaInboundSmsHandler cdmaInboundSmsHandler,
             GsmInboundSmsHandler gsmInboundSmsHandler, long oldMessageTimestamp) {
         if (DBG) Rlog.d(TAG, "scanning raw table for undelivered messages");
         long startTime = System.nanoTime();
+        ScanStats stats = new ScanStats();
         ContentResolver contentResolver = context.getContentResolver();
         HashMap<SmsReferenceKey, Integer> multiPartReceivedCount =
                 new HashMap<SmsReferenceKey, Integer>(4);
-        HashSet<SmsReferenceKey> oldMultiPartMessages = new HashSet<SmsReferenceKey>(4);
+        // old incomplete messages, with the number of segments found for each of them
+        HashMap<SmsReferenceKey, Integer> oldMultiPartMessages =
+                new HashMap<SmsReferenceKey, Integer>(4);
         Cursor cursor = null;
         try {
             // query only non-deleted ones
@@ -185,6 +206,7 @@ public class SmsBroadcastUndelivered {
 
             boolean isCurrentFormat3gpp2 = InboundSmsHandler.isCurrentFormat3gpp2();
             while (cursor.moveToNext()) {
+                stats.mRowsScanned++;
                 InboundSmsTracker tracker;
                 try {
                     tracker = TelephonyComponentFactory.getInstance()
@@ -192,69 +214,133 @@ public class SmsBroadcastUndelivered {
                             isCurrentFormat3gpp2);
                 } catch (IllegalArgumentException e) {
                     Rlog.e(TAG, "error loading SmsTracker: " + e);
+                    stats.mInvalidRows++;
                     continue;
                 }
 
                 if (tracker.getMessageCount() == 1) {
                     // deliver single-part message
                     broadcastSms(tracker, cdmaInboundSmsHandler, gsmInboundSmsHandler);
+                    stats.mMessagesDispatched++;
                 } else {
                     SmsReferenceKey reference = new SmsReferenceKey(tracker);
                     Integer receivedCount = multiPartReceivedCount.get(reference);
-                    if (receivedCount == null) {
-                        multiPartReceivedCount.put(reference, 1);    // first segment seen
-                        if (tracker.getTimestamp() < oldMessageTimestamp) {
-                            // older than oldMessageTimestamp; delete if we don't find all the
-                            // segments
-                            oldMultiPartMessages.add(reference);
-                        }
-                    } else {
-                        int newCount = receivedCount + 1;
-                        if (newCount == tracker.getMessageCount()) {
-                            // looks like we've got all the pieces; send a single tracker
-                            // to state machine which will find the other pieces to broadcast
-                            if (DBG) Rlog.d(TAG, "found complete multi-part message");
-                            broadcastSms(tracker, cdmaInboundSmsHandler, gsmInboundSmsHandler);
-                            // don't delete this old message until after we broadcast it
-                            oldMultiPartMessages.remove(reference);
-                        } else {
-                            multiPartReceivedCount.put(reference, newCount);
-                        }
+                    int newCount = receivedCount == null ? 1 : receivedCount + 1;
+                    if (receivedCount == null && tracker.getTimestamp() < oldMessageTimestamp) {
+                        // older than oldMessageTimestamp; delete if we don't find all the
+                        // segments
+                        oldMultiPartMessages.put(reference, newCount);
+                    } else if (oldMultiPartMessages.containsKey(reference)) {
+                        oldMultiPartMessages.put(reference, newCount);
                     }
+                    if (newCount == tracker.getMessageCount()) {
+                        // looks like we've got all the pieces; send a single tracker
+                        // to state machine which will find the other pieces to broadcast
+                        if (DBG) Rlog.d(TAG, "found complete multi-part message");
+                        broadcastSms(tracker, cdmaInboundSmsHandler, gsmInboundSmsHandler);
+                        stats.mMessagesDispatched++;
+                        // don't delete this old message until after we broadcast it
+                        oldMultiPartMessages.remove(reference);
+                    }
+                    multiPartReceivedCount.put(reference, newCount);
                 }
             }
             // Retrieve the phone id, required for metrics
             int phoneId = getPhoneId(gsmInboundSmsHandler, cdmaInboundSmsHandler);
 
             // Delete old incomplete message segments
-            for (SmsReferenceKey message : oldMultiPartMessages) {
-                // delete permanently
-                int rows = contentResolver.delete(InboundSmsHandler.sRawUriPermanentDelete,
-                        message.getDeleteWhere(), message.getDeleteWhereArgs());
-                if (rows == 0) {
-                    Rlog.e(TAG, "No rows were deleted from raw table!");
-                } else if (DBG) {
-                    Rlog.d(TAG, "Deleted " + rows + " rows from raw table for incomplete "
-                            + message.mMessageCount + " part message");
-                }
-                // Update metrics with dropped SMS
-                if (rows > 0) {
-                    TelephonyMetrics metrics = TelephonyMetrics.getInstance();
-                    metrics.writeDroppedIncomingMultipartSms(phoneId, message.mFormat, rows,
-                            message.mMessageCount);
-                }
-            }
+            deleteIncompleteMessages(contentResolver, oldMultiPartMessages, phoneId, stats);
         } catch (SQLException e) {
             Rlog.e(TAG, "error reading pending SMS messages", e);
         } finally {
             if (cursor != null) {
                 cursor.close();
             }
-            if (DBG) Rlog.d(TAG, "finished scanning raw table in "
-                    + ((System.nanoTime() - startTime) / 1000000) + " ms");
+            stats.mDurationMillis = (System.nanoTime() - startTime) / 1000000;
+            sLastScanStats = stats;
+            if (DBG) Rlog.d(TAG, "finished scanning raw table: " + stats);
         }
     }
 
+    /**
+     * Permanently delete the segments of incomplete messages, batching several messages in
+     * each provider delete.
+     *
+     * @param messages the messages to delete, with the number of segments scanned for each
+     */
+    private static void deleteIncompleteMessages(ContentResolver contentResolver,
+            Map<SmsReferenceKey, Integer> messages, int phoneId, ScanStats stats) {
+        List<SmsReferenceKey> batch = new ArrayList<>(MAX_MESSAGES_PER_DELETE);
+        for (SmsReferenceKey message : messages.keySet()) {
+            batch.add(message);
+            if (batch.size() == MAX_MESSAGES_PER_DELETE) {
+                deleteIncompleteMessageBatch(contentResolver, batch, messages, phoneId, stats);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            deleteIncompleteMessageBatch(contentResolver, batch, messages, phoneId, stats);
+        }
+    }
+
+    private static void deleteIncompleteMessageBatch(ContentResolver contentResolver,
+            List<SmsReferenceKey> batch, Map<SmsReferenceKey, Integer> segmentCounts,
+            int phoneId, ScanStats stats) {
+        StringBuilder where = new StringBuilder();
+        String[] whereArgs = new String[batch.size() * 3];
+        int expectedRows = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            SmsReferenceKey message = batch.get(i);
+            if (i > 0) {
+                where.append(" OR ");
+            }
+            where.append('(').append(message.getDeleteWhere()).append(')');
+            System.arraycopy(message.getDeleteWhereArgs(), 0, whereArgs, i * 3, 3);
+            expectedRows += segmentCounts.get(message);
+        }
+
+        // delete permanently
+        int rows = contentResolver.delete(InboundSmsHandler.sRawUriPermanentDelete,
+                where.toString(), whereArgs);
+        stats.mRowsDeleted += rows;
+        if (rows == 0) {
+            Rlog.e(TAG, "No rows were deleted from raw table!");
+            return;
+        } else if (rows != expectedRows) {
+            // segments were added or removed since the scan; the per message counts below are
+            // still the best estimate available
+            Rlog.e(TAG, "Deleted " + rows + " rows from raw table, expected " + expectedRows);
+        } else if (DBG) {
+            Rlog.d(TAG, "Deleted " + rows + " rows from raw table for " + batch.size()
+                    + " incomplete messages");
+        }
+        stats.mIncompleteMessagesDeleted += batch.size();
+
+        // Update metrics with dropped SMS
+        TelephonyMetrics metrics = TelephonyMetrics.getInstance();
+        for (SmsReferenceKey message : batch) {
+            metrics.writeDroppedIncomingMultipartSms(phoneId, message.mFormat,
+                    segmentCounts.get(message), message.mMessageCount);
+        }
+    }
+
+    /**
+     * Dump the result of the last raw table scan.
+     */
+    public static void dump(PrintWriter pw) {
+        ScanStats stats = sLastScanStats;
+        pw.println("SmsBroadcastUndelivered: last raw table scan: "
+                + (stats != null ? stats : "none"));
+    }
+
+    /**
+     * @return the result of the last raw table scan, or null if none completed yet.
+     */
+    @VisibleForTesting
+    static ScanStats getLastScanStats() {
+        return sLastScanStats;
+    }
+
     /**
      * Retrieve the phone id for the GSM or CDMA Inbound SMS handler
      */
@@ -302,6 +388,29 @@ public class SmsBroadcastUndelivered {
         }
     }
 
+    /**
+     * Row counts and duration of one raw table scan.
+     */
+    @VisibleForTesting
+    static class ScanStats {
+        int mRowsScanned;
+        int mInvalidRows;
+        int mMessagesDispatched;
+        int mIncompleteMessagesDeleted;
+        int mRowsDeleted;
+        long mDurationMillis;
+
+        @Override
+        public String toString() {
+            return "rowsScanned=" + mRowsScanned
+                    + " invalidRows=" + mInvalidRows
+                    + " messagesDispatched=" + mMessagesDispatched
+                    + " incompleteMessagesDeleted=" + mIncompleteMessagesDeleted
+                    + " rowsDeleted=" + mRowsDeleted
+                    + " durationMillis=" + mDurationMillis;
+        }
+    }
+
     /**
      * Used as the HashMap key for matching concatenated message segments.
      */
@@ -824,6 +824,7 @@ public class SmsDispatchersController extends Handler {
     public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
         mGsmInboundSmsHandler.dump(fd, pw, args);
         mCdmaInboundSmsHandler.dump(fd, pw, args);
+        SmsBroadcastUndelivered.dump(pw);
     }
 
     private void logd(String msg) {
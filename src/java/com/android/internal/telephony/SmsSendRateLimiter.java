@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Handler;
+import android.telephony.Rlog;
+import android.util.AtomicFile;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Per-package sliding window limit on the number of SMS sent, used by {@link SmsUsageMonitor}.
+ *
+ * The send times of each package are kept in a ring buffer of primitive longs holding at most
+ * the allowed number of messages, so a check only drops the expired head entries of the sending
+ * package. Packages are spread over independently locked stripes, and the packages of a stripe
+ * which sent nothing during the last window are dropped at most once per window.
+ *
+ * The send times are optionally written to a file, a few seconds after the last send, and read
+ * back on creation so that a restart does not reset the limit. Each phone counts its own
+ * messages, so each one has its own file.
+ */
+class SmsSendRateLimiter {
+    private static final String TAG = "SmsSendRateLimiter";
+
+    private static final int STRIPE_COUNT = 16;
+
+    /** Initial ring buffer capacity; buffers grow up to the allowed number of messages. */
+    private static final int INITIAL_CAPACITY = 8;
+
+    private static final int FILE_FORMAT_VERSION = 1;
+
+    /** Prefix of the name of the file holding the send times of a phone. */
+    private static final String FILE_NAME_PREFIX = "sms_send_times_";
+
+    /** Delay before writing the send times, so a burst of sends is written once. */
+    private static final long WRITE_DELAY_MS = 10 * 1000;
+
+    /** Send times of one package, oldest first. */
+    @VisibleForTesting
+    static final class SendWindow {
+        private long[] mTimes;
+        private int mHead;
+        private int mSize;
+
+        SendWindow(int capacity) {
+            mTimes = new long[capacity];
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        long get(int index) {
+            return mTimes[(mHead + index) % mTimes.length];
+        }
+
+        long newest() {
+            return get(mSize - 1);
+        }
+
+        void removeOlderThan(long time) {
+            while (mSize > 0 && mTimes[mHead] < time) {
+                mHead = (mHead + 1) % mTimes.length;
+                mSize--;
+            }
+        }
+
+        /** Append a send time, growing the buffer up to {@code maxCapacity}. */
+        void add(long time, int maxCapacity) {
+            if (mSize == mTimes.length) {
+                int capacity = Math.min(Math.max(mTimes.length * 2, 1), maxCapacity);
+                if (capacity <= mSize) {
+                    // full at the maximum capacity; drop the oldest
+                    mHead = (mHead + 1) % mTimes.length;
+                    mSize--;
+                } else {
+                    long[] times = new long[capacity];
+                    for (int i = 0; i < mSize; i++) {
+                        times[i] = get(i);
+                    }
+                    mTimes = times;
+                    mHead = 0;
+                }
+            }
+            mTimes[(mHead + mSize) % mTimes.length] = time;
+            mSize++;
+        }
+    }
+
+    private static final class Stripe {
+        final HashMap<String, SendWindow> mWindows = new HashMap<>();
+        long mLastSweepTime;
+    }
+
+    private final int mMaxAllowed;
+    private final long mCheckPeriod;
+    private final Stripe[] mStripes = new Stripe[STRIPE_COUNT];
+
+    /** File holding the send times, or null if they are not persisted. */
+    private final AtomicFile mFile;
+    private final Handler mWriteHandler;
+    private final Runnable mWriteRunnable = this::writeState;
+
+    /**
+     * @param maxAllowed the number of messages a package may send in the check period
+     * @param checkPeriod the check period in milliseconds
+     * @param file the file to keep the send times in, or null to only keep them in memory
+     * @param writeHandler the handler writing the file; unused if {@code file} is null
+     */
+    SmsSendRateLimiter(int maxAllowed, long checkPeriod, AtomicFile file, Handler writeHandler) {
+        mMaxAllowed = maxAllowed;
+        mCheckPeriod = checkPeriod;
+        mFile = file;
+        mWriteHandler = writeHandler;
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            mStripes[i] = new Stripe();
+        }
+        if (mFile != null) {
+            readState(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * @return the file holding the send times of a phone
+     */
+    static AtomicFile getFile(File directory, int phoneId) {
+        return new AtomicFile(new File(directory, FILE_NAME_PREFIX + phoneId));
+    }
+
+    private Stripe getStripe(String packageName) {
+        int hash = packageName.hashCode();
+        return mStripes[(hash ^ (hash >>> 16)) & (STRIPE_COUNT - 1)];
+    }
+
+    /**
+     * Check whether a package may send more messages now, and record them if so.
+     *
+     * @param packageName the package requesting to send
+     * @param smsWaiting the number of new messages to send
+     * @return true if the package is allowed to send the messages
+     */
+    boolean isUnderLimit(String packageName, int smsWaiting) {
+        return isUnderLimit(packageName, smsWaiting, System.currentTimeMillis());
+    }
+
+    @VisibleForTesting
+    boolean isUnderLimit(String packageName, int smsWaiting, long now) {
+        long beginCheckPeriod = now - mCheckPeriod;
+        Stripe stripe = getStripe(packageName);
+        synchronized (stripe) {
+            if (now - stripe.mLastSweepTime >= mCheckPeriod || now < stripe.mLastSweepTime) {
+                removeExpiredWindows(stripe, beginCheckPeriod);
+                stripe.mLastSweepTime = now;
+            }
+
+            SendWindow window = stripe.mWindows.get(packageName);
+            if (window != null) {
+                window.removeOlderThan(beginCheckPeriod);
+            }
+            int sent = window != null ? window.size() : 0;
+            if (sent + smsWaiting > mMaxAllowed) {
+                return false;
+            }
+            if (smsWaiting > 0) {
+                if (window == null) {
+                    window = new SendWindow(Math.min(INITIAL_CAPACITY, mMaxAllowed));
+                    stripe.mWindows.put(packageName, window);
+                }
+                for (int i = 0; i < smsWaiting; i++) {
+                    window.add(now, mMaxAllowed);
+                }
+            }
+        }
+        if (smsWaiting > 0) {
+            scheduleWrite();
+        }
+        return true;
+    }
+
+    /**
+     * Remove packages which sent nothing during the check period. This can happen if an SMS app
+     * is used to send messages and then uninstalled.
+     */
+    private static void removeExpiredWindows(Stripe stripe, long beginCheckPeriod) {
+        Iterator<SendWindow> iter = stripe.mWindows.values().iterator();
+        while (iter.hasNext()) {
+            SendWindow window = iter.next();
+            if (window.size() == 0 || window.newest() < beginCheckPeriod) {
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the number of messages recorded for a package, including expired ones not yet
+     * dropped.
+     */
+    @VisibleForTesting
+    int getRecordedCount(String packageName) {
+        Stripe stripe = getStripe(packageName);
+        synchronized (stripe) {
+            SendWindow window = stripe.mWindows.get(packageName);
+            return window != null ? window.size() : 0;
+        }
+    }
+
+    /** Forget all send times. */
+    void clear() {
+        for (Stripe stripe : mStripes) {
+            synchronized (stripe) {
+                stripe.mWindows.clear();
+            }
+        }
+        if (mWriteHandler != null) {
+            mWriteHandler.removeCallbacks(mWriteRunnable);
+        }
+    }
+
+    private void scheduleWrite() {
+        if (mFile == null) return;
+        // delay from the first unwritten send, so a continuous stream of sends is still written
+        if (!mWriteHandler.hasCallbacks(mWriteRunnable)) {
+            mWriteHandler.postDelayed(mWriteRunnable, WRITE_DELAY_MS);
+        }
+    }
+
+    /**
+     * Write the send times of the current check period.
+     */
+    @VisibleForTesting
+    void writeState() {
+        long beginCheckPeriod = System.currentTimeMillis() - mCheckPeriod;
+        Map<String, long[]> state = new HashMap<>();
+        for (Stripe stripe : mStripes) {
+            synchronized (stripe) {
+                for (Map.Entry<String, SendWindow> entry : stripe.mWindows.entrySet()) {
+                    SendWindow window = entry.getValue();
+                    window.removeOlderThan(beginCheckPeriod);
+                    if (window.size() == 0) continue;
+                    long[] times = new long[window.size()];
+                    for (int i = 0; i < times.length; i++) {
+                        times[i] = window.get(i);
+                    }
+                    state.put(entry.getKey(), times);
+                }
+            }
+        }
+
+        synchronized (mFile) {
+            FileOutputStream outfile = null;
+            try {
+                outfile = mFile.startWrite();
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outfile));
+                out.writeInt(FILE_FORMAT_VERSION);
+                out.writeInt(state.size());
+                for (Map.Entry<String, long[]> entry : state.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(entry.getValue().length);
+                    for (long time : entry.getValue()) {
+                        out.writeLong(time);
+                    }
+                }
+                out.flush();
+                mFile.finishWrite(outfile);
+            } catch (IOException e) {
+                Rlog.e(TAG, "Unable to write SMS send times", e);
+                if (outfile != null) {
+                    mFile.failWrite(outfile);
+                }
+            }
+        }
+    }
+
+    private void readState(long now) {
+        long beginCheckPeriod = now - mCheckPeriod;
+        synchronized (mFile) {
+            FileInputStream infile = null;
+            try {
+                infile = mFile.openRead();
+                DataInputStream in = new DataInputStream(new BufferedInputStream(infile));
+                if (in.readInt() != FILE_FORMAT_VERSION) {
+                    Rlog.e(TAG, "Ignoring SMS send times of unknown format");
+                    return;
+                }
+                int packageCount = in.readInt();
+                for (int i = 0; i < packageCount; i++) {
+                    String packageName = in.readUTF();
+                    int count = in.readInt();
+                    SendWindow window = new SendWindow(Math.max(Math.min(count, mMaxAllowed), 1));
+                    for (int j = 0; j < count; j++) {
+                        long time = in.readLong();
+                        // drop expired times, and times from before a clock change
+                        if (time >= beginCheckPeriod && time <= now) {
+                            window.add(time, mMaxAllowed);
+                        }
+                    }
+                    if (window.size() > 0) {
+                        getStripe(packageName).mWindows.put(packageName, window);
+                    }
+                }
+            } catch (FileNotFoundException e) {
+                // No data yet
+            } catch (IOException e) {
+                Rlog.e(TAG, "Unable to read SMS send times", e);
+            } finally {
+                if (infile != null) {
+                    try {
+                        infile.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+    }
+}
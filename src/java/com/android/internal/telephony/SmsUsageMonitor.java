@@ -36,6 +36,7 @@ import android.telephony.SmsManager;
 import android.util.AtomicFile;
 import android.util.Xml;
 
+import com.android.internal.os.BackgroundThread;
 import com.android.internal.util.FastXmlSerializer;
 import com.android.internal.util.XmlUtils;
 
@@ -50,10 +51,9 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 
@@ -102,8 +102,8 @@ public class SmsUsageMonitor {
     private final int mCheckPeriod;
     private final int mMaxAllowed;
 
-    private final HashMap<String, ArrayList<Long>> mSmsStamp =
-            new HashMap<String, ArrayList<Long>>();
+    /** Per-package SMS send times, kept across restarts. */
+    private final SmsSendRateLimiter mSendRateLimiter;
 
     /** Context for retrieving regexes from XML resource. */
     private final Context mContext;
@@ -123,8 +123,11 @@ public class SmsUsageMonitor {
     /** File holding the patterns */
     private final File mPatternFile = new File(SHORT_CODE_PATH);
 
-    /** Last modified time for pattern file */
-    private long mPatternFileLastModified = 0;
+    /**
+     * Short code patterns of all countries, shared by all instances for the process lifetime
+     * and replaced as a whole when the pattern file changes.
+     */
+    private static volatile ShortCodeTable sShortCodeTable;
 
     /** Directory for per-app SMS permission XML file. */
     private static final String SMS_POLICY_FILE_DIRECTORY = "/data/misc/sms";
@@ -179,6 +182,8 @@ public class SmsUsageMonitor {
         private final Pattern mPremiumShortCodePattern;
         private final Pattern mFreeShortCodePattern;
         private final Pattern mStandardShortCodePattern;
+        /** All four patterns compiled together, or null if they use unsupported syntax. */
+        private final ShortCodeDfa mDfa;
 
         ShortCodePatternMatcher(String shortCodeRegex, String premiumShortCodeRegex,
                 String freeShortCodeRegex, String standardShortCodeRegex) {
@@ -189,9 +194,17 @@ public class SmsUsageMonitor {
                     Pattern.compile(freeShortCodeRegex) : null);
             mStandardShortCodePattern = (standardShortCodeRegex != null ?
                     Pattern.compile(standardShortCodeRegex) : null);
+            mDfa = ShortCodeDfa.compile(shortCodeRegex, premiumShortCodeRegex,
+                    freeShortCodeRegex, standardShortCodeRegex);
+            if (mDfa == null) {
+                Rlog.w(TAG, "Short code patterns not supported by automaton, using regex");
+            }
         }
 
         int getNumberCategory(String phoneNumber) {
+            if (mDfa != null) {
+                return mDfa.getNumberCategory(phoneNumber);
+            }
             if (mFreeShortCodePattern != null && mFreeShortCodePattern.matcher(phoneNumber)
                     .matches()) {
                 return SmsManager.SMS_CATEGORY_FREE_SHORT_CODE;
@@ -211,6 +224,45 @@ public class SmsUsageMonitor {
         }
     }
 
+    /**
+     * Short code patterns of all countries from one version of the pattern file or resource.
+     * Countries are compiled the first time they are used.
+     */
+    private static final class ShortCodeTable {
+        /** Last modified time of the pattern file, or 0 for the resource. */
+        final long mVersion;
+        /** Country to {short code, premium, free, standard} regexes. */
+        private final Map<String, String[]> mPatterns;
+        private final ConcurrentHashMap<String, ShortCodePatternMatcher> mMatchers =
+                new ConcurrentHashMap<>();
+
+        ShortCodeTable(long version, Map<String, String[]> patterns) {
+            mVersion = version;
+            mPatterns = patterns;
+        }
+
+        /**
+         * @return the pattern matcher for the country, or null if the country has no patterns.
+         */
+        ShortCodePatternMatcher getMatcher(String country) {
+            ShortCodePatternMatcher matcher = mMatchers.get(country);
+            if (matcher == null) {
+                String[] regexes = mPatterns.get(country);
+                if (regexes == null) {
+                    if (DBG) Rlog.d(TAG, "Country (" + country + ") not found");
+                    return null;
+                }
+                matcher = new ShortCodePatternMatcher(regexes[0], regexes[1], regexes[2],
+                        regexes[3]);
+                ShortCodePatternMatcher existing = mMatchers.putIfAbsent(country, matcher);
+                if (existing != null) {
+                    matcher = existing;
+                }
+            }
+            return matcher;
+        }
+    }
+
     /**
      * Observe the secure setting for enable flag
      */
@@ -242,11 +294,25 @@ public class SmsUsageMonitor {
     }
 
     /**
-     * Create SMS usage monitor.
+     * Create SMS usage monitor. The send times are only kept in memory, since they could not be
+     * told apart from those of the other phones.
      * @param context the context to use to load resources and get TelephonyManager service
      */
     @UnsupportedAppUsage
     public SmsUsageMonitor(Context context) {
+        this(context, (AtomicFile) null);
+    }
+
+    /**
+     * Create SMS usage monitor for a phone, keeping its send times across restarts.
+     * @param context the context to use to load resources and get TelephonyManager service
+     * @param phoneId the phone whose messages are counted
+     */
+    public SmsUsageMonitor(Context context, int phoneId) {
+        this(context, SmsSendRateLimiter.getFile(new File(SMS_POLICY_FILE_DIRECTORY), phoneId));
+    }
+
+    private SmsUsageMonitor(Context context, AtomicFile sendTimesFile) {
         mContext = context;
         ContentResolver resolver = context.getContentResolver();
 
@@ -258,52 +324,73 @@ public class SmsUsageMonitor {
                 Settings.Global.SMS_OUTGOING_CHECK_INTERVAL_MS,
                 DEFAULT_SMS_CHECK_PERIOD);
 
+        mSendRateLimiter = new SmsSendRateLimiter(mMaxAllowed, mCheckPeriod, sendTimesFile,
+                BackgroundThread.getHandler());
+
         mSettingsObserverHandler = new SettingsObserverHandler(mContext, mCheckEnabled);
 
         loadPremiumSmsPolicyDb();
     }
 
     /**
-     * Return a pattern matcher object for the specified country.
-     * @param country the country to search for
-     * @return a {@link ShortCodePatternMatcher} for the specified country, or null if not found
+     * Return the short code table for the current pattern file, loading it if the file changed.
+     * The table comes from the resource if there is no pattern file.
+     */
+    private ShortCodeTable getShortCodeTable() {
+        long version = mPatternFile.exists() ? mPatternFile.lastModified() : 0;
+        ShortCodeTable table = sShortCodeTable;
+        if (table == null || table.mVersion != version) {
+            if (version != 0) {
+                if (DBG) Rlog.d(TAG, "Loading SMS Short Code patterns from file");
+                table = new ShortCodeTable(version, getPatternsFromFile());
+            } else {
+                if (DBG) Rlog.d(TAG, "Loading SMS Short Code patterns from resource");
+                table = new ShortCodeTable(version, getPatternsFromResource());
+            }
+            sShortCodeTable = table;
+        }
+        return table;
+    }
+
+    /**
+     * Read the short code patterns of all countries from the pattern file.
+     * @return the patterns by country; empty if the file could not be read
      */
-    private ShortCodePatternMatcher getPatternMatcherFromFile(String country) {
+    private Map<String, String[]> getPatternsFromFile() {
         FileReader patternReader = null;
         XmlPullParser parser = null;
         try {
             patternReader = new FileReader(mPatternFile);
             parser = Xml.newPullParser();
             parser.setInput(patternReader);
-            return getPatternMatcherFromXmlParser(parser, country);
+            return getPatternsFromXmlParser(parser);
         } catch (FileNotFoundException e) {
             Rlog.e(TAG, "Short Code Pattern File not found");
         } catch (XmlPullParserException e) {
             Rlog.e(TAG, "XML parser exception reading short code pattern file", e);
         } finally {
-            mPatternFileLastModified = mPatternFile.lastModified();
             if (patternReader != null) {
                 try {
                     patternReader.close();
                 } catch (IOException e) {}
             }
         }
-        return null;
+        return new HashMap<>();
     }
 
-    private ShortCodePatternMatcher getPatternMatcherFromResource(String country) {
+    private Map<String, String[]> getPatternsFromResource() {
         int id = com.android.internal.R.xml.sms_short_codes;
         XmlResourceParser parser = null;
         try {
             parser = mContext.getResources().getXml(id);
-            return getPatternMatcherFromXmlParser(parser, country);
+            return getPatternsFromXmlParser(parser);
         } finally {
             if (parser != null) parser.close();
         }
     }
 
-    private ShortCodePatternMatcher getPatternMatcherFromXmlParser(XmlPullParser parser,
-            String country) {
+    private Map<String, String[]> getPatternsFromXmlParser(XmlPullParser parser) {
+        HashMap<String, String[]> patterns = new HashMap<>();
         try {
             XmlUtils.beginDocument(parser, TAG_SHORTCODES);
 
@@ -316,14 +403,15 @@ public class SmsUsageMonitor {
                 }
 
                 if (element.equals(TAG_SHORTCODE)) {
-                    String currentCountry = parser.getAttributeValue(null, ATTR_COUNTRY);
-                    if (VDBG) Rlog.d(TAG, "Found country " + currentCountry);
-                    if (country.equals(currentCountry)) {
-                        String pattern = parser.getAttributeValue(null, ATTR_PATTERN);
-                        String premium = parser.getAttributeValue(null, ATTR_PREMIUM);
-                        String free = parser.getAttributeValue(null, ATTR_FREE);
-                        String standard = parser.getAttributeValue(null, ATTR_STANDARD);
-                        return new ShortCodePatternMatcher(pattern, premium, free, standard);
+                    String country = parser.getAttributeValue(null, ATTR_COUNTRY);
+                    if (VDBG) Rlog.d(TAG, "Found country " + country);
+                    // the first entry of a country wins, as with the former per-country lookup
+                    if (country != null && !patterns.containsKey(country)) {
+                        patterns.put(country, new String[] {
+                                parser.getAttributeValue(null, ATTR_PATTERN),
+                                parser.getAttributeValue(null, ATTR_PREMIUM),
+                                parser.getAttributeValue(null, ATTR_FREE),
+                                parser.getAttributeValue(null, ATTR_STANDARD)});
                     }
                 } else {
                     Rlog.e(TAG, "Error: skipping unknown XML tag " + element);
@@ -334,13 +422,12 @@ public class SmsUsageMonitor {
         } catch (IOException e) {
             Rlog.e(TAG, "I/O exception reading short code patterns", e);
         }
-        if (DBG) Rlog.d(TAG, "Country (" + country + ") not found");
-        return null;    // country not found
+        return patterns;
     }
 
     /** Clear the SMS application list for disposal. */
     void dispose() {
-        mSmsStamp.clear();
+        mSendRateLimiter.clear();
     }
 
     /**
@@ -355,17 +442,8 @@ public class SmsUsageMonitor {
      */
     @UnsupportedAppUsage
     public boolean check(String appName, int smsWaiting) {
-        synchronized (mSmsStamp) {
-            removeExpiredTimestamps();
-
-            ArrayList<Long> sentList = mSmsStamp.get(appName);
-            if (sentList == null) {
-                sentList = new ArrayList<Long>();
-                mSmsStamp.put(appName, sentList);
-            }
-
-            return isUnderLimit(sentList, smsWaiting);
-        }
+        if (VDBG) log("SMS send check for " + appName + " waiting=" + smsWaiting);
+        return mSendRateLimiter.isUnderLimit(appName, smsWaiting);
     }
 
     /**
@@ -399,17 +477,8 @@ public class SmsUsageMonitor {
             }
 
             if (countryIso != null) {
-                if (mCurrentCountry == null || !countryIso.equals(mCurrentCountry) ||
-                        mPatternFile.lastModified() != mPatternFileLastModified) {
-                    if (mPatternFile.exists()) {
-                        if (DBG) Rlog.d(TAG, "Loading SMS Short Code patterns from file");
-                        mCurrentPatternMatcher = getPatternMatcherFromFile(countryIso);
-                    } else {
-                        if (DBG) Rlog.d(TAG, "Loading SMS Short Code patterns from resource");
-                        mCurrentPatternMatcher = getPatternMatcherFromResource(countryIso);
-                    }
-                    mCurrentCountry = countryIso;
-                }
+                mCurrentPatternMatcher = getShortCodeTable().getMatcher(countryIso);
+                mCurrentCountry = countryIso;
             }
 
             if (mCurrentPatternMatcher != null) {
@@ -619,44 +688,6 @@ public class SmsUsageMonitor {
         throw new SecurityException("Disallowed call for uid " + uid);
     }
 
-    /**
-     * Remove keys containing only old timestamps. This can happen if an SMS app is used
-     * to send messages and then uninstalled.
-     */
-    private void removeExpiredTimestamps() {
-        long beginCheckPeriod = System.currentTimeMillis() - mCheckPeriod;
-
-        synchronized (mSmsStamp) {
-            Iterator<Map.Entry<String, ArrayList<Long>>> iter = mSmsStamp.entrySet().iterator();
-            while (iter.hasNext()) {
-                Map.Entry<String, ArrayList<Long>> entry = iter.next();
-                ArrayList<Long> oldList = entry.getValue();
-                if (oldList.isEmpty() || oldList.get(oldList.size() - 1) < beginCheckPeriod) {
-                    iter.remove();
-                }
-            }
-        }
-    }
-
-    private boolean isUnderLimit(ArrayList<Long> sent, int smsWaiting) {
-        Long ct = System.currentTimeMillis();
-        long beginCheckPeriod = ct - mCheckPeriod;
-
-        if (VDBG) log("SMS send size=" + sent.size() + " time=" + ct);
-
-        while (!sent.isEmpty() && sent.get(0) < beginCheckPeriod) {
-            sent.remove(0);
-        }
-
-        if ((sent.size() + smsWaiting) <= mMaxAllowed) {
-            for (int i = 0; i < smsWaiting; i++ ) {
-                sent.add(ct);
-            }
-            return true;
-        }
-        return false;
-    }
-
     private static void log(String msg) {
         Rlog.d(TAG, msg);
     }
@@ -30,6 +30,7 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
@@ -54,6 +55,7 @@ import android.telephony.euicc.EuiccManager;
 import android.text.TextUtils;
 import android.util.LocalLog;
 import android.util.Log;
+import android.util.SparseArray;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.IccCardConstants.State;
@@ -70,6 +72,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -79,6 +82,7 @@ import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 /**
@@ -118,6 +122,52 @@ public class SubscriptionController extends ISub.Stub {
     private List<SubscriptionInfo> mCacheOpportunisticSubInfoList = new ArrayList<>();
     private AtomicBoolean mOpptSubInfoListChangedDirtyBit = new AtomicBoolean();
 
+    /**
+     * In-memory copy of the whole siminfo table, indexed for the binder read paths. A table is
+     * never modified once published; it is dropped whenever this controller writes to the
+     * provider and reloaded with a single query on the next read or cache refresh.
+     */
+    private static final class SubInfoTable {
+        final List<SubscriptionInfo> mAll = new ArrayList<>();
+        final SparseArray<SubscriptionInfo> mById = new SparseArray<>();
+        final SparseArray<ContentValues> mRowsById = new SparseArray<>();
+        final Map<String, SubscriptionInfo> mByIccId = new HashMap<>();
+        final SparseArray<List<SubscriptionInfo>> mBySlot = new SparseArray<>();
+        final Map<ParcelUuid, List<SubscriptionInfo>> mByGroup = new HashMap<>();
+
+        void add(SubscriptionInfo info, ContentValues row) {
+            mAll.add(info);
+            mById.put(info.getSubscriptionId(), info);
+            mRowsById.put(info.getSubscriptionId(), row);
+            if (info.getIccId() != null) {
+                mByIccId.put(info.getIccId(), info);
+            }
+
+            List<SubscriptionInfo> slotList = mBySlot.get(info.getSimSlotIndex());
+            if (slotList == null) {
+                slotList = new ArrayList<>(1);
+                mBySlot.put(info.getSimSlotIndex(), slotList);
+            }
+            slotList.add(info);
+
+            if (info.getGroupUuid() != null) {
+                List<SubscriptionInfo> groupList = mByGroup.get(info.getGroupUuid());
+                if (groupList == null) {
+                    groupList = new ArrayList<>(2);
+                    mByGroup.put(info.getGroupUuid(), groupList);
+                }
+                groupList.add(info);
+            }
+        }
+    }
+
+    // Lock protecting mSubInfoTableGeneration and publication of mSubInfoTable.
+    private final Object mSubInfoTableLock = new Object();
+    private volatile SubInfoTable mSubInfoTable;
+    // Bumped on every invalidation, so a load racing with a write is never published.
+    private int mSubInfoTableGeneration;
+    private final AtomicLong mSubInfoTableLoadCount = new AtomicLong();
+
     private static final Comparator<SubscriptionInfo> SUBSCRIPTION_INFO_COMPARATOR =
             (arg0, arg1) -> {
                 // Primary sort key on SimSlotIndex
@@ -255,6 +305,7 @@ public class SubscriptionController extends ISub.Stub {
         ContentValues value = new ContentValues(1);
         value.put(SubscriptionManager.SIM_SLOT_INDEX, SubscriptionManager.INVALID_SIM_SLOT_INDEX);
         mContext.getContentResolver().update(SubscriptionManager.CONTENT_URI, value, null, null);
+        invalidateSubInfoTable();
     }
 
     private SubscriptionController(Phone phone) {
@@ -498,6 +549,71 @@ public class SubscriptionController extends ISub.Stub {
         return subList;
     }
 
+    /**
+     * Get the in-memory subscription table, querying the provider only if the table has been
+     * invalidated since it was last loaded.
+     */
+    private SubInfoTable getSubInfoTable() {
+        SubInfoTable table = mSubInfoTable;
+        if (table == null) {
+            table = loadSubInfoTable();
+        }
+        return table;
+    }
+
+    private SubInfoTable loadSubInfoTable() {
+        final int generation;
+        synchronized (mSubInfoTableLock) {
+            generation = mSubInfoTableGeneration;
+        }
+
+        SubInfoTable table = new SubInfoTable();
+        Cursor cursor = mContext.getContentResolver().query(SubscriptionManager.CONTENT_URI,
+                null, null, null, null);
+        try {
+            if (cursor != null) {
+                while (cursor.moveToNext()) {
+                    SubscriptionInfo subInfo = getSubInfoRecord(cursor);
+                    if (subInfo != null) {
+                        ContentValues row = new ContentValues();
+                        DatabaseUtils.cursorRowToContentValues(cursor, row);
+                        table.add(subInfo, row);
+                    }
+                }
+            } else {
+                if (DBG) logd("[loadSubInfoTable] Query fail");
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        mSubInfoTableLoadCount.incrementAndGet();
+
+        synchronized (mSubInfoTableLock) {
+            if (generation == mSubInfoTableGeneration) {
+                mSubInfoTable = table;
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Drop the in-memory subscription table. Must be called after every write to the siminfo
+     * provider which is not followed by {@link #refreshCachedActiveSubscriptionInfoList()}.
+     */
+    private void invalidateSubInfoTable() {
+        synchronized (mSubInfoTableLock) {
+            mSubInfoTableGeneration++;
+            mSubInfoTable = null;
+        }
+    }
+
+    private static boolean isActiveSubInfo(SubscriptionInfo info) {
+        return info.getSimSlotIndex() >= 0
+                || info.getSubscriptionType() == SubscriptionManager.SUBSCRIPTION_TYPE_REMOTE_SIM;
+    }
+
     /**
      * Find unused color to be set for new SubInfoRecord
      * @param callingPackage The package making the IPC.
@@ -574,10 +690,7 @@ public class SubscriptionController extends ISub.Stub {
      * @hide
      */
     public SubscriptionInfo getSubscriptionInfo(int subId) {
-        List<SubscriptionInfo> subInfoList = getSubInfo(
-                SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID + "=" + subId, null);
-        if (subInfoList == null || subInfoList.isEmpty()) return null;
-        return subInfoList.get(0);
+        return getSubInfoTable().mById.get(subId);
     }
 
     /**
@@ -613,21 +726,12 @@ public class SubscriptionController extends ISub.Stub {
 
         final long identity = Binder.clearCallingIdentity();
         try {
-            List<SubscriptionInfo> subList = getActiveSubscriptionInfoList(
-                    mContext.getOpPackageName());
-            if (subList != null) {
-                for (SubscriptionInfo si : subList) {
-                    if (iccId.equals(si.getIccId())) {
-                        if (DBG)
-                            logd("[getActiveSubInfoUsingIccId]+ iccId=" + iccId + " subInfo=" + si);
-                        return si;
-                    }
-                }
-            }
-            if (DBG) {
-                logd("[getActiveSubInfoUsingIccId]+ iccId=" + iccId
-                        + " subList=" + subList + " subInfo=null");
+            SubscriptionInfo si = getSubInfoTable().mByIccId.get(iccId);
+            if (si != null && isActiveSubInfo(si)) {
+                if (DBG) logd("[getActiveSubInfoUsingIccId]+ iccId=" + iccId + " subInfo=" + si);
+                return si;
             }
+            if (DBG) logd("[getActiveSubInfoUsingIccId]+ iccId=" + iccId + " subInfo=null");
         } finally {
             Binder.restoreCallingIdentity(identity);
         }
@@ -710,8 +814,8 @@ public class SubscriptionController extends ISub.Stub {
         // Now that all security checks passes, perform the operation as ourselves.
         final long identity = Binder.clearCallingIdentity();
         try {
-            List<SubscriptionInfo> subList = null;
-            subList = getSubInfo(null, null);
+            List<SubscriptionInfo> subList = getSubInfoTable().mAll;
+            subList = subList.isEmpty() ? null : new ArrayList<>(subList);
             if (subList != null) {
                 if (VDBG) logd("[getAllSubInfoList]- " + subList.size() + " infos return");
             } else {
@@ -744,13 +848,15 @@ public class SubscriptionController extends ISub.Stub {
         boolean opptSubListChanged;
 
         synchronized (mSubInfoListLock) {
-            List<SubscriptionInfo> activeSubscriptionInfoList = getSubInfo(
-                    SubscriptionManager.SIM_SLOT_INDEX + ">=0 OR "
-                    + SubscriptionManager.SUBSCRIPTION_TYPE + "="
-                    + SubscriptionManager.SUBSCRIPTION_TYPE_REMOTE_SIM,
-                    null);
+            // Every write to the provider is followed by this refresh, so this is where the
+            // in-memory table picks up new data.
+            invalidateSubInfoTable();
+            SubInfoTable table = loadSubInfoTable();
+            List<SubscriptionInfo> activeSubscriptionInfoList = table.mAll.stream()
+                    .filter(SubscriptionController::isActiveSubInfo)
+                    .collect(Collectors.toList());
 
-            if (activeSubscriptionInfoList != null) {
+            if (!activeSubscriptionInfoList.isEmpty()) {
                 // Log when active sub info changes.
                 if (mCacheActiveSubInfoList.size() != activeSubscriptionInfoList.size()
                         || !mCacheActiveSubInfoList.containsAll(activeSubscriptionInfoList)) {
@@ -766,7 +872,7 @@ public class SubscriptionController extends ISub.Stub {
             }
 
             // Refresh cached opportunistic sub list and detect whether it's changed.
-            refreshCachedOpportunisticSubscriptionInfoList();
+            refreshCachedOpportunisticSubscriptionInfoList(table);
 
             if (DBG_CACHE) {
                 if (!mCacheActiveSubInfoList.isEmpty()) {
@@ -1142,6 +1248,7 @@ public class SubscriptionController extends ISub.Stub {
                         if (value.size() > 0) {
                             resolver.update(SubscriptionManager.getUriForSubscriptionId(subId),
                                     value, null, null);
+                            invalidateSubInfoTable();
                         }
 
                         if (DBG) logdl("[addSubInfoRecord] Record already exists");
@@ -1465,6 +1572,7 @@ public class SubscriptionController extends ISub.Stub {
         }
 
         Uri uri = resolver.insert(SubscriptionManager.CONTENT_URI, value);
+        invalidateSubInfoTable();
 
         return uri;
     }
@@ -1835,9 +1943,10 @@ public class SubscriptionController extends ISub.Stub {
     private int updateDatabase(ContentValues value, int subId, boolean updateEntireGroup) {
         List<SubscriptionInfo> infoList = getSubscriptionsInGroup(getGroupUuid(subId),
                 mContext.getOpPackageName());
+        int result;
         if (!updateEntireGroup || infoList == null || infoList.size() == 0) {
             // Only update specified subscriptions.
-            return mContext.getContentResolver().update(
+            result = mContext.getContentResolver().update(
                     SubscriptionManager.getUriForSubscriptionId(subId), value, null, null);
         } else {
             // Update all subscriptions in the same group.
@@ -1845,9 +1954,11 @@ public class SubscriptionController extends ISub.Stub {
             for (int i = 0; i < infoList.size(); i++) {
                 subIdList[i] = infoList.get(i).getSubscriptionId();
             }
-            return mContext.getContentResolver().update(SubscriptionManager.CONTENT_URI,
+            result = mContext.getContentResolver().update(SubscriptionManager.CONTENT_URI,
                     value, getSelectionForSubIdList(subIdList), null);
         }
+        invalidateSubInfoTable();
+        return result;
     }
 
     /**
@@ -2495,30 +2606,13 @@ public class SubscriptionController extends ISub.Stub {
             return null;
         }
 
-        Cursor cursor = mContext.getContentResolver().query(SubscriptionManager.CONTENT_URI,
-                null, SubscriptionManager.SIM_SLOT_INDEX + "=?",
-                new String[]{String.valueOf(slotIndex)}, null);
-        ArrayList<SubscriptionInfo> subList = null;
-        try {
-            if (cursor != null) {
-                while (cursor.moveToNext()) {
-                    SubscriptionInfo subInfo = getSubInfoRecord(cursor);
-                    if (subInfo != null) {
-                        if (subList == null) {
-                            subList = new ArrayList<SubscriptionInfo>();
-                        }
-                        subList.add(subInfo);
-                    }
-                }
-            }
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
+        List<SubscriptionInfo> slotList = getSubInfoTable().mBySlot.get(slotIndex);
+        if (slotList == null) {
+            if (DBG) logd("[getSubInfoUsingSlotIndex]- null info return");
+            return null;
         }
-        if (DBG) logd("[getSubInfoUsingSlotIndex]- null info return");
 
-        return subList;
+        return new ArrayList<>(slotList);
     }
 
     @UnsupportedAppUsage
@@ -2748,55 +2842,58 @@ public class SubscriptionController extends ISub.Stub {
      */
     public String getSubscriptionProperty(int subId, String propKey) {
         String resultValue = null;
-        try (Cursor cursor = mContext.getContentResolver().query(SubscriptionManager.CONTENT_URI,
-                new String[]{propKey},
-                SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID + "=?",
-                new String[]{subId + ""}, null)) {
-            if (cursor != null) {
-                if (cursor.moveToFirst()) {
-                    switch (propKey) {
-                        case SubscriptionManager.CB_EXTREME_THREAT_ALERT:
-                        case SubscriptionManager.CB_SEVERE_THREAT_ALERT:
-                        case SubscriptionManager.CB_AMBER_ALERT:
-                        case SubscriptionManager.CB_EMERGENCY_ALERT:
-                        case SubscriptionManager.CB_ALERT_SOUND_DURATION:
-                        case SubscriptionManager.CB_ALERT_REMINDER_INTERVAL:
-                        case SubscriptionManager.CB_ALERT_VIBRATE:
-                        case SubscriptionManager.CB_ALERT_SPEECH:
-                        case SubscriptionManager.CB_ETWS_TEST_ALERT:
-                        case SubscriptionManager.CB_CHANNEL_50_ALERT:
-                        case SubscriptionManager.CB_CMAS_TEST_ALERT:
-                        case SubscriptionManager.CB_OPT_OUT_DIALOG:
-                        case SubscriptionManager.ENHANCED_4G_MODE_ENABLED:
-                        case SubscriptionManager.VT_IMS_ENABLED:
-                        case SubscriptionManager.WFC_IMS_ENABLED:
-                        case SubscriptionManager.WFC_IMS_MODE:
-                        case SubscriptionManager.WFC_IMS_ROAMING_MODE:
-                        case SubscriptionManager.WFC_IMS_ROAMING_ENABLED:
-                        case SubscriptionManager.IS_OPPORTUNISTIC:
-                        case SubscriptionManager.GROUP_UUID:
-                        case SubscriptionManager.WHITE_LISTED_APN_DATA:
-                            resultValue = cursor.getInt(0) + "";
-                            break;
-                        case SubscriptionManager.DATA_ENABLED_OVERRIDE_RULES:
-                            resultValue = cursor.getString(0);
-                            break;
-                        default:
-                            if(DBG) logd("Invalid column name");
-                            break;
-                    }
-                } else {
-                    if(DBG) logd("Valid row not present in db");
-                }
-            } else {
-                if(DBG) logd("Query failed");
+        ContentValues row = getSubInfoTable().mRowsById.get(subId);
+        if (row != null) {
+            switch (propKey) {
+                case SubscriptionManager.CB_EXTREME_THREAT_ALERT:
+                case SubscriptionManager.CB_SEVERE_THREAT_ALERT:
+                case SubscriptionManager.CB_AMBER_ALERT:
+                case SubscriptionManager.CB_EMERGENCY_ALERT:
+                case SubscriptionManager.CB_ALERT_SOUND_DURATION:
+                case SubscriptionManager.CB_ALERT_REMINDER_INTERVAL:
+                case SubscriptionManager.CB_ALERT_VIBRATE:
+                case SubscriptionManager.CB_ALERT_SPEECH:
+                case SubscriptionManager.CB_ETWS_TEST_ALERT:
+                case SubscriptionManager.CB_CHANNEL_50_ALERT:
+                case SubscriptionManager.CB_CMAS_TEST_ALERT:
+                case SubscriptionManager.CB_OPT_OUT_DIALOG:
+                case SubscriptionManager.ENHANCED_4G_MODE_ENABLED:
+                case SubscriptionManager.VT_IMS_ENABLED:
+                case SubscriptionManager.WFC_IMS_ENABLED:
+                case SubscriptionManager.WFC_IMS_MODE:
+                case SubscriptionManager.WFC_IMS_ROAMING_MODE:
+                case SubscriptionManager.WFC_IMS_ROAMING_ENABLED:
+                case SubscriptionManager.IS_OPPORTUNISTIC:
+                case SubscriptionManager.GROUP_UUID:
+                case SubscriptionManager.WHITE_LISTED_APN_DATA:
+                    resultValue = getIntFromRow(row, propKey) + "";
+                    break;
+                case SubscriptionManager.DATA_ENABLED_OVERRIDE_RULES:
+                    resultValue = row.getAsString(propKey);
+                    break;
+                default:
+                    if(DBG) logd("Invalid column name");
+                    break;
             }
+        } else {
+            if(DBG) logd("Valid row not present in db");
         }
 
         if (DBG) logd("getSubscriptionProperty Query value = " + resultValue);
         return resultValue;
     }
 
+    // Matches Cursor#getInt on a SQLite column: null or non-numeric values read as 0.
+    private static int getIntFromRow(ContentValues row, String column) {
+        String value = row.getAsString(column);
+        if (value == null) return 0;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
     protected static void printStackTrace(String msg) {
         RuntimeException re = new RuntimeException();
         slogd("StackTrace - " + msg);
@@ -2823,6 +2920,7 @@ public class SubscriptionController extends ISub.Stub {
             pw.println(" defaultDataSubId=" + getDefaultDataSubId());
             pw.println(" defaultVoiceSubId=" + getDefaultVoiceSubId());
             pw.println(" defaultSmsSubId=" + getDefaultSmsSubId());
+            pw.println(" subInfoTableLoadCount=" + mSubInfoTableLoadCount.get());
 
             pw.println(" defaultDataPhoneId=" + SubscriptionManager
                     .from(mContext).getDefaultDataPhoneId());
@@ -3090,8 +3188,7 @@ public class SubscriptionController extends ISub.Stub {
     private String getOwnerPackageOfSubGroup(ParcelUuid groupUuid) {
         if (groupUuid == null) return null;
 
-        List<SubscriptionInfo> infoList = getSubInfo(SubscriptionManager.GROUP_UUID
-                + "=\'" + groupUuid.toString() + "\'", null);
+        List<SubscriptionInfo> infoList = getSubInfoTable().mByGroup.get(groupUuid);
 
         return ArrayUtils.isEmpty(infoList) ? null : infoList.get(0).getGroupOwner();
     }
@@ -3116,8 +3213,7 @@ public class SubscriptionController extends ISub.Stub {
         // Getting all subscriptions in the group.
         long identity = Binder.clearCallingIdentity();
         try {
-            infoList = getSubInfo(SubscriptionManager.GROUP_UUID
-                    + "=\'" + groupUuid.toString() + "\'", null);
+            infoList = getSubInfoTable().mByGroup.get(groupUuid);
         } finally {
             Binder.restoreCallingIdentity(identity);
         }
@@ -3152,8 +3248,10 @@ public class SubscriptionController extends ISub.Stub {
         // permission checks on all members.
         ContentValues value = new ContentValues(1);
         value.put(SubscriptionManager.GROUP_OWNER, groupOwner);
-        return mContext.getContentResolver().update(SubscriptionManager.CONTENT_URI,
+        int result = mContext.getContentResolver().update(SubscriptionManager.CONTENT_URI,
                 value, SubscriptionManager.GROUP_UUID + "=\"" + groupUuid + "\"", null);
+        invalidateSubInfoTable();
+        return result;
     }
 
     @Override
@@ -3373,8 +3471,8 @@ public class SubscriptionController extends ISub.Stub {
         List<SubscriptionInfo> subInfoList;
 
         try {
-            subInfoList = getAllSubInfoList(mContext.getOpPackageName());
-            if (groupUuid == null || subInfoList == null || subInfoList.isEmpty()) {
+            subInfoList = groupUuid == null ? null : getSubInfoTable().mByGroup.get(groupUuid);
+            if (subInfoList == null || subInfoList.isEmpty()) {
                 return new ArrayList<>();
             }
         } finally {
@@ -3382,7 +3480,6 @@ public class SubscriptionController extends ISub.Stub {
         }
 
         return subInfoList.stream().filter(info -> {
-            if (!groupUuid.equals(info.getGroupUuid())) return false;
             int subId = info.getSubscriptionId();
             return TelephonyPermissions.checkCallingOrSelfReadPhoneState(mContext, subId,
                     callingPackage, "getSubscriptionsInGroup")
@@ -3391,16 +3488,8 @@ public class SubscriptionController extends ISub.Stub {
     }
 
     public ParcelUuid getGroupUuid(int subId) {
-        ParcelUuid groupUuid;
-        List<SubscriptionInfo> subInfo = getSubInfo(SubscriptionManager.UNIQUE_KEY_SUBSCRIPTION_ID
-                        + "=" + subId, null);
-        if (subInfo == null || subInfo.size() == 0) {
-            groupUuid = null;
-        } else {
-            groupUuid = subInfo.get(0).getGroupUuid();
-        }
-
-        return groupUuid;
+        SubscriptionInfo subInfo = getSubInfoTable().mById.get(subId);
+        return subInfo == null ? null : subInfo.getGroupUuid();
     }
 
 
@@ -3742,20 +3831,15 @@ public class SubscriptionController extends ISub.Stub {
         }
     }
 
-    private void refreshCachedOpportunisticSubscriptionInfoList() {
+    private void refreshCachedOpportunisticSubscriptionInfoList(SubInfoTable table) {
         synchronized (mSubInfoListLock) {
             List<SubscriptionInfo> oldOpptCachedList = mCacheOpportunisticSubInfoList;
 
-            List<SubscriptionInfo> subList = getSubInfo(
-                    SubscriptionManager.IS_OPPORTUNISTIC + "=1 AND ("
-                            + SubscriptionManager.SIM_SLOT_INDEX + ">=0 OR "
-                            + SubscriptionManager.IS_EMBEDDED + "=1)", null);
-
-            if (subList != null) {
-                subList.sort(SUBSCRIPTION_INFO_COMPARATOR);
-            } else {
-                subList = new ArrayList<>();
-            }
+            List<SubscriptionInfo> subList = table.mAll.stream()
+                    .filter(info -> info.isOpportunistic()
+                            && (info.getSimSlotIndex() >= 0 || info.isEmbedded()))
+                    .sorted(SUBSCRIPTION_INFO_COMPARATOR)
+                    .collect(Collectors.toList());
 
             mCacheOpportunisticSubInfoList = subList;
 
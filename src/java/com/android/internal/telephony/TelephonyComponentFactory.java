@@ -288,6 +288,14 @@ public class TelephonyComponentFactory {
         return new SmsUsageMonitor(context);
     }
 
+    /**
+     * Make the SMS usage monitor of a phone. By default, this is the monitor made by
+     * {@link #makeSmsUsageMonitor(Context)}.
+     */
+    public SmsUsageMonitor makeSmsUsageMonitor(Context context, int phoneId) {
+        return makeSmsUsageMonitor(context);
+    }
+
     public ServiceStateTracker makeServiceStateTracker(GsmCdmaPhone phone, CommandsInterface ci) {
         Rlog.d(LOG_TAG, "makeServiceStateTracker");
         return new ServiceStateTracker(phone, ci);
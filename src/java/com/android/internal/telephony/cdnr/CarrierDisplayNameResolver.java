@@ -31,7 +31,16 @@ import android.annotation.NonNull;
 import android.content.Context;
 import android.content.res.Resources;
 import android.os.PersistableBundle;
+import android.telephony.AccessNetworkConstants;
 import android.telephony.CarrierConfigManager;
+import android.telephony.CellIdentity;
+import android.telephony.CellIdentityGsm;
+import android.telephony.CellIdentityLte;
+import android.telephony.CellIdentityNr;
+import android.telephony.CellIdentityTdscdma;
+import android.telephony.CellIdentityWcdma;
+import android.telephony.CellInfo;
+import android.telephony.NetworkRegistrationInfo;
 import android.telephony.Rlog;
 import android.telephony.ServiceState;
 import android.text.TextUtils;
@@ -50,10 +59,14 @@ import com.android.internal.telephony.uicc.RuimRecords;
 import com.android.internal.telephony.uicc.SIMRecords;
 import com.android.internal.util.IndentingPrintWriter;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 
 /** Carrier display name resolver. */
@@ -70,8 +83,14 @@ public class CarrierDisplayNameResolver {
     private static final CarrierDisplayNameConditionRule DEFAULT_CARRIER_DISPLAY_NAME_RULE =
             new CarrierDisplayNameConditionRule(DEFAULT_CARRIER_NAME_DISPLAY_CONDITION_BITMASK);
 
+    /** Maximum number of locations whose carrier display name from EF is kept. */
+    private static final int MAX_RESOLVED_LOCATIONS = 32;
+
     private final SparseArray<EfData> mEf = new SparseArray<>();
 
+    /** Lookup structures built from {@link #mEf}, or null if {@link #mEf} changed since. */
+    private EfIndex mEfIndex;
+
     private final LocalLog mLocalLog;
     private final Context mContext;
     private final GsmCdmaPhone mPhone;
@@ -116,6 +135,7 @@ public class CarrierDisplayNameResolver {
         } else {
             mEf.put(key, new RuimEfData(ruim));
         }
+        onEfChanged();
     }
 
     /**
@@ -131,6 +151,7 @@ public class CarrierDisplayNameResolver {
         } else {
             mEf.put(key, new UsimEfData(usim));
         }
+        onEfChanged();
     }
 
     /**
@@ -146,6 +167,7 @@ public class CarrierDisplayNameResolver {
         } else {
             mEf.put(key, new CarrierConfigEfData(config));
         }
+        onEfChanged();
     }
 
     /**
@@ -167,6 +189,7 @@ public class CarrierDisplayNameResolver {
         } else {
             mEf.remove(key);
         }
+        onEfChanged();
     }
 
     /**
@@ -183,6 +206,19 @@ public class CarrierDisplayNameResolver {
             mEf.put(key,
                     new BrandOverrideEfData(operatorName, getServiceState().getOperatorNumeric()));
         }
+        onEfChanged();
+    }
+
+    /**
+     * Drop the index of the ef records if the records in effect changed. The records are compared
+     * rather than their sources, as the same records are updated again on every service state
+     * poll.
+     */
+    private void onEfChanged() {
+        if (mEfIndex != null && !mEfIndex.isBuiltFrom(getDisplayRule(), getEfSpn(),
+                getEfSpdi(), getEfOpl(), getEfPnn())) {
+            mEfIndex = null;
+        }
     }
 
     /** Get the resolved carrier display name. */
@@ -218,6 +254,7 @@ public class CarrierDisplayNameResolver {
         pw.increaseIndent();
         pw.println("fields = " + toString());
         pw.println("carrierDisplayNameData = " + mCarrierDisplayNameData);
+        pw.println("resolvedLocations = " + (mEfIndex != null ? mEfIndex.mResolved.size() : 0));
         pw.decreaseIndent();
 
         pw.println("CDNR local log:");
@@ -285,35 +322,137 @@ public class CarrierDisplayNameResolver {
         return Collections.EMPTY_LIST;
     }
 
+    /**
+     * The ef records in effect, indexed for resolving the carrier display name of a location.
+     */
+    private static final class EfIndex {
+        final CarrierDisplayNameConditionRule mDisplayRule;
+        final String mSpn;
+        final List<String> mSpdiList;
+        final HashSet<String> mSpdi;
+        final List<OperatorPlmnInfo> mOpl;
+        final OperatorPlmnIndex mOplIndex;
+        final List<PlmnNetworkName> mPnn;
+
+        /** The carrier display name from EF, by registered PLMN, LAC/TAC and roaming state. */
+        final LinkedHashMap<List<Object>, CarrierDisplayNameData> mResolved =
+                new LinkedHashMap<List<Object>, CarrierDisplayNameData>(
+                        16 /* initialCapacity */, 0.75f /* loadFactor */, true /* accessOrder */) {
+                    @Override
+                    protected boolean removeEldestEntry(
+                            Map.Entry<List<Object>, CarrierDisplayNameData> eldest) {
+                        return size() > MAX_RESOLVED_LOCATIONS;
+                    }
+                };
+
+        EfIndex(CarrierDisplayNameConditionRule displayRule, String spn, List<String> spdi,
+                List<OperatorPlmnInfo> opl, List<PlmnNetworkName> pnn) {
+            mDisplayRule = displayRule;
+            mSpn = spn;
+            // Copies, so that they can be compared with the records later
+            mSpdiList = new ArrayList<>(spdi);
+            mSpdi = new HashSet<>(spdi);
+            mOpl = new ArrayList<>(opl);
+            mOplIndex = new OperatorPlmnIndex(mOpl);
+            mPnn = new ArrayList<>(pnn);
+        }
+
+        /**
+         * @return whether the index was built from the given records.
+         */
+        boolean isBuiltFrom(CarrierDisplayNameConditionRule displayRule, String spn,
+                List<String> spdi, List<OperatorPlmnInfo> opl, List<PlmnNetworkName> pnn) {
+            return mDisplayRule.equals(displayRule) && mSpn.equals(spn)
+                    && mSpdiList.equals(spdi) && mOpl.equals(opl) && mPnn.equals(pnn);
+        }
+    }
+
+    @NonNull
+    private EfIndex getEfIndex() {
+        if (mEfIndex == null) {
+            mEfIndex = new EfIndex(getDisplayRule(), getEfSpn(), getEfSpdi(), getEfOpl(),
+                    getEfPnn());
+        }
+        return mEfIndex;
+    }
+
+    /**
+     * Get the LAC or TAC of the serving cell.
+     * @param ss service state.
+     * @return the LAC/TAC, or -1 if it is unknown.
+     */
+    private static int getLacTac(ServiceState ss) {
+        for (int domain : new int[] {NetworkRegistrationInfo.DOMAIN_CS,
+                NetworkRegistrationInfo.DOMAIN_PS}) {
+            NetworkRegistrationInfo nri = ss.getNetworkRegistrationInfo(domain,
+                    AccessNetworkConstants.TRANSPORT_TYPE_WWAN);
+            CellIdentity cellIdentity = nri != null ? nri.getCellIdentity() : null;
+            int lacTac = CellInfo.UNAVAILABLE;
+            if (cellIdentity instanceof CellIdentityGsm) {
+                lacTac = ((CellIdentityGsm) cellIdentity).getLac();
+            } else if (cellIdentity instanceof CellIdentityWcdma) {
+                lacTac = ((CellIdentityWcdma) cellIdentity).getLac();
+            } else if (cellIdentity instanceof CellIdentityTdscdma) {
+                lacTac = ((CellIdentityTdscdma) cellIdentity).getLac();
+            } else if (cellIdentity instanceof CellIdentityLte) {
+                lacTac = ((CellIdentityLte) cellIdentity).getTac();
+            } else if (cellIdentity instanceof CellIdentityNr) {
+                lacTac = ((CellIdentityNr) cellIdentity).getTac();
+            }
+            if (lacTac != CellInfo.UNAVAILABLE) return lacTac;
+        }
+        return -1;
+    }
+
     private CarrierDisplayNameData getCarrierDisplayNameFromEf() {
-        CarrierDisplayNameConditionRule displayRule = getDisplayRule();
+        EfIndex efIndex = getEfIndex();
+        ServiceState ss = getServiceState();
+        String registeredPlmnNumeric = ss.getOperatorNumeric();
+        int lacTac = getLacTac(ss);
+        boolean isRoamingFromSs = ss.getRoaming();
+
+        // The result only depends on the ef records and the location, so service state changes
+        // in the same area are resolved from the cache.
+        List<Object> key = Arrays.asList(registeredPlmnNumeric, lacTac, isRoamingFromSs);
+        CarrierDisplayNameData data = efIndex.mResolved.get(key);
+        if (data == null) {
+            data = getCarrierDisplayNameFromEf(efIndex, registeredPlmnNumeric, lacTac,
+                    isRoamingFromSs);
+            efIndex.mResolved.put(key, data);
+        }
+        return data;
+    }
 
-        String registeredPlmnNumeric = getServiceState().getOperatorNumeric();
-        List<String> efSpdi = getEfSpdi();
+    private static CarrierDisplayNameData getCarrierDisplayNameFromEf(EfIndex efIndex,
+            String registeredPlmnNumeric, int lacTac, boolean isRoamingFromSs) {
+        CarrierDisplayNameConditionRule displayRule = efIndex.mDisplayRule;
 
         // Currently use the roaming state from ServiceState.
         // EF_SPDI is only used when determine the service provider name and PLMN network name
         // display condition rule.
         // All the PLMNs will be considered HOME PLMNs if there is a brand override.
-        boolean isRoaming = getServiceState().getRoaming()
-                && !efSpdi.contains(registeredPlmnNumeric);
+        boolean isRoaming = isRoamingFromSs && !efIndex.mSpdi.contains(registeredPlmnNumeric);
         boolean showSpn = displayRule.shouldShowSpn(isRoaming);
         boolean showPlmn = displayRule.shouldShowPnn(isRoaming);
-        String spn = getEfSpn();
+        String spn = efIndex.mSpn;
 
         // Resolve the PLMN network name
-        List<OperatorPlmnInfo> efOpl = getEfOpl();
-        List<PlmnNetworkName> efPnn = getEfPnn();
+        List<PlmnNetworkName> efPnn = efIndex.mPnn;
 
         String plmn = null;
-        if (efOpl.isEmpty()) {
+        if (efIndex.mOpl.isEmpty()) {
             // If the EF_OPL is not present, then the first record in EF_PNN is used for the
             // default network name when registered in the HPLMN or an EHPLMN(if the EHPLMN list
             // is present).
             plmn = efPnn.isEmpty() ? "" : getPlmnNetworkName(efPnn.get(0));
         } else {
-            // TODO: Check the TAC/LAC & registered PLMN numeric in OPL list to determine which
-            // PLMN name should be used to override the current one.
+            // The first EF_OPL record matching the registered PLMN and LAC/TAC gives the EF_PNN
+            // record to use. A PNN record identifier of 0 means the name is not from EF_PNN.
+            OperatorPlmnInfo opl = efIndex.mOplIndex.find(registeredPlmnNumeric, lacTac);
+            if (opl != null && opl.plmnNetworkNameIndex >= 1
+                    && opl.plmnNetworkNameIndex <= efPnn.size()) {
+                plmn = getPlmnNetworkName(efPnn.get(opl.plmnNetworkNameIndex - 1));
+            }
         }
 
         // If no PLMN override is present, then the PLMN should be displayed numerically.
@@ -464,6 +603,18 @@ public class CarrierDisplayNameResolver {
                     == IccRecords.CARRIER_NAME_DISPLAY_CONDITION_BITMASK_PLMN);
         }
 
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof CarrierDisplayNameConditionRule
+                    && mDisplayConditionBitmask
+                            == ((CarrierDisplayNameConditionRule) o).mDisplayConditionBitmask;
+        }
+
+        @Override
+        public int hashCode() {
+            return mDisplayConditionBitmask;
+        }
+
         @Override
         public String toString() {
             return String.format("{ SPN_bit = %d, PLMN_bit = %d }",
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.cdnr;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.text.TextUtils;
+
+import com.android.internal.telephony.uicc.IccRecords.OperatorPlmnInfo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Lookup of the EF_OPL (operator PLMN list) entry applying to a registered PLMN and LAC/TAC.
+ *
+ * Like EF_OPL, the first entry of the list whose PLMN pattern and LAC/TAC range match wins. The
+ * entries of each PLMN pattern are flattened once into sorted, disjoint LAC/TAC ranges, each
+ * mapped to the first entry covering it, so a lookup is a hash lookup and a binary search per
+ * PLMN pattern matching the registered PLMN.
+ */
+final class OperatorPlmnIndex {
+    /** Wildcard digit of a PLMN pattern. */
+    private static final char WILDCARD = '.';
+
+    /** LAC/TAC range of an entry applying to the whole PLMN. */
+    private static final int LAC_TAC_MIN = 0x0000;
+    private static final int LAC_TAC_MAX = 0xFFFE;
+
+    /** The sorted, disjoint LAC/TAC ranges of the entries with the same PLMN pattern. */
+    private static final class Ranges {
+        final int[] mStarts;
+        final int[] mEnds;
+        // Position in EF_OPL of the first entry covering each range
+        final int[] mEntries;
+        // Position in EF_OPL of the first entry applying to any LAC/TAC, or -1
+        final int mAnyLacTacEntry;
+
+        Ranges(List<OperatorPlmnInfo> opl, List<Integer> entries) {
+            TreeSet<Integer> bounds = new TreeSet<>();
+            int anyLacTacEntry = -1;
+            for (int entry : entries) {
+                OperatorPlmnInfo info = opl.get(entry);
+                bounds.add(info.lacTacStart);
+                bounds.add(info.lacTacEnd + 1);
+                if (anyLacTacEntry < 0 && info.lacTacStart <= LAC_TAC_MIN
+                        && info.lacTacEnd >= LAC_TAC_MAX) {
+                    anyLacTacEntry = entry;
+                }
+            }
+            mAnyLacTacEntry = anyLacTacEntry;
+
+            // Between consecutive bounds, the same entries apply. Keep the first of them, and
+            // merge neighbouring ranges going to the same entry.
+            ArrayList<int[]> ranges = new ArrayList<>();
+            Integer start = bounds.isEmpty() ? null : bounds.first();
+            while (start != null) {
+                Integer next = bounds.higher(start);
+                if (next == null) break;
+                int end = next - 1;
+                int first = -1;
+                for (int entry : entries) {
+                    OperatorPlmnInfo info = opl.get(entry);
+                    if (info.lacTacStart <= start && info.lacTacEnd >= end) {
+                        first = entry;
+                        break;
+                    }
+                }
+                if (first >= 0) {
+                    int[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+                    if (last != null && last[2] == first && last[1] == start - 1) {
+                        last[1] = end;
+                    } else {
+                        ranges.add(new int[] {start, end, first});
+                    }
+                }
+                start = next;
+            }
+
+            mStarts = new int[ranges.size()];
+            mEnds = new int[ranges.size()];
+            mEntries = new int[ranges.size()];
+            for (int i = 0; i < ranges.size(); i++) {
+                mStarts[i] = ranges.get(i)[0];
+                mEnds[i] = ranges.get(i)[1];
+                mEntries[i] = ranges.get(i)[2];
+            }
+        }
+
+        /**
+         * @return the position of the first entry covering {@code lacTac}, or -1. An unknown
+         * LAC/TAC is only covered by the entries applying to any LAC/TAC.
+         */
+        int find(int lacTac) {
+            if (lacTac < 0) return mAnyLacTacEntry;
+            int low = 0;
+            int high = mStarts.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (mStarts[mid] > lacTac) {
+                    high = mid - 1;
+                } else if (mEnds[mid] < lacTac) {
+                    low = mid + 1;
+                } else {
+                    return mEntries[mid];
+                }
+            }
+            return -1;
+        }
+    }
+
+    private final List<OperatorPlmnInfo> mOpl;
+    /** Ranges of the PLMN patterns without wildcard, by PLMN. */
+    private final HashMap<String, Ranges> mRangesByPlmn = new HashMap<>();
+    /** Ranges of the PLMN patterns with wildcards, by pattern. */
+    private final HashMap<String, Ranges> mRangesByWildcardPattern = new HashMap<>();
+
+    /**
+     * @param opl the EF_OPL records, in order
+     */
+    OperatorPlmnIndex(@NonNull List<OperatorPlmnInfo> opl) {
+        mOpl = opl;
+        HashMap<String, List<Integer>> entriesByPattern = new HashMap<>();
+        for (int i = 0; i < opl.size(); i++) {
+            OperatorPlmnInfo info = opl.get(i);
+            if (info == null || TextUtils.isEmpty(info.plmnNumericPattern)
+                    || info.lacTacStart > info.lacTacEnd) {
+                continue;
+            }
+            List<Integer> entries = entriesByPattern.get(info.plmnNumericPattern);
+            if (entries == null) {
+                entries = new ArrayList<>();
+                entriesByPattern.put(info.plmnNumericPattern, entries);
+            }
+            entries.add(i);
+        }
+        for (Map.Entry<String, List<Integer>> e : entriesByPattern.entrySet()) {
+            Ranges ranges = new Ranges(opl, e.getValue());
+            if (e.getKey().indexOf(WILDCARD) >= 0) {
+                mRangesByWildcardPattern.put(e.getKey(), ranges);
+            } else {
+                mRangesByPlmn.put(e.getKey(), ranges);
+            }
+        }
+    }
+
+    /**
+     * Find the first EF_OPL entry matching a PLMN and LAC/TAC.
+     *
+     * @param plmn the registered PLMN numeric
+     * @param lacTac the LAC or TAC of the serving cell, or a negative value if it is unknown
+     * @return the matching entry, or {@code null} if there is none
+     */
+    @Nullable
+    OperatorPlmnInfo find(String plmn, int lacTac) {
+        if (TextUtils.isEmpty(plmn)) return null;
+        int first = -1;
+        Ranges ranges = mRangesByPlmn.get(plmn);
+        if (ranges != null) {
+            first = ranges.find(lacTac);
+        }
+        for (Map.Entry<String, Ranges> e : mRangesByWildcardPattern.entrySet()) {
+            if (matches(e.getKey(), plmn)) {
+                int entry = e.getValue().find(lacTac);
+                if (entry >= 0 && (first < 0 || entry < first)) {
+                    first = entry;
+                }
+            }
+        }
+        return first >= 0 ? mOpl.get(first) : null;
+    }
+
+    private static boolean matches(String pattern, String plmn) {
+        if (pattern.length() != plmn.length()) return false;
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c != WILDCARD && c != plmn.charAt(i)) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import android.provider.Telephony;
+import android.telephony.data.ApnSetting;
+import android.util.LongSparseArray;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.BinaryOperator;
+
+/**
+ * Index of the APNs applicable to the current carrier, built once per APN database change so
+ * that each data setup attempt does not rescan and resort the whole APN list.
+ *
+ * The candidate APNs of a requested APN type and network type are filtered and sorted by
+ * preferred APN set on first use, and kept until the index is rebuilt.
+ */
+final class ApnIndex {
+    private final List<ApnSetting> mApns;
+    private final int mPreferredApnSetId;
+
+    /** Sorted candidate APNs, keyed by {@link #getKey}. */
+    private final LongSparseArray<ArrayList<ApnSetting>> mWaitingApns = new LongSparseArray<>();
+
+    /**
+     * @param apns the APNs of the carrier; must not be modified while the index is in use
+     * @param preferredApnSetId the preferred APN set, or
+     * {@link Telephony.Carriers#NO_APN_SET_ID} if there is none
+     */
+    ApnIndex(List<ApnSetting> apns, int preferredApnSetId) {
+        mApns = apns;
+        mPreferredApnSetId = preferredApnSetId;
+    }
+
+    private static long getKey(int apnTypeBitmask, int networkType) {
+        return ((long) apnTypeBitmask << 32) | (networkType & 0xffffffffL);
+    }
+
+    /**
+     * Get the APNs which can handle an APN type on a network type, with the APNs of the
+     * preferred APN set first.
+     *
+     * @param apnTypeBitmask the requested APN type
+     * @param networkType the network type, see {@link ApnSetting#canSupportNetworkType}
+     * @return a new list of APNs, which the caller may modify
+     */
+    ArrayList<ApnSetting> getWaitingApns(int apnTypeBitmask, int networkType) {
+        long key = getKey(apnTypeBitmask, networkType);
+        ArrayList<ApnSetting> apns = mWaitingApns.get(key);
+        if (apns == null) {
+            apns = new ArrayList<>();
+            for (ApnSetting apn : mApns) {
+                if (apn.canHandleType(apnTypeBitmask) && apn.canSupportNetworkType(networkType)) {
+                    apns.add(apn);
+                }
+            }
+            sortByPreferredApnSet(apns, mPreferredApnSetId);
+            mWaitingApns.put(key, apns);
+        }
+        return new ArrayList<>(apns);
+    }
+
+    /**
+     * Sort a list of APNs, with the APNs of the preferred APN set at the front of the list. See
+     * {@link DcTracker#sortApnListByPreferred}.
+     */
+    static void sortByPreferredApnSet(List<ApnSetting> list, int preferredApnSetId) {
+        if (list.size() <= 1 || preferredApnSetId == Telephony.Carriers.NO_APN_SET_ID) return;
+        list.sort((apn1, apn2) -> {
+            if (apn1.getApnSetId() == preferredApnSetId) {
+                return -1;
+            }
+            if (apn2.getApnSetId() == preferredApnSetId) {
+                return 1;
+            }
+            return 0;
+        });
+    }
+
+    /**
+     * Key of the fields which {@link ApnSetting#similar} requires to be equal, and which merging
+     * two similar APNs keeps. APNs with different keys are never similar.
+     */
+    private static List<Object> getSimilarityKey(ApnSetting apn) {
+        return Arrays.asList(apn.getApnName(), apn.isEnabled(), apn.getProfileId(),
+                apn.getMvnoType(), apn.getMvnoMatchData());
+    }
+
+    /**
+     * Coalesce similar APNs, in the same way as comparing each APN with all the following ones
+     * and merging the similar ones into it, but only comparing APNs with the same similarity key.
+     *
+     * @param apns the APNs to dedupe, in place
+     * @param merger merges the second APN into the first, returning the result
+     */
+    static void dedupe(List<ApnSetting> apns, BinaryOperator<ApnSetting> merger) {
+        // Indexes into result of the APNs kept so far, by similarity key
+        HashMap<List<Object>, ArrayList<Integer>> buckets = new HashMap<>();
+        ArrayList<ApnSetting> result = new ArrayList<>(apns.size());
+        for (int i = 0; i < apns.size(); i++) {
+            ApnSetting apn = apns.get(i);
+            List<Object> key = getSimilarityKey(apn);
+            ArrayList<Integer> bucket = buckets.get(key);
+            if (bucket == null) {
+                bucket = new ArrayList<>();
+                buckets.put(key, bucket);
+            }
+            // An APN merges into the first earlier kept APN it is similar to
+            boolean merged = false;
+            for (int index : bucket) {
+                ApnSetting first = result.get(index);
+                if (first.similar(apn)) {
+                    result.set(index, merger.apply(first, apn));
+                    merged = true;
+                    break;
+                }
+            }
+            if (!merged) {
+                bucket.add(result.size());
+                result.add(apn);
+            }
+        }
+        if (result.size() != apns.size()) {
+            apns.clear();
+            apns.addAll(result);
+        }
+    }
+}
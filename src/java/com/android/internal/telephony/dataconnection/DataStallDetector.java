@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+
+/**
+ * Detects data stalls, i.e. TCP packets being sent without any being received, from samples of
+ * the mobile TCP packet counts taken by {@link DcTracker}.
+ *
+ * The detector keeps a moving window of the packet counts between samples. A stall is detected
+ * once enough packets went unanswered for longer than the link took to answer in the window:
+ * a link which answered its packets in most samples is reported quickly, while a link which
+ * recovered from long silences on its own, or about which too little is known, must stay silent
+ * longer. The detector also picks the time to the next sample: soon while packets are going
+ * unanswered, and later while the link is idle.
+ */
+final class DataStallDetector {
+    /** Number of samples in the moving window. */
+    @VisibleForTesting
+    static final int WINDOW_SIZE = 16;
+
+    /** Time to the next sample while packets are going unanswered. */
+    @VisibleForTesting
+    static final long SUSPECT_SAMPLE_INTERVAL_MS = 10 * 1000;
+
+    /** Time packets must at least go unanswered before a stall is detected. */
+    @VisibleForTesting
+    static final long MIN_UNANSWERED_DURATION_MS = 20 * 1000;
+
+    /** Time after which unanswered packets are a stall however bursty the link is. */
+    @VisibleForTesting
+    static final long MAX_UNANSWERED_DURATION_MS = 60 * 1000;
+
+    /** Packets must go unanswered for this many times the longest silence in the window. */
+    private static final int SILENCE_FACTOR = 2;
+
+    /** Answered samples needed in the window to detect a stall before the maximum duration. */
+    @VisibleForTesting
+    static final int MIN_ANSWERED_SAMPLES = 3;
+
+    /** The sample interval of an idle link is stretched up to this many times. */
+    @VisibleForTesting
+    static final int MAX_IDLE_BACKOFF = 4;
+
+    // The moving window, oldest first
+    private final long[] mSampleTimes = new long[WINDOW_SIZE];
+    private final long[] mSentCounts = new long[WINDOW_SIZE];
+    private final long[] mReceivedCounts = new long[WINDOW_SIZE];
+    private int mWindowStart;
+    private int mWindowSize;
+
+    private long mLastSampleTime = -1;
+    private long mSentSinceLastRecv;
+    /** The time since when packets are going unanswered, or -1. */
+    private long mUnansweredSince = -1;
+    /** Consecutive samples without any packet. */
+    private int mIdleSamples;
+    /** The time the current stall was detected, or -1. */
+    private long mStallDetectedTime = -1;
+
+    // Statistics
+    private int mSampleCount;
+    private int mStallCount;
+    private int mFalsePositiveCount;
+    private long mLastTimeToDetectMs = -1;
+    private long mTotalTimeToDetectMs;
+
+    /**
+     * Add a sample of the packets sent and received since the previous sample.
+     *
+     * @param now the elapsed real time of the sample
+     * @param sent the number of packets sent
+     * @param received the number of packets received
+     * @param countSent false if packets sent without answer should not count as a stall, e.g.
+     * during a voice call
+     * @return true if packets were received
+     */
+    boolean onSample(long now, long sent, long received, boolean countSent) {
+        sent = Math.max(sent, 0);
+        received = Math.max(received, 0);
+        mSampleCount++;
+
+        int index = (mWindowStart + mWindowSize) % WINDOW_SIZE;
+        if (mWindowSize == WINDOW_SIZE) {
+            mWindowStart = (mWindowStart + 1) % WINDOW_SIZE;
+        } else {
+            mWindowSize++;
+        }
+        mSampleTimes[index] = now;
+        mSentCounts[index] = sent;
+        mReceivedCounts[index] = received;
+
+        mIdleSamples = (sent == 0 && received == 0) ? mIdleSamples + 1 : 0;
+
+        if (received > 0) {
+            if (mStallDetectedTime >= 0
+                    && now - mStallDetectedTime <= SUSPECT_SAMPLE_INTERVAL_MS) {
+                // The link answered right after the stall was reported
+                mFalsePositiveCount++;
+            }
+            mStallDetectedTime = -1;
+            mSentSinceLastRecv = 0;
+            mUnansweredSince = -1;
+        } else if (sent > 0 && countSent) {
+            if (mUnansweredSince < 0) {
+                // The packets were sent some time after the previous sample
+                mUnansweredSince = mLastSampleTime >= 0 ? mLastSampleTime : now;
+            }
+            mSentSinceLastRecv += sent;
+        } else if (sent > 0) {
+            mSentSinceLastRecv = 0;
+            mUnansweredSince = -1;
+        }
+        mLastSampleTime = now;
+        return received > 0;
+    }
+
+    /**
+     * @return the time packets must go unanswered before a stall is detected.
+     */
+    @VisibleForTesting
+    long getMinUnansweredDurationMs() {
+        int answeredSamples = 0;
+        long longestSilence = 0;
+        long silenceStart = -1;
+        long previousTime = -1;
+        for (int i = 0; i < mWindowSize; i++) {
+            int index = (mWindowStart + i) % WINDOW_SIZE;
+            long time = mSampleTimes[index];
+            if (mReceivedCounts[index] > 0) {
+                if (mSentCounts[index] > 0) answeredSamples++;
+                if (silenceStart >= 0) {
+                    // The link answered again by itself
+                    longestSilence = Math.max(longestSilence, time - silenceStart);
+                    silenceStart = -1;
+                }
+            } else if (mSentCounts[index] > 0 && silenceStart < 0) {
+                silenceStart = previousTime >= 0 ? previousTime : time;
+            }
+            previousTime = time;
+        }
+        if (answeredSamples < MIN_ANSWERED_SAMPLES) {
+            return MAX_UNANSWERED_DURATION_MS;
+        }
+        return Math.min(MAX_UNANSWERED_DURATION_MS,
+                Math.max(MIN_UNANSWERED_DURATION_MS, SILENCE_FACTOR * longestSilence));
+    }
+
+    /**
+     * @param now the elapsed real time
+     * @param triggerPacketCount the number of unanswered packets indicating a stall
+     * @return true if the link is stalled
+     */
+    boolean isStallSuspected(long now, long triggerPacketCount) {
+        return mSentSinceLastRecv >= triggerPacketCount && mUnansweredSince >= 0
+                && now - mUnansweredSince >= getMinUnansweredDurationMs();
+    }
+
+    /**
+     * Record that a stall was reported for recovery.
+     *
+     * @param now the elapsed real time
+     */
+    void onStallDetected(long now) {
+        if (mStallDetectedTime >= 0) {
+            // Still the same stall
+            return;
+        }
+        mStallDetectedTime = now;
+        mStallCount++;
+        if (mUnansweredSince >= 0) {
+            mLastTimeToDetectMs = now - mUnansweredSince;
+            mTotalTimeToDetectMs += mLastTimeToDetectMs;
+        }
+    }
+
+    /**
+     * Restart counting unanswered packets after a recovery action.
+     */
+    void onRecoveryAction() {
+        mSentSinceLastRecv = 0;
+    }
+
+    /**
+     * @param intervalMs the regular time between samples
+     * @param allowIdleBackoff whether the interval may be stretched while the link is idle, when
+     * new traffic is noticed by other means
+     * @return the time to the next sample
+     */
+    long getNextSampleDelay(long intervalMs, boolean allowIdleBackoff) {
+        if (mSentSinceLastRecv > 0) {
+            return Math.min(intervalMs, SUSPECT_SAMPLE_INTERVAL_MS);
+        }
+        if (allowIdleBackoff) {
+            return intervalMs * Math.min(mIdleSamples + 1, MAX_IDLE_BACKOFF);
+        }
+        return intervalMs;
+    }
+
+    long getSentSinceLastRecv() {
+        return mSentSinceLastRecv;
+    }
+
+    @VisibleForTesting
+    int getStallCount() {
+        return mStallCount;
+    }
+
+    @VisibleForTesting
+    int getFalsePositiveCount() {
+        return mFalsePositiveCount;
+    }
+
+    @VisibleForTesting
+    long getLastTimeToDetectMs() {
+        return mLastTimeToDetectMs;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println(" DataStallDetector: mSentSinceLastRecv=" + mSentSinceLastRecv
+                + " mUnansweredSince=" + mUnansweredSince
+                + " minUnansweredDurationMs=" + getMinUnansweredDurationMs()
+                + " mIdleSamples=" + mIdleSamples);
+        pw.println(" DataStallDetector: samples=" + mSampleCount + " stalls=" + mStallCount
+                + " falsePositives=" + mFalsePositiveCount
+                + " lastTimeToDetectMs=" + mLastTimeToDetectMs
+                + " averageTimeToDetectMs="
+                + (mStallCount > 0 ? mTotalTimeToDetectMs / mStallCount : -1));
+    }
+}
@@ -32,6 +32,7 @@ import android.telephony.Rlog;
 import android.telephony.TelephonyManager;
 import android.telephony.data.DataCallResponse;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.DctConstants;
 import com.android.internal.telephony.Phone;
 import com.android.internal.telephony.dataconnection.DataConnection.UpdateLinkPropertyResult;
@@ -42,6 +43,7 @@ import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 
 /**
@@ -63,6 +65,15 @@ public class DcController extends StateMachine {
     final ArrayList<DataConnection> mDcListAll = new ArrayList<>();
     // @GuardedBy("mDcListAll")
     private final HashMap<Integer, DataConnection> mDcListActiveByCid = new HashMap<>();
+    // The last data call response applied to each active DC, by cid. The radio reports the full
+    // data call list on every change, so this is used to skip the data calls which did not change.
+    // @GuardedBy("mDcListAll")
+    private final HashMap<Integer, DataCallResponse> mAppliedDataCallByCid = new HashMap<>();
+
+    // Number of data call list entries skipped as unchanged, and applied to the link
+    // properties of their DC
+    private int mSkippedDataCallUpdates;
+    private int mAppliedDataCallUpdates;
 
     private DccDefaultState mDccDefaultState = new DccDefaultState();
 
@@ -136,6 +147,7 @@ public class DcController extends StateMachine {
     void removeDc(DataConnection dc) {
         synchronized (mDcListAll) {
             mDcListActiveByCid.remove(dc.mCid);
+            mAppliedDataCallByCid.remove(dc.mCid);
             mDcListAll.remove(dc);
         }
     }
@@ -146,6 +158,8 @@ public class DcController extends StateMachine {
         }
         synchronized (mDcListAll) {
             mDcListActiveByCid.put(dc.mCid, dc);
+            // The link properties now come from the setup data call response
+            mAppliedDataCallByCid.remove(dc.mCid);
         }
     }
 
@@ -158,6 +172,7 @@ public class DcController extends StateMachine {
     void removeActiveDcByCid(DataConnection dc) {
         synchronized (mDcListAll) {
             DataConnection removedDc = mDcListActiveByCid.remove(dc.mCid);
+            mAppliedDataCallByCid.remove(dc.mCid);
             if (DBG && removedDc == null) {
                 log("removeActiveDcByCid removedDc=null dc=" + dc);
             }
@@ -168,6 +183,20 @@ public class DcController extends StateMachine {
         return mExecutingCarrierChange;
     }
 
+    @VisibleForTesting
+    int getSkippedDataCallUpdates() {
+        synchronized (mDcListAll) {
+            return mSkippedDataCallUpdates;
+        }
+    }
+
+    @VisibleForTesting
+    int getAppliedDataCallUpdates() {
+        synchronized (mDcListAll) {
+            return mAppliedDataCallUpdates;
+        }
+    }
+
     private class DccDefaultState extends State {
         @Override
         public void enter() {
@@ -231,9 +260,11 @@ public class DcController extends StateMachine {
         private void onDataStateChanged(ArrayList<DataCallResponse> dcsList) {
             final ArrayList<DataConnection> dcListAll;
             final HashMap<Integer, DataConnection> dcListActiveByCid;
+            final HashMap<Integer, DataCallResponse> appliedDataCallByCid;
             synchronized (mDcListAll) {
                 dcListAll = new ArrayList<>(mDcListAll);
                 dcListActiveByCid = new HashMap<>(mDcListActiveByCid);
+                appliedDataCallByCid = new HashMap<>(mAppliedDataCallByCid);
             }
 
             if (DBG) {
@@ -266,6 +297,10 @@ public class DcController extends StateMachine {
             // Find which connections have changed state and send a notification or cleanup
             // and any that are in active need to be retried.
             ArrayList<ApnContext> apnsToCleanup = new ArrayList<ApnContext>();
+            // APN types to notify once all the data calls are processed
+            LinkedHashSet<String> apnTypesToNotify = new LinkedHashSet<>();
+            int skipped = 0;
+            int applied = 0;
 
             boolean isAnyDataCallDormant = false;
             boolean isAnyDataCallActive = false;
@@ -290,6 +325,7 @@ public class DcController extends StateMachine {
                                 + " newState=" + newState.toString());
                     }
                     if (newState.getLinkStatus() == DataConnActiveStatus.INACTIVE) {
+                        appliedDataCallByCid.remove(newState.getId());
                         if (mDct.isCleanupRequired.get()) {
                             apnsToCleanup.addAll(apnContexts);
                             mDct.isCleanupRequired.set(false);
@@ -316,9 +352,15 @@ public class DcController extends StateMachine {
                                 dcsToRetry.add(dc);
                             }
                         }
+                    } else if (newState.equals(appliedDataCallByCid.get(newState.getId()))) {
+                        // Same as the last update, so the link properties are unchanged
+                        if (VDBG) log("onDataStateChanged: unchanged, skip");
+                        skipped++;
                     } else {
                         // Its active so update the DataConnections link properties
                         UpdateLinkPropertyResult result = dc.updateLinkProperty(newState);
+                        appliedDataCallByCid.put(newState.getId(), newState);
+                        applied++;
                         if (result.oldLp.equals(result.newLp)) {
                             if (DBG) log("onDataStateChanged: no change");
                         } else {
@@ -358,7 +400,7 @@ public class DcController extends StateMachine {
                                         if (DBG) log("onDataStateChanged: simple change");
 
                                         for (ApnContext apnContext : apnContexts) {
-                                            mPhone.notifyDataConnection(apnContext.getApnType());
+                                            apnTypesToNotify.add(apnContext.getApnType());
                                         }
                                     }
                                 } else {
@@ -406,9 +448,27 @@ public class DcController extends StateMachine {
                 }
             }
 
+            synchronized (mDcListAll) {
+                // Only keep the entries of DCs which are still active
+                for (Integer cid : appliedDataCallByCid.keySet()) {
+                    if (mDcListActiveByCid.get(cid) == dcListActiveByCid.get(cid)) {
+                        mAppliedDataCallByCid.put(cid, appliedDataCallByCid.get(cid));
+                    }
+                }
+                mAppliedDataCallByCid.keySet().retainAll(appliedDataCallByCid.keySet());
+                mSkippedDataCallUpdates += skipped;
+                mAppliedDataCallUpdates += applied;
+            }
+
             if (DBG) {
                 lr("onDataStateChanged: dcsToRetry=" + dcsToRetry
-                        + " apnsToCleanup=" + apnsToCleanup);
+                        + " apnsToCleanup=" + apnsToCleanup
+                        + " apnTypesToNotify=" + apnTypesToNotify + " skipped=" + skipped);
+            }
+
+            // Notify the connections with simple changes
+            for (String apnType : apnTypesToNotify) {
+                mPhone.notifyDataConnection(apnType);
             }
 
             // Cleanup connections that have changed
@@ -468,6 +528,8 @@ public class DcController extends StateMachine {
         synchronized (mDcListAll) {
             pw.println(" mDcListAll=" + mDcListAll);
             pw.println(" mDcListActiveByCid=" + mDcListActiveByCid);
+            pw.println(" mSkippedDataCallUpdates=" + mSkippedDataCallUpdates
+                    + " mAppliedDataCallUpdates=" + mAppliedDataCallUpdates);
         }
     }
 }
@@ -294,6 +294,9 @@ public class DcTracker extends Handler {
     /** all APN settings applicable to the current carrier */
     private ArrayList<ApnSetting> mAllApnSettings = new ArrayList<>();
 
+    /** Index of mAllApnSettings, or null if it must be rebuilt */
+    private ApnIndex mApnIndex;
+
     /** preferred apn */
     private ApnSetting mPreferredApn = null;
 
@@ -663,8 +666,10 @@ public class DcTracker extends Handler {
     private int mDataStallAlarmTag = (int) SystemClock.elapsedRealtime();
     // The current data stall alarm intent
     private PendingIntent mDataStallAlarmIntent = null;
-    // Number of packets sent since the last received packet
-    private long mSentSinceLastRecv;
+    // The elapsed real time the current data stall alarm goes off
+    private long mDataStallAlarmTime;
+    // Detects data stalls from the TCP packet counts sampled by the data stall alarm
+    private final DataStallDetector mDataStallDetector = new DataStallDetector();
     // Controls when a simple recovery attempt it to be tried
     private int mNoRecvPollCount = 0;
     // Reference counter for enabling fail fast
@@ -1614,6 +1619,7 @@ public class DcTracker extends Handler {
                 if(requestedApnType.equals(PhoneConstants.APN_TYPE_EMERGENCY)){
                     if(mAllApnSettings == null){
                         mAllApnSettings = new ArrayList<ApnSetting>();
+                        mApnIndex = null;
                     }
                     addEmergencyApnSetting();
                 }
@@ -2371,6 +2377,7 @@ public class DcTracker extends Handler {
 
         cleanUpAllConnectionsInternal(true, Phone.REASON_SIM_NOT_READY);
         mAllApnSettings.clear();
+        mApnIndex = null;
         mAutoAttachOnCreationConfig = false;
         // Clear auto attach as modem is expected to do a new attach once SIM is ready
         mAutoAttachEnabled.set(false);
@@ -3249,6 +3256,7 @@ public class DcTracker extends Handler {
      */
     protected void createAllApnList() {
         mAllApnSettings.clear();
+        mApnIndex = null;
         IccRecords r = mIccRecords.get();
         String operator = (r != null) ? r.getOperatorNumeric() : "";
 
@@ -3295,28 +3303,19 @@ public class DcTracker extends Handler {
     }
 
     private void dedupeApnSettings() {
-        ArrayList<ApnSetting> resultApns = new ArrayList<ApnSetting>();
-
         // coalesce APNs if they are similar enough to prevent
         // us from bringing up two data calls with the same interface
-        int i = 0;
-        while (i < mAllApnSettings.size() - 1) {
-            ApnSetting first = mAllApnSettings.get(i);
-            ApnSetting second = null;
-            int j = i + 1;
-            while (j < mAllApnSettings.size()) {
-                second = mAllApnSettings.get(j);
-                if (first.similar(second)) {
-                    ApnSetting newApn = mergeApns(first, second);
-                    mAllApnSettings.set(i, newApn);
-                    first = newApn;
-                    mAllApnSettings.remove(j);
-                } else {
-                    j++;
-                }
-            }
-            i++;
+        ApnIndex.dedupe(mAllApnSettings, this::mergeApns);
+    }
+
+    /**
+     * @return the index of mAllApnSettings, building it if needed.
+     */
+    private ApnIndex getApnIndex() {
+        if (mApnIndex == null) {
+            mApnIndex = new ApnIndex(mAllApnSettings, getPreferredApnSetId());
         }
+        return mApnIndex;
     }
 
     private ApnSetting mergeApns(ApnSetting dest, ApnSetting src) {
@@ -3449,27 +3448,8 @@ public class DcTracker extends Handler {
         }
 
         if (DBG) log("buildWaitingApns: mAllApnSettings=" + mAllApnSettings);
-        for (ApnSetting apn : mAllApnSettings) {
-            if (apn.canHandleType(requestedApnTypeBitmask)) {
-                if (apn.canSupportNetworkType(
-                        ServiceState.rilRadioTechnologyToNetworkType(radioTech))) {
-                    if (VDBG) log("buildWaitingApns: adding apn=" + apn);
-                    apnList.add(apn);
-                } else {
-                    if (DBG) {
-                        log("buildWaitingApns: networkTypeBitmask:"
-                                + apn.getNetworkTypeBitmask()
-                                + " does not include radioTech:"
-                                + ServiceState.rilRadioTechnologyToString(radioTech));
-                    }
-                }
-            } else if (VDBG) {
-                log("buildWaitingApns: couldn't handle requested ApnType="
-                        + requestedApnType);
-            }
-        }
-
-        apnList = sortApnListByPreferred(apnList);
+        apnList = getApnIndex().getWaitingApns(requestedApnTypeBitmask,
+                ServiceState.rilRadioTechnologyToNetworkType(radioTech));
 
         if (requestedApnType.equals(PhoneConstants.APN_TYPE_DEFAULT) && mPreferredApn == null) {
             ApnContext apnContext = mApnContextsByType.get(ApnSetting.TYPE_DEFAULT);
@@ -3509,21 +3489,7 @@ public class DcTracker extends Handler {
     @VisibleForTesting
     public ArrayList<ApnSetting> sortApnListByPreferred(ArrayList<ApnSetting> list) {
         if (list == null || list.size() <= 1) return list;
-        int preferredApnSetId = getPreferredApnSetId();
-        if (preferredApnSetId != Telephony.Carriers.NO_APN_SET_ID) {
-            list.sort(new Comparator<ApnSetting>() {
-                @Override
-                public int compare(ApnSetting apn1, ApnSetting apn2) {
-                    if (apn1.getApnSetId() == preferredApnSetId) {
-                        return -1;
-                    }
-                    if (apn2.getApnSetId() == preferredApnSetId) {
-                        return 1;
-                    }
-                    return 0;
-                }
-            });
-        }
+        ApnIndex.sortByPreferredApnSet(list, getPreferredApnSetId());
         return list;
     }
 
@@ -3543,6 +3509,9 @@ public class DcTracker extends Handler {
             return;
         }
 
+        // The preferred APN set may change with the preferred APN
+        mApnIndex = null;
+
         String subId = Long.toString(mPhone.getSubId());
         Uri uri = Uri.withAppendedPath(PREFERAPN_NO_UPDATE_URI_USING_SUBID, subId);
         log("setPreferredApn: delete");
@@ -4330,7 +4299,7 @@ public class DcTracker extends Handler {
         pw.println(" mDataStallAlarmTag=" + mDataStallAlarmTag);
         pw.println(" mDataStallNoRxEnabled=" + mDataStallNoRxEnabled);
         pw.println(" mEmergencyApn=" + mEmergencyApn);
-        pw.println(" mSentSinceLastRecv=" + mSentSinceLastRecv);
+        mDataStallDetector.dump(pw);
         pw.println(" mNoRecvPollCount=" + mNoRecvPollCount);
         pw.println(" mResolver=" + mResolver);
         pw.println(" mReconnectIntent=" + mReconnectIntent);
@@ -4501,6 +4470,7 @@ public class DcTracker extends Handler {
             // list explicitly.
             if (!mAllApnSettings.contains(mEmergencyApn)) {
                 mAllApnSettings.add(mEmergencyApn);
+                mApnIndex = null;
                 log("Adding emergency APN : " + mEmergencyApn);
                 return;
             }
@@ -4705,6 +4675,11 @@ public class DcTracker extends Handler {
                 mActivity = newActivity;
                 mPhone.notifyDataActivity();
             }
+
+            if (newActivity == DctConstants.Activity.DATAOUT) {
+                // This may be the start of a data stall
+                expediteDataStallAlarm();
+            }
         }
     }
 
@@ -4874,14 +4849,14 @@ public class DcTracker extends Handler {
                 switch (recoveryAction) {
                     case RECOVERY_ACTION_GET_DATA_CALL_LIST:
                         EventLog.writeEvent(EventLogTags.DATA_STALL_RECOVERY_GET_DATA_CALL_LIST,
-                            mSentSinceLastRecv);
+                            mDataStallDetector.getSentSinceLastRecv());
                         if (DBG) log("doRecovery() get data call list");
                         mDataServiceManager.requestDataCallList(obtainMessage());
                         putRecoveryAction(RECOVERY_ACTION_CLEANUP);
                         break;
                     case RECOVERY_ACTION_CLEANUP:
                         EventLog.writeEvent(EventLogTags.DATA_STALL_RECOVERY_CLEANUP,
-                            mSentSinceLastRecv);
+                            mDataStallDetector.getSentSinceLastRecv());
                         if (DBG) log("doRecovery() cleanup all connections");
                         cleanUpConnection(mApnContexts.get(ApnSetting.getApnTypeString(
                                 ApnSetting.TYPE_DEFAULT)));
@@ -4889,14 +4864,14 @@ public class DcTracker extends Handler {
                         break;
                     case RECOVERY_ACTION_REREGISTER:
                         EventLog.writeEvent(EventLogTags.DATA_STALL_RECOVERY_REREGISTER,
-                            mSentSinceLastRecv);
+                            mDataStallDetector.getSentSinceLastRecv());
                         if (DBG) log("doRecovery() re-register");
                         mPhone.getServiceStateTracker().reRegisterNetwork(null);
                         putRecoveryAction(RECOVERY_ACTION_RADIO_RESTART);
                         break;
                     case RECOVERY_ACTION_RADIO_RESTART:
                         EventLog.writeEvent(EventLogTags.DATA_STALL_RECOVERY_RADIO_RESTART,
-                            mSentSinceLastRecv);
+                            mDataStallDetector.getSentSinceLastRecv());
                         if (DBG) log("restarting radio");
                         restartRadio();
                         reset();
@@ -4905,7 +4880,7 @@ public class DcTracker extends Handler {
                         throw new RuntimeException("doRecovery: Invalid recoveryAction="
                             + recoveryAction);
                 }
-                mSentSinceLastRecv = 0;
+                mDataStallDetector.onRecoveryAction();
                 mTimeLastRecoveryStartMs = SystemClock.elapsedRealtime();
             }
         }
@@ -4957,24 +4932,16 @@ public class DcTracker extends Handler {
                 received = 0;
             }
         }
-        if ( sent > 0 && received > 0 ) {
-            if (VDBG_STALL) log("updateDataStallInfo: IN/OUT");
-            mSentSinceLastRecv = 0;
+        boolean countSent = sent > 0 && received <= 0 && isPhoneStateIdle();
+        if (mDataStallDetector.onSample(SystemClock.elapsedRealtime(), sent, received,
+                countSent)) {
+            if (VDBG_STALL) log("updateDataStallInfo: IN");
             mDsRecoveryHandler.reset();
-        } else if (sent > 0 && received == 0) {
-            if (isPhoneStateIdle()) {
-                mSentSinceLastRecv += sent;
-            } else {
-                mSentSinceLastRecv = 0;
-            }
+        } else if (sent > 0) {
             if (DBG) {
-                log("updateDataStallInfo: OUT sent=" + sent +
-                        " mSentSinceLastRecv=" + mSentSinceLastRecv);
+                log("updateDataStallInfo: OUT sent=" + sent + " mSentSinceLastRecv="
+                        + mDataStallDetector.getSentSinceLastRecv());
             }
-        } else if (sent == 0 && received > 0) {
-            if (VDBG_STALL) log("updateDataStallInfo: IN");
-            mSentSinceLastRecv = 0;
-            mDsRecoveryHandler.reset();
         } else {
             if (VDBG_STALL) log("updateDataStallInfo: NONE");
         }
@@ -5007,30 +4974,34 @@ public class DcTracker extends Handler {
                 NUMBER_SENT_PACKETS_OF_HANG);
 
         boolean suspectedStall = DATA_STALL_NOT_SUSPECTED;
-        if (mSentSinceLastRecv >= hangWatchdogTrigger) {
+        long now = SystemClock.elapsedRealtime();
+        if (mDataStallDetector.isStallSuspected(now, hangWatchdogTrigger)) {
             if (DBG) {
                 log("onDataStallAlarm: tag=" + tag + " do recovery action="
                         + mDsRecoveryHandler.getRecoveryAction());
             }
             suspectedStall = DATA_STALL_SUSPECTED;
+            mDataStallDetector.onStallDetected(now);
             sendMessage(obtainMessage(DctConstants.EVENT_DO_RECOVERY));
         } else {
             if (VDBG_STALL) {
-                log("onDataStallAlarm: tag=" + tag + " Sent " + String.valueOf(mSentSinceLastRecv) +
-                    " pkts since last received, < watchdogTrigger=" + hangWatchdogTrigger);
+                log("onDataStallAlarm: tag=" + tag + " Sent "
+                        + mDataStallDetector.getSentSinceLastRecv()
+                        + " pkts since last received, watchdogTrigger=" + hangWatchdogTrigger);
             }
         }
         startDataStallAlarm(suspectedStall);
     }
 
     protected void startDataStallAlarm(boolean suspectedStall) {
-        int delayInMs;
+        long delayInMs;
 
         if (mDsRecoveryHandler.isNoRxDataStallDetectionEnabled()
                 && getOverallState() == DctConstants.State.CONNECTED) {
             // If screen is on or data stall is currently suspected, set the alarm
             // with an aggressive timeout.
-            if (mIsScreenOn || suspectedStall || mDsRecoveryHandler.isAggressiveRecovery()) {
+            boolean aggressive = suspectedStall || mDsRecoveryHandler.isAggressiveRecovery();
+            if (mIsScreenOn || aggressive) {
                 delayInMs = Settings.Global.getInt(mResolver,
                         Settings.Global.DATA_STALL_ALARM_AGGRESSIVE_DELAY_IN_MS,
                         DATA_STALL_ALARM_AGGRESSIVE_DELAY_IN_MS_DEFAULT);
@@ -5039,20 +5010,11 @@ public class DcTracker extends Handler {
                         Settings.Global.DATA_STALL_ALARM_NON_AGGRESSIVE_DELAY_IN_MS,
                         DATA_STALL_ALARM_NON_AGGRESSIVE_DELAY_IN_MS_DEFAULT);
             }
-
-            mDataStallAlarmTag += 1;
-            if (VDBG_STALL) {
-                log("startDataStallAlarm: tag=" + mDataStallAlarmTag +
-                        " delay=" + (delayInMs / 1000) + "s");
-            }
-            Intent intent = new Intent(INTENT_DATA_STALL_ALARM);
-            intent.putExtra(INTENT_DATA_STALL_ALARM_EXTRA_TAG, mDataStallAlarmTag);
-            intent.putExtra(INTENT_DATA_STALL_ALARM_EXTRA_TRANSPORT_TYPE, mTransportType);
-            SubscriptionManager.putPhoneIdAndSubIdExtra(intent, mPhone.getPhoneId());
-            mDataStallAlarmIntent = PendingIntent.getBroadcast(mPhone.getContext(), 0, intent,
-                    PendingIntent.FLAG_UPDATE_CURRENT);
-            mAlarmManager.set(AlarmManager.ELAPSED_REALTIME,
-                    SystemClock.elapsedRealtime() + delayInMs, mDataStallAlarmIntent);
+            // Check again soon while packets go unanswered. While the screen is on, outgoing
+            // traffic is noticed by the net stat poll, so an idle link can be checked less often.
+            delayInMs = mDataStallDetector.getNextSampleDelay(delayInMs,
+                    mIsScreenOn && !aggressive);
+            scheduleDataStallAlarm(delayInMs);
         } else {
             if (VDBG_STALL) {
                 log("startDataStallAlarm: NOT started, no connection tag=" + mDataStallAlarmTag);
@@ -5060,6 +5022,37 @@ public class DcTracker extends Handler {
         }
     }
 
+    private void scheduleDataStallAlarm(long delayInMs) {
+        mDataStallAlarmTag += 1;
+        if (VDBG_STALL) {
+            log("scheduleDataStallAlarm: tag=" + mDataStallAlarmTag +
+                    " delay=" + (delayInMs / 1000) + "s");
+        }
+        Intent intent = new Intent(INTENT_DATA_STALL_ALARM);
+        intent.putExtra(INTENT_DATA_STALL_ALARM_EXTRA_TAG, mDataStallAlarmTag);
+        intent.putExtra(INTENT_DATA_STALL_ALARM_EXTRA_TRANSPORT_TYPE, mTransportType);
+        SubscriptionManager.putPhoneIdAndSubIdExtra(intent, mPhone.getPhoneId());
+        mDataStallAlarmIntent = PendingIntent.getBroadcast(mPhone.getContext(), 0, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        mDataStallAlarmTime = SystemClock.elapsedRealtime() + delayInMs;
+        mAlarmManager.set(AlarmManager.ELAPSED_REALTIME, mDataStallAlarmTime,
+                mDataStallAlarmIntent);
+    }
+
+    /**
+     * Check for a data stall soon, when packets are seen going out without any coming back.
+     */
+    private void expediteDataStallAlarm() {
+        if (mDataStallAlarmIntent == null) return;
+        if (mDataStallAlarmTime - SystemClock.elapsedRealtime()
+                <= DataStallDetector.SUSPECT_SAMPLE_INTERVAL_MS) {
+            return;
+        }
+        if (VDBG_STALL) log("expediteDataStallAlarm");
+        mAlarmManager.cancel(mDataStallAlarmIntent);
+        scheduleDataStallAlarm(DataStallDetector.SUSPECT_SAMPLE_INTERVAL_MS);
+    }
+
     private void stopDataStallAlarm() {
         if (VDBG_STALL) {
             log("stopDataStallAlarm: current tag=" + mDataStallAlarmTag +
@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.emergency;
+
+import android.content.Context;
+import android.os.Build;
+import android.telephony.Rlog;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.phone.ecc.nano.ProtobufEccData;
+import com.android.phone.ecc.nano.ProtobufEccData.EccInfo;
+import com.google.protobuf.nano.MessageNano;
+
+import libcore.io.IoUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Process-wide, country-indexed view of the emergency number database asset.
+ *
+ * The gzipped asset is decompressed and parsed once, then rewritten as an uncompressed index
+ * file in device protected storage where each country's record can be located directly. The
+ * index is memory-mapped and a country is only decoded the first time it is asked for, after
+ * which it is shared by all phones. A country change therefore costs a lookup instead of a
+ * full decompress and parse of the whole database.
+ *
+ * If the index file cannot be written, the same index is kept in memory instead.
+ *
+ * @hide
+ */
+public class EmergencyNumberDatabase {
+    private static final String TAG = EmergencyNumberDatabase.class.getSimpleName();
+
+    private static final String EMERGENCY_NUMBER_DB_ASSETS_FILE = "eccdata";
+    private static final String INDEX_FILE_NAME = "eccdata.idx";
+
+    // "ECCI"
+    private static final int INDEX_MAGIC = 0x45434349;
+    private static final int INDEX_FORMAT_VERSION = 1;
+
+    private static EmergencyNumberDatabase sInstance;
+
+    private final Context mContext;
+
+    // Index file contents, memory-mapped or on the heap.
+    private ByteBuffer mIndex;
+    // Upper case country ISO to {offset, length} of its CountryInfo record in mIndex.
+    private Map<String, int[]> mCountryOffsets;
+    // Decoded countries, including negative entries for countries not in the database.
+    private final Map<String, ProtobufEccData.CountryInfo> mCountryCache = new HashMap<>();
+
+    /**
+     * @return the process-wide instance.
+     */
+    public static synchronized EmergencyNumberDatabase getInstance(Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            sInstance = new EmergencyNumberDatabase(appContext != null ? appContext : context);
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    public EmergencyNumberDatabase(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Get the database record of a country.
+     *
+     * @param countryIso the country ISO code, in any case.
+     * @return the country's record, or {@code null} if the database has no entry for it.
+     * @throws IOException if the database could not be read.
+     */
+    public synchronized ProtobufEccData.CountryInfo getCountryInfo(String countryIso)
+            throws IOException {
+        String key = countryIso.toUpperCase(Locale.ROOT);
+        if (mCountryCache.containsKey(key)) {
+            return mCountryCache.get(key);
+        }
+
+        ensureIndexLoaded();
+        ProtobufEccData.CountryInfo countryInfo = null;
+        int[] location = mCountryOffsets.get(key);
+        if (location != null) {
+            byte[] record = new byte[location[1]];
+            ByteBuffer slice = mIndex.duplicate();
+            slice.position(location[0]);
+            slice.get(record);
+            countryInfo = ProtobufEccData.CountryInfo.parseFrom(record);
+        }
+        mCountryCache.put(key, countryInfo);
+        return countryInfo;
+    }
+
+    private void ensureIndexLoaded() throws IOException {
+        if (mCountryOffsets != null) return;
+
+        File indexFile = getIndexFile();
+        if (indexFile != null && indexFile.exists()) {
+            try {
+                if (loadIndex(mapFile(indexFile))) {
+                    logd("Loaded emergency database index " + indexFile);
+                    return;
+                }
+            } catch (IOException | RuntimeException ex) {
+                loge("Discarding unreadable emergency database index: " + ex);
+            }
+        }
+
+        byte[] index = buildIndex(readAsset());
+        if (indexFile != null) {
+            try {
+                writeFileAtomically(indexFile, index);
+                if (loadIndex(mapFile(indexFile))) {
+                    logd("Created emergency database index " + indexFile);
+                    return;
+                }
+            } catch (IOException ex) {
+                loge("Failed to write emergency database index: " + ex);
+            }
+        }
+        // Fall back to keeping the index on the heap.
+        if (!loadIndex(ByteBuffer.wrap(index))) {
+            throw new IOException("Emergency database index is corrupt");
+        }
+    }
+
+    private File getIndexFile() {
+        try {
+            Context deContext = mContext.createDeviceProtectedStorageContext();
+            File dir = deContext != null ? deContext.getNoBackupFilesDir() : null;
+            return dir != null ? new File(dir, INDEX_FILE_NAME) : null;
+        } catch (RuntimeException ex) {
+            loge("No storage for emergency database index: " + ex);
+            return null;
+        }
+    }
+
+    private byte[] readAsset() throws IOException {
+        BufferedInputStream inputStream = null;
+        try {
+            inputStream = new BufferedInputStream(
+                    mContext.getAssets().open(EMERGENCY_NUMBER_DB_ASSETS_FILE));
+            return readInputStreamToByteArray(new GZIPInputStream(inputStream));
+        } finally {
+            IoUtils.closeQuietly(inputStream);
+        }
+    }
+
+    /**
+     * Util function to convert inputStream to byte array before parsing proto data.
+     */
+    private static byte[] readInputStreamToByteArray(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        int nRead;
+        int size = 16 * 1024; // Read 16k chunks
+        byte[] data = new byte[size];
+        while ((nRead = inputStream.read(data, 0, data.length)) != -1) {
+            buffer.write(data, 0, nRead);
+        }
+        buffer.flush();
+        return buffer.toByteArray();
+    }
+
+    private static ByteBuffer mapFile(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                FileChannel channel = raf.getChannel()) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private static void writeFileAtomically(File file, byte[] data) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(data);
+            out.getFD().sync();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Failed to rename " + tmp + " to " + file);
+        }
+    }
+
+    /**
+     * Index layout, big endian:
+     *   int magic, int format version, short + bytes build fingerprint, int country count,
+     *   then per country: byte + bytes upper case ISO, int record offset, int record length,
+     *   followed by the serialized CountryInfo records.
+     */
+    @VisibleForTesting
+    public static byte[] buildIndex(byte[] allInfoBytes) throws IOException {
+        ProtobufEccData.AllInfo allInfo = ProtobufEccData.AllInfo.parseFrom(allInfoBytes);
+
+        // Some countries may appear more than once; merge their numbers as the linear scan did.
+        Map<String, ProtobufEccData.CountryInfo> countries = new LinkedHashMap<>();
+        for (ProtobufEccData.CountryInfo countryInfo : allInfo.countries) {
+            String iso = countryInfo.isoCode.toUpperCase(Locale.ROOT);
+            ProtobufEccData.CountryInfo existing = countries.get(iso);
+            if (existing == null) {
+                countries.put(iso, countryInfo);
+            } else {
+                List<EccInfo> eccs = new ArrayList<>(Arrays.asList(existing.eccs));
+                eccs.addAll(Arrays.asList(countryInfo.eccs));
+                existing.eccs = eccs.toArray(new EccInfo[eccs.size()]);
+            }
+        }
+
+        byte[] fingerprint = getSourceKey().getBytes(StandardCharsets.UTF_8);
+        List<byte[]> isos = new ArrayList<>(countries.size());
+        List<byte[]> records = new ArrayList<>(countries.size());
+        int headerSize = 4 + 4 + 2 + fingerprint.length + 4;
+        for (Map.Entry<String, ProtobufEccData.CountryInfo> entry : countries.entrySet()) {
+            byte[] iso = entry.getKey().getBytes(StandardCharsets.US_ASCII);
+            isos.add(iso);
+            records.add(MessageNano.toByteArray(entry.getValue()));
+            headerSize += 1 + iso.length + 4 + 4;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(INDEX_MAGIC);
+        out.writeInt(INDEX_FORMAT_VERSION);
+        out.writeShort(fingerprint.length);
+        out.write(fingerprint);
+        out.writeInt(records.size());
+        int offset = headerSize;
+        for (int i = 0; i < records.size(); i++) {
+            out.writeByte(isos.get(i).length);
+            out.write(isos.get(i));
+            out.writeInt(offset);
+            out.writeInt(records.get(i).length);
+            offset += records.get(i).length;
+        }
+        for (byte[] record : records) {
+            out.write(record);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Parse the header of an index.
+     *
+     * @return {@code false} if the index was built by another format version or build.
+     */
+    @VisibleForTesting
+    public boolean loadIndex(ByteBuffer index) {
+        if (index.getInt(0) != INDEX_MAGIC) return false;
+        ByteBuffer header = index.duplicate();
+        header.position(4);
+        if (header.getInt() != INDEX_FORMAT_VERSION) return false;
+
+        byte[] fingerprint = new byte[header.getShort()];
+        header.get(fingerprint);
+        if (!getSourceKey().equals(new String(fingerprint, StandardCharsets.UTF_8))) {
+            return false;
+        }
+
+        int count = header.getInt();
+        Map<String, int[]> offsets = new HashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            byte[] iso = new byte[header.get()];
+            header.get(iso);
+            int offset = header.getInt();
+            int length = header.getInt();
+            if (offset < 0 || length < 0 || offset + length > index.limit()) return false;
+            offsets.put(new String(iso, StandardCharsets.US_ASCII), new int[] {offset, length});
+        }
+
+        mIndex = index;
+        mCountryOffsets = offsets;
+        return true;
+    }
+
+    // The asset can only change with a new build, so the build fingerprint versions the index.
+    private static String getSourceKey() {
+        return Build.FINGERPRINT;
+    }
+
+    private static void logd(String str) {
+        Rlog.d(TAG, str);
+    }
+
+    private static void loge(String str) {
+        Rlog.e(TAG, str);
+    }
+}
@@ -49,18 +49,12 @@ import com.android.internal.util.IndentingPrintWriter;
 import com.android.phone.ecc.nano.ProtobufEccData;
 import com.android.phone.ecc.nano.ProtobufEccData.EccInfo;
 
-import libcore.io.IoUtils;
-
-import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.FileDescriptor;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.zip.GZIPInputStream;
 
 /**
  * Emergency Number Tracker that handles update of emergency number list from RIL and emergency
@@ -88,13 +82,15 @@ public class EmergencyNumberTracker extends Handler {
     public boolean mIsCountrySetByAnotherSub = false;
     private String[] mEmergencyNumberPrefix = new String[0];
 
-    private static final String EMERGENCY_NUMBER_DB_ASSETS_FILE = "eccdata";
 
     private List<EmergencyNumber> mEmergencyNumberListFromDatabase = new ArrayList<>();
     private List<EmergencyNumber> mEmergencyNumberListFromRadio = new ArrayList<>();
     private List<EmergencyNumber> mEmergencyNumberListWithPrefix = new ArrayList<>();
     private List<EmergencyNumber> mEmergencyNumberListFromTestMode = new ArrayList<>();
     private List<EmergencyNumber> mEmergencyNumberList = new ArrayList<>();
+    // Index over mEmergencyNumberList, rebuilt whenever the list is.
+    private volatile EmergencyNumberTrie mEmergencyNumberTrie =
+            new EmergencyNumberTrie(mEmergencyNumberList);
 
     private final LocalLog mEmergencyNumberListDatabaseLocalLog = new LocalLog(20);
     private final LocalLog mEmergencyNumberListRadioLocalLog = new LocalLog(20);
@@ -348,45 +344,22 @@ public class EmergencyNumberTracker extends Handler {
     }
 
     private void cacheEmergencyDatabaseByCountry(String countryIso) {
-        BufferedInputStream inputStream = null;
-        ProtobufEccData.AllInfo allEccMessages = null;
         List<EmergencyNumber> updatedEmergencyNumberList = new ArrayList<>();
         try {
-            inputStream = new BufferedInputStream(
-                    mPhone.getContext().getAssets().open(EMERGENCY_NUMBER_DB_ASSETS_FILE));
-            allEccMessages = ProtobufEccData.AllInfo.parseFrom(readInputStreamToByteArray(
-                    new GZIPInputStream(inputStream)));
+            ProtobufEccData.CountryInfo countryEccInfo = EmergencyNumberDatabase.getInstance(
+                    mPhone.getContext()).getCountryInfo(countryIso);
             logd(countryIso + " emergency database is loaded. ");
-            for (ProtobufEccData.CountryInfo countryEccInfo : allEccMessages.countries) {
-                if (countryEccInfo.isoCode.equals(countryIso.toUpperCase())) {
-                    for (ProtobufEccData.EccInfo eccInfo : countryEccInfo.eccs) {
-                        updatedEmergencyNumberList.add(convertEmergencyNumberFromEccInfo(
-                                eccInfo, countryIso));
-                    }
+            if (countryEccInfo != null) {
+                for (ProtobufEccData.EccInfo eccInfo : countryEccInfo.eccs) {
+                    updatedEmergencyNumberList.add(convertEmergencyNumberFromEccInfo(
+                            eccInfo, countryIso));
                 }
             }
             EmergencyNumber.mergeSameNumbersInEmergencyNumberList(updatedEmergencyNumberList);
             mEmergencyNumberListFromDatabase = updatedEmergencyNumberList;
         } catch (IOException ex) {
             loge("Cache emergency database failure: " + ex);
-        } finally {
-            IoUtils.closeQuietly(inputStream);
-        }
-    }
-
-    /**
-     * Util function to convert inputStream to byte array before parsing proto data.
-     */
-    private static byte[] readInputStreamToByteArray(InputStream inputStream) throws IOException {
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        int nRead;
-        int size = 16 * 1024; // Read 16k chunks
-        byte[] data = new byte[size];
-        while ((nRead = inputStream.read(data, 0, data.length)) != -1) {
-            buffer.write(data, 0, nRead);
         }
-        buffer.flush();
-        return buffer.toByteArray();
     }
 
     private void updateRadioEmergencyNumberListAndNotify(
@@ -484,6 +457,7 @@ public class EmergencyNumberTracker extends Handler {
         mergedEmergencyNumberList.addAll(mEmergencyNumberListWithPrefix);
         mergedEmergencyNumberList.addAll(mEmergencyNumberListFromTestMode);
         EmergencyNumber.mergeSameNumbersInEmergencyNumberList(mergedEmergencyNumberList);
+        mEmergencyNumberTrie = new EmergencyNumberTrie(mergedEmergencyNumberList);
         mEmergencyNumberList = mergedEmergencyNumberList;
     }
 
@@ -512,27 +486,15 @@ public class EmergencyNumberTracker extends Handler {
         }
         number = PhoneNumberUtils.stripSeparators(number);
         if (!mEmergencyNumberListFromRadio.isEmpty()) {
-            for (EmergencyNumber num : mEmergencyNumberList) {
-                // According to com.android.i18n.phonenumbers.ShortNumberInfo, in
-                // these countries, if extra digits are added to an emergency number,
-                // it no longer connects to the emergency service.
-                if (mCountryIso.equals("br") || mCountryIso.equals("cl")
-                        || mCountryIso.equals("ni")) {
-                    exactMatch = true;
-                } else {
-                    exactMatch = false || exactMatch;
-                }
-                if (exactMatch) {
-                    if (num.getNumber().equals(number)) {
-                        return true;
-                    }
-                } else {
-                    if (number.startsWith(num.getNumber())) {
-                        return true;
-                    }
-                }
+            // According to com.android.i18n.phonenumbers.ShortNumberInfo, in
+            // these countries, if extra digits are added to an emergency number,
+            // it no longer connects to the emergency service.
+            if ("br".equals(mCountryIso) || "cl".equals(mCountryIso)
+                    || "ni".equals(mCountryIso)) {
+                exactMatch = true;
             }
-            return false;
+            EmergencyNumberTrie trie = mEmergencyNumberTrie;
+            return exactMatch ? trie.hasExactMatch(number) : trie.hasPrefixMatch(number);
         } else {
             return isEmergencyNumberFromEccList(number, exactMatch)
                     || isEmergencyNumberForTest(number);
@@ -547,6 +509,9 @@ public class EmergencyNumberTracker extends Handler {
      */
     public EmergencyNumber getEmergencyNumber(String emergencyNumber) {
         emergencyNumber = PhoneNumberUtils.stripSeparators(emergencyNumber);
+        if (!mEmergencyNumberListFromRadio.isEmpty()) {
+            return mEmergencyNumberTrie.getExactMatch(emergencyNumber);
+        }
         for (EmergencyNumber num : getEmergencyNumberList()) {
             if (num.getNumber().equals(emergencyNumber)) {
                 return num;
@@ -566,7 +531,7 @@ public class EmergencyNumberTracker extends Handler {
      */
     public @EmergencyServiceCategories int getEmergencyServiceCategories(String emergencyNumber) {
         emergencyNumber = PhoneNumberUtils.stripSeparators(emergencyNumber);
-        for (EmergencyNumber num : getEmergencyNumberList()) {
+        for (EmergencyNumber num : getEmergencyNumberListMatching(emergencyNumber)) {
             if (num.getNumber().equals(emergencyNumber)) {
                 if (num.isFromSources(EmergencyNumber.EMERGENCY_NUMBER_SOURCE_NETWORK_SIGNALING)
                         || num.isFromSources(EmergencyNumber.EMERGENCY_NUMBER_SOURCE_SIM)) {
@@ -586,7 +551,7 @@ public class EmergencyNumberTracker extends Handler {
      */
     public @EmergencyCallRouting int getEmergencyCallRouting(String emergencyNumber) {
         emergencyNumber = PhoneNumberUtils.stripSeparators(emergencyNumber);
-        for (EmergencyNumber num : getEmergencyNumberList()) {
+        for (EmergencyNumber num : getEmergencyNumberListMatching(emergencyNumber)) {
             if (num.getNumber().equals(emergencyNumber)) {
                 if (num.isFromSources(EmergencyNumber.EMERGENCY_NUMBER_SOURCE_DATABASE)) {
                     return num.getEmergencyCallRouting();
@@ -596,6 +561,17 @@ public class EmergencyNumberTracker extends Handler {
         return EmergencyNumber.EMERGENCY_CALL_ROUTING_UNKNOWN;
     }
 
+    /**
+     * Get the candidates for an exact match of the given number: the matching entries from the
+     * index when the radio reports emergency numbers, otherwise the full legacy list.
+     */
+    private List<EmergencyNumber> getEmergencyNumberListMatching(String emergencyNumber) {
+        if (!mEmergencyNumberListFromRadio.isEmpty()) {
+            return mEmergencyNumberTrie.getExactMatches(emergencyNumber);
+        }
+        return getEmergencyNumberList();
+    }
+
     public String getEmergencyCountryIso() {
         return mCountryIso;
     }
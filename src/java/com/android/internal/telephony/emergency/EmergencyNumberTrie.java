@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.emergency;
+
+import android.telephony.emergency.EmergencyNumber;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable digit trie over a list of {@link EmergencyNumber}s, answering exact and prefix
+ * matches in time proportional to the length of the dialed number.
+ *
+ * Every node keeps the emergency numbers which end there in the order of the source list, so
+ * lookups return the same entry a linear scan of that list would.
+ *
+ * @hide
+ */
+public class EmergencyNumberTrie {
+    // Children are indexed by '0'-'9', '*', '#' and '+'.
+    private static final int CHILD_COUNT = 13;
+
+    private static class Node {
+        Node[] mChildren;
+        List<EmergencyNumber> mNumbers;
+    }
+
+    private final Node mRoot = new Node();
+
+    // Emergency numbers containing characters the trie does not index. They are never expected
+    // in practice, but are still matched with a plain scan so that no entry is dropped.
+    private final List<EmergencyNumber> mUnindexed = new ArrayList<>();
+
+    /**
+     * Build a trie from the given emergency number list.
+     */
+    public EmergencyNumberTrie(List<EmergencyNumber> emergencyNumberList) {
+        for (EmergencyNumber num : emergencyNumberList) {
+            add(num);
+        }
+    }
+
+    private static int childIndex(char c) {
+        if (c >= '0' && c <= '9') return c - '0';
+        switch (c) {
+            case '*':
+                return 10;
+            case '#':
+                return 11;
+            case '+':
+                return 12;
+            default:
+                return -1;
+        }
+    }
+
+    private void add(EmergencyNumber num) {
+        String number = num.getNumber();
+        Node node = mRoot;
+        for (int i = 0; i < number.length(); i++) {
+            int index = childIndex(number.charAt(i));
+            if (index < 0) {
+                mUnindexed.add(num);
+                return;
+            }
+            if (node.mChildren == null) {
+                node.mChildren = new Node[CHILD_COUNT];
+            }
+            if (node.mChildren[index] == null) {
+                node.mChildren[index] = new Node();
+            }
+            node = node.mChildren[index];
+        }
+        if (node.mNumbers == null) {
+            node.mNumbers = new ArrayList<>(1);
+        }
+        node.mNumbers.add(num);
+    }
+
+    private Node findNode(String number) {
+        Node node = mRoot;
+        for (int i = 0; i < number.length(); i++) {
+            int index = childIndex(number.charAt(i));
+            if (index < 0 || node.mChildren == null) return null;
+            node = node.mChildren[index];
+            if (node == null) return null;
+        }
+        return node;
+    }
+
+    /**
+     * @return all emergency numbers equal to {@code number}, in source list order.
+     */
+    public List<EmergencyNumber> getExactMatches(String number) {
+        Node node = findNode(number);
+        List<EmergencyNumber> matches = node == null ? null : node.mNumbers;
+        if (!mUnindexed.isEmpty()) {
+            List<EmergencyNumber> merged = null;
+            for (EmergencyNumber num : mUnindexed) {
+                if (num.getNumber().equals(number)) {
+                    if (merged == null) {
+                        merged = matches == null ? new ArrayList<>() : new ArrayList<>(matches);
+                    }
+                    merged.add(num);
+                }
+            }
+            if (merged != null) return merged;
+        }
+        return matches == null ? Collections.emptyList() : matches;
+    }
+
+    /**
+     * @return the first emergency number equal to {@code number}, or {@code null}.
+     */
+    public EmergencyNumber getExactMatch(String number) {
+        List<EmergencyNumber> matches = getExactMatches(number);
+        return matches.isEmpty() ? null : matches.get(0);
+    }
+
+    /**
+     * @return whether any emergency number is equal to {@code number}.
+     */
+    public boolean hasExactMatch(String number) {
+        return getExactMatch(number) != null;
+    }
+
+    /**
+     * @return whether {@code number} starts with any emergency number.
+     */
+    public boolean hasPrefixMatch(String number) {
+        Node node = mRoot;
+        if (node.mNumbers != null) return true;
+        for (int i = 0; i < number.length(); i++) {
+            int index = childIndex(number.charAt(i));
+            if (index < 0 || node.mChildren == null) break;
+            node = node.mChildren[index];
+            if (node == null) break;
+            if (node.mNumbers != null) return true;
+        }
+        for (EmergencyNumber num : mUnindexed) {
+            if (number.startsWith(num.getNumber())) return true;
+        }
+        return false;
+    }
+}
@@ -70,6 +70,7 @@ import com.android.internal.telephony.uicc.IccIoResult;
 import com.android.internal.telephony.uicc.IccSlotStatus;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -108,6 +109,27 @@ public class SimulatedCommands extends BaseCommands
     public final static int DEFAULT_PIN1_ATTEMPT = 5;
     public final static int DEFAULT_PIN2_ATTEMPT = 5;
 
+    // SIM I/O commands and the GET RESPONSE header, see TS 51.011
+    private static final int COMMAND_READ_BINARY = 0xb0;
+    private static final int COMMAND_READ_RECORD = 0xb2;
+    private static final int COMMAND_GET_RESPONSE = 0xc0;
+    private static final int GET_RESPONSE_EF_SIZE_BYTES = 15;
+    private static final int EF_TYPE_EF = 4;
+    private static final int EF_TRANSPARENT = 0;
+    private static final int EF_LINEAR_FIXED = 1;
+
+    /** An EF of the simulated SIM. */
+    private static final class SimulatedIccFile {
+        final byte[] mContent;
+        // 0 for a transparent EF
+        final int mRecordSize;
+
+        SimulatedIccFile(byte[] content, int recordSize) {
+            mContent = content;
+            mRecordSize = recordSize;
+        }
+    }
+
     private String mImei;
     private String mImeiSv;
 
@@ -147,6 +169,8 @@ public class SimulatedCommands extends BaseCommands
     private IccSlotStatus mIccSlotStatus;
     private IccIoResult mIccIoResultForApduLogicalChannel;
     private int mChannelId = IccOpenLogicalChannelResponse.INVALID_CHANNEL;
+    private final HashMap<Integer, SimulatedIccFile> mIccFiles = new HashMap<>();
+    private final AtomicInteger mIccIoCount = new AtomicInteger();
 
     int mPausedResponseCount;
     ArrayList<Message> mPausedResponses = new ArrayList<Message>();
@@ -1296,7 +1320,53 @@ public class SimulatedCommands extends BaseCommands
     @Override
     public void iccIOForApp (int command, int fileid, String path, int p1, int p2,
                        int p3, String data, String pin2, String aid, Message result) {
-        unimplemented(result);
+        SimulatedIccFile file;
+        synchronized (mIccFiles) {
+            if (mIccFiles.isEmpty()) {
+                unimplemented(result);
+                return;
+            }
+            file = mIccFiles.get(fileid);
+        }
+        mIccIoCount.incrementAndGet();
+        if (file == null) {
+            // File not found
+            resultSuccess(result, new IccIoResult(0x94, 0x04, (byte[]) null));
+            return;
+        }
+
+        byte[] payload;
+        switch (command) {
+            case COMMAND_GET_RESPONSE:
+                payload = new byte[GET_RESPONSE_EF_SIZE_BYTES];
+                payload[2] = (byte) (file.mContent.length >> 8);
+                payload[3] = (byte) file.mContent.length;
+                payload[6] = EF_TYPE_EF;
+                payload[13] = (byte) (file.mRecordSize > 0 ? EF_LINEAR_FIXED : EF_TRANSPARENT);
+                payload[14] = (byte) file.mRecordSize;
+                break;
+            case COMMAND_READ_BINARY:
+                int offset = (p1 << 8) | p2;
+                payload = new byte[Math.max(0, Math.min(p3, file.mContent.length - offset))];
+                System.arraycopy(file.mContent, offset, payload, 0, payload.length);
+                break;
+            case COMMAND_READ_RECORD:
+                // Absolute mode only, p1 is the record number
+                if (file.mRecordSize == 0 || p1 < 1
+                        || p1 * file.mRecordSize > file.mContent.length) {
+                    // Out of range
+                    resultSuccess(result, new IccIoResult(0x94, 0x02, (byte[]) null));
+                    return;
+                }
+                payload = new byte[file.mRecordSize];
+                System.arraycopy(file.mContent, (p1 - 1) * file.mRecordSize, payload, 0,
+                        file.mRecordSize);
+                break;
+            default:
+                unimplemented(result);
+                return;
+        }
+        resultSuccess(result, new IccIoResult(0x90, 0x00, payload));
     }
 
     /**
@@ -2194,6 +2264,34 @@ public class SimulatedCommands extends BaseCommands
         mIccIoResultForApduLogicalChannel = iccIoResult;
     }
 
+    /**
+     * Add a transparent EF to the simulated SIM. SIM I/O is unimplemented until a file is added.
+     */
+    public void setIccFile(int fileid, byte[] content) {
+        synchronized (mIccFiles) {
+            mIccFiles.put(fileid, new SimulatedIccFile(content, 0));
+        }
+    }
+
+    /**
+     * Add a linear fixed EF to the simulated SIM. SIM I/O is unimplemented until a file is added.
+     */
+    public void setIccLinearFixedFile(int fileid, int recordSize, byte[][] records) {
+        byte[] content = new byte[recordSize * records.length];
+        for (int i = 0; i < records.length; i++) {
+            System.arraycopy(records[i], 0, content, i * recordSize,
+                    Math.min(recordSize, records[i].length));
+        }
+        synchronized (mIccFiles) {
+            mIccFiles.put(fileid, new SimulatedIccFile(content, recordSize));
+        }
+    }
+
+    /** @return the number of SIM I/O commands run on the simulated SIM files. */
+    public int getIccIoCount() {
+        return mIccIoCount.get();
+    }
+
     public void setOpenChannelId(int channelId) {
         mChannelId = channelId;
     }
@@ -19,9 +19,14 @@ package com.android.internal.telephony.uicc;
 import android.annotation.UnsupportedAppUsage;
 import android.os.*;
 
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.CommandsInterface;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * {@hide}
@@ -75,6 +80,29 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
     static protected final int RESPONSE_DATA_STRUCTURE = 13;
     static protected final int RESPONSE_DATA_RECORD_LENGTH = 14;
 
+    // Status words of a successful command
+    private static final int SW1_OK = 0x90;
+    private static final int SW2_OK = 0x00;
+
+    // Maximum number of records of a linear fixed EF being read at the same time when loading
+    // all of its records.
+    private static final int MAX_PENDING_RECORD_READS = 4;
+
+    // Number of cards of which the EF headers are kept.
+    private static final int MAX_CACHED_CARDS = 4;
+
+    // The responses to GET RESPONSE of the EFs of the last cards, by ICCID, then by application,
+    // EF path and id. The size and structure of an EF only change with a SIM REFRESH, so they
+    // are only read once per card, even when its applications are created again.
+    private static final LinkedHashMap<String, HashMap<String, byte[]>> sEfHeadersByIccId =
+            new LinkedHashMap<String, HashMap<String, byte[]>>(MAX_CACHED_CARDS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, HashMap<String, byte[]>> eldest) {
+                    return size() > MAX_CACHED_CARDS;
+                }
+            };
+
 
     //***** Events
 
@@ -103,6 +131,16 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
     @UnsupportedAppUsage
     protected final String mAid;
 
+    private final Object mEfHeadersLock = new Object();
+    // The responses to GET RESPONSE of the EFs, by application, EF path and id. Shared with the
+    // other applications of the card once its ICCID is known.
+    @GuardedBy("mEfHeadersLock")
+    private HashMap<String, byte[]> mEfHeaders = new HashMap<>();
+    @GuardedBy("mEfHeadersLock")
+    private int mEfHeaderCacheHits;
+    @GuardedBy("mEfHeadersLock")
+    private int mEfHeaderCacheMisses;
+
     static class LoadLinearFixedContext {
 
         int mEfid;
@@ -111,6 +149,14 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
         boolean mLoadAll;
         String mPath;
 
+        // When loading all records: the number of records to read, the next record to read,
+        // and the number of records read or being read.
+        int mRecordsToRead;
+        int mNextRecordNum;
+        int mRecordsLoaded;
+        int mPendingReads;
+        boolean mFailed;
+
         Message mOnLoaded;
 
         @UnsupportedAppUsage
@@ -182,8 +228,7 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
                 = obtainMessage(EVENT_GET_RECORD_SIZE_DONE,
                         new LoadLinearFixedContext(fileid, recordNum, efPath, onLoaded));
 
-        mCi.iccIOForApp(COMMAND_GET_RESPONSE, fileid, efPath,
-                        0, 0, GET_RESPONSE_EF_SIZE_BYTES, null, null, mAid, response);
+        getResponse(fileid, efPath, response);
     }
 
     /**
@@ -237,8 +282,7 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
         Message response
                 = obtainMessage(EVENT_GET_EF_LINEAR_RECORD_SIZE_DONE,
                         new LoadLinearFixedContext(fileid, efPath, onLoaded));
-        mCi.iccIOForApp(COMMAND_GET_RESPONSE, fileid, efPath,
-                    0, 0, GET_RESPONSE_EF_SIZE_BYTES, null, null, mAid, response);
+        getResponse(fileid, efPath, response);
     }
 
     /**
@@ -271,8 +315,7 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
         Message response = obtainMessage(EVENT_GET_RECORD_SIZE_DONE,
                         new LoadLinearFixedContext(fileid, efPath, onLoaded));
 
-        mCi.iccIOForApp(COMMAND_GET_RESPONSE, fileid, efPath,
-                        0, 0, GET_RESPONSE_EF_SIZE_BYTES, null, null, mAid, response);
+        getResponse(fileid, efPath, response);
     }
 
     /**
@@ -304,8 +347,7 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
         Message response = obtainMessage(EVENT_GET_BINARY_SIZE_DONE,
                         fileid, 0, onLoaded);
 
-        mCi.iccIOForApp(COMMAND_GET_RESPONSE, fileid, getEFPath(fileid),
-                        0, 0, GET_RESPONSE_EF_SIZE_BYTES, null, null, mAid, response);
+        getResponse(fileid, getEFPath(fileid), response);
     }
 
     /**
@@ -403,12 +445,160 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
                         IccUtils.bytesToHexString(data), null, mAid, onComplete);
     }
 
+    /**
+     * Share the cached EF headers with the other applications of the card, and keep them for
+     * the next time the card is used.
+     *
+     * @param iccId the ICCID of the card
+     */
+    public void setIccId(String iccId) {
+        if (iccId == null || iccId.isEmpty()) {
+            return;
+        }
+        synchronized (mEfHeadersLock) {
+            HashMap<String, byte[]> efHeaders;
+            synchronized (sEfHeadersByIccId) {
+                efHeaders = sEfHeadersByIccId.get(iccId);
+                if (efHeaders == null) {
+                    efHeaders = new HashMap<>();
+                    sEfHeadersByIccId.put(iccId, efHeaders);
+                }
+            }
+            if (efHeaders == mEfHeaders) {
+                return;
+            }
+            synchronized (efHeaders) {
+                efHeaders.putAll(mEfHeaders);
+            }
+            mEfHeaders = efHeaders;
+        }
+    }
+
+    /**
+     * Forget the cached EF headers, e.g. when the files of the card may have been changed.
+     */
+    public void clearEfHeaders() {
+        synchronized (mEfHeadersLock) {
+            synchronized (mEfHeaders) {
+                mEfHeaders.clear();
+            }
+        }
+    }
+
+    /**
+     * Forget the cached EF headers of a card, e.g. on a SIM REFRESH initializing or resetting its
+     * applications.
+     *
+     * @param iccId the ICCID of the card
+     */
+    public static void clearEfHeaders(String iccId) {
+        if (iccId == null || iccId.isEmpty()) {
+            return;
+        }
+        HashMap<String, byte[]> efHeaders;
+        synchronized (sEfHeadersByIccId) {
+            efHeaders = sEfHeadersByIccId.get(iccId);
+        }
+        if (efHeaders != null) {
+            synchronized (efHeaders) {
+                efHeaders.clear();
+            }
+        }
+    }
+
+    /**
+     * Forget the cached header of an EF of this application, e.g. when a SIM REFRESH reports
+     * that it was updated.
+     */
+    public void removeEfHeader(int fileid) {
+        String prefix = mAid + "/";
+        String suffix = "/" + Integer.toHexString(fileid);
+        synchronized (mEfHeadersLock) {
+            synchronized (mEfHeaders) {
+                mEfHeaders.keySet().removeIf(key -> key.startsWith(prefix)
+                        && key.endsWith(suffix));
+            }
+        }
+    }
+
+    @VisibleForTesting
+    public int getEfHeaderCacheHits() {
+        synchronized (mEfHeadersLock) {
+            return mEfHeaderCacheHits;
+        }
+    }
+
+    @VisibleForTesting
+    public int getEfHeaderCacheMisses() {
+        synchronized (mEfHeadersLock) {
+            return mEfHeaderCacheMisses;
+        }
+    }
 
     //***** Abstract Methods
 
 
     //***** Private Methods
 
+    private String getEfHeaderKey(int fileid, String path) {
+        // The applications of a card may have EFs with the same path and id
+        return mAid + "/" + path + "/" + Integer.toHexString(fileid);
+    }
+
+    /**
+     * Get the header of an EF, from the cache if it was already read, or with GET RESPONSE.
+     *
+     * @param response ((AsyncResult)(response.obj)).result is the IccIoResult
+     */
+    private void getResponse(int fileid, String path, Message response) {
+        byte[] header;
+        synchronized (mEfHeadersLock) {
+            synchronized (mEfHeaders) {
+                header = mEfHeaders.get(getEfHeaderKey(fileid, path));
+            }
+            if (header != null) {
+                mEfHeaderCacheHits++;
+            } else {
+                mEfHeaderCacheMisses++;
+            }
+        }
+        if (header != null) {
+            sendResult(response, new IccIoResult(SW1_OK, SW2_OK, header.clone()), null);
+            return;
+        }
+        mCi.iccIOForApp(COMMAND_GET_RESPONSE, fileid, path,
+                        0, 0, GET_RESPONSE_EF_SIZE_BYTES, null, null, mAid, response);
+    }
+
+    private void cacheEfHeader(int fileid, String path, byte[] header) {
+        synchronized (mEfHeadersLock) {
+            synchronized (mEfHeaders) {
+                mEfHeaders.put(getEfHeaderKey(fileid, path), header.clone());
+            }
+        }
+    }
+
+    /**
+     * Read the next records of a linear fixed EF of which all records are loaded, keeping up to
+     * {@link #MAX_PENDING_RECORD_READS} reads in flight.
+     */
+    private void readNextRecords(LoadLinearFixedContext lc) {
+        String path = lc.mPath;
+        if (path == null) {
+            path = getEFPath(lc.mEfid);
+        }
+        while (lc.mPendingReads < MAX_PENDING_RECORD_READS
+                && lc.mNextRecordNum <= lc.mRecordsToRead) {
+            int recordNum = lc.mNextRecordNum++;
+            lc.mPendingReads++;
+            mCi.iccIOForApp(COMMAND_READ_RECORD, lc.mEfid, path,
+                    recordNum,
+                    READ_RECORD_MODE_ABSOLUTE,
+                    lc.mRecordSize, null, null, mAid,
+                    obtainMessage(EVENT_READ_RECORD_DONE, recordNum, 0, lc));
+        }
+    }
+
     private void sendResult(Message response, Object result, Throwable ex) {
         if (response == null) {
             return;
@@ -470,6 +660,7 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
                     EF_TYPE_LINEAR_FIXED != data[RESPONSE_DATA_STRUCTURE]) {
                     throw new IccFileTypeMismatch();
                 }
+                cacheEfHeader(lc.mEfid, lc.mPath, data);
 
                 recordSize = new int[3];
                 recordSize[0] = data[RESPONSE_DATA_RECORD_LENGTH] & 0xFF;
@@ -510,8 +701,21 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
 
                 lc.mCountRecords = size / lc.mRecordSize;
 
+                 if (msg.what == EVENT_GET_RECORD_SIZE_DONE) {
+                     cacheEfHeader(lc.mEfid, path, data);
+                 }
+
                  if (lc.mLoadAll) {
-                     lc.results = new ArrayList<byte[]>(lc.mCountRecords);
+                     // Like reading the records one after the other from the first one, but
+                     // with several reads in flight.
+                     lc.mRecordsToRead = Math.max(lc.mCountRecords, 1);
+                     lc.results = new ArrayList<byte[]>(lc.mRecordsToRead);
+                     for (int i = 0; i < lc.mRecordsToRead; i++) {
+                         lc.results.add(null);
+                     }
+                     lc.mNextRecordNum = lc.mRecordNum;
+                     readNextRecords(lc);
+                     break;
                  }
 
                  if (path == null) {
@@ -548,6 +752,7 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
                 if (EF_TYPE_TRANSPARENT != data[RESPONSE_DATA_STRUCTURE]) {
                     throw new IccFileTypeMismatch();
                 }
+                cacheEfHeader(fileid, getEFPath(fileid), data);
 
                 size = ((data[RESPONSE_DATA_FILE_SIZE_1] & 0xff) << 8)
                        + (data[RESPONSE_DATA_FILE_SIZE_2] & 0xff);
@@ -565,31 +770,31 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
                 lc = (LoadLinearFixedContext) ar.userObj;
                 result = (IccIoResult) ar.result;
                 response = lc.mOnLoaded;
-                path = lc.mPath;
+
+                if (lc.mLoadAll) {
+                    lc.mPendingReads--;
+                    if (lc.mFailed) {
+                        // The error was already sent
+                        break;
+                    }
+                }
 
                 if (processException(response, (AsyncResult) msg.obj)) {
+                    lc.mFailed = true;
                     break;
                 }
 
                 if (!lc.mLoadAll) {
                     sendResult(response, result.payload, null);
                 } else {
-                    lc.results.add(result.payload);
-
-                    lc.mRecordNum++;
+                    // msg.arg1 is the number of the record read
+                    lc.results.set(msg.arg1 - 1, result.payload);
+                    lc.mRecordsLoaded++;
 
-                    if (lc.mRecordNum > lc.mCountRecords) {
+                    if (lc.mRecordsLoaded == lc.mRecordsToRead) {
                         sendResult(response, lc.results, null);
                     } else {
-                        if (path == null) {
-                            path = getEFPath(lc.mEfid);
-                        }
-
-                        mCi.iccIOForApp(COMMAND_READ_RECORD, lc.mEfid, path,
-                                    lc.mRecordNum,
-                                    READ_RECORD_MODE_ABSOLUTE,
-                                    lc.mRecordSize, null, null, mAid,
-                                    obtainMessage(EVENT_READ_RECORD_DONE, lc));
+                        readNextRecords(lc);
                     }
                 }
 
@@ -609,6 +814,15 @@ public abstract class IccFileHandler extends Handler implements IccConstants {
             break;
 
         }} catch (Exception exc) {
+            if (msg.obj instanceof AsyncResult
+                    && ((AsyncResult) msg.obj).userObj instanceof LoadLinearFixedContext) {
+                LoadLinearFixedContext failed =
+                        (LoadLinearFixedContext) ((AsyncResult) msg.obj).userObj;
+                if (failed.mFailed) {
+                    return;
+                }
+                failed.mFailed = true;
+            }
             if (response != null) {
                 sendResult(response, null, exc);
             } else {
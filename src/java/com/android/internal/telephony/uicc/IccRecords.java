@@ -977,6 +977,9 @@ public abstract class IccRecords extends Handler implements IccConstants {
         switch (refreshResponse.refreshResult) {
             case IccRefreshResponse.REFRESH_RESULT_FILE_UPDATE:
                 if (DBG) log("handleRefresh with SIM_FILE_UPDATED");
+                if (mFh != null) {
+                    mFh.removeEfHeader(refreshResponse.efId);
+                }
                 handleFileUpdate(refreshResponse.efId);
                 break;
             default:
@@ -1362,6 +1365,22 @@ public abstract class IccRecords extends Handler implements IccConstants {
             this.plmnNetworkNameIndex = plmnNetworkNameIndex;
         }
 
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof OperatorPlmnInfo)) return false;
+            OperatorPlmnInfo that = (OperatorPlmnInfo) o;
+            return TextUtils.equals(plmnNumericPattern, that.plmnNumericPattern)
+                    && lacTacStart == that.lacTacStart
+                    && lacTacEnd == that.lacTacEnd
+                    && plmnNetworkNameIndex == that.plmnNetworkNameIndex;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(plmnNumericPattern, lacTacStart, lacTacEnd, plmnNetworkNameIndex);
+        }
+
         @Override
         public String toString() {
             return "{ plmnNumericPattern = " + plmnNumericPattern
@@ -1384,6 +1403,20 @@ public abstract class IccRecords extends Handler implements IccConstants {
             this.shortName = shortName;
         }
 
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof PlmnNetworkName)) return false;
+            PlmnNetworkName that = (PlmnNetworkName) o;
+            return TextUtils.equals(fullName, that.fullName)
+                    && TextUtils.equals(shortName, that.shortName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(fullName, shortName);
+        }
+
         @Override
         public String toString() {
             return "{ fullName = " + fullName + " shortName = " + shortName + " }";
@@ -22,6 +22,7 @@ import android.content.res.Resources;
 import android.os.AsyncResult;
 import android.os.Message;
 import android.os.PersistableBundle;
+import android.os.SystemClock;
 import android.telephony.CarrierConfigManager;
 import android.telephony.PhoneNumberUtils;
 import android.telephony.Rlog;
@@ -57,6 +58,15 @@ public class SIMRecords extends IccRecords {
     @UnsupportedAppUsage
     VoiceMailConstants mVmConfig;
 
+    // Schedules the EF reads of the records
+    private final SimReadPlanner mReadPlanner;
+    // The EFs of the card read on the previous loads, kept across reboots
+    private final SimFileCache mFileCache;
+
+    // The time the records started loading, or -1
+    private long mRecordsLoadStartTime = -1;
+    private long mLastRecordsLoadTimeMs = -1;
+
     // ***** Cached SIM State; cleared on channel close
 
     private int mCallForwardingStatus;
@@ -169,6 +179,7 @@ public class SIMRecords extends IccRecords {
     private static final int EVENT_GET_HPLMN_W_ACT_DONE = 39 + SIM_RECORD_EVENT_BASE;
     private static final int EVENT_GET_EHPLMN_DONE = 40 + SIM_RECORD_EVENT_BASE;
     private static final int EVENT_GET_FPLMN_DONE = 41 + SIM_RECORD_EVENT_BASE;
+    private static final int EVENT_SIM_FILE_CACHE_CHANGED = 42 + SIM_RECORD_EVENT_BASE;
 
     // TODO: Possibly move these to IccRecords.java
     private static final int SYSTEM_EVENT_BASE = 0x100;
@@ -182,6 +193,9 @@ public class SIMRecords extends IccRecords {
         super(app, c, ci);
 
         mAdnCache = new AdnRecordCache(mFh);
+        mFileCache = new SimFileCache(c, mParentApp.getPhoneId());
+        mReadPlanner = new SimReadPlanner(getLooper(), mFh,
+                SimReadPlanner.DEFAULT_MAX_PENDING_READS, mFileCache);
 
         mVmConfig = new VoiceMailConstants();
 
@@ -209,6 +223,7 @@ public class SIMRecords extends IccRecords {
         mParentApp.unregisterForReady(this);
         mParentApp.unregisterForLocked(this);
         mParentApp.unregisterForNetworkLocked(this);
+        mReadPlanner.clear();
         resetRecords();
         super.dispose();
     }
@@ -580,6 +595,8 @@ public class SIMRecords extends IccRecords {
             // A future optimization would be to inspect fileList and
             // only reload those files that we care about.  For now,
             // just re-fetch all SIM records that we cache.
+            mFh.clearEfHeaders();
+            mFileCache.clear();
             fetchSimRecords();
         }
     }
@@ -827,11 +844,14 @@ public class SIMRecords extends IccRecords {
                     data = (byte[]) ar.result;
 
                     if (ar.exception != null) {
+                        mReadPlanner.onIccIdLoaded(null);
                         break;
                     }
 
                     mIccId = IccUtils.bcdToString(data, 0, data.length);
                     mFullIccId = IccUtils.bchToString(data, 0, data.length);
+                    mFh.setIccId(mFullIccId);
+                    mReadPlanner.onIccIdLoaded(mFullIccId);
 
                     log("iccid: " + SubscriptionInfo.givePrintableIccid(mFullIccId));
                     break;
@@ -1235,6 +1255,12 @@ public class SIMRecords extends IccRecords {
                     }
                     break;
 
+                case EVENT_SIM_FILE_CACHE_CHANGED:
+                    // The records were loaded from the cache, and the card has other contents
+                    log("SIM files changed since they were cached, reloading the records");
+                    fetchSimRecords();
+                    break;
+
                 default:
                     super.handleMessage(msg);   // IccRecords handles generic record load responses
             }
@@ -1281,6 +1307,7 @@ public class SIMRecords extends IccRecords {
 
     @Override
     protected void handleFileUpdate(int efid) {
+        mFileCache.remove(efid);
         switch(efid) {
             case EF_MBDN:
                 mRecordsToLoad++;
@@ -1481,7 +1508,11 @@ public class SIMRecords extends IccRecords {
 
     @Override
     protected void onAllRecordsLoaded() {
-        if (DBG) log("record load complete");
+        if (mRecordsLoadStartTime >= 0) {
+            mLastRecordsLoadTimeMs = SystemClock.elapsedRealtime() - mRecordsLoadStartTime;
+            mRecordsLoadStartTime = -1;
+        }
+        if (DBG) log("record load complete in " + mLastRecordsLoadTimeMs + "ms");
 
         setSimLanguageFromEF();
         setVoiceCallForwardingFlagFromSimRecords();
@@ -1525,18 +1556,18 @@ public class SIMRecords extends IccRecords {
 
         loadEfLiAndEfPl();
 
-        mFh.loadEFTransparent(EF_ICCID, obtainMessage(EVENT_GET_ICCID_DONE));
+        mReadPlanner.loadEFTransparent(EF_ICCID, true, obtainMessage(EVENT_GET_ICCID_DONE));
         mRecordsToLoad++;
         mEssentialRecordsToLoad++;
     }
 
     private void loadEfLiAndEfPl() {
         if (mParentApp.getType() == AppType.APPTYPE_USIM) {
-            mFh.loadEFTransparent(EF_LI,
+            mReadPlanner.loadEFTransparent(EF_LI, false,
                     obtainMessage(EVENT_GET_ICC_RECORD_DONE, new EfUsimLiLoaded()));
             mRecordsToLoad++;
 
-            mFh.loadEFTransparent(EF_PL,
+            mReadPlanner.loadEFTransparent(EF_PL, false,
                     obtainMessage(EVENT_GET_ICC_RECORD_DONE, new EfPlLoaded()));
             mRecordsToLoad++;
         }
@@ -1544,9 +1575,9 @@ public class SIMRecords extends IccRecords {
 
     private void loadCallForwardingRecords() {
         mRecordsRequested = true;
-        mFh.loadEFLinearFixed(EF_CFIS, 1, obtainMessage(EVENT_GET_CFIS_DONE));
+        mReadPlanner.loadEFLinearFixed(EF_CFIS, 1, false, obtainMessage(EVENT_GET_CFIS_DONE));
         mRecordsToLoad++;
-        mFh.loadEFTransparent(EF_CFF_CPHS, obtainMessage(EVENT_GET_CFF_DONE));
+        mReadPlanner.loadEFTransparent(EF_CFF_CPHS, false, obtainMessage(EVENT_GET_CFF_DONE));
         mRecordsToLoad++;
     }
 
@@ -1559,7 +1590,7 @@ public class SIMRecords extends IccRecords {
         mRecordsToLoad++;
         mEssentialRecordsToLoad++;
 
-        mFh.loadEFTransparent(EF_ICCID, obtainMessage(EVENT_GET_ICCID_DONE));
+        mReadPlanner.loadEFTransparent(EF_ICCID, true, obtainMessage(EVENT_GET_ICCID_DONE));
         mRecordsToLoad++;
         mEssentialRecordsToLoad++;
 
@@ -1570,15 +1601,15 @@ public class SIMRecords extends IccRecords {
         mRecordsToLoad++;
         mEssentialRecordsToLoad++;
 
-        mFh.loadEFTransparent(EF_GID1, obtainMessage(EVENT_GET_GID1_DONE));
+        mReadPlanner.loadEFTransparent(EF_GID1, true, obtainMessage(EVENT_GET_GID1_DONE));
         mRecordsToLoad++;
         mEssentialRecordsToLoad++;
 
-        mFh.loadEFTransparent(EF_GID2, obtainMessage(EVENT_GET_GID2_DONE));
+        mReadPlanner.loadEFTransparent(EF_GID2, true, obtainMessage(EVENT_GET_GID2_DONE));
         mRecordsToLoad++;
         mEssentialRecordsToLoad++;
 
-        mFh.loadEFTransparent(EF_AD, obtainMessage(EVENT_GET_AD_DONE));
+        mReadPlanner.loadEFTransparent(EF_AD, true, obtainMessage(EVENT_GET_AD_DONE));
         mRecordsToLoad++;
         mEssentialRecordsToLoad++;
 
@@ -1590,17 +1621,19 @@ public class SIMRecords extends IccRecords {
     @UnsupportedAppUsage
     protected void fetchSimRecords() {
         mRecordsRequested = true;
+        mRecordsLoadStartTime = SystemClock.elapsedRealtime();
+        mReadPlanner.startLoading(obtainMessage(EVENT_SIM_FILE_CACHE_CHANGED));
 
         fetchEssentialSimRecords();
 
         if (DBG) log("fetchSimRecords " + mRecordsToLoad);
 
         // Record number is subscriber profile
-        mFh.loadEFLinearFixed(EF_MBI, 1, obtainMessage(EVENT_GET_MBI_DONE));
+        mReadPlanner.loadEFLinearFixed(EF_MBI, 1, false, obtainMessage(EVENT_GET_MBI_DONE));
         mRecordsToLoad++;
 
         // Record number is subscriber profile
-        mFh.loadEFLinearFixed(EF_MWIS, 1, obtainMessage(EVENT_GET_MWIS_DONE));
+        mReadPlanner.loadEFLinearFixed(EF_MWIS, 1, false, obtainMessage(EVENT_GET_MWIS_DONE));
         mRecordsToLoad++;
 
 
@@ -1608,8 +1641,7 @@ public class SIMRecords extends IccRecords {
         // the same info as EF[MWIS]. If both exist, both are updated
         // but the EF[MWIS] data is preferred
         // Please note this must be loaded after EF[MWIS]
-        mFh.loadEFTransparent(
-                EF_VOICE_MAIL_INDICATOR_CPHS,
+        mReadPlanner.loadEFTransparent(EF_VOICE_MAIL_INDICATOR_CPHS, false,
                 obtainMessage(EVENT_GET_VOICE_MAIL_INDICATOR_CPHS_DONE));
         mRecordsToLoad++;
 
@@ -1617,36 +1649,40 @@ public class SIMRecords extends IccRecords {
         // EF[CFIS] and CPHS-EF, with EF[CFIS] preferred.
         loadCallForwardingRecords();
 
-        mFh.loadEFTransparent(EF_SPDI, obtainMessage(EVENT_GET_SPDI_DONE));
+        mReadPlanner.loadEFTransparent(EF_SPDI, false, obtainMessage(EVENT_GET_SPDI_DONE));
         mRecordsToLoad++;
 
-        mFh.loadEFLinearFixed(EF_PNN, 1, obtainMessage(EVENT_GET_PNN_DONE));
+        mReadPlanner.loadEFLinearFixed(EF_PNN, 1, false, obtainMessage(EVENT_GET_PNN_DONE));
         mRecordsToLoad++;
 
-        mFh.loadEFTransparent(EF_SST, obtainMessage(EVENT_GET_SST_DONE));
+        mReadPlanner.loadEFTransparent(EF_SST, false, obtainMessage(EVENT_GET_SST_DONE));
         mRecordsToLoad++;
 
-        mFh.loadEFTransparent(EF_INFO_CPHS, obtainMessage(EVENT_GET_INFO_CPHS_DONE));
+        mReadPlanner.loadEFTransparent(EF_INFO_CPHS, false,
+                obtainMessage(EVENT_GET_INFO_CPHS_DONE));
         mRecordsToLoad++;
 
-        mFh.loadEFTransparent(EF_CSP_CPHS,obtainMessage(EVENT_GET_CSP_CPHS_DONE));
+        mReadPlanner.loadEFTransparent(EF_CSP_CPHS, false, obtainMessage(EVENT_GET_CSP_CPHS_DONE));
         mRecordsToLoad++;
 
 
-        mFh.loadEFTransparent(EF_PLMN_W_ACT, obtainMessage(EVENT_GET_PLMN_W_ACT_DONE));
+        mReadPlanner.loadEFTransparent(EF_PLMN_W_ACT, false,
+                obtainMessage(EVENT_GET_PLMN_W_ACT_DONE));
         mRecordsToLoad++;
 
-        mFh.loadEFTransparent(EF_OPLMN_W_ACT, obtainMessage(EVENT_GET_OPLMN_W_ACT_DONE));
+        mReadPlanner.loadEFTransparent(EF_OPLMN_W_ACT, false,
+                obtainMessage(EVENT_GET_OPLMN_W_ACT_DONE));
         mRecordsToLoad++;
 
-        mFh.loadEFTransparent(EF_HPLMN_W_ACT, obtainMessage(EVENT_GET_HPLMN_W_ACT_DONE));
+        mReadPlanner.loadEFTransparent(EF_HPLMN_W_ACT, false,
+                obtainMessage(EVENT_GET_HPLMN_W_ACT_DONE));
         mRecordsToLoad++;
 
-        mFh.loadEFTransparent(EF_EHPLMN, obtainMessage(EVENT_GET_EHPLMN_DONE));
+        mReadPlanner.loadEFTransparent(EF_EHPLMN, false, obtainMessage(EVENT_GET_EHPLMN_DONE));
         mRecordsToLoad++;
 
-        mFh.loadEFTransparent(EF_FPLMN, obtainMessage(
-                    EVENT_GET_FPLMN_DONE, HANDLER_ACTION_NONE, -1));
+        mReadPlanner.loadEFTransparent(EF_FPLMN, false,
+                obtainMessage(EVENT_GET_FPLMN_DONE, HANDLER_ACTION_NONE, -1));
         mRecordsToLoad++;
 
         loadEfLiAndEfPl();
@@ -1735,8 +1771,7 @@ public class SIMRecords extends IccRecords {
             case INIT:
                 setServiceProviderName(null);
 
-                mFh.loadEFTransparent(EF_SPN,
-                        obtainMessage(EVENT_GET_SPN_DONE));
+                mReadPlanner.loadEFTransparent(EF_SPN, true, obtainMessage(EVENT_GET_SPN_DONE));
                 mRecordsToLoad++;
                 mEssentialRecordsToLoad++;
 
@@ -1772,7 +1807,7 @@ public class SIMRecords extends IccRecords {
                 }
 
                 if (mSpnState == GetSpnFsmState.READ_SPN_CPHS) {
-                    mFh.loadEFTransparent( EF_SPN_CPHS,
+                    mReadPlanner.loadEFTransparent(EF_SPN_CPHS, true,
                             obtainMessage(EVENT_GET_SPN_DONE));
                     mRecordsToLoad++;
                     mEssentialRecordsToLoad++;
@@ -1807,8 +1842,8 @@ public class SIMRecords extends IccRecords {
                 }
 
                 if (mSpnState == GetSpnFsmState.READ_SPN_SHORT_CPHS) {
-                    mFh.loadEFTransparent(
-                            EF_SPN_SHORT_CPHS, obtainMessage(EVENT_GET_SPN_DONE));
+                    mReadPlanner.loadEFTransparent(EF_SPN_SHORT_CPHS, true,
+                            obtainMessage(EVENT_GET_SPN_DONE));
                     mRecordsToLoad++;
                     mEssentialRecordsToLoad++;
                 }
@@ -2019,6 +2054,10 @@ public class SIMRecords extends IccRecords {
         pw.println(" mHplmnActRecords[]=" + Arrays.toString(mHplmnActRecords));
         pw.println(" mFplmns[]=" + Arrays.toString(mFplmns));
         pw.println(" mEhplmns[]=" + Arrays.toString(mEhplmns));
+        pw.println(" mLastRecordsLoadTimeMs=" + mLastRecordsLoadTimeMs);
+        if (mFh != null) {
+            mReadPlanner.dump(pw);
+        }
         pw.flush();
     }
 }
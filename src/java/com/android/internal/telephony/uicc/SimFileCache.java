@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.uicc;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.text.TextUtils;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+/**
+ * Persistent cache of the contents of the EFs of a SIM application which only change along with
+ * a SIM REFRESH, so that the records of the same card can be served without reading them again
+ * after a reboot.
+ *
+ * The contents are kept per phone, for the ICCID they were read from: storing the files of
+ * another card drops those of the previous one. They are stored in the shared preferences,
+ * along with the version of the cache, and dropped if the version does not match.
+ */
+final class SimFileCache implements IccConstants {
+    /** Version of the cache, to be increased when what is stored changes. */
+    @VisibleForTesting
+    static final int VERSION = 1;
+
+    private static final String PREFIX = "sim_file_cache_";
+    private static final String KEY_VERSION = "version";
+    private static final String KEY_ICCID = "iccid";
+    private static final String KEY_EF = "ef_";
+
+    private final Context mContext;
+    // Prefix of the keys of this phone
+    private final String mPrefix;
+
+    SimFileCache(Context context, int phoneId) {
+        mContext = context;
+        mPrefix = PREFIX + phoneId + "_";
+        if (getPreferences().getInt(mPrefix + KEY_VERSION, -1) != VERSION) {
+            clear();
+        }
+    }
+
+    /**
+     * @return whether the contents of an EF are static enough to be cached.
+     */
+    static boolean isCacheable(int efid) {
+        switch (efid) {
+            case EF_SPN:
+            case EF_SPN_CPHS:
+            case EF_SPN_SHORT_CPHS:
+            case EF_PNN:
+            case EF_SPDI:
+            case EF_GID1:
+            case EF_GID2:
+            case EF_AD:
+            case EF_MBI:
+            case EF_SST:
+            case EF_EHPLMN:
+            case EF_FPLMN:
+            case EF_PLMN_W_ACT:
+            case EF_OPLMN_W_ACT:
+            case EF_HPLMN_W_ACT:
+            case EF_INFO_CPHS:
+            case EF_CSP_CPHS:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return the ICCID of the card the cached files were read from, or {@code null} if nothing
+     * is cached.
+     */
+    String getIccId() {
+        return getPreferences().getString(mPrefix + KEY_ICCID, null);
+    }
+
+    /**
+     * @param recordNum the record number, or 0 for a transparent EF
+     * @return the cached contents of the EF, or {@code null}
+     */
+    byte[] get(int efid, int recordNum) {
+        String hex = getPreferences().getString(getKey(efid, recordNum), null);
+        return hex != null ? IccUtils.hexStringToBytes(hex) : null;
+    }
+
+    /**
+     * Store the contents of an EF. The files of any other card are dropped.
+     *
+     * @param iccId the ICCID of the card the EF was read from
+     * @param recordNum the record number, or 0 for a transparent EF
+     */
+    void put(String iccId, int efid, int recordNum, byte[] data) {
+        if (TextUtils.isEmpty(iccId) || data == null) {
+            return;
+        }
+        if (!iccId.equals(getIccId())) {
+            clear();
+        }
+        getPreferences().edit()
+                .putString(mPrefix + KEY_ICCID, iccId)
+                .putString(getKey(efid, recordNum), IccUtils.bytesToHexString(data))
+                .apply();
+    }
+
+    /**
+     * Drop all the cached records of an EF.
+     */
+    void remove(int efid) {
+        removeKeysStartingWith(mPrefix + KEY_EF + Integer.toHexString(efid) + "_");
+    }
+
+    /**
+     * Drop all the cached files.
+     */
+    void clear() {
+        removeKeysStartingWith(mPrefix);
+        getPreferences().edit().putInt(mPrefix + KEY_VERSION, VERSION).apply();
+    }
+
+    private void removeKeysStartingWith(String prefix) {
+        SharedPreferences sp = getPreferences();
+        SharedPreferences.Editor editor = sp.edit();
+        for (String key : sp.getAll().keySet()) {
+            if (key.startsWith(prefix)) {
+                editor.remove(key);
+            }
+        }
+        editor.apply();
+    }
+
+    private String getKey(int efid, int recordNum) {
+        return mPrefix + KEY_EF + Integer.toHexString(efid) + "_" + recordNum;
+    }
+
+    private SharedPreferences getPreferences() {
+        return PreferenceManager.getDefaultSharedPreferences(mContext);
+    }
+}
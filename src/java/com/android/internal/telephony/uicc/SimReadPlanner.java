@@ -0,0 +1,394 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.uicc;
+
+import android.os.AsyncResult;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Schedules the reads of the EFs loaded by {@link SIMRecords}.
+ *
+ * Reads are handed to the {@link IccFileHandler} with at most a few of them in flight, the reads
+ * of essential files before the others, so that the essential records do not wait behind the
+ * optional ones, and the RIL is not flooded with SIM I/O while other requests are pending. The
+ * time each read spent queued and on the card is kept, to profile loading the SIM records.
+ *
+ * With a {@link SimFileCache}, the reads of the cacheable EFs wait for the ICCID to be read. If
+ * it is the ICCID of the cached files, they are served from the cache, and read again in the
+ * background: if any of them changed, the caller is told to load the records again. Otherwise
+ * the cache is dropped, and the EFs are read and stored once the ICCID is known.
+ */
+final class SimReadPlanner extends Handler {
+    private static final int EVENT_READ_DONE = 1;
+
+    // The ICCID is being read, and the cache has files of a card
+    private static final int CACHE_STATE_WAITING_FOR_ICCID = 0;
+    // The cache has the files of the card
+    private static final int CACHE_STATE_VALID = 1;
+    // The cache has none of the files of the card
+    private static final int CACHE_STATE_INVALID = 2;
+
+    /** Default maximum number of reads in flight. */
+    static final int DEFAULT_MAX_PENDING_READS = 4;
+
+    /** Maximum number of reads kept in the trace. */
+    private static final int MAX_TRACE_SIZE = 64;
+
+    /** A read of an EF and its timing. */
+    @VisibleForTesting
+    static final class Read {
+        final int mEfid;
+        // The record number, or 0 for a transparent EF
+        final int mRecordNum;
+        final boolean mEssential;
+        // null when checking the cached contents of the EF
+        final Message mOnLoaded;
+        final long mQueuedTime;
+        long mStartTime = -1;
+        long mEndTime = -1;
+        boolean mSuccess;
+        boolean mFromCache;
+        // The contents read, until they can be cached
+        byte[] mData;
+
+        Read(int efid, int recordNum, boolean essential, Message onLoaded) {
+            mEfid = efid;
+            mRecordNum = recordNum;
+            mEssential = essential;
+            mOnLoaded = onLoaded;
+            mQueuedTime = SystemClock.elapsedRealtime();
+        }
+
+        boolean isRevalidation() {
+            return mOnLoaded == null;
+        }
+
+        int getEfid() {
+            return mEfid;
+        }
+
+        boolean isEssential() {
+            return mEssential;
+        }
+
+        long getQueueTimeMs() {
+            return mStartTime - mQueuedTime;
+        }
+
+        long getReadTimeMs() {
+            return mEndTime - mStartTime;
+        }
+
+        @Override
+        public String toString() {
+            return "Read{ef=" + Integer.toHexString(mEfid)
+                    + (mRecordNum > 0 ? " record=" + mRecordNum : "")
+                    + " essential=" + mEssential + " queueMs=" + getQueueTimeMs()
+                    + " readMs=" + getReadTimeMs() + " success=" + mSuccess
+                    + (mFromCache ? " fromCache" : "") + (isRevalidation() ? " revalidation" : "")
+                    + "}";
+        }
+    }
+
+    private final IccFileHandler mFh;
+    // null if the files are not cached
+    private final SimFileCache mFileCache;
+    private final int mMaxPendingReads;
+    private final ArrayDeque<Read> mEssentialReads = new ArrayDeque<>();
+    private final ArrayDeque<Read> mOptionalReads = new ArrayDeque<>();
+    private int mPendingReads;
+    // The completed reads, oldest first
+    private final ArrayDeque<Read> mTrace = new ArrayDeque<>();
+    private int mMaxObservedPendingReads;
+
+    private int mCacheState = CACHE_STATE_INVALID;
+    private String mIccId;
+    // The reads waiting for the ICCID to be known before using the cache
+    private final ArrayList<Read> mWaitingForIccId = new ArrayList<>();
+    // The reads of cacheable EFs completed before the ICCID was known
+    private final ArrayList<Read> mUncachedReads = new ArrayList<>();
+    private int mPendingRevalidations;
+    private boolean mCacheChanged;
+    private Message mOnCacheChanged;
+
+    private int mCacheHits;
+    private int mCacheMisses;
+    private int mCacheChanges;
+
+    /**
+     * @param fileCache the cache of the EFs, or {@code null} to always read them
+     */
+    SimReadPlanner(Looper looper, IccFileHandler fh, int maxPendingReads,
+            SimFileCache fileCache) {
+        super(looper);
+        mFh = fh;
+        mMaxPendingReads = maxPendingReads;
+        mFileCache = fileCache;
+    }
+
+    /**
+     * Start loading the records of the card. The reads of the cacheable EFs wait for
+     * {@link #onIccIdLoaded(String)}.
+     *
+     * @param onCacheChanged sent if the records were served from the cache, and some of them
+     * turned out to have changed on the card
+     */
+    void startLoading(Message onCacheChanged) {
+        mIccId = null;
+        mOnCacheChanged = onCacheChanged;
+        mCacheChanged = false;
+        mCacheState = mFileCache != null && mFileCache.getIccId() != null
+                ? CACHE_STATE_WAITING_FOR_ICCID : CACHE_STATE_INVALID;
+    }
+
+    /**
+     * @param iccId the ICCID of the card, or {@code null} if it could not be read
+     */
+    void onIccIdLoaded(String iccId) {
+        mIccId = iccId;
+        if (mFileCache == null) {
+            return;
+        }
+        if (mCacheState != CACHE_STATE_INVALID) {
+            if (iccId != null && iccId.equals(mFileCache.getIccId())) {
+                mCacheState = CACHE_STATE_VALID;
+            } else {
+                mCacheState = CACHE_STATE_INVALID;
+                mFileCache.clear();
+            }
+        }
+        if (iccId != null) {
+            for (Read read : mUncachedReads) {
+                mFileCache.put(iccId, read.mEfid, read.mRecordNum, read.mData);
+            }
+        }
+        mUncachedReads.clear();
+
+        ArrayList<Read> waiting = new ArrayList<>(mWaitingForIccId);
+        mWaitingForIccId.clear();
+        for (Read read : waiting) {
+            enqueue(read);
+        }
+    }
+
+    /**
+     * Load a transparent EF, see {@link IccFileHandler#loadEFTransparent(int, Message)}.
+     *
+     * @param essential whether the EF is one of the essential records
+     */
+    void loadEFTransparent(int efid, boolean essential, Message onLoaded) {
+        enqueue(new Read(efid, 0 /* recordNum */, essential, onLoaded));
+    }
+
+    /**
+     * Load a record of a linear fixed EF, see
+     * {@link IccFileHandler#loadEFLinearFixed(int, int, Message)}.
+     *
+     * @param essential whether the EF is one of the essential records
+     */
+    void loadEFLinearFixed(int efid, int recordNum, boolean essential, Message onLoaded) {
+        enqueue(new Read(efid, recordNum, essential, onLoaded));
+    }
+
+    /**
+     * Drop the reads which were not started yet, e.g. when the records are reset. Reads in
+     * flight still complete.
+     */
+    void clear() {
+        mEssentialReads.clear();
+        mOptionalReads.clear();
+        mWaitingForIccId.clear();
+        mUncachedReads.clear();
+        mPendingRevalidations = 0;
+        mOnCacheChanged = null;
+    }
+
+    private void enqueue(Read read) {
+        if (mFileCache != null && !read.isRevalidation()
+                && SimFileCache.isCacheable(read.mEfid)) {
+            if (mCacheState == CACHE_STATE_WAITING_FOR_ICCID) {
+                mWaitingForIccId.add(read);
+                return;
+            }
+            if (mCacheState == CACHE_STATE_VALID && serveFromCache(read)) {
+                return;
+            }
+        }
+        if (read.mEssential) {
+            mEssentialReads.add(read);
+        } else {
+            mOptionalReads.add(read);
+        }
+        startReads();
+    }
+
+    /**
+     * Send the cached contents of an EF, and check them against the card in the background.
+     *
+     * @return false if the EF is not cached
+     */
+    private boolean serveFromCache(Read read) {
+        byte[] data = mFileCache.get(read.mEfid, read.mRecordNum);
+        if (data == null) {
+            mCacheMisses++;
+            return false;
+        }
+        mCacheHits++;
+        read.mStartTime = read.mEndTime = SystemClock.elapsedRealtime();
+        read.mSuccess = true;
+        read.mFromCache = true;
+        addToTrace(read);
+        AsyncResult.forMessage(read.mOnLoaded, data, null);
+        read.mOnLoaded.sendToTarget();
+
+        mPendingRevalidations++;
+        mOptionalReads.add(new Read(read.mEfid, read.mRecordNum, false, null));
+        startReads();
+        return true;
+    }
+
+    private void onRevalidated(Read read, AsyncResult ar) {
+        if (mPendingRevalidations > 0) {
+            mPendingRevalidations--;
+        }
+        if (mCacheState == CACHE_STATE_VALID && mIccId != null) {
+            byte[] cached = mFileCache.get(read.mEfid, read.mRecordNum);
+            if (ar.exception != null) {
+                if (cached != null) {
+                    mFileCache.remove(read.mEfid);
+                    mCacheChanged = true;
+                }
+            } else if (!Arrays.equals(cached, (byte[]) ar.result)) {
+                mFileCache.put(mIccId, read.mEfid, read.mRecordNum, (byte[]) ar.result);
+                mCacheChanged = true;
+            }
+        }
+        if (mPendingRevalidations == 0 && mCacheChanged) {
+            mCacheChanged = false;
+            mCacheChanges++;
+            if (mOnCacheChanged != null) {
+                mOnCacheChanged.sendToTarget();
+                mOnCacheChanged = null;
+            }
+        }
+    }
+
+    private void addToTrace(Read read) {
+        mTrace.add(read);
+        if (mTrace.size() > MAX_TRACE_SIZE) {
+            mTrace.poll();
+        }
+    }
+
+    private void startReads() {
+        while (mPendingReads < mMaxPendingReads) {
+            Read read = mEssentialReads.poll();
+            if (read == null) {
+                read = mOptionalReads.poll();
+            }
+            if (read == null) {
+                return;
+            }
+            mPendingReads++;
+            mMaxObservedPendingReads = Math.max(mMaxObservedPendingReads, mPendingReads);
+            read.mStartTime = SystemClock.elapsedRealtime();
+            Message response = obtainMessage(EVENT_READ_DONE, read);
+            if (read.mRecordNum > 0) {
+                mFh.loadEFLinearFixed(read.mEfid, read.mRecordNum, response);
+            } else {
+                mFh.loadEFTransparent(read.mEfid, response);
+            }
+        }
+    }
+
+    @Override
+    public void handleMessage(Message msg) {
+        switch (msg.what) {
+            case EVENT_READ_DONE:
+                AsyncResult ar = (AsyncResult) msg.obj;
+                Read read = (Read) ar.userObj;
+                read.mEndTime = SystemClock.elapsedRealtime();
+                read.mSuccess = ar.exception == null;
+                mPendingReads--;
+                addToTrace(read);
+
+                // Start the next reads before handing the result over
+                startReads();
+                if (read.isRevalidation()) {
+                    onRevalidated(read, ar);
+                    break;
+                }
+                if (read.mSuccess && mFileCache != null && SimFileCache.isCacheable(read.mEfid)) {
+                    if (mIccId != null) {
+                        mFileCache.put(mIccId, read.mEfid, read.mRecordNum, (byte[]) ar.result);
+                    } else {
+                        read.mData = (byte[]) ar.result;
+                        mUncachedReads.add(read);
+                    }
+                }
+                AsyncResult.forMessage(read.mOnLoaded, ar.result, ar.exception);
+                read.mOnLoaded.sendToTarget();
+                break;
+            default:
+                break;
+        }
+    }
+
+    /** @return the completed reads, oldest first. */
+    @VisibleForTesting
+    List<Read> getTrace() {
+        return new ArrayList<>(mTrace);
+    }
+
+    @VisibleForTesting
+    int getMaxObservedPendingReads() {
+        return mMaxObservedPendingReads;
+    }
+
+    @VisibleForTesting
+    int getCacheHits() {
+        return mCacheHits;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println(" SimReadPlanner: mMaxPendingReads=" + mMaxPendingReads
+                + " mPendingReads=" + mPendingReads
+                + " queued=" + (mEssentialReads.size() + mOptionalReads.size())
+                + " efHeaderCacheHits=" + mFh.getEfHeaderCacheHits()
+                + " efHeaderCacheMisses=" + mFh.getEfHeaderCacheMisses());
+        if (mFileCache != null) {
+            pw.println(" SimReadPlanner: mCacheState=" + mCacheState
+                    + " mCacheHits=" + mCacheHits + " mCacheMisses=" + mCacheMisses
+                    + " mPendingRevalidations=" + mPendingRevalidations
+                    + " mCacheChanges=" + mCacheChanges);
+        }
+        for (Read read : mTrace) {
+            pw.println("  " + read);
+        }
+    }
+}
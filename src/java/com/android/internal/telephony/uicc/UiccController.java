@@ -958,6 +958,13 @@ public class UiccController extends Handler {
             return;
         }
 
+        if (resp.refreshResult == IccRefreshResponse.REFRESH_RESULT_RESET
+                || resp.refreshResult == IccRefreshResponse.REFRESH_RESULT_INIT) {
+            // The files of the card may have been changed along with its applications
+            IccFileHandler.clearEfHeaders(uiccCard.getIccId());
+            new SimFileCache(mContext, index).clear();
+        }
+
         boolean changed = false;
         switch(resp.refreshResult) {
             // Reset the required apps when we know about the refresh so that
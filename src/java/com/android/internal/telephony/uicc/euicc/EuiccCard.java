@@ -70,6 +70,10 @@ public class EuiccCard extends UiccCard {
     private static final String ISD_R_AID = "A0000005591010FFFFFFFF8900000100";
     private static final int ICCID_LENGTH = 20;
 
+    // How long the logical channel to ISD-R is kept open after an operation, so that the
+    // operations issued in quick succession, e.g. at boot or in LPA flows, share one channel.
+    private static final long APDU_CHANNEL_IDLE_TIMEOUT_MS = 2 * 1000;
+
     // APDU status for SIM refresh
     private static final int APDU_ERROR_SIM_REFRESH = 0x6F00;
 
@@ -124,10 +128,26 @@ public class EuiccCard extends UiccCard {
     private EuiccSpecVersion mSpecVersion;
     private volatile String mEid;
 
+    // The profile list and the Rules Authorisation Table read from the card, kept until an
+    // operation changing the profiles or a SIM refresh invalidates them. Guarded by mLock.
+    private EuiccProfileInfo[] mCachedProfiles;
+    private EuiccRulesAuthTable mCachedRulesAuthTable;
+    // Incremented on each invalidation, so that a read started before is not cached.
+    private int mCacheGeneration;
+    // Cache statistics for dump, guarded by mLock.
+    private int mProfilesCacheHits;
+    private int mProfilesCacheMisses;
+    private int mRulesAuthTableCacheHits;
+    private int mRulesAuthTableCacheMisses;
+    private int mEidCacheHits;
+    private int mEidCacheMisses;
+    private int mCacheInvalidations;
+
     public EuiccCard(Context c, CommandsInterface ci, IccCardStatus ics, int phoneId, Object lock) {
         super(c, ci, ics, phoneId, lock);
         // TODO: Set supportExtendedApdu based on ATR.
-        mApduSender = new ApduSender(ci, ISD_R_AID, false /* supportExtendedApdu */);
+        mApduSender = new ApduSender(ci, ISD_R_AID, false /* supportExtendedApdu */,
+                APDU_CHANNEL_IDLE_TIMEOUT_MS);
 
         if (TextUtils.isEmpty(ics.eid)) {
             loge("no eid given in constructor for phone " + phoneId);
@@ -210,10 +230,22 @@ public class EuiccCard extends UiccCard {
             if (!TextUtils.isEmpty(ics.eid)) {
                 mEid = ics.eid;
             }
+            // The card may have been swapped, or its profiles changed, since they were read.
+            invalidateCache();
+            // Null while called from the constructor of UiccCard
+            if (mApduSender != null && ics.mCardState != getCardState()) {
+                mApduSender.resetChannel();
+            }
             super.update(c, ci, ics);
         }
     }
 
+    @Override
+    public void dispose() {
+        mApduSender.resetChannel();
+        super.dispose();
+    }
+
     @Override
     protected void updateCardId() {
         if (TextUtils.isEmpty(mEid)) {
@@ -223,6 +255,15 @@ public class EuiccCard extends UiccCard {
         }
     }
 
+    @Override
+    public boolean resetAppWithAid(String aid, boolean reset) {
+        // The profiles, and the logical channels, may have been changed by whatever triggered
+        // the SIM refresh.
+        invalidateCache();
+        mApduSender.resetChannel();
+        return super.resetAppWithAid(aid, reset);
+    }
+
     /**
      * Gets a list of user-visible profiles.
      *
@@ -231,11 +272,26 @@ public class EuiccCard extends UiccCard {
      * @since 1.1.0 [GSMA SGP.22]
      */
     public void getAllProfiles(AsyncResultCallback<EuiccProfileInfo[]> callback, Handler handler) {
+        EuiccProfileInfo[] cachedProfiles;
+        int generation;
+        synchronized (mLock) {
+            cachedProfiles = mCachedProfiles;
+            generation = mCacheGeneration;
+            if (cachedProfiles != null) {
+                mProfilesCacheHits++;
+            } else {
+                mProfilesCacheMisses++;
+            }
+        }
+        if (cachedProfiles != null) {
+            AsyncResultHelper.returnResult(cachedProfiles.clone(), callback, handler);
+            return;
+        }
         sendApdu(
                 newRequestProvider((RequestBuilder requestBuilder) ->
                         requestBuilder.addStoreData(Asn1Node.newBuilder(Tags.TAG_GET_PROFILES)
                                 .addChildAsBytes(Tags.TAG_TAG_LIST, Tags.EUICC_PROFILE_TAGS)
-                                .build().toHex())),
+                                .build().toBytes())),
                 response -> {
                     List<Asn1Node> profileNodes = new Asn1Decoder(response).nextNode()
                             .getChild(Tags.TAG_CTX_COMP_0).getChildren(Tags.TAG_PROFILE_INFO);
@@ -257,6 +313,11 @@ public class EuiccCard extends UiccCard {
                         EuiccProfileInfo profile = profileBuilder.build();
                         profiles[profileCount++] = profile;
                     }
+                    synchronized (mLock) {
+                        if (generation == mCacheGeneration) {
+                            mCachedProfiles = profiles.clone();
+                        }
+                    }
                     return profiles;
                 },
                 callback, handler);
@@ -271,6 +332,19 @@ public class EuiccCard extends UiccCard {
      */
     public final void getProfile(String iccid, AsyncResultCallback<EuiccProfileInfo> callback,
             Handler handler) {
+        EuiccProfileInfo[] cachedProfiles;
+        synchronized (mLock) {
+            cachedProfiles = mCachedProfiles;
+            if (cachedProfiles != null) {
+                mProfilesCacheHits++;
+            } else {
+                mProfilesCacheMisses++;
+            }
+        }
+        if (cachedProfiles != null) {
+            AsyncResultHelper.returnResult(findProfile(cachedProfiles, iccid), callback, handler);
+            return;
+        }
         sendApdu(
                 newRequestProvider((RequestBuilder requestBuilder) ->
                         requestBuilder.addStoreData(Asn1Node.newBuilder(Tags.TAG_GET_PROFILES)
@@ -279,7 +353,7 @@ public class EuiccCard extends UiccCard {
                                         Tags.TAG_ICCID, IccUtils.bcdToBytes(padTrailingFs(iccid)))
                                     .build())
                                 .addChildAsBytes(Tags.TAG_TAG_LIST, Tags.EUICC_PROFILE_TAGS)
-                                .build().toHex())),
+                                .build().toBytes())),
                 response -> {
                     List<Asn1Node> profileNodes = new Asn1Decoder(response).nextNode()
                             .getChild(Tags.TAG_CTX_COMP_0).getChildren(Tags.TAG_PROFILE_INFO);
@@ -314,7 +388,7 @@ public class EuiccCard extends UiccCard {
                             .addChild(Asn1Node.newBuilder(Tags.TAG_CTX_COMP_0)
                                     .addChildAsBytes(Tags.TAG_ICCID, iccidBytes))
                             .addChildAsBoolean(Tags.TAG_CTX_1, refresh)
-                            .build().toHex());
+                            .build().toBytes());
                 }),
                 response -> {
                     int result;
@@ -332,7 +406,7 @@ public class EuiccCard extends UiccCard {
                                     EuiccCardErrorException.OPERATION_DISABLE_PROFILE, result);
                     }
                 },
-                callback, handler);
+                invalidateCacheOnCompletion(callback), handler);
     }
 
     /**
@@ -353,7 +427,7 @@ public class EuiccCard extends UiccCard {
                             .addChild(Asn1Node.newBuilder(Tags.TAG_CTX_COMP_0)
                                     .addChildAsBytes(Tags.TAG_ICCID, iccidBytes))
                             .addChildAsBoolean(Tags.TAG_CTX_1, refresh)
-                            .build().toHex());
+                            .build().toBytes());
                 }),
                 response -> {
                     int result;
@@ -371,7 +445,7 @@ public class EuiccCard extends UiccCard {
                                     EuiccCardErrorException.OPERATION_SWITCH_TO_PROFILE, result);
                     }
                 },
-                callback, handler);
+                invalidateCacheOnCompletion(callback), handler);
     }
 
     /**
@@ -390,15 +464,23 @@ public class EuiccCard extends UiccCard {
      * @since 1.1.0 [GSMA SGP.22]
      */
     public void getEid(AsyncResultCallback<String> callback, Handler handler) {
-        if (mEid != null) {
-            AsyncResultHelper.returnResult(mEid, callback, handler);
+        String eid = mEid;
+        synchronized (mLock) {
+            if (eid != null) {
+                mEidCacheHits++;
+            } else {
+                mEidCacheMisses++;
+            }
+        }
+        if (eid != null) {
+            AsyncResultHelper.returnResult(eid, callback, handler);
             return;
         }
         sendApdu(
                 newRequestProvider((RequestBuilder requestBuilder) ->
                         requestBuilder.addStoreData(Asn1Node.newBuilder(Tags.TAG_GET_EID)
                                 .addChildAsBytes(Tags.TAG_TAG_LIST, new byte[] {Tags.TAG_EID})
-                                .build().toHex())),
+                                .build().toBytes())),
                 response -> {
                     String eid = IccUtils.bytesToHexString(parseResponse(response)
                             .getChild(Tags.TAG_EID).asBytes());
@@ -408,7 +490,7 @@ public class EuiccCard extends UiccCard {
                     }
                     return eid;
                 },
-                callback, handler);
+                callback, handler, ApduSender.PRIORITY_HIGH);
     }
 
     /**
@@ -426,7 +508,7 @@ public class EuiccCard extends UiccCard {
                                 .addChildAsBytes(Tags.TAG_ICCID,
                                         IccUtils.bcdToBytes(padTrailingFs(iccid)))
                                 .addChildAsString(Tags.TAG_NICKNAME, nickname)
-                                .build().toHex())),
+                                .build().toBytes())),
                 response -> {
                     // SGP.22 v2.0 SetNicknameResponse
                     int result = parseSimpleResult(response);
@@ -436,7 +518,7 @@ public class EuiccCard extends UiccCard {
                     }
                     return null;
                 },
-                callback, handler);
+                invalidateCacheOnCompletion(callback), handler);
     }
 
     /**
@@ -452,7 +534,7 @@ public class EuiccCard extends UiccCard {
                     byte[] iccidBytes = IccUtils.bcdToBytes(padTrailingFs(iccid));
                     requestBuilder.addStoreData(Asn1Node.newBuilder(Tags.TAG_DELETE_PROFILE)
                             .addChildAsBytes(Tags.TAG_ICCID, iccidBytes)
-                            .build().toHex());
+                            .build().toBytes());
                 }),
                 response -> {
                     // SGP.22 v2.0 DeleteProfileRequest
@@ -463,7 +545,7 @@ public class EuiccCard extends UiccCard {
                     }
                     return null;
                 },
-                callback, handler);
+                invalidateCacheOnCompletion(callback), handler);
     }
 
     /**
@@ -480,7 +562,7 @@ public class EuiccCard extends UiccCard {
                 newRequestProvider((RequestBuilder requestBuilder) ->
                         requestBuilder.addStoreData(Asn1Node.newBuilder(Tags.TAG_EUICC_MEMORY_RESET)
                                 .addChildAsBits(Tags.TAG_CTX_2, options)
-                                .build().toHex())),
+                                .build().toBytes())),
                 response -> {
                     int result = parseSimpleResult(response);
                     if (result != CODE_OK && result != CODE_NOTHING_TO_DELETE) {
@@ -489,7 +571,7 @@ public class EuiccCard extends UiccCard {
                     }
                     return null;
                 },
-                callback, handler);
+                invalidateCacheOnCompletion(callback), handler);
     }
 
     /**
@@ -504,7 +586,7 @@ public class EuiccCard extends UiccCard {
                 newRequestProvider((RequestBuilder requestBuilder) ->
                         requestBuilder.addStoreData(
                                 Asn1Node.newBuilder(Tags.TAG_GET_CONFIGURED_ADDRESSES)
-                                        .build().toHex())),
+                                        .build().toBytes())),
                 (byte[] response) -> parseResponse(response).getChild(Tags.TAG_CTX_0).asString(),
                 callback, handler);
     }
@@ -521,7 +603,7 @@ public class EuiccCard extends UiccCard {
                 newRequestProvider((RequestBuilder requestBuilder) ->
                         requestBuilder.addStoreData(
                                 Asn1Node.newBuilder(Tags.TAG_GET_CONFIGURED_ADDRESSES)
-                                        .build().toHex())),
+                                        .build().toBytes())),
                 (byte[] response) -> parseResponse(response).getChild(Tags.TAG_CTX_1).asString(),
                 callback, handler);
     }
@@ -540,7 +622,7 @@ public class EuiccCard extends UiccCard {
                         requestBuilder.addStoreData(
                                 Asn1Node.newBuilder(Tags.TAG_SET_DEFAULT_SMDP_ADDRESS)
                                         .addChildAsString(Tags.TAG_CTX_0, defaultSmdpAddress)
-                                        .build().toHex())),
+                                        .build().toBytes())),
                 response -> {
                     // SGP.22 v2.0 SetDefaultDpAddressResponse
                     int result = parseSimpleResult(response);
@@ -562,10 +644,25 @@ public class EuiccCard extends UiccCard {
      */
     public void getRulesAuthTable(AsyncResultCallback<EuiccRulesAuthTable> callback,
             Handler handler) {
+        EuiccRulesAuthTable cachedRulesAuthTable;
+        int generation;
+        synchronized (mLock) {
+            cachedRulesAuthTable = mCachedRulesAuthTable;
+            generation = mCacheGeneration;
+            if (cachedRulesAuthTable != null) {
+                mRulesAuthTableCacheHits++;
+            } else {
+                mRulesAuthTableCacheMisses++;
+            }
+        }
+        if (cachedRulesAuthTable != null) {
+            AsyncResultHelper.returnResult(cachedRulesAuthTable, callback, handler);
+            return;
+        }
         sendApdu(
                 newRequestProvider((RequestBuilder requestBuilder) ->
                         requestBuilder.addStoreData(Asn1Node.newBuilder(Tags.TAG_GET_RAT)
-                                .build().toHex())),
+                                .build().toBytes())),
                 response -> {
                     Asn1Node root = parseResponse(response);
                     List<Asn1Node> nodes = root.getChildren(Tags.TAG_CTX_COMP_0);
@@ -585,7 +682,13 @@ public class EuiccCard extends UiccCard {
                                 Arrays.asList(opIds), node.getChild(Tags.TAG_SEQUENCE,
                                 Tags.TAG_CTX_2).asBits());
                     }
-                    return builder.build();
+                    EuiccRulesAuthTable rat = builder.build();
+                    synchronized (mLock) {
+                        if (generation == mCacheGeneration) {
+                            mCachedRulesAuthTable = rat;
+                        }
+                    }
+                    return rat;
                 },
                 callback, handler);
     }
@@ -602,7 +705,7 @@ public class EuiccCard extends UiccCard {
                 newRequestProvider((RequestBuilder requestBuilder) ->
                         requestBuilder.addStoreData(
                                 Asn1Node.newBuilder(Tags.TAG_GET_EUICC_CHALLENGE)
-                                        .build().toHex())),
+                                        .build().toBytes())),
                 (byte[] response) -> parseResponse(response).getChild(Tags.TAG_CTX_0).asBytes(),
                 callback, handler);
     }
@@ -619,7 +722,7 @@ public class EuiccCard extends UiccCard {
         sendApdu(
                 newRequestProvider((RequestBuilder requestBuilder) ->
                         requestBuilder.addStoreData(Asn1Node.newBuilder(Tags.TAG_GET_EUICC_INFO_1)
-                                .build().toHex())),
+                                .build().toBytes())),
                 (response) -> response,
                 callback, handler);
     }
@@ -636,7 +739,7 @@ public class EuiccCard extends UiccCard {
         sendApdu(
                 newRequestProvider((RequestBuilder requestBuilder) ->
                         requestBuilder.addStoreData(Asn1Node.newBuilder(Tags.TAG_GET_EUICC_INFO_2)
-                                .build().toHex())),
+                                .build().toBytes())),
                 (response) -> response,
                 callback, handler);
     }
@@ -686,7 +789,7 @@ public class EuiccCard extends UiccCard {
                             .addChild(new Asn1Decoder(euiccCiPkIdToBeUsed).nextNode())
                             .addChild(new Asn1Decoder(serverCertificate).nextNode())
                             .addChild(ctxParams1Builder)
-                            .build().toHex());
+                            .build().toBytes());
                 }),
                 response -> {
                     Asn1Node root = parseResponse(response);
@@ -724,7 +827,7 @@ public class EuiccCard extends UiccCard {
                     }
                     requestBuilder.addStoreData(
                             builder.addChild(new Asn1Decoder(smdpCertificate).nextNode())
-                                    .build().toHex());
+                                    .build().toBytes());
                 }),
                 response -> {
                     Asn1Node root = parseResponse(response);
@@ -809,25 +912,29 @@ public class EuiccCard extends UiccCard {
                         }
                     }
 
-                    requestBuilder.addStoreData(bppNode.getHeadAsHex()
-                            + initialiseSecureChannelRequest.toHex());
+                    byte[] bppHead = getHead(bppNode);
+                    byte[] firstSegment = new byte[bppHead.length
+                            + initialiseSecureChannelRequest.getEncodedLength()];
+                    System.arraycopy(bppHead, 0, firstSegment, 0, bppHead.length);
+                    initialiseSecureChannelRequest.writeToBytes(firstSegment, bppHead.length);
+                    requestBuilder.addStoreData(firstSegment);
 
-                    requestBuilder.addStoreData(firstSequenceOf87.toHex());
+                    requestBuilder.addStoreData(firstSequenceOf87.toBytes());
 
-                    requestBuilder.addStoreData(sequenceOf88.getHeadAsHex());
+                    requestBuilder.addStoreData(getHead(sequenceOf88));
                     int size = metaDataSeqs.size();
                     for (int i = 0; i < size; i++) {
-                        requestBuilder.addStoreData(metaDataSeqs.get(i).toHex());
+                        requestBuilder.addStoreData(metaDataSeqs.get(i).toBytes());
                     }
 
                     if (secondSequenceOf87 != null) {
-                        requestBuilder.addStoreData(secondSequenceOf87.toHex());
+                        requestBuilder.addStoreData(secondSequenceOf87.toBytes());
                     }
 
-                    requestBuilder.addStoreData(sequenceOf86.getHeadAsHex());
+                    requestBuilder.addStoreData(getHead(sequenceOf86));
                     size = elementSeqs.size();
                     for (int i = 0; i < size; i++) {
-                        requestBuilder.addStoreData(elementSeqs.get(i).toHex());
+                        requestBuilder.addStoreData(elementSeqs.get(i).toBytes());
                     }
                 }),
                 response -> {
@@ -856,7 +963,7 @@ public class EuiccCard extends UiccCard {
                     }
                     return true;
                 },
-                callback, handler);
+                invalidateCacheOnCompletion(callback), handler);
     }
 
     /**
@@ -875,7 +982,7 @@ public class EuiccCard extends UiccCard {
                         requestBuilder.addStoreData(Asn1Node.newBuilder(Tags.TAG_CANCEL_SESSION)
                                 .addChildAsBytes(Tags.TAG_CTX_0, transactionId)
                                 .addChildAsInteger(Tags.TAG_CTX_1, reason)
-                                .build().toHex())),
+                                .build().toBytes())),
                 (byte[] response) ->
                         parseResponseAndCheckSimpleError(response,
                                 EuiccCardErrorException.OPERATION_CANCEL_SESSION).toBytes(),
@@ -896,7 +1003,7 @@ public class EuiccCard extends UiccCard {
                 newRequestProvider((RequestBuilder requestBuilder) ->
                         requestBuilder.addStoreData(Asn1Node.newBuilder(Tags.TAG_LIST_NOTIFICATION)
                                 .addChildAsBits(Tags.TAG_CTX_1, events)
-                                .build().toHex())),
+                                .build().toBytes())),
                 response -> {
                     Asn1Node root = parseResponseAndCheckSimpleError(response,
                             EuiccCardErrorException.OPERATION_LIST_NOTIFICATIONS);
@@ -926,7 +1033,7 @@ public class EuiccCard extends UiccCard {
                                 Asn1Node.newBuilder(Tags.TAG_RETRIEVE_NOTIFICATIONS_LIST)
                                         .addChild(Asn1Node.newBuilder(Tags.TAG_CTX_COMP_0)
                                                 .addChildAsBits(Tags.TAG_CTX_1, events))
-                                        .build().toHex())),
+                                        .build().toBytes())),
                 response -> {
                     Asn1Node root = parseResponse(response);
                     if (root.hasChild(Tags.TAG_CTX_1)) {
@@ -967,7 +1074,7 @@ public class EuiccCard extends UiccCard {
                                 Asn1Node.newBuilder(Tags.TAG_RETRIEVE_NOTIFICATIONS_LIST)
                                         .addChild(Asn1Node.newBuilder(Tags.TAG_CTX_COMP_0)
                                                 .addChildAsInteger(Tags.TAG_CTX_0, seqNumber))
-                                        .build().toHex())),
+                                        .build().toBytes())),
                 response -> {
                     Asn1Node root = parseResponseAndCheckSimpleError(response,
                             EuiccCardErrorException.OPERATION_RETRIEVE_NOTIFICATION);
@@ -995,7 +1102,7 @@ public class EuiccCard extends UiccCard {
                         requestBuilder.addStoreData(
                                 Asn1Node.newBuilder(Tags.TAG_REMOVE_NOTIFICATION_FROM_LIST)
                                         .addChildAsInteger(Tags.TAG_CTX_0, seqNumber)
-                                        .build().toHex())),
+                                        .build().toBytes())),
                 response -> {
                     // SGP.22 v2.0 NotificationSentResponse
                     int result = parseSimpleResult(response);
@@ -1184,9 +1291,21 @@ public class EuiccCard extends UiccCard {
     private <T> void sendApdu(RequestProvider requestBuilder,
             ApduResponseHandler<T> responseHandler, AsyncResultCallback<T> callback,
             Handler handler) {
+        sendApdu(requestBuilder, responseHandler, callback, handler, ApduSender.PRIORITY_NORMAL);
+    }
+
+    /**
+     * Same as {@link #sendApdu(RequestProvider, ApduResponseHandler, AsyncResultCallback,
+     * Handler)}, queued with the given priority if the logical channel is busy.
+     *
+     * @param priority {@link ApduSender#PRIORITY_NORMAL} or {@link ApduSender#PRIORITY_HIGH}.
+     */
+    private <T> void sendApdu(RequestProvider requestBuilder,
+            ApduResponseHandler<T> responseHandler, AsyncResultCallback<T> callback,
+            Handler handler, int priority) {
         sendApdu(requestBuilder, responseHandler,
                 (e) -> callback.onException(new EuiccCardException("Cannot send APDU.", e)),
-                null, callback, handler);
+                null, callback, handler, priority);
     }
 
     private <T> void sendApdu(RequestProvider requestBuilder,
@@ -1195,7 +1314,7 @@ public class EuiccCard extends UiccCard {
             AsyncResultCallback<T> callback, Handler handler) {
         sendApdu(requestBuilder, responseHandler,
                 (e) -> callback.onException(new EuiccCardException("Cannot send APDU.", e)),
-                intermediateResultHandler, callback, handler);
+                intermediateResultHandler, callback, handler, ApduSender.PRIORITY_NORMAL);
     }
 
     /**
@@ -1218,7 +1337,7 @@ public class EuiccCard extends UiccCard {
             } else {
                 callback.onException(new EuiccCardException("Cannot send APDU.", e));
             }
-        }, null, callback, handler);
+        }, null, callback, handler, ApduSender.PRIORITY_NORMAL);
     }
 
     private <T> void sendApdu(RequestProvider requestBuilder,
@@ -1226,7 +1345,8 @@ public class EuiccCard extends UiccCard {
             ApduExceptionHandler exceptionHandler,
             @Nullable ApduIntermediateResultHandler intermediateResultHandler,
             AsyncResultCallback<T> callback,
-            Handler handler) {
+            Handler handler,
+            int priority) {
         mApduSender.send(requestBuilder, new ApduSenderResultCallback() {
             @Override
             public void onResult(byte[] response) {
@@ -1252,7 +1372,7 @@ public class EuiccCard extends UiccCard {
             public void onException(Throwable e) {
                 exceptionHandler.handleException(e);
             }
-        }, handler);
+        }, handler, priority);
     }
 
     private static void buildProfile(Asn1Node profileNode, EuiccProfileInfo.Builder profileBuilder)
@@ -1406,6 +1526,57 @@ public class EuiccCard extends UiccCard {
         return root;
     }
 
+    /** Drops the cached profiles and Rules Authorisation Table. */
+    private void invalidateCache() {
+        synchronized (mLock) {
+            mCachedProfiles = null;
+            mCachedRulesAuthTable = null;
+            mCacheGeneration++;
+            mCacheInvalidations++;
+        }
+    }
+
+    /**
+     * Invalidates the cache now, and again once an operation changing the profiles completes,
+     * whatever its result, so that no read overlapping the operation is kept.
+     *
+     * @return the callback to pass to the operation in place of {@code callback}.
+     */
+    private <T> AsyncResultCallback<T> invalidateCacheOnCompletion(
+            AsyncResultCallback<T> callback) {
+        invalidateCache();
+        return new AsyncResultCallback<T>() {
+            @Override
+            public void onResult(T result) {
+                invalidateCache();
+                callback.onResult(result);
+            }
+
+            @Override
+            public void onException(Throwable e) {
+                invalidateCache();
+                callback.onException(e);
+            }
+        };
+    }
+
+    /** Returns the profile of {@code iccid} in {@code profiles}, or null. */
+    @Nullable
+    private static EuiccProfileInfo findProfile(EuiccProfileInfo[] profiles, String iccid) {
+        String strippedIccid = IccUtils.stripTrailingFs(iccid);
+        for (EuiccProfileInfo profile : profiles) {
+            if (profile != null && profile.getIccid().equalsIgnoreCase(strippedIccid)) {
+                return profile;
+            }
+        }
+        return null;
+    }
+
+    /** Returns the tag and length bytes of a node, without its data. */
+    private static byte[] getHead(Asn1Node node) {
+        return IccUtils.hexStringToBytes(node.getHeadAsHex());
+    }
+
     /** Strip all the trailing 'F' characters of an iccId. */
     private static String stripTrailingFs(byte[] iccId) {
         return IccUtils.stripTrailingFs(IccUtils.bchToString(iccId, 0, iccId.length));
@@ -1442,5 +1613,15 @@ public class EuiccCard extends UiccCard {
         super.dump(fd, pw, args);
         pw.println("EuiccCard:");
         pw.println(" mEid=" + mEid);
+        synchronized (mLock) {
+            pw.println(" cachedProfiles=" + (mCachedProfiles != null ? mCachedProfiles.length : -1)
+                    + " cachedRulesAuthTable=" + (mCachedRulesAuthTable != null)
+                    + " invalidations=" + mCacheInvalidations);
+            pw.println(" profiles hits=" + mProfilesCacheHits + " misses=" + mProfilesCacheMisses
+                    + " rulesAuthTable hits=" + mRulesAuthTableCacheHits
+                    + " misses=" + mRulesAuthTableCacheMisses
+                    + " eid hits=" + mEidCacheHits + " misses=" + mEidCacheMisses);
+        }
+        mApduSender.dump(pw);
     }
 }
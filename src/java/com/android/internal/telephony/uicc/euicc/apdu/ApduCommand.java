@@ -16,6 +16,10 @@
 
 package com.android.internal.telephony.uicc.euicc.apdu;
 
+import com.android.internal.telephony.uicc.IccUtils;
+
+import java.util.Arrays;
+
 /**
  * Parts of an APDU command.
  *
@@ -40,8 +44,20 @@ class ApduCommand {
     /** Parameter 3 of an APDU as defined in GlobalPlatform Card Specification v.2.3. */
     public final int p3;
 
-    /** Command data of an APDU as defined in GlobalPlatform Card Specification v.2.3. */
-    public final String cmdHex;
+    /**
+     * Command data of an APDU as defined in GlobalPlatform Card Specification v.2.3, the
+     * {@link #cmdLength} bytes from {@link #cmdOffset}. Null if the command was given in hex.
+     */
+    public final byte[] cmd;
+
+    /** Offset of the command data in {@link #cmd}. */
+    public final int cmdOffset;
+
+    /** Length of the command data in {@link #cmd}. */
+    public final int cmdLength;
+
+    // Command data given in hex, or converted to hex when the command is sent
+    private String mCmdHex;
 
     /** The parameters are defined as in GlobalPlatform Card Specification v.2.3. */
     ApduCommand(int channel, int cla, int ins, int p1, int p2, int p3, String cmdHex) {
@@ -51,12 +67,44 @@ class ApduCommand {
         this.p1 = p1;
         this.p2 = p2;
         this.p3 = p3;
-        this.cmdHex = cmdHex;
+        this.cmd = null;
+        this.cmdOffset = 0;
+        this.cmdLength = 0;
+        mCmdHex = cmdHex;
+    }
+
+    /**
+     * The parameters are defined as in GlobalPlatform Card Specification v.2.3. The command data
+     * is the {@code cmdLength} bytes of {@code cmd} from {@code cmdOffset}, which are not copied.
+     */
+    ApduCommand(int channel, int cla, int ins, int p1, int p2, int p3, byte[] cmd, int cmdOffset,
+            int cmdLength) {
+        this.channel = channel;
+        this.cla = cla;
+        this.ins = ins;
+        this.p1 = p1;
+        this.p2 = p2;
+        this.p3 = p3;
+        this.cmd = cmd;
+        this.cmdOffset = cmdOffset;
+        this.cmdLength = cmdLength;
+    }
+
+    /**
+     * Returns the command data in hex, as required by the RIL. Command data given in bytes is
+     * only converted here, segment by segment, right before the command is sent.
+     */
+    public String getCmdHex() {
+        if (mCmdHex == null && cmd != null) {
+            mCmdHex = IccUtils.bytesToHexString(cmdOffset == 0 && cmdLength == cmd.length
+                    ? cmd : Arrays.copyOfRange(cmd, cmdOffset, cmdOffset + cmdLength));
+        }
+        return mCmdHex;
     }
 
     @Override
     public String toString() {
         return "ApduCommand(channel=" + channel + ", cla=" + cla + ", ins=" + ins + ", p1=" + p1
-                + ", p2=" + p2 + ", p3=" + p3 + ", cmd=" + cmdHex + ")";
+                + ", p2=" + p2 + ", p3=" + p3 + ", cmd=" + getCmdHex() + ")";
     }
 }
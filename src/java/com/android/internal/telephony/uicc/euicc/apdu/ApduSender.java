@@ -18,30 +18,44 @@ package com.android.internal.telephony.uicc.euicc.apdu;
 
 import android.annotation.Nullable;
 import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.telephony.IccOpenLogicalChannelResponse;
 import android.telephony.Rlog;
 
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.CommandsInterface;
 import com.android.internal.telephony.uicc.IccIoResult;
 import com.android.internal.telephony.uicc.euicc.async.AsyncResultCallback;
-import com.android.internal.telephony.uicc.euicc.async.AsyncResultHelper;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.PriorityQueue;
 
 /**
  * This class sends a list of APDU commands to an AID on a UICC. A logical channel will be opened
- * before sending and closed after all APDU commands are sent. The complete response of the last
- * APDU command will be returned. If any APDU command returns an error status (other than
- * {@link #STATUS_NO_ERROR}) or causing an exception, an {@link ApduException} will be returned
- * immediately without sending the rest of commands. This class is thread-safe.
+ * before sending, and is kept open for the next operations until it has been idle for the given
+ * idle timeout. The complete response of the last APDU command will be returned. If any APDU
+ * command returns an error status (other than {@link #STATUS_NO_ERROR}) or causing an exception,
+ * an {@link ApduException} will be returned immediately without sending the rest of commands, and
+ * the logical channel will be closed. This class is thread-safe.
+ *
+ * <p>Only a single logical channel is opened at any time for the AID. Operations sent while
+ * another one is in progress are queued, by priority and then in the order they are sent, and
+ * run one after another on the same logical channel.
  *
  * @hide
  */
 public class ApduSender {
     private static final String LOG_TAG = "ApduSender";
 
+    /** Priority of most operations. */
+    public static final int PRIORITY_NORMAL = 0;
+    /** Priority of operations which should run before the queued normal ones. */
+    public static final int PRIORITY_HIGH = 1;
+
     // Parameter and response used by the command to get extra responses of an APDU command.
     private static final int INS_GET_MORE_RESPONSE = 0xC0;
     private static final int SW1_MORE_RESPONSE = 0x61;
@@ -54,52 +68,170 @@ public class ApduSender {
         Rlog.v(LOG_TAG, msg);
     }
 
+    /** An operation sent with {@link #send}. */
+    private static final class Operation {
+        final RequestProvider mRequestProvider;
+        final ApduSenderResultCallback mResultCallback;
+        final Handler mHandler;
+        final int mPriority;
+        final long mSequence;
+        final long mSendTime;
+        long mStartTime;
+
+        Operation(RequestProvider requestProvider, ApduSenderResultCallback resultCallback,
+                Handler handler, int priority, long sequence) {
+            mRequestProvider = requestProvider;
+            mResultCallback = resultCallback;
+            mHandler = handler;
+            mPriority = priority;
+            mSequence = sequence;
+            mSendTime = SystemClock.elapsedRealtime();
+        }
+    }
+
     private final String mAid;
     private final boolean mSupportExtendedApdu;
+    private final long mIdleTimeoutMs;
     private final OpenLogicalChannelInvocation mOpenChannel;
     private final CloseLogicalChannelInvocation mCloseChannel;
     private final TransmitApduLogicalChannelInvocation mTransmitApdu;
 
-    // Lock for accessing mChannelOpened. We only allow to open a single logical channel at any
-    // time for an AID.
+    // Lock for accessing the channel session. We only allow to open a single logical channel at
+    // any time for an AID.
     private final Object mChannelLock = new Object();
-    private boolean mChannelOpened;
+    @GuardedBy("mChannelLock")
+    private final PriorityQueue<Operation> mQueue = new PriorityQueue<>(
+            (op1, op2) -> op1.mPriority != op2.mPriority
+                    ? Integer.compare(op2.mPriority, op1.mPriority)
+                    : Long.compare(op1.mSequence, op2.mSequence));
+    @GuardedBy("mChannelLock")
+    private long mNextSequence;
+    // Whether an operation is running, or the channel is being closed
+    @GuardedBy("mChannelLock")
+    private boolean mBusy;
+    @GuardedBy("mChannelLock")
+    private int mChannel = IccOpenLogicalChannelResponse.INVALID_CHANNEL;
+    @GuardedBy("mChannelLock")
+    private byte[] mSelectResponse;
+    // The handler the idle channel will be closed on, if the close is scheduled
+    @GuardedBy("mChannelLock")
+    private Handler mIdleHandler;
+    private final Runnable mCloseIdleChannel = this::closeIdleChannel;
+
+    // Metrics
+    @GuardedBy("mChannelLock")
+    private int mOperationCount;
+    @GuardedBy("mChannelLock")
+    private int mChannelOpenCount;
+    @GuardedBy("mChannelLock")
+    private long mTotalQueueWaitMs;
+    @GuardedBy("mChannelLock")
+    private long mMaxQueueWaitMs;
+    @GuardedBy("mChannelLock")
+    private long mTotalCardTimeMs;
+    @GuardedBy("mChannelLock")
+    private long mMaxCardTimeMs;
 
     /**
      * @param aid The AID that will be used to open a logical channel to.
      */
     public ApduSender(CommandsInterface ci, String aid, boolean supportExtendedApdu) {
+        this(ci, aid, supportExtendedApdu, 0 /* idleTimeoutMs */);
+    }
+
+    /**
+     * @param aid The AID that will be used to open a logical channel to.
+     * @param idleTimeoutMs How long the logical channel is kept open after the last operation. If
+     *     it's 0, the logical channel is closed as soon as no operation is queued.
+     */
+    public ApduSender(CommandsInterface ci, String aid, boolean supportExtendedApdu,
+            long idleTimeoutMs) {
         mAid = aid;
         mSupportExtendedApdu = supportExtendedApdu;
+        mIdleTimeoutMs = idleTimeoutMs;
         mOpenChannel = new OpenLogicalChannelInvocation(ci);
         mCloseChannel = new CloseLogicalChannelInvocation(ci);
         mTransmitApdu = new TransmitApduLogicalChannelInvocation(ci);
     }
 
+    /**
+     * Sends APDU commands with {@link #PRIORITY_NORMAL}.
+     *
+     * @see #send(RequestProvider, ApduSenderResultCallback, Handler, int)
+     */
+    public void send(
+            RequestProvider requestProvider,
+            ApduSenderResultCallback resultCallback,
+            Handler handler) {
+        send(requestProvider, resultCallback, handler, PRIORITY_NORMAL);
+    }
+
     /**
      * Sends APDU commands.
      *
-     * @param requestProvider Will be called after a logical channel is opened successfully. This is
-     *     in charge of building a request with all APDU commands to be sent. This won't be called
-     *     if any error happens when opening a logical channel.
+     * @param requestProvider Will be called after a logical channel is opened successfully, or
+     *     when the operation is next on an already opened channel. This is in charge of building a
+     *     request with all APDU commands to be sent. This won't be called if any error happens
+     *     when opening a logical channel.
      * @param resultCallback Will be called after an error or the last APDU command has been
      *     executed. The result will be the full response of the last APDU command. Error will be
      *     returned as an {@link ApduException} exception.
      * @param handler The handler that {@code requestProvider} and {@code resultCallback} will be
      *     executed on.
+     * @param priority {@link #PRIORITY_NORMAL} or {@link #PRIORITY_HIGH}.
      */
     public void send(
             RequestProvider requestProvider,
             ApduSenderResultCallback resultCallback,
-            Handler handler) {
+            Handler handler,
+            int priority) {
+        synchronized (mChannelLock) {
+            mQueue.add(new Operation(requestProvider, resultCallback, handler, priority,
+                    mNextSequence++));
+            if (mBusy) {
+                logv("Queued, operations waiting: " + mQueue.size());
+                return;
+            }
+            mBusy = true;
+            if (mIdleHandler != null) {
+                mIdleHandler.removeCallbacks(mCloseIdleChannel);
+                mIdleHandler = null;
+            }
+        }
+        startNextOperation(handler);
+    }
+
+    /**
+     * Starts the next queued operation, or schedules closing the channel if there is none. Must
+     * only be called by the owner of the session, i.e. while {@link #mBusy} is set.
+     */
+    private void startNextOperation(Handler handler) {
+        Operation op;
+        int currentChannel;
+        byte[] selectResponse;
         synchronized (mChannelLock) {
-            if (mChannelOpened) {
-                AsyncResultHelper.throwException(
-                        new ApduException("Logical channel has already been opened."),
-                        resultCallback, handler);
+            op = mQueue.poll();
+            if (op == null) {
+                mBusy = false;
+                if (mChannel != IccOpenLogicalChannelResponse.INVALID_CHANNEL) {
+                    mIdleHandler = handler;
+                    handler.postDelayed(mCloseIdleChannel, mIdleTimeoutMs);
+                }
                 return;
             }
-            mChannelOpened = true;
+            currentChannel = mChannel;
+            selectResponse = mSelectResponse;
+        }
+        op.mStartTime = SystemClock.elapsedRealtime();
+
+        if (currentChannel != IccOpenLogicalChannelResponse.INVALID_CHANNEL) {
+            if (op.mHandler.getLooper() == Looper.myLooper()) {
+                runOperation(op, currentChannel, selectResponse);
+            } else {
+                // The request provider runs on the handler of its operation.
+                op.mHandler.post(() -> runOperation(op, currentChannel, selectResponse));
+            }
+            return;
         }
 
         mOpenChannel.invoke(mAid, new AsyncResultCallback<IccOpenLogicalChannelResponse>() {
@@ -109,47 +241,49 @@ public class ApduSender {
                 int status = openChannelResponse.getStatus();
                 if (channel == IccOpenLogicalChannelResponse.INVALID_CHANNEL
                         || status != IccOpenLogicalChannelResponse.STATUS_NO_ERROR) {
-                    synchronized (mChannelLock) {
-                        mChannelOpened = false;
-                    }
-                    resultCallback.onException(
+                    returnResult(op, null /* response */,
                             new ApduException("Failed to open logical channel opened for AID: "
                                     + mAid + ", with status: " + status));
+                    startNextOperation(op.mHandler);
                     return;
                 }
-
-                RequestBuilder builder = new RequestBuilder(channel, mSupportExtendedApdu);
-                Throwable requestException = null;
-                try {
-                    requestProvider.buildRequest(openChannelResponse.getSelectResponse(), builder);
-                } catch (Throwable e) {
-                    requestException = e;
-                }
-                if (builder.getCommands().isEmpty() || requestException != null) {
-                    // Just close the channel if we don't have commands to send or an error
-                    // was encountered.
-                    closeAndReturn(channel, null /* response */, requestException, resultCallback,
-                            handler);
-                    return;
+                synchronized (mChannelLock) {
+                    mChannel = channel;
+                    mSelectResponse = openChannelResponse.getSelectResponse();
+                    mChannelOpenCount++;
                 }
-                sendCommand(builder.getCommands(), 0 /* index */, resultCallback, handler);
+                runOperation(op, channel, openChannelResponse.getSelectResponse());
             }
-        }, handler);
+        }, op.mHandler);
+    }
+
+    private void runOperation(Operation op, int channel, byte[] selectResponse) {
+        RequestBuilder builder = new RequestBuilder(channel, mSupportExtendedApdu);
+        Throwable requestException = null;
+        try {
+            op.mRequestProvider.buildRequest(selectResponse, builder);
+        } catch (Throwable e) {
+            requestException = e;
+        }
+        if (builder.getCommands().isEmpty() || requestException != null) {
+            // Just finish if we don't have commands to send or an error was encountered.
+            finishOperation(op, channel, null /* response */, requestException,
+                    false /* closeChannel */);
+            return;
+        }
+        sendCommand(builder.getCommands(), 0 /* index */, op);
     }
 
     /**
      * Sends the current command and then continue to send the next one. If this is the last
-     * command or any error happens, {@code resultCallback} will be called.
+     * command or any error happens, the operation is finished.
      *
      * @param commands All commands to be sent.
      * @param index The current command index.
      */
-    private void sendCommand(
-            List<ApduCommand> commands,
-            int index,
-            ApduSenderResultCallback resultCallback,
-            Handler handler) {
+    private void sendCommand(List<ApduCommand> commands, int index, Operation op) {
         ApduCommand command = commands.get(index);
+        Handler handler = op.mHandler;
         mTransmitApdu.invoke(command, new AsyncResultCallback<IccIoResult>() {
             @Override
             public void onResult(IccIoResult response) {
@@ -162,22 +296,23 @@ public class ApduSender {
                                 logv("Full APDU response: " + fullResponse);
                                 int status = (fullResponse.sw1 << 8) | fullResponse.sw2;
                                 if (status != STATUS_NO_ERROR && fullResponse.sw1 != SW1_NO_ERROR) {
-                                    closeAndReturn(command.channel, null /* response */,
-                                            new ApduException(status), resultCallback, handler);
+                                    // The channel may not be usable after an error.
+                                    finishOperation(op, command.channel, null /* response */,
+                                            new ApduException(status), true /* closeChannel */);
                                     return;
                                 }
 
                                 boolean continueSendCommand = index < commands.size() - 1
                                         // Checks intermediate APDU result except the last one
-                                        && resultCallback.shouldContinueOnIntermediateResult(
+                                        && op.mResultCallback.shouldContinueOnIntermediateResult(
                                                 fullResponse);
                                 if (continueSendCommand) {
                                     // Sends the next command
-                                    sendCommand(commands, index + 1, resultCallback, handler);
+                                    sendCommand(commands, index + 1, op);
                                 } else {
                                     // Returns the result of the last command
-                                    closeAndReturn(command.channel, fullResponse.payload,
-                                            null /* exception */, resultCallback, handler);
+                                    finishOperation(op, command.channel, fullResponse.payload,
+                                            null /* exception */, false /* closeChannel */);
                                 }
                             }
                         }, handler);
@@ -189,27 +324,30 @@ public class ApduSender {
      * Gets the full response.
      *
      * @param lastResponse Will be checked to see if we need to fetch more.
-     * @param responseBuilder For continuously building the full response. It should not contain the
-     *     last response. If it's null, a new builder will be created.
+     * @param responseSegments For continuously building the full response. It should not contain
+     *     the last response. If it's null, a new list will be created.
      * @param resultCallback Error will be included in the result and no exception will be returned.
      */
     private void getCompleteResponse(
             int channel,
             IccIoResult lastResponse,
-            @Nullable ByteArrayOutputStream responseBuilder,
+            @Nullable List<byte[]> responseSegments,
             AsyncResultCallback<IccIoResult> resultCallback,
             Handler handler) {
-        ByteArrayOutputStream resultBuilder =
-                responseBuilder == null ? new ByteArrayOutputStream() : responseBuilder;
-        if (lastResponse.payload != null) {
-            try {
-                resultBuilder.write(lastResponse.payload);
-            } catch (IOException e) {
-                // Should never reach here.
+        if (responseSegments == null && lastResponse.sw1 != SW1_MORE_RESPONSE) {
+            // The response fits in one APDU, return its payload as is.
+            if (lastResponse.payload == null) {
+                lastResponse.payload = new byte[0];
             }
+            resultCallback.onResult(lastResponse);
+            return;
+        }
+        List<byte[]> segments = responseSegments == null ? new ArrayList<>() : responseSegments;
+        if (lastResponse.payload != null) {
+            segments.add(lastResponse.payload);
         }
         if (lastResponse.sw1 != SW1_MORE_RESPONSE) {
-            lastResponse.payload = resultBuilder.toByteArray();
+            lastResponse.payload = concat(segments);
             resultCallback.onResult(lastResponse);
             return;
         }
@@ -221,38 +359,153 @@ public class ApduSender {
                     @Override
                     public void onResult(IccIoResult response) {
                         getCompleteResponse(
-                                channel, response, resultBuilder, resultCallback, handler);
+                                channel, response, segments, resultCallback, handler);
                     }
                 }, handler);
     }
 
+    /** Concatenates the segments of a response, copying each of them once. */
+    private static byte[] concat(List<byte[]> segments) {
+        int length = 0;
+        for (byte[] segment : segments) {
+            length += segment.length;
+        }
+        byte[] result = new byte[length];
+        int offset = 0;
+        for (byte[] segment : segments) {
+            System.arraycopy(segment, 0, result, offset, segment.length);
+            offset += segment.length;
+        }
+        return result;
+    }
+
     /**
-     * Closes the opened logical channel.
+     * Finishes an operation and starts the next one. The channel is closed first if
+     * {@code closeChannel} is true, or if no operation is queued and there is no idle timeout.
      *
-     * @param response If {@code exception} is null, this will be returned to {@code resultCallback}
-     *     after the channel has been closed.
-     * @param exception If not null, this will be returned to {@code resultCallback} after the
-     *     channel has been closed.
+     * @param response If {@code exception} is null, this will be returned to the result callback.
+     * @param exception If not null, this will be returned to the result callback.
      */
-    private void closeAndReturn(
+    private void finishOperation(
+            Operation op,
             int channel,
             @Nullable byte[] response,
             @Nullable Throwable exception,
-            ApduSenderResultCallback resultCallback,
-            Handler handler) {
+            boolean closeChannel) {
+        boolean close;
+        synchronized (mChannelLock) {
+            close = closeChannel || (mQueue.isEmpty() && mIdleTimeoutMs <= 0);
+        }
+        if (!close) {
+            returnResult(op, response, exception);
+            startNextOperation(op.mHandler);
+            return;
+        }
+        closeChannel(channel, op.mHandler, () -> {
+            returnResult(op, response, exception);
+            startNextOperation(op.mHandler);
+        });
+    }
+
+    private void returnResult(Operation op, @Nullable byte[] response,
+            @Nullable Throwable exception) {
+        long now = SystemClock.elapsedRealtime();
+        long queueWaitMs = op.mStartTime - op.mSendTime;
+        long cardTimeMs = now - op.mStartTime;
+        logv("Operation done, queueWaitMs=" + queueWaitMs + ", cardTimeMs=" + cardTimeMs);
+        synchronized (mChannelLock) {
+            mOperationCount++;
+            mTotalQueueWaitMs += queueWaitMs;
+            mMaxQueueWaitMs = Math.max(mMaxQueueWaitMs, queueWaitMs);
+            mTotalCardTimeMs += cardTimeMs;
+            mMaxCardTimeMs = Math.max(mMaxCardTimeMs, cardTimeMs);
+        }
+
+        if (exception == null) {
+            op.mResultCallback.onResult(response);
+        } else {
+            op.mResultCallback.onException(exception);
+        }
+    }
+
+    /** Closes the channel once it has been idle for the idle timeout. */
+    private void closeIdleChannel() {
+        int channel;
+        Handler handler;
+        synchronized (mChannelLock) {
+            if (mBusy || mIdleHandler == null
+                    || mChannel == IccOpenLogicalChannelResponse.INVALID_CHANNEL) {
+                return;
+            }
+            mBusy = true;
+            channel = mChannel;
+            handler = mIdleHandler;
+            mIdleHandler = null;
+        }
+        closeChannel(channel, handler, () -> startNextOperation(handler));
+    }
+
+    /**
+     * Closes the opened logical channel.
+     *
+     * @param onClosed Will be run on {@code handler} after the channel has been closed.
+     */
+    private void closeChannel(int channel, Handler handler, Runnable onClosed) {
         mCloseChannel.invoke(channel, new AsyncResultCallback<Boolean>() {
             @Override
             public void onResult(Boolean aBoolean) {
                 synchronized (mChannelLock) {
-                    mChannelOpened = false;
-                }
-
-                if (exception == null) {
-                    resultCallback.onResult(response);
-                } else {
-                    resultCallback.onException(exception);
+                    mChannel = IccOpenLogicalChannelResponse.INVALID_CHANNEL;
+                    mSelectResponse = null;
                 }
+                onClosed.run();
             }
         }, handler);
     }
+
+    /**
+     * Forgets the logical channel kept open and cancels its scheduled close, e.g. when the card
+     * was reset or removed: the channel number may not be valid any more, or may have been
+     * given to another session. The next operation opens a new channel.
+     */
+    public void resetChannel() {
+        synchronized (mChannelLock) {
+            if (mIdleHandler != null) {
+                mIdleHandler.removeCallbacks(mCloseIdleChannel);
+                mIdleHandler = null;
+            }
+            mChannel = IccOpenLogicalChannelResponse.INVALID_CHANNEL;
+            mSelectResponse = null;
+        }
+    }
+
+    @VisibleForTesting
+    int getChannelOpenCount() {
+        synchronized (mChannelLock) {
+            return mChannelOpenCount;
+        }
+    }
+
+    @VisibleForTesting
+    int getOperationCount() {
+        synchronized (mChannelLock) {
+            return mOperationCount;
+        }
+    }
+
+    /** Dumps the channel session and the operation metrics. */
+    public void dump(PrintWriter pw) {
+        synchronized (mChannelLock) {
+            pw.println(" ApduSender: mAid=" + mAid + " mChannel=" + mChannel
+                    + " mIdleTimeoutMs=" + mIdleTimeoutMs + " queued=" + mQueue.size());
+            pw.println(" ApduSender: operations=" + mOperationCount
+                    + " channelOpens=" + mChannelOpenCount
+                    + " avgQueueWaitMs="
+                    + (mOperationCount > 0 ? mTotalQueueWaitMs / mOperationCount : 0)
+                    + " maxQueueWaitMs=" + mMaxQueueWaitMs
+                    + " avgCardTimeMs="
+                    + (mOperationCount > 0 ? mTotalCardTimeMs / mOperationCount : 0)
+                    + " maxCardTimeMs=" + mMaxCardTimeMs);
+        }
+    }
 }
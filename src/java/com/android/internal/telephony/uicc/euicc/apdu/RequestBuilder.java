@@ -59,6 +59,14 @@ public class RequestBuilder {
         mCommands.add(new ApduCommand(mChannel, cla, ins, p1, p2, cmdHex.length() / 2, cmdHex));
     }
 
+    /**
+     * Adds an APDU command with given command data. P3 will be the length of the command data
+     * bytes. The parameters are defined as in GlobalPlatform Card Specification v.2.3.
+     */
+    public void addApdu(int cla, int ins, int p1, int p2, byte[] cmd) {
+        mCommands.add(new ApduCommand(mChannel, cla, ins, p1, p2, cmd.length, cmd, 0, cmd.length));
+    }
+
     /**
      * Adds an APDU command with empty command data. The parameters are defined as in GlobalPlatform
      * Card Specification v.2.3.
@@ -88,6 +96,31 @@ public class RequestBuilder {
         addApdu(CLA_STORE_DATA, INS_STORE_DATA, P1_STORE_DATA_END, totalSubCmds - 1, data);
     }
 
+    /**
+     * Adds a STORE DATA command. Long command length of which is larger than {@link
+     * #mMaxApduDataLen} will be automatically split into multiple ones. The commands refer to the
+     * segments of {@code cmd} without copying them, so it must not be modified afterwards, and
+     * are only converted to hex when they are sent.
+     *
+     * @param cmd The STORE DATA command as defined in GlobalPlatform Card Specification v.2.3.
+     */
+    public void addStoreData(byte[] cmd) {
+        int startPos = 0;
+        int totalLen = cmd.length;
+        int totalSubCmds = totalLen == 0 ? 1 : (totalLen + mMaxApduDataLen - 1) / mMaxApduDataLen;
+        for (int i = 1; i < totalSubCmds; ++i) {
+            addStoreDataSegment(P1_STORE_DATA_INTERM, i - 1, cmd, startPos, mMaxApduDataLen);
+            startPos += mMaxApduDataLen;
+        }
+        addStoreDataSegment(P1_STORE_DATA_END, totalSubCmds - 1, cmd, startPos,
+                totalLen - startPos);
+    }
+
+    private void addStoreDataSegment(int p1, int p2, byte[] cmd, int offset, int length) {
+        mCommands.add(new ApduCommand(mChannel, CLA_STORE_DATA, INS_STORE_DATA, p1, p2, length,
+                cmd, offset, length));
+    }
+
     List<ApduCommand> getCommands() {
         return mCommands;
     }
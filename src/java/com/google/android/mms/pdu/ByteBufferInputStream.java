@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link ByteArrayInputStream} reading from a {@link ByteBuffer} instead of an array, so
+ * that {@link PduParser} can run over heap or memory-mapped buffers without copying them.
+ *
+ * The stream reads the buffer's content between its position and limit at the time it was
+ * created; the buffer itself is never modified.
+ *
+ * It only extends {@link ByteArrayInputStream} to be accepted by the parsing methods: the
+ * inherited {@code buf}, {@code pos}, {@code count} and {@code mark} fields are left empty, so
+ * the methods of {@link ByteArrayInputStream} reading the stream are overridden to use the
+ * buffer, and the class is final so that nothing can see those fields.
+ */
+final class ByteBufferInputStream extends ByteArrayInputStream {
+    private static final byte[] EMPTY = new byte[0];
+
+    private final ByteBuffer mBuffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+        super(EMPTY);
+        mBuffer = buffer.slice();
+        // Like ByteArrayInputStream, reset() without a mark returns to the start.
+        mBuffer.mark();
+    }
+
+    /**
+     * Return the next {@code length} bytes as a buffer sharing this stream's content, and
+     * skip past them.
+     *
+     * @return the slice, or null if fewer than {@code length} bytes are left, in which case
+     *         nothing is consumed.
+     */
+    ByteBuffer slice(int length) {
+        if (length < 0 || mBuffer.remaining() < length) {
+            return null;
+        }
+        ByteBuffer slice = mBuffer.slice();
+        slice.limit(length);
+        mBuffer.position(mBuffer.position() + length);
+        return slice;
+    }
+
+    @Override
+    public int read() {
+        return mBuffer.hasRemaining() ? (mBuffer.get() & 0xFF) : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (!mBuffer.hasRemaining()) {
+            return -1;
+        }
+        len = Math.min(len, mBuffer.remaining());
+        mBuffer.get(b, off, len);
+        return len;
+    }
+
+    @Override
+    public long skip(long n) {
+        int k = (int) Math.max(0, Math.min(n, mBuffer.remaining()));
+        mBuffer.position(mBuffer.position() + k);
+        return k;
+    }
+
+    @Override
+    public int available() {
+        return mBuffer.remaining();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public void mark(int readAheadLimit) {
+        mBuffer.mark();
+    }
+
+    @Override
+    public void reset() {
+        mBuffer.reset();
+    }
+}
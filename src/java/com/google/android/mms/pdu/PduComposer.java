@@ -19,6 +19,8 @@ package com.google.android.mms.pdu;
 
 import android.content.ContentResolver;
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
 import android.util.Log;
 import android.text.TextUtils;
 
@@ -26,6 +28,9 @@ import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 
@@ -102,6 +107,12 @@ public class PduComposer {
      */
     private BufferStack mStack = null;
 
+    /**
+     * Part data of known length, written out after composing instead of
+     * being copied through the buffer stack. Null if there is none.
+     */
+    private ArrayList<DataSegment> mDataSegments = null;
+
     /**
      * Content resolver.
      */
@@ -149,6 +160,53 @@ public class PduComposer {
      *         the PDU is invalid.
      */
     public byte[] make() {
+        if (compose() != PDU_COMPOSE_SUCCESS) {
+            return null;
+        }
+
+        if (mDataSegments == null) {
+            return mMessage.toByteArray();
+        }
+
+        // The size of the whole pdu is known, so write it once into an exactly sized array.
+        PresizedOutputStream out = new PresizedOutputStream(mPosition);
+        try {
+            if (!writeSegments(out)) {
+                return null;
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Make the message and write it to a stream, streaming part data from
+     * its Uri instead of holding it in memory.
+     *
+     * @param out the stream to write the message to
+     * @return true if the message was written, false if the PDU is invalid or
+     *         part data could not be read, in which case part of the message
+     *         may already have been written.
+     * @throws IOException if writing to the stream failed
+     */
+    public boolean make(OutputStream out) throws IOException {
+        if (compose() != PDU_COMPOSE_SUCCESS) {
+            return false;
+        }
+
+        if (mDataSegments == null) {
+            mMessage.writeTo(out);
+            return true;
+        }
+        return writeSegments(out);
+    }
+
+    /**
+     * Compose the message into mMessage, apart from the part data recorded in
+     * mDataSegments.
+     */
+    private int compose() {
         // Get Message-type.
         int type = mPdu.getMessageType();
 
@@ -156,30 +214,120 @@ public class PduComposer {
         switch (type) {
             case PduHeaders.MESSAGE_TYPE_SEND_REQ:
             case PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF:
-                if (makeSendRetrievePdu(type) != PDU_COMPOSE_SUCCESS) {
-                    return null;
-                }
-                break;
+                return makeSendRetrievePdu(type);
             case PduHeaders.MESSAGE_TYPE_NOTIFYRESP_IND:
-                if (makeNotifyResp() != PDU_COMPOSE_SUCCESS) {
-                    return null;
-                }
-                break;
+                return makeNotifyResp();
             case PduHeaders.MESSAGE_TYPE_ACKNOWLEDGE_IND:
-                if (makeAckInd() != PDU_COMPOSE_SUCCESS) {
-                    return null;
-                }
-                break;
+                return makeAckInd();
             case PduHeaders.MESSAGE_TYPE_READ_REC_IND:
-                if (makeReadRecInd() != PDU_COMPOSE_SUCCESS) {
-                    return null;
-                }
-                break;
+                return makeReadRecInd();
             default:
-                return null;
+                return PDU_COMPOSE_FIELD_NOT_SUPPORTED;
+        }
+    }
+
+    /**
+     * Write the composed message, with the recorded part data, to a stream.
+     *
+     * @return false if part data could not be read or did not have the
+     *         expected length.
+     */
+    private boolean writeSegments(OutputStream out) throws IOException {
+        for (DataSegment segment : mDataSegments) {
+            segment.preceding.writeTo(out);
+            if (!writePartData(segment.part, segment.length, out)) {
+                return false;
+            }
+        }
+        mMessage.writeTo(out);
+        return true;
+    }
+
+    private boolean writePartData(PduPart part, int length, OutputStream out)
+            throws IOException {
+        ByteBuffer data = part.peekDataBuffer();
+        if (data != null) {
+            if (data.remaining() != length) {
+                return false;
+            }
+            if (data.hasArray()) {
+                out.write(data.array(), data.arrayOffset() + data.position(), length);
+            } else {
+                byte[] buffer = new byte[PDU_COMPOSER_BLOCK_SIZE];
+                while (data.hasRemaining()) {
+                    int len = Math.min(buffer.length, data.remaining());
+                    data.get(buffer, 0, len);
+                    out.write(buffer, 0, len);
+                }
+            }
+            return true;
+        }
+
+        InputStream cr = null;
+        try {
+            byte[] buffer = new byte[PDU_COMPOSER_BLOCK_SIZE];
+            cr = mResolver.openInputStream(part.getDataUri());
+            int remaining = length;
+            int len = 0;
+            while ((len = cr.read(buffer)) != -1) {
+                if (len > remaining) {
+                    // The data has grown since its length was taken.
+                    return false;
+                }
+                out.write(buffer, 0, len);
+                remaining -= len;
+            }
+            return remaining == 0;
+        } catch (FileNotFoundException e) {
+            return false;
+        } catch (RuntimeException e) {
+            return false;
+        } finally {
+            if (cr != null) {
+                try {
+                    cr.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the length of the part data, or -1 if it is not known before
+     *         reading the data.
+     */
+    private int getPartDataLength(PduPart part) {
+        if (part.peekDataBuffer() != null) {
+            return part.getDataLength();
         }
 
-        return mMessage.toByteArray();
+        Uri uri = part.getDataUri();
+        if (uri == null) {
+            return -1;
+        }
+        AssetFileDescriptor afd = null;
+        try {
+            afd = mResolver.openAssetFileDescriptor(uri, "r");
+            if (afd == null) {
+                return -1;
+            }
+            long length = afd.getLength();
+            if (length == AssetFileDescriptor.UNKNOWN_LENGTH || length > Integer.MAX_VALUE) {
+                return -1;
+            }
+            return (int) length;
+        } catch (FileNotFoundException e) {
+            return -1;
+        } catch (RuntimeException e) {
+            return -1;
+        } finally {
+            if (afd != null) {
+                try {
+                    afd.close();
+                } catch (IOException e) {
+                }
+            }
+        }
     }
 
     /**
@@ -994,35 +1142,41 @@ public class PduComposer {
             // content
             int headerLength = attachment.getLength();
 
-            int dataLength = 0; // Just for safety...
-            byte[] partData = part.getData();
+            int dataLength = getPartDataLength(part);
+            if (dataLength >= 0) {
+                // With the data length known up front, only the part headers go
+                // through the buffer stack. The data is written by make().
+                mStack.pop();
+                appendUintvarInteger(headerLength);
+                appendUintvarInteger(dataLength);
+                mStack.copy();
+                addDataSegment(part, dataLength);
+                continue;
+            }
 
-            if (partData != null) {
-                arraycopy(partData, 0, partData.length);
-                dataLength = partData.length;
-            } else {
-                InputStream cr = null;
-                try {
-                    byte[] buffer = new byte[PDU_COMPOSER_BLOCK_SIZE];
-                    cr = mResolver.openInputStream(part.getDataUri());
-                    int len = 0;
-                    while ((len = cr.read(buffer)) != -1) {
-                        mMessage.write(buffer, 0, len);
-                        mPosition += len;
-                        dataLength += len;
-                    }
-                } catch (FileNotFoundException e) {
-                    return PDU_COMPOSE_CONTENT_ERROR;
-                } catch (IOException e) {
-                    return PDU_COMPOSE_CONTENT_ERROR;
-                } catch (RuntimeException e) {
-                    return PDU_COMPOSE_CONTENT_ERROR;
-                } finally {
-                    if (cr != null) {
-                        try {
-                            cr.close();
-                        } catch (IOException e) {
-                        }
+            // Data of unknown length goes through the buffer stack.
+            dataLength = 0; // Just for safety...
+            InputStream cr = null;
+            try {
+                byte[] buffer = new byte[PDU_COMPOSER_BLOCK_SIZE];
+                cr = mResolver.openInputStream(part.getDataUri());
+                int len = 0;
+                while ((len = cr.read(buffer)) != -1) {
+                    mMessage.write(buffer, 0, len);
+                    mPosition += len;
+                    dataLength += len;
+                }
+            } catch (FileNotFoundException e) {
+                return PDU_COMPOSE_CONTENT_ERROR;
+            } catch (IOException e) {
+                return PDU_COMPOSE_CONTENT_ERROR;
+            } catch (RuntimeException e) {
+                return PDU_COMPOSE_CONTENT_ERROR;
+            } finally {
+                if (cr != null) {
+                    try {
+                        cr.close();
+                    } catch (IOException e) {
                     }
                 }
             }
@@ -1040,6 +1194,68 @@ public class PduComposer {
         return PDU_COMPOSE_SUCCESS;
     }
 
+    /**
+     * Move the composed top level message into a new data segment followed by
+     * the part's data, and continue composing into a new buffer.
+     */
+    private void addDataSegment(PduPart part, int dataLength) {
+        if (mStack.stackSize != 0) {
+            throw new RuntimeException("BUG: Invalid call to addDataSegment()");
+        }
+        if (mDataSegments == null) {
+            mDataSegments = new ArrayList<DataSegment>();
+        }
+
+        DataSegment segment = new DataSegment();
+        segment.preceding = mMessage;
+        segment.part = part;
+        segment.length = dataLength;
+        mDataSegments.add(segment);
+
+        mMessage = new ByteArrayOutputStream();
+        mPosition += dataLength;
+    }
+
+    /**
+     *  Composed message followed by part data.
+     */
+    static private class DataSegment {
+        ByteArrayOutputStream preceding = null;
+        PduPart part = null;
+        int length = 0;
+    }
+
+    /**
+     * Output stream writing into an array of the final message size, so that
+     * the message is not copied once more when it is complete.
+     */
+    static private class PresizedOutputStream extends OutputStream {
+        private final byte[] mBuf;
+        private int mCount = 0;
+
+        PresizedOutputStream(int size) {
+            mBuf = new byte[size];
+        }
+
+        @Override
+        public void write(int b) {
+            mBuf[mCount++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            System.arraycopy(b, off, mBuf, mCount, len);
+            mCount += len;
+        }
+
+        byte[] toByteArray() {
+            if (mCount != mBuf.length) {
+                throw new RuntimeException("BUG: Length sanity check failed");
+            }
+            return mBuf;
+        }
+    }
+
     /**
      *  Record current message informations.
      */
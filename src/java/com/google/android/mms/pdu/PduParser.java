@@ -25,6 +25,7 @@ import com.google.android.mms.InvalidHeaderValueException;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.HashMap;
 
@@ -101,6 +102,21 @@ public class PduParser {
         mParseContentDisposition = parseContentDisposition;
     }
 
+    /**
+     * Constructor for parsing a pdu held in a buffer, e.g. a memory-mapped file.
+     *
+     * The pdu is read between the buffer's position and limit, without copying it. Part data
+     * which needs no decoding is kept as a slice of the buffer, and only copied when it is
+     * asked for, so the buffer's content must not change while the parsed pdu is in use.
+     *
+     * @param pduData pdu data to be parsed
+     * @param parseContentDisposition whether to parse the Content-Disposition part header
+     */
+    public PduParser(ByteBuffer pduData, boolean parseContentDisposition) {
+        mPduDataStream = new ByteBufferInputStream(pduData);
+        mParseContentDisposition = parseContentDisposition;
+    }
+
     /**
      * Parse the pdu.
      *
@@ -897,12 +913,22 @@ public class PduParser {
 
             /* get part's data */
             if (dataLength > 0) {
-                byte[] partData = new byte[dataLength];
+                // Over a buffer, take the data as a slice instead of copying it.
+                ByteBuffer partBuffer = null;
+                byte[] partData = null;
+                if (pduDataStream instanceof ByteBufferInputStream) {
+                    partBuffer = ((ByteBufferInputStream) pduDataStream).slice(dataLength);
+                }
+                if (null == partBuffer) {
+                    partData = new byte[dataLength];
+                    pduDataStream.read(partData, 0, dataLength);
+                }
                 String partContentType = new String(part.getContentType());
-                pduDataStream.read(partData, 0, dataLength);
                 if (partContentType.equalsIgnoreCase(ContentType.MULTIPART_ALTERNATIVE)) {
                     // parse "multipart/vnd.wap.multipart.alternative".
-                    PduBody childBody = parseParts(new ByteArrayInputStream(partData));
+                    PduBody childBody = parseParts(null != partBuffer
+                            ? new ByteBufferInputStream(partBuffer)
+                            : new ByteArrayInputStream(partData));
                     // take the first part of children.
                     part = childBody.getPart(0);
                 } else {
@@ -912,19 +938,25 @@ public class PduParser {
                         String encoding = new String(partDataEncoding);
                         if (encoding.equalsIgnoreCase(PduPart.P_BASE64)) {
                             // Decode "base64" into "binary".
-                            partData = Base64.decodeBase64(partData);
+                            partData = Base64.decodeBase64(toByteArray(partData, partBuffer));
+                            partBuffer = null;
                         } else if (encoding.equalsIgnoreCase(PduPart.P_QUOTED_PRINTABLE)) {
                             // Decode "quoted-printable" into "binary".
-                            partData = QuotedPrintable.decodeQuotedPrintable(partData);
+                            partData = QuotedPrintable.decodeQuotedPrintable(
+                                    toByteArray(partData, partBuffer));
+                            partBuffer = null;
                         } else {
                             // "binary" is the default encoding.
                         }
                     }
-                    if (null == partData) {
+                    if (null != partBuffer) {
+                        part.setDataBuffer(partBuffer);
+                    } else if (null == partData) {
                         log("Decode part data error!");
                         return null;
+                    } else {
+                        part.setData(partData);
                     }
-                    part.setData(partData);
                 }
             }
 
@@ -941,6 +973,15 @@ public class PduParser {
         return body;
     }
 
+    private static byte[] toByteArray(byte[] data, ByteBuffer buffer) {
+        if (null == buffer) {
+            return data;
+        }
+        byte[] array = new byte[buffer.remaining()];
+        buffer.duplicate().get(array);
+        return array;
+    }
+
     /**
      * Log status.
      *
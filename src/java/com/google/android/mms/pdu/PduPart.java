@@ -19,6 +19,7 @@ package com.google.android.mms.pdu;
 
 import android.net.Uri;
 
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -119,6 +120,11 @@ public class PduPart {
       */
      private byte[] mPartData = null;
 
+     /**
+      * Part data as a slice of the parsed pdu, copied only when asked for.
+      */
+     private ByteBuffer mPartDataBuffer = null;
+
      private static final String TAG = "PduPart";
 
      /**
@@ -140,6 +146,22 @@ public class PduPart {
 
          mPartData = new byte[data.length];
          System.arraycopy(data, 0, mPartData, 0, data.length);
+         mPartDataBuffer = null;
+     }
+
+     /**
+      * Set part data without copying it. The buffer's content between its
+      * position and limit is the data, and must not change afterwards.
+      *
+      * @param data the data
+      */
+     void setDataBuffer(ByteBuffer data) {
+         if(data == null) {
+            return;
+        }
+
+         mPartDataBuffer = data.slice();
+         mPartData = null;
      }
 
      /**
@@ -148,6 +170,11 @@ public class PduPart {
       * @see #getDataUri
       */
      public byte[] getData() {
+         if(mPartDataBuffer != null) {
+             byte[] byteArray = new byte[mPartDataBuffer.remaining()];
+             mPartDataBuffer.duplicate().get(byteArray);
+             return byteArray;
+         }
          if(mPartData == null) {
             return null;
          }
@@ -157,11 +184,41 @@ public class PduPart {
          return byteArray;
      }
 
+     /**
+      * @return A read-only view of the part data, without copying it, or null
+      *         if the data wasn't set or the data is stored as Uri.
+      */
+     public ByteBuffer getDataBuffer() {
+         if(mPartDataBuffer != null) {
+             return mPartDataBuffer.asReadOnlyBuffer();
+         }
+         if(mPartData == null) {
+            return null;
+         }
+         return ByteBuffer.wrap(mPartData).asReadOnlyBuffer();
+     }
+
+     /**
+      * @return A view of the part data without copying it, or null. Callers
+      *         must not modify the data.
+      */
+     ByteBuffer peekDataBuffer() {
+         if(mPartDataBuffer != null) {
+             return mPartDataBuffer.duplicate();
+         }
+         if(mPartData == null) {
+            return null;
+         }
+         return ByteBuffer.wrap(mPartData);
+     }
+
     /**
      * @return The length of the data, if this object have data, else 0.
      */
      public int getDataLength() {
-         if(mPartData != null){
+         if(mPartDataBuffer != null) {
+             return mPartDataBuffer.remaining();
+         } else if(mPartData != null){
              return mPartData.length;
          } else {
              return 0;
@@ -17,6 +17,8 @@
 
 package com.google.android.mms.pdu;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
@@ -26,6 +28,7 @@ import android.database.DatabaseUtils;
 import android.drm.DrmManagerClient;
 import android.net.Uri;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.provider.Telephony;
 import android.provider.Telephony.Mms;
 import android.provider.Telephony.Mms.Addr;
@@ -50,12 +53,17 @@ import com.google.android.mms.util.SqliteWrapper;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -72,6 +80,21 @@ public class PduPersister {
 
     private static final long DUMMY_THREAD_ID = Long.MAX_VALUE;
 
+    /**
+     * Authority of the MMS provider, for batched operations.
+     */
+    private static final String MMS_AUTHORITY = "mms";
+
+    /**
+     * Size of the buffer used to copy part data.
+     */
+    private static final int COPY_BUFFER_SIZE = 8192;
+
+    /**
+     * persist() calls slower than this are logged.
+     */
+    private static final long SLOW_PERSIST_THRESHOLD_MS = 500;
+
     /**
      * The uri of temporary drm objects.
      */
@@ -280,6 +303,13 @@ public class PduPersister {
     private final DrmManagerClient mDrmManagerClient;
     private final TelephonyManager mTelephonyManager;
 
+    // persist() latency statistics.
+    private final Object mPersistStatsLock = new Object();
+    private int mPersistCount;
+    private long mPersistTotalMillis;
+    private long mPersistMaxMillis;
+    private long mLastPersistMillis;
+
     private PduPersister(Context context) {
         mContext = context;
         mContentResolver = context.getContentResolver();
@@ -372,6 +402,8 @@ public class PduPersister {
             int partCount = c.getCount();
             int partIdx = 0;
             parts = new PduPart[partCount];
+            // Copy buffer shared by all parts, allocated on first use.
+            byte[] buffer = null;
             while (c.moveToNext()) {
                 PduPart part = new PduPart();
                 Integer charset = getIntegerFromPartColumn(
@@ -429,7 +461,6 @@ public class PduPersister {
                 if (!ContentType.isImageType(type)
                         && !ContentType.isAudioType(type)
                         && !ContentType.isVideoType(type)) {
-                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
                     InputStream is = null;
 
                     // Store simple string values directly in the database instead of an
@@ -440,18 +471,15 @@ public class PduPersister {
                         String text = c.getString(PART_COLUMN_TEXT);
                         byte [] blob = new EncodedStringValue(text != null ? text : "")
                             .getTextString();
-                        baos.write(blob, 0, blob.length);
+                        part.setDataBuffer(ByteBuffer.wrap(blob));
                     } else {
 
                         try {
                             is = mContentResolver.openInputStream(partURI);
-
-                            byte[] buffer = new byte[256];
-                            int len = is.read(buffer);
-                            while (len >= 0) {
-                                baos.write(buffer, 0, len);
-                                len = is.read(buffer);
+                            if (buffer == null) {
+                                buffer = new byte[COPY_BUFFER_SIZE];
                             }
+                            part.setDataBuffer(ByteBuffer.wrap(readFully(is, buffer)));
                         } catch (IOException e) {
                             Log.e(TAG, "Failed to load part data", e);
                             c.close();
@@ -466,7 +494,6 @@ public class PduPersister {
                             }
                         }
                     }
-                    part.setData(baos.toByteArray());
                 }
                 parts[partIdx++] = part;
             }
@@ -479,6 +506,61 @@ public class PduPersister {
         return parts;
     }
 
+    /**
+     * Read a stream to its end. A file's data is read straight into an array
+     * of its size; otherwise it is read through the given buffer.
+     */
+    private static byte[] readFully(InputStream is, byte[] buffer) throws IOException {
+        if (is instanceof FileInputStream) {
+            long size = getChannelSize(((FileInputStream) is).getChannel());
+            if (size > 0 && size < Integer.MAX_VALUE) {
+                byte[] data = new byte[(int) size];
+                int count = 0;
+                int len;
+                while (count < data.length
+                        && (len = is.read(data, count, data.length - count)) != -1) {
+                    count += len;
+                }
+                if (count < data.length) {
+                    // The file shrank while reading it.
+                    return Arrays.copyOf(data, count);
+                }
+                int next = is.read();
+                if (next == -1) {
+                    return data;
+                }
+                // The file grew while reading it; keep what was read and go on.
+                ByteArrayOutputStream baos = new ByteArrayOutputStream(count + buffer.length);
+                baos.write(data, 0, count);
+                baos.write(next);
+                return readFully(is, buffer, baos);
+            }
+        }
+        return readFully(is, buffer, new ByteArrayOutputStream());
+    }
+
+    private static byte[] readFully(InputStream is, byte[] buffer, ByteArrayOutputStream baos)
+            throws IOException {
+        int len = is.read(buffer);
+        while (len >= 0) {
+            baos.write(buffer, 0, len);
+            len = is.read(buffer);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * @return the size of the file behind the channel, or 0 if it is not a
+     *         regular file.
+     */
+    private static long getChannelSize(FileChannel channel) {
+        try {
+            return channel.size();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
     private void loadAddress(long msgId, PduHeaders headers) {
         Cursor c = SqliteWrapper.query(mContext, mContentResolver,
                 Uri.parse("content://mms/" + msgId + "/addr"),
@@ -679,19 +761,45 @@ public class PduPersister {
         return pdu;
     }
 
-    private void persistAddress(
+    /**
+     * Add the operations inserting the given addresses to a batch.
+     */
+    private static void addPersistAddressOperations(ArrayList<ContentProviderOperation> ops,
             long msgId, int type, EncodedStringValue[] array) {
-        ContentValues values = new ContentValues(3);
-
+        Uri uri = Uri.parse("content://mms/" + msgId + "/addr");
         for (EncodedStringValue addr : array) {
-            values.clear(); // Clear all values first.
-            values.put(Addr.ADDRESS, toIsoString(addr.getTextString()));
-            values.put(Addr.CHARSET, addr.getCharacterSet());
-            values.put(Addr.TYPE, type);
+            ops.add(ContentProviderOperation.newInsert(uri)
+                    .withValues(getAddressValues(addr, type))
+                    .build());
+        }
+    }
+
+    private static ContentValues getAddressValues(EncodedStringValue addr, int type) {
+        ContentValues values = new ContentValues(3);
+        values.put(Addr.ADDRESS, toIsoString(addr.getTextString()));
+        values.put(Addr.CHARSET, addr.getCharacterSet());
+        values.put(Addr.TYPE, type);
+        return values;
+    }
 
-            Uri uri = Uri.parse("content://mms/" + msgId + "/addr");
-            SqliteWrapper.insert(mContext, mContentResolver, uri, values);
+    /**
+     * Apply a batch of operations to the MMS provider.
+     *
+     * @return the results, one per operation.
+     * @throws MmsException if the batch failed or was only partly applied.
+     */
+    private ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> ops)
+            throws MmsException {
+        if (ops.isEmpty()) {
+            return new ContentProviderResult[0];
         }
+        ContentProviderResult[] results =
+                SqliteWrapper.applyBatch(mContext, mContentResolver, MMS_AUTHORITY, ops);
+        if (results == null || results.length != ops.size()) {
+            throw new MmsException("Failed to apply " + ops.size() + " operations, "
+                    + (results == null ? "return null." : "applied " + results.length + "."));
+        }
+        return results;
     }
 
     private static String getPartContentType(PduPart part) {
@@ -701,6 +809,68 @@ public class PduPersister {
     public Uri persistPart(PduPart part, long msgId, HashMap<Uri, InputStream> preOpenedFiles)
             throws MmsException {
         Uri uri = Uri.parse("content://mms/" + msgId + "/part");
+        ContentValues values = getPartValues(part);
+
+        Uri res = SqliteWrapper.insert(mContext, mContentResolver, uri, values);
+        if (res == null) {
+            throw new MmsException("Failed to persist part, return null.");
+        }
+
+        try {
+            persistData(part, res, values.getAsString(Part.CONTENT_TYPE), preOpenedFiles, null);
+        } catch (MmsException e) {
+            // Do not leave a part without its data behind.
+            SqliteWrapper.delete(mContext, mContentResolver, res, null, null);
+            throw e;
+        }
+        // After successfully store the data, we should update
+        // the dataUri of the part.
+        part.setDataUri(res);
+
+        return res;
+    }
+
+    /**
+     * Persist all parts of a message, inserting their rows with a single
+     * provider call. The rows belong to {@code msgId}, a dummy ID which the
+     * caller must replace once the message is saved, or delete the parts of
+     * if anything fails.
+     */
+    private void persistParts(PduBody body, long msgId,
+            HashMap<Uri, InputStream> preOpenedFiles) throws MmsException {
+        int partsNum = body.getPartsNum();
+        Uri uri = Uri.parse("content://mms/" + msgId + "/part");
+        ArrayList<ContentProviderOperation> ops =
+                new ArrayList<ContentProviderOperation>(partsNum);
+        String[] contentTypes = new String[partsNum];
+        for (int i = 0; i < partsNum; i++) {
+            ContentValues values = getPartValues(body.getPart(i));
+            contentTypes[i] = values.getAsString(Part.CONTENT_TYPE);
+            ops.add(ContentProviderOperation.newInsert(uri).withValues(values).build());
+        }
+
+        ContentProviderResult[] results = applyBatch(ops);
+
+        // Copy buffer shared by all parts, allocated on first use.
+        byte[] buffer = null;
+        for (int i = 0; i < partsNum; i++) {
+            PduPart part = body.getPart(i);
+            Uri res = results[i].uri;
+            if (res == null) {
+                throw new MmsException("Failed to persist part, return null.");
+            }
+            if (buffer == null && part.peekDataBuffer() == null && part.getDataUri() != null) {
+                // Only data read from another uri goes through the buffer.
+                buffer = new byte[COPY_BUFFER_SIZE];
+            }
+            persistData(part, res, contentTypes[i], preOpenedFiles, buffer);
+            // After successfully store the data, we should update
+            // the dataUri of the part.
+            part.setDataUri(res);
+        }
+    }
+
+    private static ContentValues getPartValues(PduPart part) throws MmsException {
         ContentValues values = new ContentValues(8);
 
         int charset = part.getCharset();
@@ -751,17 +921,7 @@ public class PduPersister {
             values.put(Part.CONTENT_LOCATION, (String) value);
         }
 
-        Uri res = SqliteWrapper.insert(mContext, mContentResolver, uri, values);
-        if (res == null) {
-            throw new MmsException("Failed to persist part, return null.");
-        }
-
-        persistData(part, res, contentType, preOpenedFiles);
-        // After successfully store the data, we should update
-        // the dataUri of the part.
-        part.setDataUri(res);
-
-        return res;
+        return values;
     }
 
     /**
@@ -775,11 +935,12 @@ public class PduPersister {
      * @param uri The URI of the part.
      * @param contentType The MIME type of the part.
      * @param preOpenedFiles if not null, a map of preopened InputStreams for the parts.
+     * @param buffer copy buffer, or null to allocate one if needed.
      * @throws MmsException Cannot find source data or error occurred
      *         while saving the data.
      */
     private void persistData(PduPart part, Uri uri,
-            String contentType, HashMap<Uri, InputStream> preOpenedFiles)
+            String contentType, HashMap<Uri, InputStream> preOpenedFiles, byte[] buffer)
             throws MmsException {
         OutputStream os = null;
         InputStream is = null;
@@ -788,10 +949,12 @@ public class PduPersister {
         String path = null;
 
         try {
-            byte[] data = part.getData();
+            // A view of the part data, so that it is not copied before writing it out.
+            ByteBuffer dataBuffer = part.peekDataBuffer();
             if (ContentType.TEXT_PLAIN.equals(contentType)
                     || ContentType.APP_SMIL.equals(contentType)
                     || ContentType.TEXT_HTML.equals(contentType)) {
+                byte[] data = part.getData();
                 ContentValues cv = new ContentValues();
                 if (data == null) {
                     data = new String("").getBytes(CharacterSets.DEFAULT_CHARSET_NAME);
@@ -825,7 +988,7 @@ public class PduPersister {
                 // uri can look like:
                 // content://mms/part/98
                 os = mContentResolver.openOutputStream(uri);
-                if (data == null) {
+                if (dataBuffer == null) {
                     dataUri = part.getDataUri();
                     if ((dataUri == null) || (dataUri.equals(uri))) {
                         Log.w(TAG, "Can't find data for this part.");
@@ -844,11 +1007,13 @@ public class PduPersister {
                         Log.v(TAG, "Saving data to: " + uri);
                     }
 
-                    byte[] buffer = new byte[8192];
-                    for (int len = 0; (len = is.read(buffer)) != -1; ) {
-                        if (!isDrm) {
-                            os.write(buffer, 0, len);
-                        } else {
+                    if (!isDrm) {
+                        copyData(is, os, buffer);
+                    } else {
+                        if (buffer == null) {
+                            buffer = new byte[COPY_BUFFER_SIZE];
+                        }
+                        for (int len = 0; (len = is.read(buffer)) != -1; ) {
                             byte[] convertedData = drmConvertSession.convert(buffer, len);
                             if (convertedData != null) {
                                 os.write(convertedData, 0, convertedData.length);
@@ -862,8 +1027,9 @@ public class PduPersister {
                         Log.v(TAG, "Saving data to: " + uri);
                     }
                     if (!isDrm) {
-                        os.write(data);
+                        writeData(dataBuffer, os);
                     } else {
+                        byte[] data = part.getData();
                         dataUri = uri;
                         byte[] convertedData = drmConvertSession.convert(data, data.length);
                         if (convertedData != null) {
@@ -909,14 +1075,76 @@ public class PduPersister {
         }
     }
 
+    /**
+     * Copy a stream to another one. Files are copied with
+     * {@link FileChannel#transferTo} where possible.
+     */
+    private static void copyData(InputStream is, OutputStream os, byte[] buffer)
+            throws IOException {
+        if (is instanceof FileInputStream && os instanceof FileOutputStream) {
+            FileChannel in = ((FileInputStream) is).getChannel();
+            FileChannel out = ((FileOutputStream) os).getChannel();
+            long size = getChannelSize(in);
+            if (size > 0) {
+                long position = in.position();
+                while (position < size) {
+                    long count = in.transferTo(position, size - position, out);
+                    if (count <= 0) {
+                        break;
+                    }
+                    position += count;
+                }
+                // transferTo() does not move the input; copy anything left below.
+                in.position(position);
+            }
+        }
+
+        if (buffer == null) {
+            buffer = new byte[COPY_BUFFER_SIZE];
+        }
+        for (int len = 0; (len = is.read(buffer)) != -1; ) {
+            os.write(buffer, 0, len);
+        }
+    }
+
+    private static void writeData(ByteBuffer data, OutputStream os) throws IOException {
+        if (data.hasArray()) {
+            os.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        } else if (os instanceof FileOutputStream) {
+            FileChannel out = ((FileOutputStream) os).getChannel();
+            while (data.hasRemaining()) {
+                out.write(data);
+            }
+        } else {
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            while (data.hasRemaining()) {
+                int len = Math.min(buffer.length, data.remaining());
+                data.get(buffer, 0, len);
+                os.write(buffer, 0, len);
+            }
+        }
+    }
+
     private void updateAddress(
             long msgId, int type, EncodedStringValue[] array) {
-        // Delete old address information and then insert new ones.
-        SqliteWrapper.delete(mContext, mContentResolver,
-                Uri.parse("content://mms/" + msgId + "/addr"),
-                Addr.TYPE + "=" + type, null);
-
-        persistAddress(msgId, type, array);
+        // Delete old address information and then insert new ones, in one batch.
+        Uri uri = Uri.parse("content://mms/" + msgId + "/addr");
+        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        ops.add(ContentProviderOperation.newDelete(uri)
+                .withSelection(Addr.TYPE + "=" + type, null)
+                .build());
+        addPersistAddressOperations(ops, msgId, type, array);
+        try {
+            applyBatch(ops);
+        } catch (MmsException e) {
+            // The batch may have been partly applied: delete and insert again one by one.
+            Log.e(TAG, "updateAddress: batch failed, updating one by one", e);
+            SqliteWrapper.delete(mContext, mContentResolver, uri, Addr.TYPE + "=" + type, null);
+            for (EncodedStringValue addr : array) {
+                SqliteWrapper.insert(mContext, mContentResolver, uri,
+                        getAddressValues(addr, type));
+            }
+        }
     }
 
     /**
@@ -1079,9 +1307,9 @@ public class PduPersister {
         // Only update the data when:
         // 1. New binary data supplied or
         // 2. The Uri of the part is different from the current one.
-        if ((part.getData() != null)
+        if ((part.peekDataBuffer() != null)
                 || (!uri.equals(part.getDataUri()))) {
-            persistData(part, uri, contentType, preOpenedFiles);
+            persistData(part, uri, contentType, preOpenedFiles, null);
         }
     }
 
@@ -1187,6 +1415,7 @@ public class PduPersister {
         if (uri == null) {
             throw new MmsException("Uri may not be null.");
         }
+        long startTime = SystemClock.elapsedRealtime();
         long msgId = -1;
         try {
             msgId = ContentUris.parseId(uri);
@@ -1327,12 +1556,14 @@ public class PduPersister {
         // Sum up the total message size
         int messageSize = 0;
 
+        int partsNum = 0;
+
         // Get body if the PDU is a RetrieveConf or SendReq.
         if (pdu instanceof MultimediaMessagePdu) {
             body = ((MultimediaMessagePdu) pdu).getBody();
             // Start saving parts if necessary.
             if (body != null) {
-                int partsNum = body.getPartsNum();
+                partsNum = body.getPartsNum();
                 if (partsNum > 2) {
                     // For a text-only message there will be two parts: 1-the SMIL, 2-the text.
                     // Down a few lines below we're checking to make sure we've only got SMIL or
@@ -1340,10 +1571,15 @@ public class PduPersister {
                     // Otherwise, a slideshow with two text slides would be marked as textOnly.
                     textOnly = false;
                 }
+                try {
+                    persistParts(body, dummyId, preOpenedFiles);
+                } catch (MmsException e) {
+                    deleteFailedMessage(dummyId, null);
+                    throw e;
+                }
                 for (int i = 0; i < partsNum; i++) {
                     PduPart part = body.getPart(i);
                     messageSize += part.getDataLength();
-                    persistPart(part, dummyId, preOpenedFiles);
 
                     // If we've got anything besides text/plain or SMIL part, then we've got
                     // an mms message with some other type of attachment.
@@ -1371,6 +1607,7 @@ public class PduPersister {
         } else {
             res = SqliteWrapper.insert(mContext, mContentResolver, uri, values);
             if (res == null) {
+                deleteFailedMessage(dummyId, null);
                 throw new MmsException("persist() failed: return null.");
             }
             // Get the real ID of the PDU and update all parts which were
@@ -1378,11 +1615,32 @@ public class PduPersister {
             msgId = ContentUris.parseId(res);
         }
 
+        // Move the parts to the real ID and save the addresses in one batch.
+        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
         values = new ContentValues(1);
         values.put(Part.MSG_ID, msgId);
-        SqliteWrapper.update(mContext, mContentResolver,
-                             Uri.parse("content://mms/" + dummyId + "/part"),
-                             values, null, null);
+        ops.add(ContentProviderOperation.newUpdate(
+                Uri.parse("content://mms/" + dummyId + "/part"))
+                .withValues(values)
+                .build());
+        int addressCount = 0;
+        for (int addrType : ADDRESS_FIELDS) {
+            EncodedStringValue[] array = addressMap.get(addrType);
+            if (array != null) {
+                addPersistAddressOperations(ops, msgId, addrType, array);
+                addressCount += array.length;
+            }
+        }
+        try {
+            ContentProviderResult[] results = applyBatch(ops);
+            if (results[0].count == null || results[0].count != partsNum) {
+                throw new MmsException("persist() failed: moved " + results[0].count
+                        + " of " + partsNum + " parts.");
+            }
+        } catch (MmsException e) {
+            deleteFailedMessage(dummyId, existingUri ? null : res);
+            throw e;
+        }
         // We should return the longest URI of the persisted PDU, for
         // example, if input URI is "content://mms/inbox" and the _ID of
         // persisted PDU is '8', we should return "content://mms/inbox/8"
@@ -1392,15 +1650,72 @@ public class PduPersister {
             res = Uri.parse(uri + "/" + msgId);
         }
 
-        // Save address information.
-        for (int addrType : ADDRESS_FIELDS) {
-            EncodedStringValue[] array = addressMap.get(addrType);
-            if (array != null) {
-                persistAddress(msgId, addrType, array);
-            }
+        recordPersistLatency(res, partsNum, addressCount,
+                SystemClock.elapsedRealtime() - startTime);
+        return res;
+    }
+
+    /**
+     * Delete what a failed {@link #persist} saved: the parts still under the dummy
+     * message ID and, if given, the message it inserted along with its parts and addresses.
+     */
+    private void deleteFailedMessage(long dummyId, Uri insertedUri) {
+        SqliteWrapper.delete(mContext, mContentResolver,
+                Uri.parse("content://mms/" + dummyId + "/part"), null, null);
+        if (insertedUri != null) {
+            SqliteWrapper.delete(mContext, mContentResolver, insertedUri, null, null);
         }
+    }
 
-        return res;
+    private void recordPersistLatency(Uri uri, int partsNum, int addressCount, long millis) {
+        synchronized (mPersistStatsLock) {
+            mPersistCount++;
+            mPersistTotalMillis += millis;
+            mPersistMaxMillis = Math.max(mPersistMaxMillis, millis);
+            mLastPersistMillis = millis;
+        }
+        if (millis > SLOW_PERSIST_THRESHOLD_MS) {
+            Log.i(TAG, "persist: " + uri + " with " + partsNum + " parts and "
+                    + addressCount + " addresses took " + millis + "ms");
+        } else if (LOCAL_LOGV) {
+            Log.v(TAG, "persist: " + uri + " took " + millis + "ms");
+        }
+    }
+
+    /**
+     * @return the number of messages persisted by {@link #persist}.
+     */
+    public int getPersistCount() {
+        synchronized (mPersistStatsLock) {
+            return mPersistCount;
+        }
+    }
+
+    /**
+     * @return the average time {@link #persist} took per message, in milliseconds.
+     */
+    public long getAveragePersistLatencyMillis() {
+        synchronized (mPersistStatsLock) {
+            return mPersistCount == 0 ? 0 : mPersistTotalMillis / mPersistCount;
+        }
+    }
+
+    /**
+     * @return the longest time {@link #persist} took for a message, in milliseconds.
+     */
+    public long getMaxPersistLatencyMillis() {
+        synchronized (mPersistStatsLock) {
+            return mPersistMaxMillis;
+        }
+    }
+
+    /**
+     * @return the time the last {@link #persist} took, in milliseconds.
+     */
+    public long getLastPersistLatencyMillis() {
+        synchronized (mPersistStatsLock) {
+            return mLastPersistMillis;
+        }
     }
 
     /**
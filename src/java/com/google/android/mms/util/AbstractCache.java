@@ -19,8 +19,15 @@ package com.google.android.mms.util;
 
 import android.util.Log;
 
-import java.util.HashMap;
-
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache. Once the total size of the cached entries, as measured by
+ * {@link #sizeOf}, would exceed the maximum size, entries are evicted according to the
+ * eviction policy until the new entry fits.
+ */
 public abstract class AbstractCache<K, V> {
     private static final String TAG = "AbstractCache";
     private static final boolean DEBUG = false;
@@ -28,10 +35,52 @@ public abstract class AbstractCache<K, V> {
 
     private static final int MAX_CACHED_ITEMS  = 500;
 
-    private final HashMap<K, CacheEntry<V>> mCacheMap;
+    /** Evict the least recently used entry first. */
+    public static final int EVICTION_POLICY_LRU = 0;
+    /** Evict the least hit entry first, the least recently used one among equals. */
+    public static final int EVICTION_POLICY_LFU = 1;
+
+    // Kept in access order, eldest first.
+    private final LinkedHashMap<K, CacheEntry<V>> mCacheMap;
+    private final int mMaxSize;
+    private final int mEvictionPolicy;
+    private int mSize;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
 
     protected AbstractCache() {
-        mCacheMap = new HashMap<K, CacheEntry<V>>();
+        this(MAX_CACHED_ITEMS, EVICTION_POLICY_LRU);
+    }
+
+    /**
+     * @param maxSize the maximum total size of the cached entries, in the units of
+     *        {@link #sizeOf}.
+     * @param evictionPolicy {@link #EVICTION_POLICY_LRU} or {@link #EVICTION_POLICY_LFU}.
+     */
+    protected AbstractCache(int maxSize, int evictionPolicy) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mCacheMap = new LinkedHashMap<K, CacheEntry<V>>(16, 0.75f, true);
+        mMaxSize = maxSize;
+        mEvictionPolicy = evictionPolicy;
+    }
+
+    /**
+     * Returns the size of an entry. Defaults to 1, so that the maximum size bounds the number
+     * of entries; override to bound the cache by e.g. bytes instead.
+     */
+    protected int sizeOf(K key, V value) {
+        return 1;
+    }
+
+    /**
+     * Called when an entry is evicted to make room for a new one. Not called for entries
+     * removed by {@link #purge} or {@link #purgeAll}.
+     */
+    protected void onEvicted(K key, V value) {
     }
 
     public boolean put(K key, V value) {
@@ -39,19 +88,28 @@ public abstract class AbstractCache<K, V> {
             Log.v(TAG, "Trying to put " + key + " into cache.");
         }
 
-        if (mCacheMap.size() >= MAX_CACHED_ITEMS) {
-            // TODO Should remove the oldest or least hit cached entry
-            // and then cache the new one.
-            if (LOCAL_LOGV) {
-                Log.v(TAG, "Failed! size limitation reached.");
+        if (key != null) {
+            int entrySize = sizeOf(key, value);
+            if (entrySize > mMaxSize) {
+                if (LOCAL_LOGV) {
+                    Log.v(TAG, "Failed! " + key + " is larger than the cache.");
+                }
+                return false;
+            }
+
+            CacheEntry<V> previous = mCacheMap.remove(key);
+            if (previous != null) {
+                mSize -= previous.size;
+            }
+            while (mSize + entrySize > mMaxSize) {
+                evictOne();
             }
-            return false;
-        }
 
-        if (key != null) {
             CacheEntry<V> cacheEntry = new CacheEntry<V>();
             cacheEntry.value = value;
+            cacheEntry.size = entrySize;
             mCacheMap.put(key, cacheEntry);
+            mSize += entrySize;
 
             if (LOCAL_LOGV) {
                 Log.v(TAG, key + " cached, " + mCacheMap.size() + " items total.");
@@ -61,6 +119,30 @@ public abstract class AbstractCache<K, V> {
         return false;
     }
 
+    private void evictOne() {
+        Iterator<Map.Entry<K, CacheEntry<V>>> it = mCacheMap.entrySet().iterator();
+        Map.Entry<K, CacheEntry<V>> victim = it.next();
+        if (mEvictionPolicy == EVICTION_POLICY_LFU) {
+            while (it.hasNext() && victim.getValue().hit > 0) {
+                Map.Entry<K, CacheEntry<V>> candidate = it.next();
+                if (candidate.getValue().hit < victim.getValue().hit) {
+                    victim = candidate;
+                }
+            }
+        }
+
+        K key = victim.getKey();
+        CacheEntry<V> cacheEntry = victim.getValue();
+        mCacheMap.remove(key);
+        mSize -= cacheEntry.size;
+        mEvictionCount++;
+
+        if (LOCAL_LOGV) {
+            Log.v(TAG, key + " evicted after " + cacheEntry.hit + " hits.");
+        }
+        onEvicted(key, cacheEntry.value);
+    }
+
     public V get(K key) {
         if (LOCAL_LOGV) {
             Log.v(TAG, "Trying to get " + key + " from cache.");
@@ -70,12 +152,14 @@ public abstract class AbstractCache<K, V> {
             CacheEntry<V> cacheEntry = mCacheMap.get(key);
             if (cacheEntry != null) {
                 cacheEntry.hit++;
+                mHitCount++;
                 if (LOCAL_LOGV) {
                     Log.v(TAG, key + " hit " + cacheEntry.hit + " times.");
                 }
                 return cacheEntry.value;
             }
         }
+        mMissCount++;
         return null;
     }
 
@@ -85,6 +169,9 @@ public abstract class AbstractCache<K, V> {
         }
 
         CacheEntry<V> v = mCacheMap.remove(key);
+        if (v != null) {
+            mSize -= v.size;
+        }
 
         if (LOCAL_LOGV) {
             Log.v(TAG, mCacheMap.size() + " items cached.");
@@ -99,14 +186,38 @@ public abstract class AbstractCache<K, V> {
                     + " items dropped.");
         }
         mCacheMap.clear();
+        mSize = 0;
     }
 
+    /**
+     * @return the number of cached entries.
+     */
     public int size() {
         return mCacheMap.size();
     }
 
+    /**
+     * @return the total size of the cached entries, in the units of {@link #sizeOf}.
+     */
+    public int weight() {
+        return mSize;
+    }
+
+    public int getHitCount() {
+        return mHitCount;
+    }
+
+    public int getMissCount() {
+        return mMissCount;
+    }
+
+    public int getEvictionCount() {
+        return mEvictionCount;
+    }
+
     private static class CacheEntry<V> {
         int hit;
+        int size;
         V value;
     }
 }
@@ -23,6 +23,8 @@ import android.net.Uri;
 import android.provider.Telephony.Mms;
 import android.util.Log;
 
+import com.android.internal.annotations.VisibleForTesting;
+
 import java.util.HashMap;
 import java.util.HashSet;
 
@@ -93,23 +95,33 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
 
     @Override
     synchronized public boolean put(Uri uri, PduCacheEntry entry) {
-        int msgBoxId = entry.getMessageBox();
-        HashSet<Uri> msgBox = mMessageBoxes.get(msgBoxId);
-        if (msgBox == null) {
-            msgBox = new HashSet<Uri>();
-            mMessageBoxes.put(msgBoxId, msgBox);
-        }
-
-        long threadId = entry.getThreadId();
-        HashSet<Uri> thread = mThreads.get(threadId);
-        if (thread == null) {
-            thread = new HashSet<Uri>();
-            mThreads.put(threadId, thread);
+        Uri finalKey = normalizeKey(uri);
+        if (finalKey != null) {
+            // Drop the index entries of any entry being replaced.
+            PduCacheEntry previous = super.purge(finalKey);
+            if (previous != null) {
+                removeFromThreads(finalKey, previous);
+                removeFromMessageBoxes(finalKey, previous);
+            }
         }
 
-        Uri finalKey = normalizeKey(uri);
+        // May evict other entries, so only look the index sets up afterwards.
         boolean result = super.put(finalKey, entry);
         if (result) {
+            int msgBoxId = entry.getMessageBox();
+            HashSet<Uri> msgBox = mMessageBoxes.get(msgBoxId);
+            if (msgBox == null) {
+                msgBox = new HashSet<Uri>();
+                mMessageBoxes.put(msgBoxId, msgBox);
+            }
+
+            long threadId = entry.getThreadId();
+            HashSet<Uri> thread = mThreads.get(threadId);
+            if (thread == null) {
+                thread = new HashSet<Uri>();
+                mThreads.put(threadId, thread);
+            }
+
             msgBox.add(finalKey);
             thread.add(finalKey);
         }
@@ -117,6 +129,17 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
         return result;
     }
 
+    @Override
+    synchronized public PduCacheEntry get(Uri uri) {
+        return super.get(uri);
+    }
+
+    @Override
+    protected void onEvicted(Uri key, PduCacheEntry entry) {
+        removeFromThreads(key, entry);
+        removeFromMessageBoxes(key, entry);
+    }
+
     synchronized public void setUpdating(Uri uri, boolean updating) {
         if (updating) {
             mUpdating.add(uri);
@@ -180,6 +203,24 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
         mUpdating.clear();
     }
 
+    /**
+     * @return the keys of the cached entries in a message box, or an empty set.
+     */
+    @VisibleForTesting
+    synchronized HashSet<Uri> getMessageBoxKeys(int msgBoxId) {
+        HashSet<Uri> msgBox = mMessageBoxes.get(msgBoxId);
+        return msgBox != null ? new HashSet<Uri>(msgBox) : new HashSet<Uri>();
+    }
+
+    /**
+     * @return the keys of the cached entries in a thread, or an empty set.
+     */
+    @VisibleForTesting
+    synchronized HashSet<Uri> getThreadKeys(long threadId) {
+        HashSet<Uri> thread = mThreads.get(threadId);
+        return thread != null ? new HashSet<Uri>(thread) : new HashSet<Uri>();
+    }
+
     /**
      * @param uri The Uri to be normalized.
      * @return Uri The normalized key of cached entry.
@@ -232,6 +273,9 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
         HashSet<Uri> thread = mThreads.get(entry.getThreadId());
         if (thread != null) {
             thread.remove(key);
+            if (thread.isEmpty()) {
+                mThreads.remove(entry.getThreadId());
+            }
         }
     }
 
@@ -253,9 +297,12 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
     }
 
     private void removeFromMessageBoxes(Uri key, PduCacheEntry entry) {
-        HashSet<Uri> msgBox = mThreads.get(Long.valueOf(entry.getMessageBox()));
+        HashSet<Uri> msgBox = mMessageBoxes.get(entry.getMessageBox());
         if (msgBox != null) {
             msgBox.remove(key);
+            if (msgBox.isEmpty()) {
+                mMessageBoxes.remove(entry.getMessageBox());
+            }
         }
     }
 }
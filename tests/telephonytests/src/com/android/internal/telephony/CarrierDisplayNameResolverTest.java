@@ -23,7 +23,10 @@ import static org.mockito.Mockito.doReturn;
 
 import android.content.Context;
 import android.os.PersistableBundle;
+import android.telephony.AccessNetworkConstants;
 import android.telephony.CarrierConfigManager;
+import android.telephony.CellIdentityGsm;
+import android.telephony.NetworkRegistrationInfo;
 import android.telephony.ServiceState;
 
 import com.android.internal.telephony.cdnr.CarrierDisplayNameData;
@@ -173,4 +176,62 @@ public class CarrierDisplayNameResolverTest extends TelephonyTest {
         CarrierDisplayNameData data = mCdnr.getCarrierDisplayNameData();
         assertThat(data.getPlmn()).isEqualTo(PNN_HOME_NAME_FROM_USIM);
     }
+
+    private void setLac(int lac) {
+        mSS.addNetworkRegistrationInfo(new NetworkRegistrationInfo.Builder()
+                .setDomain(NetworkRegistrationInfo.DOMAIN_CS)
+                .setTransportType(AccessNetworkConstants.TRANSPORT_TYPE_WWAN)
+                .setRegistrationState(NetworkRegistrationInfo.REGISTRATION_STATE_HOME)
+                .setCellIdentity(new CellIdentityGsm(lac, 1 /* cid */, 1 /* arfcn */,
+                        1 /* bsic */, "310", "260", "" /* alphal */, "" /* alphas */))
+                .build());
+    }
+
+    @Test
+    public void testGetPLMNNetworkName_oplPresent_returnTheMatchingEntryOfPNNList() {
+        mConfig.putStringArray(CarrierConfigManager.KEY_PNN_OVERRIDE_STRING_ARRAY,
+                new String[] {"home name, home", "area name, area"});
+        mConfig.putStringArray(CarrierConfigManager.KEY_OPL_OVERRIDE_STRING_ARRAY,
+                new String[] {HOME_PLMN_NUMERIC + ",100,199,2", "310...,0,65534,1"});
+        mCdnr.updateEfFromCarrierConfig(mConfig);
+
+        setLac(150);
+        assertThat(mCdnr.getCarrierDisplayNameData().getPlmn()).isEqualTo("area name");
+
+        setLac(200);
+        assertThat(mCdnr.getCarrierDisplayNameData().getPlmn()).isEqualTo("home name");
+
+        // Back in the first area
+        setLac(150);
+        assertThat(mCdnr.getCarrierDisplayNameData().getPlmn()).isEqualTo("area name");
+
+        // No matching OPL entry, the PLMN is displayed numerically
+        mSS.setOperatorName("long", "short", NON_HOME_PLMN_NUMERIC);
+        assertThat(mCdnr.getCarrierDisplayNameData().getPlmn())
+                .isEqualTo(NON_HOME_PLMN_NUMERIC);
+
+        // New records replace the resolved names
+        mSS.setOperatorName("long", "short", HOME_PLMN_NUMERIC);
+        mConfig.putStringArray(CarrierConfigManager.KEY_OPL_OVERRIDE_STRING_ARRAY,
+                new String[] {HOME_PLMN_NUMERIC + ",0,65534,1"});
+        mCdnr.updateEfFromCarrierConfig(mConfig);
+        assertThat(mCdnr.getCarrierDisplayNameData().getPlmn()).isEqualTo("home name");
+    }
+
+    @Test
+    public void testUpdateWithSameRecords_keepsResolvedName() {
+        mCdnr.updateEfForBrandOverride(SPN_FROM_CC);
+        mCdnr.updateEfFromCarrierConfig(mConfig);
+        CarrierDisplayNameData data = mCdnr.getCarrierDisplayNameData();
+        assertThat(data.getSpn()).isEqualTo(SPN_FROM_CC);
+
+        // As on every service state poll, the same records are updated again
+        mCdnr.updateEfForBrandOverride(SPN_FROM_CC);
+        mCdnr.updateEfFromCarrierConfig(mConfig);
+        assertThat(mCdnr.getCarrierDisplayNameData()).isSameAs(data);
+
+        // A different brand override is resolved again
+        mCdnr.updateEfForBrandOverride("brand");
+        assertThat(mCdnr.getCarrierDisplayNameData().getSpn()).isEqualTo("brand");
+    }
 }
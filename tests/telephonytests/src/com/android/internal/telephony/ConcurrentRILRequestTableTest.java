@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static com.android.internal.telephony.RILConstants.RIL_REQUEST_GET_CURRENT_CALLS;
+
+import android.os.WorkSource;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ConcurrentRILRequestTableTest extends TestCase {
+    private ConcurrentRILRequestTable mTable;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        mTable = new ConcurrentRILRequestTable(8);
+    }
+
+    private static RILRequest obtainRequest() {
+        return RILRequest.obtain(RIL_REQUEST_GET_CURRENT_CALLS, null, new WorkSource());
+    }
+
+    @SmallTest
+    public void testPutGetRemove() {
+        RILRequest rr = obtainRequest();
+        mTable.put(rr);
+        assertEquals(1, mTable.size());
+        assertSame(rr, mTable.get(rr.mSerial));
+        assertSame(rr, mTable.remove(rr.mSerial));
+        assertNull(mTable.get(rr.mSerial));
+        assertNull(mTable.remove(rr.mSerial));
+        assertEquals(0, mTable.size());
+    }
+
+    @SmallTest
+    public void testCollidingSerials() {
+        RILRequest first = obtainRequest();
+        RILRequest second = obtainRequest();
+        // Force both requests onto the same home slot.
+        second.mSerial = first.mSerial + 8;
+        mTable.put(first);
+        mTable.put(second);
+        assertSame(first, mTable.get(first.mSerial));
+        assertSame(second, mTable.get(second.mSerial));
+
+        // Removing the request on the home slot must not hide the probed one.
+        assertSame(first, mTable.remove(first.mSerial));
+        assertSame(second, mTable.get(second.mSerial));
+        assertSame(second, mTable.remove(second.mSerial));
+        assertEquals(0, mTable.size());
+    }
+
+    @SmallTest
+    public void testMaxProbeResetWhenEmpty() {
+        RILRequest first = obtainRequest();
+        RILRequest second = obtainRequest();
+        second.mSerial = first.mSerial + 8;
+        mTable.put(first);
+        mTable.put(second);
+        assertEquals(1, mTable.getMaxProbe());
+
+        // Still needed to find the probed request
+        mTable.remove(first.mSerial);
+        assertEquals(1, mTable.getMaxProbe());
+        mTable.remove(second.mSerial);
+        assertEquals(0, mTable.getMaxProbe());
+
+        mTable.put(first);
+        mTable.put(second);
+        mTable.removeAll();
+        assertEquals(0, mTable.getMaxProbe());
+        assertEquals(0, mTable.size());
+    }
+
+    @SmallTest
+    public void testOverflow() {
+        List<RILRequest> requests = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            RILRequest rr = obtainRequest();
+            requests.add(rr);
+            mTable.put(rr);
+        }
+        assertEquals(12, mTable.size());
+        assertEquals(12, mTable.snapshot().size());
+        for (RILRequest rr : requests) {
+            assertSame(rr, mTable.get(rr.mSerial));
+        }
+
+        assertEquals(12, mTable.removeAll().size());
+        assertEquals(0, mTable.size());
+        for (RILRequest rr : requests) {
+            assertNull(mTable.get(rr.mSerial));
+        }
+    }
+
+    @SmallTest
+    public void testConcurrentIssueAndResponse() throws Exception {
+        final ConcurrentRILRequestTable table = new ConcurrentRILRequestTable();
+        final int threads = 4;
+        final int requestsPerThread = 2000;
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicInteger removed = new AtomicInteger(0);
+
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                for (int i = 0; i < requestsPerThread; i++) {
+                    RILRequest rr = obtainRequest();
+                    int serial = rr.mSerial;
+                    table.put(rr);
+                    if (table.remove(serial) == rr) {
+                        removed.incrementAndGet();
+                    }
+                }
+                done.countDown();
+            }).start();
+        }
+
+        done.await();
+        assertEquals(threads * requestsPerThread, removed.get());
+        assertEquals(0, table.size());
+    }
+}
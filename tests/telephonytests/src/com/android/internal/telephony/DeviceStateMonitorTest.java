@@ -21,6 +21,7 @@ import static android.hardware.radio.V1_0.DeviceStateType.LOW_DATA_EXPECTED;
 import static com.android.internal.telephony.TelephonyTestUtils.waitForMs;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.nullable;
 import static org.mockito.Mockito.times;
@@ -28,7 +29,9 @@ import static org.mockito.Mockito.verify;
 
 import android.content.Intent;
 import android.net.ConnectivityManager;
+import android.os.AsyncResult;
 import android.os.BatteryManager;
+import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
 import android.test.suitebuilder.annotation.MediumTest;
@@ -171,4 +174,42 @@ public class DeviceStateMonitorTest extends TelephonyTest {
         assertEquals(
                 DeviceStateMonitor.CELL_INFO_INTERVAL_SHORT_MS, mDSM.computeCellInfoMinInterval());
     }
+
+    @Test
+    @MediumTest
+    public void testSignalStrengthPollInterval() throws Exception {
+        final ArrayList<Integer> intervals = new ArrayList<>();
+        Handler handler = new Handler(mDeviceStateMonitorTestHandler.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                intervals.add((Integer) ((AsyncResult) msg.obj).result);
+            }
+        };
+        mDSM.registerForSignalStrengthPollIntervalChanged(handler, 0, null);
+
+        // screen off
+        sendStates(0, 0, 0);
+        assertEquals(DeviceStateMonitor.SIGNAL_STRENGTH_POLL_DISABLED,
+                mDSM.computeSignalStrengthPollInterval());
+        // screen off, but charging
+        sendStates(0, 1, 0);
+        assertEquals(DeviceStateMonitor.SIGNAL_STRENGTH_POLL_INTERVAL_LONG_MS,
+                mDSM.computeSignalStrengthPollInterval());
+        // screen on
+        sendStates(1, 0, 0);
+        assertEquals(DeviceStateMonitor.SIGNAL_STRENGTH_POLL_INTERVAL_SHORT_MS,
+                mDSM.computeSignalStrengthPollInterval());
+        // screen on, power save
+        setReady(false);
+        mDSM.obtainMessage(DeviceStateMonitor.EVENT_POWER_SAVE_MODE_CHANGED, 1, 0).sendToTarget();
+        mDSM.post(() -> setReady(true));
+        waitUntilReady();
+        assertEquals(DeviceStateMonitor.SIGNAL_STRENGTH_POLL_INTERVAL_LONG_MS,
+                mDSM.computeSignalStrengthPollInterval());
+
+        // registrants are notified of the changes
+        assertTrue(intervals.contains(DeviceStateMonitor.SIGNAL_STRENGTH_POLL_DISABLED));
+        assertEquals(DeviceStateMonitor.SIGNAL_STRENGTH_POLL_INTERVAL_LONG_MS,
+                (int) intervals.get(intervals.size() - 1));
+    }
 }
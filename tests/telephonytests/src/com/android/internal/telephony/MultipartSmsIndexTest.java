@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class MultipartSmsIndexTest {
+    private static final String FAKE_ADDRESS = "address";
+    private static final int FAKE_REF = 5;
+    private static final int FAKE_COUNT = 2;
+    private static final String[] FAKE_DELETE_WHERE_ARGS = {FAKE_ADDRESS,
+            Integer.toString(FAKE_REF), Integer.toString(FAKE_COUNT)};
+
+    private MultipartSmsIndex mIndex;
+
+    private static InboundSmsTracker createTracker(int sequence, long timestamp, String body,
+            boolean is3gpp2WapPdu) {
+        return new InboundSmsTracker(new byte[]{(byte) sequence}, timestamp, -1, is3gpp2WapPdu,
+                FAKE_ADDRESS, FAKE_ADDRESS, FAKE_REF, sequence, FAKE_COUNT, is3gpp2WapPdu, body,
+                false /* isClass0 */, 0 /* subId */);
+    }
+
+    @Before
+    public void setUp() {
+        mIndex = new MultipartSmsIndex();
+    }
+
+    @Test
+    @SmallTest
+    public void testIsIndexable() {
+        assertTrue(MultipartSmsIndex.isIndexable(createTracker(1, 1L, "a", false)));
+        assertFalse(MultipartSmsIndex.isIndexable(new InboundSmsTracker(new byte[]{1}, 1L, -1,
+                false, false, FAKE_ADDRESS, FAKE_ADDRESS, "a", false, 0)));
+    }
+
+    @Test
+    @SmallTest
+    public void testSharedPerRawTable() {
+        MockContentResolver resolver = new MockContentResolver();
+        MultipartSmsIndex index = MultipartSmsIndex.getInstance(resolver);
+        assertSame(index, MultipartSmsIndex.getInstance(resolver));
+        assertNotSame(index, MultipartSmsIndex.getInstance(new MockContentResolver()));
+    }
+
+    @Test
+    @SmallTest
+    public void testGetPendingSegments() {
+        MultipartSmsIndex.Message message = new MultipartSmsIndex.Message();
+        message.addPending(new MultipartSmsIndex.Segment(2, new byte[]{2}, null, null, 2L, "b"));
+        message.addPending(new MultipartSmsIndex.Segment(1, new byte[]{1}, null, null, 1L, "a"));
+
+        MultipartSmsIndex.Segment[] segments = message.getPendingSegments();
+        assertEquals(2, segments.length);
+        assertEquals(1, segments[0].sequence);
+        assertEquals(2, segments[1].sequence);
+    }
+
+    @Test
+    @SmallTest
+    public void testSegmentsOnlyRecordedForLoadedMessages() {
+        InboundSmsTracker part1 = createTracker(1, 1L, "a", false);
+        mIndex.onSegmentInserted(part1, null);
+        assertNull(mIndex.get(part1));
+
+        MultipartSmsIndex.Message message = new MultipartSmsIndex.Message();
+        mIndex.put(part1, message);
+        mIndex.onSegmentInserted(part1, null);
+        InboundSmsTracker part2 = createTracker(2, 2L, "b", false);
+        mIndex.onSegmentInserted(part2, 1234);
+
+        assertSame(message, mIndex.get(part2));
+        assertEquals(2, message.getPendingCount());
+        assertEquals(Integer.valueOf(1234), message.getPending(2).destPort);
+        // 3GPP2 WAP segments of the same reference belong to another message
+        assertNull(mIndex.get(createTracker(1, 1L, "a", true)));
+    }
+
+    @Test
+    @SmallTest
+    public void testMarkDeletedKeepsExactMatches() {
+        InboundSmsTracker part1 = createTracker(1, 1L, "a", false);
+        MultipartSmsIndex.Message message = new MultipartSmsIndex.Message();
+        mIndex.put(part1, message);
+        mIndex.onSegmentInserted(part1, null);
+
+        // deletes by other selections are not tracked
+        mIndex.onRawTableDelete(InboundSmsHandler.SELECT_BY_ID, new String[]{"1"}, false);
+        assertEquals(1, message.getPendingCount());
+
+        mIndex.onRawTableDelete(InboundSmsTracker.SELECT_BY_REFERENCE, FAKE_DELETE_WHERE_ARGS,
+                false);
+        assertEquals(0, message.getPendingCount());
+        assertNotNull(message.findDeletedExactMatch(part1));
+        assertNull(message.findDeletedExactMatch(createTracker(1, 3L, "a", false)));
+        assertNull(message.findDeletedExactMatch(createTracker(1, 1L, "c", false)));
+    }
+
+    @Test
+    @SmallTest
+    public void testPermanentDelete() {
+        InboundSmsTracker part1 = createTracker(0, 1L, "a", true);
+        MultipartSmsIndex.Message message = new MultipartSmsIndex.Message();
+        mIndex.put(part1, message);
+        mIndex.onSegmentInserted(part1, null);
+
+        mIndex.onRawTableDelete(InboundSmsTracker.SELECT_BY_REFERENCE, FAKE_DELETE_WHERE_ARGS,
+                true);
+        assertEquals(1, message.getPendingCount());
+
+        mIndex.onRawTableDelete(InboundSmsTracker.SELECT_BY_REFERENCE_3GPP2WAP,
+                FAKE_DELETE_WHERE_ARGS, true);
+        assertEquals(0, message.getPendingCount());
+        assertNull(message.findDeletedExactMatch(part1));
+    }
+
+    @Test
+    @SmallTest
+    public void testEvictsLeastRecentlyUsed() {
+        InboundSmsTracker first = createTracker(1, 1L, "a", false);
+        mIndex.put(first, new MultipartSmsIndex.Message());
+        for (int i = 0; i < MultipartSmsIndex.MAX_MESSAGES; i++) {
+            mIndex.put(new InboundSmsTracker(new byte[]{1}, 1L, -1, false, FAKE_ADDRESS,
+                    FAKE_ADDRESS, FAKE_REF + 1 + i, 1, FAKE_COUNT, false, "a", false, 0),
+                    new MultipartSmsIndex.Message());
+        }
+        assertEquals(MultipartSmsIndex.MAX_MESSAGES, mIndex.size());
+        assertNull(mIndex.get(first));
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static com.android.internal.telephony.RILConstants.RIL_REQUEST_GET_CURRENT_CALLS;
+import static com.android.internal.telephony.RILConstants.RIL_REQUEST_SIGNAL_STRENGTH;
+
+import android.os.WorkSource;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class RILRequestPoolTest extends TestCase {
+    private RILRequestPool mPool;
+    private WorkSource mWorkSource = new WorkSource();
+
+    public void setUp() throws Exception {
+        super.setUp();
+        // Only one shard is used by the test thread, so this allows 2 idle instances.
+        mPool = new RILRequestPool(8);
+    }
+
+    @SmallTest
+    public void testRecycleOnRelease() {
+        RILRequest first = mPool.obtain(RIL_REQUEST_GET_CURRENT_CALLS, null, mWorkSource);
+        int firstSerial = first.mSerial;
+        first.release();
+
+        RILRequest second = mPool.obtain(RIL_REQUEST_SIGNAL_STRENGTH, null, mWorkSource);
+        assertSame(first, second);
+        assertEquals(RIL_REQUEST_SIGNAL_STRENGTH, second.mRequest);
+        assertNull(second.mResult);
+        assertFalse(firstSerial == second.mSerial);
+        assertEquals(RIL.INVALID_WAKELOCK, second.mWakeLockType);
+
+        assertEquals(1, mPool.getHitCount());
+        assertEquals(1, mPool.getMissCount());
+    }
+
+    @SmallTest
+    public void testHighWaterMark() {
+        List<RILRequest> requests = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            requests.add(mPool.obtain(RIL_REQUEST_GET_CURRENT_CALLS, null, mWorkSource));
+        }
+        for (RILRequest rr : requests) {
+            rr.release();
+        }
+        assertEquals(5, mPool.getHighWaterMark());
+        assertEquals(5, mPool.getMissCount());
+
+        // Only the shard capacity is kept, the rest is left to the garbage collector.
+        for (int i = 0; i < 3; i++) {
+            mPool.obtain(RIL_REQUEST_GET_CURRENT_CALLS, null, mWorkSource);
+        }
+        assertEquals(2, mPool.getHitCount());
+        assertEquals(6, mPool.getMissCount());
+        assertEquals(5, mPool.getHighWaterMark());
+    }
+
+    @SmallTest
+    public void testRecycleOnOtherThread() throws Exception {
+        // Requests are obtained by a caller thread, and released on the response thread
+        ExecutorService caller = Executors.newSingleThreadExecutor();
+        try {
+            for (int i = 0; i < 10; i++) {
+                RILRequest rr = caller.submit(() -> mPool.obtain(RIL_REQUEST_GET_CURRENT_CALLS,
+                        null, mWorkSource)).get();
+                rr.release();
+            }
+        } finally {
+            caller.shutdown();
+        }
+
+        assertEquals(9, mPool.getHitCount());
+        assertEquals(1, mPool.getMissCount());
+    }
+}
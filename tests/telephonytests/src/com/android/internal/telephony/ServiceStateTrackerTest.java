@@ -402,6 +402,116 @@ public class ServiceStateTrackerTest extends TelephonyTest {
                 mSimulatedCommands.getGetNetworkSelectionModeCallCount());
     }
 
+    @Test
+    @MediumTest
+    public void testRilTrafficForNetworkStateChangedBurst() {
+        sst.setRadioPower(true);
+        waitForMs(500);
+
+        final int getOperatorCallCount = mSimulatedCommands.getGetOperatorCallCount();
+        final int getVoiceRegistrationStateCallCount =
+                mSimulatedCommands.getGetVoiceRegistrationStateCallCount();
+        final int pollStateRounds = sst.getPollStateRounds();
+        final int requestCount = sst.getPollStateRequestCount(
+                ServiceStateTracker.POLL_TRIGGER_NETWORK_STATE_CHANGED);
+        final int requestsCoalesced = sst.getPollStateRequestsCoalesced();
+
+        // Queue a burst of indications at once, before any poll response can arrive
+        final int burst = 10;
+        sst.post(() -> {
+            for (int i = 0; i < burst; i++) {
+                sst.sendMessage(sst.obtainMessage(
+                        ServiceStateTracker.EVENT_NETWORK_STATE_CHANGED, null));
+            }
+        });
+        waitForMs(500);
+
+        // The first indication starts a poll round, the others are merged into one more round
+        assertEquals(requestCount + burst, sst.getPollStateRequestCount(
+                ServiceStateTracker.POLL_TRIGGER_NETWORK_STATE_CHANGED));
+        assertEquals(pollStateRounds + 2, sst.getPollStateRounds());
+        assertEquals(requestsCoalesced + burst - 2, sst.getPollStateRequestsCoalesced());
+        assertEquals(getOperatorCallCount + 2, mSimulatedCommands.getGetOperatorCallCount());
+        assertEquals(getVoiceRegistrationStateCallCount + 2,
+                mSimulatedCommands.getGetVoiceRegistrationStateCallCount());
+    }
+
+    @Test
+    @MediumTest
+    public void testCancelPollStateDropsCoalescedRound() {
+        sst.setRadioPower(true);
+        waitForMs(500);
+
+        final int pollStateRounds = sst.getPollStateRounds();
+
+        // Merge indications into a follow-up round, then cancel as on RADIO_NOT_AVAILABLE
+        sst.post(() -> {
+            for (int i = 0; i < 3; i++) {
+                sst.sendMessage(sst.obtainMessage(
+                        ServiceStateTracker.EVENT_NETWORK_STATE_CHANGED, null));
+            }
+            sst.post(() -> sst.cancelPollState());
+        });
+        waitForMs(500);
+
+        // Only the first round ran
+        assertEquals(pollStateRounds + 1, sst.getPollStateRounds());
+        final int requestsCoalesced = sst.getPollStateRequestsCoalesced();
+
+        // Nothing is left pending, so the next indication is polled right away
+        sst.sendMessage(sst.obtainMessage(ServiceStateTracker.EVENT_NETWORK_STATE_CHANGED, null));
+        waitForMs(500);
+        assertEquals(pollStateRounds + 2, sst.getPollStateRounds());
+        assertEquals(requestsCoalesced, sst.getPollStateRequestsCoalesced());
+    }
+
+    private void startPollStateRoundLosingResponse() {
+        sst.post(() -> {
+            sst.sendMessage(sst.obtainMessage(
+                    ServiceStateTracker.EVENT_NETWORK_STATE_CHANGED, null));
+            // One more response than will ever arrive
+            sst.post(() -> sst.mPollingContext[0]++);
+        });
+        waitForMs(500);
+    }
+
+    private void expirePollStateRound() throws Exception {
+        replaceInstance(ServiceStateTracker.class, "mLastPollStateTime", sst,
+                SystemClock.elapsedRealtime() - ServiceStateTracker.POLL_STATE_ROUND_TIMEOUT_MS);
+    }
+
+    @Test
+    @MediumTest
+    public void testLostPollStateResponseDoesNotHoldBackIndications() throws Exception {
+        sst.setRadioPower(true);
+        waitForMs(500);
+
+        final int pollStateRounds = sst.getPollStateRounds();
+        startPollStateRoundLosingResponse();
+        assertEquals(pollStateRounds + 1, sst.getPollStateRounds());
+
+        // The indication waits for the round in progress, but not forever
+        sst.sendMessage(sst.obtainMessage(ServiceStateTracker.EVENT_NETWORK_STATE_CHANGED, null));
+        waitForMs(500);
+        assertEquals(pollStateRounds + 1, sst.getPollStateRounds());
+        assertTrue(sst.hasMessages(ServiceStateTracker.EVENT_POLL_STATE_COALESCED));
+
+        // The timeout starts the pending round
+        expirePollStateRound();
+        sst.removeMessages(ServiceStateTracker.EVENT_POLL_STATE_COALESCED);
+        sst.sendEmptyMessage(ServiceStateTracker.EVENT_POLL_STATE_COALESCED);
+        waitForMs(500);
+        assertEquals(pollStateRounds + 2, sst.getPollStateRounds());
+
+        // An indication arriving after a round timed out starts a fresh round right away
+        startPollStateRoundLosingResponse();
+        assertEquals(pollStateRounds + 3, sst.getPollStateRounds());
+        expirePollStateRound();
+        sst.sendMessage(sst.obtainMessage(ServiceStateTracker.EVENT_NETWORK_STATE_CHANGED, null));
+        waitForMs(500);
+        assertEquals(pollStateRounds + 4, sst.getPollStateRounds());
+    }
+
     @FlakyTest
     @Ignore
     @Test
@@ -627,6 +737,73 @@ public class ServiceStateTrackerTest extends TelephonyTest {
         assertEquals(sst.getSignalStrength().isGsm(), false);
     }
 
+    private void sendSignalStrengthPollResult(SignalStrength ss) {
+        sst.sendMessage(sst.obtainMessage(ServiceStateTracker.EVENT_GET_SIGNAL_STRENGTH,
+                new AsyncResult(null, ss, null)));
+        waitForMs(100);
+    }
+
+    @Test
+    @MediumTest
+    public void testSignalStrengthPollBackoff() {
+        sst.setRadioPower(true);
+        waitForMs(500);
+
+        sst.sendMessage(sst.obtainMessage(
+                ServiceStateTracker.EVENT_SIGNAL_STRENGTH_POLL_INTERVAL_CHANGED,
+                new AsyncResult(null, DeviceStateMonitor.SIGNAL_STRENGTH_POLL_INTERVAL_SHORT_MS,
+                        null)));
+        waitForMs(200);
+
+        SignalStrength ss = new SignalStrength(
+                new CellSignalStrengthCdma(),
+                new CellSignalStrengthGsm(-53, 0, SignalStrength.INVALID),
+                new CellSignalStrengthWcdma(),
+                new CellSignalStrengthTdscdma(),
+                new CellSignalStrengthLte(),
+                new CellSignalStrengthNr());
+        sendSignalStrengthPollResult(ss);
+        assertEquals(DeviceStateMonitor.SIGNAL_STRENGTH_POLL_INTERVAL_SHORT_MS,
+                sst.getSignalStrengthPollDelay());
+
+        // The poll period doubles while the signal strength does not change, up to 4 times
+        sendSignalStrengthPollResult(ss);
+        assertEquals(2 * DeviceStateMonitor.SIGNAL_STRENGTH_POLL_INTERVAL_SHORT_MS,
+                sst.getSignalStrengthPollDelay());
+        sendSignalStrengthPollResult(ss);
+        assertEquals(4 * DeviceStateMonitor.SIGNAL_STRENGTH_POLL_INTERVAL_SHORT_MS,
+                sst.getSignalStrengthPollDelay());
+        sendSignalStrengthPollResult(ss);
+        assertEquals(4 * DeviceStateMonitor.SIGNAL_STRENGTH_POLL_INTERVAL_SHORT_MS,
+                sst.getSignalStrengthPollDelay());
+
+        // A change resets the period
+        sendSignalStrengthPollResult(new SignalStrength(
+                new CellSignalStrengthCdma(),
+                new CellSignalStrengthGsm(-85, 0, SignalStrength.INVALID),
+                new CellSignalStrengthWcdma(),
+                new CellSignalStrengthTdscdma(),
+                new CellSignalStrengthLte(),
+                new CellSignalStrengthNr()));
+        assertEquals(DeviceStateMonitor.SIGNAL_STRENGTH_POLL_INTERVAL_SHORT_MS,
+                sst.getSignalStrengthPollDelay());
+
+        // No polling e.g. while the screen is off
+        sst.sendMessage(sst.obtainMessage(
+                ServiceStateTracker.EVENT_SIGNAL_STRENGTH_POLL_INTERVAL_CHANGED,
+                new AsyncResult(null, DeviceStateMonitor.SIGNAL_STRENGTH_POLL_DISABLED, null)));
+        waitForMs(100);
+        assertFalse(sst.hasMessages(ServiceStateTracker.EVENT_POLL_SIGNAL_STRENGTH));
+    }
+
+    @Test
+    @SmallTest
+    public void testDisposeUnregistersPollIntervalChanged() {
+        mPhone.mDeviceStateMonitor = mDeviceStateMonitor;
+        sst.dispose();
+        verify(mDeviceStateMonitor).unregisterForSignalStrengthPollIntervalChanged(sst);
+    }
+
     private void sendCarrierConfigUpdate() {
         CarrierConfigManager mockConfigManager = Mockito.mock(CarrierConfigManager.class);
         when(mContext.getSystemService(Context.CARRIER_CONFIG_SERVICE))
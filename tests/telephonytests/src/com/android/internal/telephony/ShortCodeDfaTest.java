@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static android.telephony.SmsManager.SMS_CATEGORY_FREE_SHORT_CODE;
+import static android.telephony.SmsManager.SMS_CATEGORY_NOT_SHORT_CODE;
+import static android.telephony.SmsManager.SMS_CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE;
+import static android.telephony.SmsManager.SMS_CATEGORY_PREMIUM_SHORT_CODE;
+import static android.telephony.SmsManager.SMS_CATEGORY_STANDARD_SHORT_CODE;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+import java.util.regex.Pattern;
+
+public class ShortCodeDfaTest extends TestCase {
+    /** {short code, premium, free, standard} patterns in the style of sms_short_codes.xml. */
+    private static final String[][] PATTERNS = {
+            {"\\d{1,5}", "1(?:2[0-9]|5[1-3])\\d{2}", "112|911", "(?:3[2-9]|4[0-5])\\d{2,3}"},
+            {"[1-9]\\d{3,5}|0\\d{2}", "6\\d{4}|7[0-4]\\d{3}", null, "8\\d*"},
+            {"\\d{4,6}", null, "1[^5]\\d|55.?", "(?:9(?:9|8)){2}\\D?"},
+            {"", "1?2+", "0*|1", "(2|3)+?4{2,}"},
+    };
+
+    private static final String ALPHABET = "0123456789+#a\n";
+
+    /** The classification SmsUsageMonitor does with the regexes. */
+    private static int getRegexCategory(String[] regexes, String number) {
+        int[] categories = {SMS_CATEGORY_FREE_SHORT_CODE, SMS_CATEGORY_STANDARD_SHORT_CODE,
+                SMS_CATEGORY_PREMIUM_SHORT_CODE, SMS_CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE};
+        String[] ordered = {regexes[2], regexes[3], regexes[1], regexes[0]};
+        for (int i = 0; i < ordered.length; i++) {
+            if (ordered[i] != null && Pattern.compile(ordered[i]).matcher(number).matches()) {
+                return categories[i];
+            }
+        }
+        return SMS_CATEGORY_NOT_SHORT_CODE;
+    }
+
+    @SmallTest
+    public void testCategories() {
+        ShortCodeDfa dfa = ShortCodeDfa.compile(PATTERNS[0][0], PATTERNS[0][1], PATTERNS[0][2],
+                PATTERNS[0][3]);
+        assertNotNull(dfa);
+        assertEquals(SMS_CATEGORY_FREE_SHORT_CODE, dfa.getNumberCategory("112"));
+        assertEquals(SMS_CATEGORY_STANDARD_SHORT_CODE, dfa.getNumberCategory("3456"));
+        assertEquals(SMS_CATEGORY_PREMIUM_SHORT_CODE, dfa.getNumberCategory("1212"));
+        assertEquals(SMS_CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE, dfa.getNumberCategory("99999"));
+        assertEquals(SMS_CATEGORY_NOT_SHORT_CODE, dfa.getNumberCategory("6505551212"));
+        assertEquals(SMS_CATEGORY_NOT_SHORT_CODE, dfa.getNumberCategory("+1212"));
+    }
+
+    @SmallTest
+    public void testSameResultAsRegex() {
+        Random random = new Random(0);
+        for (String[] regexes : PATTERNS) {
+            ShortCodeDfa dfa = ShortCodeDfa.compile(regexes[0], regexes[1], regexes[2],
+                    regexes[3]);
+            assertNotNull(regexes[0], dfa);
+            // every number of up to 3 digits and some of 4 digits, then random strings
+            for (int i = 0; i < 11111; i++) {
+                String number = i < 10 ? "" : Integer.toString(i).substring(1);
+                assertEquals(number, getRegexCategory(regexes, number),
+                        dfa.getNumberCategory(number));
+            }
+            for (int i = 0; i < 2000; i++) {
+                StringBuilder number = new StringBuilder();
+                int length = random.nextInt(8);
+                for (int j = 0; j < length; j++) {
+                    number.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+                }
+                assertEquals(number.toString(), getRegexCategory(regexes, number.toString()),
+                        dfa.getNumberCategory(number.toString()));
+            }
+        }
+    }
+
+    @SmallTest
+    public void testUnsupportedSyntax() {
+        assertNull(ShortCodeDfa.compile("a", null, null, null));
+        assertNull(ShortCodeDfa.compile("\\w+", null, null, null));
+        assertNull(ShortCodeDfa.compile("1*+", null, null, null));
+        assertNull(ShortCodeDfa.compile(null, "[1-]", null, null));
+        assertNull(ShortCodeDfa.compile(null, null, "(1)\\1", null));
+        assertNull(ShortCodeDfa.compile(null, null, null, "^1$"));
+    }
+}
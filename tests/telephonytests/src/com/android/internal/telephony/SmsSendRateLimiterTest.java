@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.AtomicFile;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+
+public class SmsSendRateLimiterTest extends TestCase {
+    private static final int MAX_ALLOWED = 3;
+    private static final long CHECK_PERIOD = 60000;
+
+    private File mDirectory;
+    private File mFile;
+    private HandlerThread mHandlerThread;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("sms_send_times", null);
+        mFile.delete();
+        mDirectory = mFile.getParentFile();
+        mHandlerThread = new HandlerThread(getClass().getSimpleName());
+        mHandlerThread.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHandlerThread.quit();
+        new AtomicFile(mFile).delete();
+        SmsSendRateLimiter.getFile(mDirectory, 0).delete();
+        SmsSendRateLimiter.getFile(mDirectory, 1).delete();
+        super.tearDown();
+    }
+
+    private SmsSendRateLimiter createLimiter() {
+        return createLimiter(new AtomicFile(mFile));
+    }
+
+    private SmsSendRateLimiter createLimiter(AtomicFile file) {
+        return new SmsSendRateLimiter(MAX_ALLOWED, CHECK_PERIOD, file,
+                new Handler(mHandlerThread.getLooper()));
+    }
+
+    @SmallTest
+    public void testLimitPerPackage() {
+        SmsSendRateLimiter limiter = new SmsSendRateLimiter(MAX_ALLOWED, CHECK_PERIOD, null, null);
+        long now = 1000000L;
+
+        assertTrue(limiter.isUnderLimit("a", 2, now));
+        assertFalse(limiter.isUnderLimit("a", 2, now + 1));
+        assertTrue(limiter.isUnderLimit("a", 1, now + 2));
+        assertFalse(limiter.isUnderLimit("a", 1, now + 3));
+        assertEquals(MAX_ALLOWED, limiter.getRecordedCount("a"));
+
+        // other packages have their own limit
+        assertTrue(limiter.isUnderLimit("b", MAX_ALLOWED, now + 4));
+        assertFalse(limiter.isUnderLimit("c", MAX_ALLOWED + 1, now + 5));
+        assertEquals(0, limiter.getRecordedCount("c"));
+    }
+
+    @SmallTest
+    public void testSlidingWindow() {
+        SmsSendRateLimiter limiter = new SmsSendRateLimiter(MAX_ALLOWED, CHECK_PERIOD, null, null);
+        long now = 1000000L;
+
+        assertTrue(limiter.isUnderLimit("a", 1, now));
+        assertTrue(limiter.isUnderLimit("a", 2, now + 1000));
+        assertFalse(limiter.isUnderLimit("a", 1, now + CHECK_PERIOD - 1));
+        // the first message leaves the window
+        assertTrue(limiter.isUnderLimit("a", 1, now + CHECK_PERIOD + 1));
+        assertFalse(limiter.isUnderLimit("a", 1, now + CHECK_PERIOD + 2));
+        // the ring buffer wraps around
+        assertTrue(limiter.isUnderLimit("a", 2, now + CHECK_PERIOD + 1001));
+        assertEquals(MAX_ALLOWED, limiter.getRecordedCount("a"));
+    }
+
+    @SmallTest
+    public void testIdlePackagesRemoved() {
+        SmsSendRateLimiter limiter = new SmsSendRateLimiter(MAX_ALLOWED, CHECK_PERIOD, null, null);
+        long now = 1000000L;
+
+        assertTrue(limiter.isUnderLimit("a", 1, now));
+        assertEquals(1, limiter.getRecordedCount("a"));
+        assertTrue(limiter.isUnderLimit("a", 0, now + 2 * CHECK_PERIOD));
+        assertEquals(0, limiter.getRecordedCount("a"));
+    }
+
+    @SmallTest
+    public void testSendTimesPersisted() {
+        long now = System.currentTimeMillis();
+        SmsSendRateLimiter limiter = createLimiter();
+        assertTrue(limiter.isUnderLimit("a", 2, now - 1000));
+        assertTrue(limiter.isUnderLimit("b", 1, now - CHECK_PERIOD - 1000));
+        limiter.writeState();
+
+        limiter = createLimiter();
+        assertEquals(2, limiter.getRecordedCount("a"));
+        // expired send times are not kept
+        assertEquals(0, limiter.getRecordedCount("b"));
+        assertFalse(limiter.isUnderLimit("a", 2, now));
+        assertTrue(limiter.isUnderLimit("a", 1, now));
+    }
+
+    @SmallTest
+    public void testSendTimesPersistedPerPhone() {
+        long now = System.currentTimeMillis();
+        SmsSendRateLimiter limiter0 = createLimiter(SmsSendRateLimiter.getFile(mDirectory, 0));
+        SmsSendRateLimiter limiter1 = createLimiter(SmsSendRateLimiter.getFile(mDirectory, 1));
+        assertTrue(limiter0.isUnderLimit("a", 2, now - 1000));
+        assertTrue(limiter1.isUnderLimit("a", 1, now - 1000));
+        assertTrue(limiter1.isUnderLimit("b", 3, now - 1000));
+        // the last write must not replace the send times of the other phone
+        limiter0.writeState();
+        limiter1.writeState();
+
+        limiter0 = createLimiter(SmsSendRateLimiter.getFile(mDirectory, 0));
+        limiter1 = createLimiter(SmsSendRateLimiter.getFile(mDirectory, 1));
+        assertEquals(2, limiter0.getRecordedCount("a"));
+        assertEquals(0, limiter0.getRecordedCount("b"));
+        assertEquals(1, limiter1.getRecordedCount("a"));
+        assertEquals(3, limiter1.getRecordedCount("b"));
+    }
+}
@@ -20,6 +20,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.anyString;
@@ -204,6 +205,36 @@ public class SubscriptionControllerTest extends TelephonyTest {
                 captorIntent.getValue().getAction());
     }
 
+    @Test @SmallTest
+    public void testReadsReflectWrites() {
+        testInsertSim();
+        int subId = 1;
+
+        SubscriptionInfo subInfo = mSubscriptionControllerUT.getSubscriptionInfo(subId);
+        assertNotNull(subInfo);
+        assertEquals(subInfo, mSubscriptionControllerUT
+                .getActiveSubscriptionInfoForIccId("test", mCallingPackage));
+        assertEquals(1, mSubscriptionControllerUT.getSubInfoUsingSlotIndexPrivileged(0).size());
+
+        mSubscriptionControllerUT.setIconTint(0xffff0000, subId);
+        assertEquals(0xffff0000, mSubscriptionControllerUT.getSubscriptionInfo(subId)
+                .getIconTint());
+        assertEquals(0xffff0000, mSubscriptionControllerUT.getSubInfoUsingSlotIndexPrivileged(0)
+                .get(0).getIconTint());
+
+        mSubscriptionControllerUT.setSubscriptionProperty(subId,
+                SubscriptionManager.ENHANCED_4G_MODE_ENABLED, "1");
+        assertEquals("1", mSubscriptionControllerUT.getSubscriptionProperty(subId,
+                SubscriptionManager.ENHANCED_4G_MODE_ENABLED));
+        mSubscriptionControllerUT.setSubscriptionProperty(subId,
+                SubscriptionManager.ENHANCED_4G_MODE_ENABLED, "0");
+        assertEquals("0", mSubscriptionControllerUT.getSubscriptionProperty(subId,
+                SubscriptionManager.ENHANCED_4G_MODE_ENABLED));
+
+        assertNull(mSubscriptionControllerUT.getSubscriptionInfo(subId + 1));
+        assertNull(mSubscriptionControllerUT.getSubInfoUsingSlotIndexPrivileged(1));
+    }
+
     @Test @SmallTest
     public void testSetGetDisplayNameSrc() {
         testInsertSim();
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.cdnr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.uicc.IccRecords.OperatorPlmnInfo;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class OperatorPlmnIndexTest {
+
+    /** The first entry matching, found by scanning EF_OPL in order. */
+    private static OperatorPlmnInfo findByScan(List<OperatorPlmnInfo> opl, String plmn,
+            int lacTac) {
+        for (OperatorPlmnInfo info : opl) {
+            if (info.plmnNumericPattern.length() != plmn.length()) continue;
+            boolean matches = true;
+            for (int i = 0; i < plmn.length(); i++) {
+                char c = info.plmnNumericPattern.charAt(i);
+                if (c != '.' && c != plmn.charAt(i)) matches = false;
+            }
+            if (!matches) continue;
+            if (lacTac < 0 ? info.lacTacStart <= 0 && info.lacTacEnd >= 0xFFFE
+                    : info.lacTacStart <= lacTac && info.lacTacEnd >= lacTac) {
+                return info;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    @SmallTest
+    public void testFind() {
+        OperatorPlmnInfo home = new OperatorPlmnInfo("310260", 100, 199, 1);
+        OperatorPlmnInfo homeOverlap = new OperatorPlmnInfo("310260", 150, 299, 2);
+        OperatorPlmnInfo mcc = new OperatorPlmnInfo("310...", 0, 0xFFFE, 3);
+        OperatorPlmnInfo other = new OperatorPlmnInfo("480123", 0, 0xFFFE, 0);
+        OperatorPlmnIndex index = new OperatorPlmnIndex(
+                Arrays.asList(home, homeOverlap, mcc, other));
+
+        assertSame(home, index.find("310260", 100));
+        assertSame(home, index.find("310260", 199));
+        assertSame(homeOverlap, index.find("310260", 200));
+        assertSame(mcc, index.find("310260", 300));
+        assertSame(mcc, index.find("310260", -1));
+        assertSame(mcc, index.find("310410", 150));
+        assertSame(other, index.find("480123", 7));
+        assertNull(index.find("48012", 7));
+        assertNull(index.find("311260", 150));
+        assertNull(index.find(null, 150));
+    }
+
+    @Test
+    @SmallTest
+    public void testEarlierWildcardEntryWins() {
+        OperatorPlmnInfo wildcard = new OperatorPlmnInfo("3102..", 0, 500, 1);
+        OperatorPlmnInfo exact = new OperatorPlmnInfo("310260", 0, 0xFFFE, 2);
+        OperatorPlmnIndex index = new OperatorPlmnIndex(Arrays.asList(wildcard, exact));
+
+        assertSame(wildcard, index.find("310260", 10));
+        assertSame(exact, index.find("310260", 501));
+        assertSame(exact, index.find("310260", -1));
+    }
+
+    @Test
+    @SmallTest
+    public void testEmpty() {
+        OperatorPlmnIndex index = new OperatorPlmnIndex(Collections.emptyList());
+        assertNull(index.find("310260", 1));
+    }
+
+    @Test
+    @SmallTest
+    public void testSameResultAsScan() {
+        String[] patterns = {"310260", "31026.", "310...", "......", "48012", "480..", "311260"};
+        String[] plmns = {"310260", "310261", "310410", "48012", "48099", "311260", "123456"};
+        Random random = new Random(0);
+        for (int n = 0; n < 50; n++) {
+            OperatorPlmnInfo[] opl = new OperatorPlmnInfo[random.nextInt(12)];
+            for (int i = 0; i < opl.length; i++) {
+                int start = random.nextInt(64);
+                int end = random.nextInt(8) == 0 ? 0xFFFE : start + random.nextInt(32);
+                opl[i] = new OperatorPlmnInfo(patterns[random.nextInt(patterns.length)],
+                        random.nextInt(8) == 0 ? 0 : start, end, i);
+            }
+            List<OperatorPlmnInfo> oplList = Arrays.asList(opl);
+            OperatorPlmnIndex index = new OperatorPlmnIndex(oplList);
+            for (String plmn : plmns) {
+                for (int lacTac = -1; lacTac < 100; lacTac++) {
+                    assertEquals(plmn + " " + lacTac, findByScan(oplList, plmn, lacTac),
+                            index.find(plmn, lacTac));
+                }
+            }
+        }
+    }
+}
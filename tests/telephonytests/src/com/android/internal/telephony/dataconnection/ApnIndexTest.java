@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.provider.Telephony;
+import android.telephony.TelephonyManager;
+import android.telephony.data.ApnSetting;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BinaryOperator;
+
+public class ApnIndexTest {
+    private static final int LTE_BITMASK = 1 << (TelephonyManager.NETWORK_TYPE_LTE - 1);
+    private static final int UMTS_BITMASK = 1 << (TelephonyManager.NETWORK_TYPE_UMTS - 1);
+
+    private static final BinaryOperator<ApnSetting> MERGER = (dest, src) -> createApnSetting(
+            dest.getId(), dest.getApnName(), dest.getApnTypeBitmask() | src.getApnTypeBitmask(),
+            dest.getNetworkTypeBitmask(), dest.getApnSetId());
+
+    private static ApnSetting createApnSetting(int id, String apn, int apnTypeBitmask,
+            int networkTypeBitmask, int apnSetId) {
+        return ApnSetting.makeApnSetting(id, "44010", "name" + id, apn, null, -1, null, null, -1,
+                "", "", -1, apnTypeBitmask, ApnSetting.PROTOCOL_IP, ApnSetting.PROTOCOL_IP,
+                true, networkTypeBitmask, 0, false, 0, 0, 0, 0, -1, "", apnSetId,
+                TelephonyManager.UNKNOWN_CARRIER_ID, -1);
+    }
+
+    /** The pairwise dedupe DcTracker used to do. */
+    private static void dedupePairwise(List<ApnSetting> apns) {
+        int i = 0;
+        while (i < apns.size() - 1) {
+            ApnSetting first = apns.get(i);
+            int j = i + 1;
+            while (j < apns.size()) {
+                ApnSetting second = apns.get(j);
+                if (first.similar(second)) {
+                    first = MERGER.apply(first, second);
+                    apns.set(i, first);
+                    apns.remove(j);
+                } else {
+                    j++;
+                }
+            }
+            i++;
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testDedupe() {
+        List<ApnSetting> apns = Arrays.asList(
+                createApnSetting(1, "internet", ApnSetting.TYPE_DEFAULT, 0, 0),
+                createApnSetting(2, "mms", ApnSetting.TYPE_MMS, 0, 0),
+                createApnSetting(3, "internet", ApnSetting.TYPE_MMS, 0, 0),
+                createApnSetting(4, "internet", ApnSetting.TYPE_DEFAULT, 0, 0),
+                createApnSetting(5, "internet", ApnSetting.TYPE_SUPL, 0, 0),
+                createApnSetting(6, "mms", ApnSetting.TYPE_SUPL, 0, 0),
+                createApnSetting(7, "internet", ApnSetting.TYPE_DUN, 0, 0),
+                createApnSetting(8, "ims", ApnSetting.TYPE_IMS, 0, 0),
+                createApnSetting(9, "internet", ApnSetting.TYPE_MMS, 0, 0));
+
+        ArrayList<ApnSetting> expected = new ArrayList<>(apns);
+        dedupePairwise(expected);
+        ArrayList<ApnSetting> actual = new ArrayList<>(apns);
+        ApnIndex.dedupe(actual, MERGER);
+
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getId(), actual.get(i).getId());
+            assertEquals(expected.get(i).getApnTypeBitmask(), actual.get(i).getApnTypeBitmask());
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testGetWaitingApns() {
+        ApnSetting lteDefault = createApnSetting(1, "lte", ApnSetting.TYPE_DEFAULT,
+                LTE_BITMASK, 0);
+        ApnSetting anyDefault = createApnSetting(2, "any", ApnSetting.TYPE_DEFAULT
+                | ApnSetting.TYPE_MMS, 0, 0);
+        ApnSetting preferredDefault = createApnSetting(3, "preferred", ApnSetting.TYPE_DEFAULT,
+                0, 2);
+        ApnSetting umtsMms = createApnSetting(4, "mms", ApnSetting.TYPE_MMS, UMTS_BITMASK, 0);
+        ApnIndex index = new ApnIndex(Arrays.asList(lteDefault, anyDefault, preferredDefault,
+                umtsMms), 2);
+
+        assertEquals(Arrays.asList(preferredDefault, lteDefault, anyDefault),
+                index.getWaitingApns(ApnSetting.TYPE_DEFAULT, TelephonyManager.NETWORK_TYPE_LTE));
+        assertEquals(Arrays.asList(preferredDefault, anyDefault),
+                index.getWaitingApns(ApnSetting.TYPE_DEFAULT, TelephonyManager.NETWORK_TYPE_UMTS));
+        assertEquals(Arrays.asList(anyDefault, umtsMms),
+                index.getWaitingApns(ApnSetting.TYPE_MMS, TelephonyManager.NETWORK_TYPE_UMTS));
+        assertTrue(index.getWaitingApns(ApnSetting.TYPE_IMS,
+                TelephonyManager.NETWORK_TYPE_LTE).isEmpty());
+
+        // Callers get their own copy of the cached list
+        index.getWaitingApns(ApnSetting.TYPE_DEFAULT, TelephonyManager.NETWORK_TYPE_LTE).clear();
+        assertEquals(3, index.getWaitingApns(ApnSetting.TYPE_DEFAULT,
+                TelephonyManager.NETWORK_TYPE_LTE).size());
+    }
+
+    @Test
+    @SmallTest
+    public void testSortByPreferredApnSet() {
+        ApnSetting apn1 = createApnSetting(1, "a", ApnSetting.TYPE_DEFAULT, 0, 0);
+        ApnSetting apn2 = createApnSetting(2, "b", ApnSetting.TYPE_DEFAULT, 0, 1);
+        ArrayList<ApnSetting> apns = new ArrayList<>(Arrays.asList(apn1, apn2));
+
+        ApnIndex.sortByPreferredApnSet(apns, Telephony.Carriers.NO_APN_SET_ID);
+        assertEquals(Arrays.asList(apn1, apn2), apns);
+        ApnIndex.sortByPreferredApnSet(apns, 1);
+        assertEquals(Arrays.asList(apn2, apn1), apns);
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.dataconnection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * Replays packet count traces through the detector, sampled the way DcTracker samples, and
+ * through the fixed period alarm check it replaces.
+ */
+public class DataStallDetectorTest {
+    private static final long ALARM_DELAY_MS = 60 * 1000;
+    private static final int TRIGGER_PACKET_COUNT = 10;
+    private static final long SECOND_MS = 1000;
+
+    /** Cumulative TCP packet counts by second. */
+    private static final class Trace {
+        final LongUnaryOperator mTx;
+        final LongUnaryOperator mRx;
+        final long mDurationSeconds;
+
+        Trace(LongUnaryOperator tx, LongUnaryOperator rx, long durationSeconds) {
+            mTx = tx;
+            mRx = rx;
+            mDurationSeconds = durationSeconds;
+        }
+    }
+
+    private static final class Result {
+        final List<Long> mDetectionTimes = new ArrayList<>();
+        int mSamples;
+    }
+
+    /** The check done on each data stall alarm before the detector. */
+    private static Result replayAlarm(Trace trace) {
+        Result result = new Result();
+        long sentSinceLastRecv = 0;
+        for (long t = ALARM_DELAY_MS / SECOND_MS; t <= trace.mDurationSeconds;
+                t += ALARM_DELAY_MS / SECOND_MS) {
+            long previous = t - ALARM_DELAY_MS / SECOND_MS;
+            long sent = trace.mTx.applyAsLong(t) - trace.mTx.applyAsLong(previous);
+            long received = trace.mRx.applyAsLong(t) - trace.mRx.applyAsLong(previous);
+            result.mSamples++;
+            if (received > 0) {
+                sentSinceLastRecv = 0;
+            } else {
+                sentSinceLastRecv += sent;
+            }
+            if (sentSinceLastRecv >= TRIGGER_PACKET_COUNT) {
+                result.mDetectionTimes.add(t * SECOND_MS);
+                sentSinceLastRecv = 0;
+            }
+        }
+        return result;
+    }
+
+    /** The detector, with samples expedited by the net stat poll seeing outgoing traffic. */
+    private static Result replayDetector(Trace trace, DataStallDetector detector) {
+        Result result = new Result();
+        long lastSample = 0;
+        long nextSample = ALARM_DELAY_MS / SECOND_MS;
+        for (long t = 1; t <= trace.mDurationSeconds; t++) {
+            boolean dataOut = trace.mTx.applyAsLong(t) > trace.mTx.applyAsLong(t - 1)
+                    && trace.mRx.applyAsLong(t) == trace.mRx.applyAsLong(t - 1);
+            if (dataOut && (nextSample - t) * SECOND_MS
+                    > DataStallDetector.SUSPECT_SAMPLE_INTERVAL_MS) {
+                nextSample = t + DataStallDetector.SUSPECT_SAMPLE_INTERVAL_MS / SECOND_MS;
+            }
+            if (t != nextSample) continue;
+
+            long now = t * SECOND_MS;
+            result.mSamples++;
+            detector.onSample(now, trace.mTx.applyAsLong(t) - trace.mTx.applyAsLong(lastSample),
+                    trace.mRx.applyAsLong(t) - trace.mRx.applyAsLong(lastSample), true);
+            lastSample = t;
+            if (detector.isStallSuspected(now, TRIGGER_PACKET_COUNT)) {
+                result.mDetectionTimes.add(now);
+                detector.onStallDetected(now);
+                detector.onRecoveryAction();
+            }
+            nextSample = t + detector.getNextSampleDelay(ALARM_DELAY_MS, true) / SECOND_MS;
+        }
+        return result;
+    }
+
+    @Test
+    @SmallTest
+    public void testStallDetectedSooner() {
+        // One packet each way per second, until nothing is received from 300s on
+        final long stallSeconds = 300;
+        Trace trace = new Trace(t -> t, t -> Math.min(t, stallSeconds), 600);
+
+        Result alarm = replayAlarm(trace);
+        DataStallDetector detector = new DataStallDetector();
+        Result detected = replayDetector(trace, detector);
+
+        assertFalse(alarm.mDetectionTimes.isEmpty());
+        assertFalse(detected.mDetectionTimes.isEmpty());
+        long alarmTimeToDetect = alarm.mDetectionTimes.get(0) - stallSeconds * SECOND_MS;
+        long timeToDetect = detected.mDetectionTimes.get(0) - stallSeconds * SECOND_MS;
+        assertTrue(timeToDetect >= DataStallDetector.MIN_UNANSWERED_DURATION_MS);
+        assertTrue(timeToDetect < alarmTimeToDetect);
+        assertEquals(1, detector.getStallCount());
+        assertEquals(timeToDetect, detector.getLastTimeToDetectMs());
+        assertEquals(0, detector.getFalsePositiveCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testBurstyLinkNotReported() {
+        // One packet sent per second, while packets are only received in bursts every 45s
+        Trace trace = new Trace(t -> t, t -> 10 * ((t + 1) / 45), 1200);
+
+        assertTrue(replayAlarm(trace).mDetectionTimes.isEmpty());
+        DataStallDetector detector = new DataStallDetector();
+        assertTrue(replayDetector(trace, detector).mDetectionTimes.isEmpty());
+        assertEquals(0, detector.getStallCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testIdleLinkSampledLessOften() {
+        // A request answered every 5 minutes, otherwise idle
+        Trace trace = new Trace(t -> 5 * ((t + 300) / 300), t -> 5 * ((t + 299) / 300), 3600);
+
+        Result alarm = replayAlarm(trace);
+        DataStallDetector detector = new DataStallDetector();
+        Result detected = replayDetector(trace, detector);
+
+        assertTrue(alarm.mDetectionTimes.isEmpty());
+        assertTrue(detected.mDetectionTimes.isEmpty());
+        assertTrue(detected.mSamples < alarm.mSamples);
+    }
+
+    @Test
+    @SmallTest
+    public void testFalsePositiveCounted() {
+        DataStallDetector detector = new DataStallDetector();
+        long now = 0;
+        // Answered traffic, then unanswered packets for the maximum duration
+        for (int i = 0; i < DataStallDetector.MIN_ANSWERED_SAMPLES; i++) {
+            now += ALARM_DELAY_MS;
+            assertTrue(detector.onSample(now, 5, 5, true));
+        }
+        now += DataStallDetector.MAX_UNANSWERED_DURATION_MS;
+        assertFalse(detector.onSample(now, TRIGGER_PACKET_COUNT, 0, true));
+        assertTrue(detector.isStallSuspected(now, TRIGGER_PACKET_COUNT));
+        detector.onStallDetected(now);
+
+        // The link answers right away
+        now += DataStallDetector.SUSPECT_SAMPLE_INTERVAL_MS;
+        assertTrue(detector.onSample(now, 1, 1, true));
+        assertEquals(1, detector.getStallCount());
+        assertEquals(1, detector.getFalsePositiveCount());
+        assertEquals(DataStallDetector.MAX_UNANSWERED_DURATION_MS,
+                detector.getLastTimeToDetectMs());
+    }
+
+    @Test
+    @SmallTest
+    public void testUnansweredPacketsNotCountedInCall() {
+        DataStallDetector detector = new DataStallDetector();
+        detector.onSample(ALARM_DELAY_MS, 100, 0, false);
+        assertEquals(0, detector.getSentSinceLastRecv());
+        assertFalse(detector.isStallSuspected(2 * ALARM_DELAY_MS, TRIGGER_PACKET_COUNT));
+    }
+}
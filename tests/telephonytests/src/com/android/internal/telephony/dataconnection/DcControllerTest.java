@@ -60,6 +60,7 @@ import java.util.List;
 public class DcControllerTest extends TelephonyTest {
 
     private static final int DATA_CONNECTION_ACTIVE_PH_LINK_DORMANT = 1;
+    private static final int DATA_CONNECTION_ACTIVE_PH_LINK_UP = 2;
     private static final int EVENT_DATA_STATE_CHANGED = 0x00040007;
 
     @Mock
@@ -148,4 +149,62 @@ public class DcControllerTest extends TelephonyTest {
 
         verify(mDcTracker, times(1)).sendStopNetStatPoll(eq(DctConstants.Activity.DORMANT));
     }
-}
\ No newline at end of file
+
+    private DataCallResponse createActiveDataCallResponse(String address) {
+        return createActiveDataCallResponse(1 /* cid */, address);
+    }
+
+    private DataCallResponse createActiveDataCallResponse(int cid, String address) {
+        return new DataCallResponse(0, -1, cid, DATA_CONNECTION_ACTIVE_PH_LINK_UP,
+                ApnSetting.PROTOCOL_IP, FAKE_IFNAME,
+                Arrays.asList(new LinkAddress(NetworkUtils.numericToInetAddress(address), 0)),
+                Arrays.asList(NetworkUtils.numericToInetAddress(FAKE_DNS)),
+                Arrays.asList(NetworkUtils.numericToInetAddress(FAKE_GATEWAY)),
+                Arrays.asList(NetworkUtils.numericToInetAddress(FAKE_PCSCF_ADDRESS)),
+                1440);
+    }
+
+    @Test
+    @SmallTest
+    public void testUnchangedDataCallSkipped() throws Exception {
+        mDc.mCid = 1;
+        mDcc.addActiveDcByCid(mDc);
+
+        ArrayList<DataCallResponse> l = new ArrayList<>();
+        l.add(createActiveDataCallResponse(FAKE_ADDRESS));
+        mDcc.sendMessage(EVENT_DATA_STATE_CHANGED, new AsyncResult(null, l, null));
+        waitForMs(100);
+        verify(mDc, times(1)).updateLinkProperty(any(DataCallResponse.class));
+
+        // The same list again, as new objects
+        l = new ArrayList<>();
+        l.add(createActiveDataCallResponse(FAKE_ADDRESS));
+        mDcc.sendMessage(EVENT_DATA_STATE_CHANGED, new AsyncResult(null, l, null));
+        waitForMs(100);
+        verify(mDc, times(1)).updateLinkProperty(any(DataCallResponse.class));
+        assertEquals(1, mDcc.getSkippedDataCallUpdates());
+        assertEquals(1, mDcc.getAppliedDataCallUpdates());
+
+        // A changed address is applied
+        l = new ArrayList<>();
+        l.add(createActiveDataCallResponse("11.22.33.44"));
+        mDcc.sendMessage(EVENT_DATA_STATE_CHANGED, new AsyncResult(null, l, null));
+        waitForMs(100);
+        verify(mDc, times(2)).updateLinkProperty(any(DataCallResponse.class));
+        assertEquals(2, mDcc.getAppliedDataCallUpdates());
+
+        // Data calls without a DC are not applied
+        l = new ArrayList<>();
+        l.add(createActiveDataCallResponse(2 /* cid */, FAKE_ADDRESS));
+        mDcc.sendMessage(EVENT_DATA_STATE_CHANGED, new AsyncResult(null, l, null));
+        waitForMs(100);
+        assertEquals(2, mDcc.getAppliedDataCallUpdates());
+
+        // After the DC is set up again, the next update is applied
+        mDcc.addActiveDcByCid(mDc);
+        mDcc.sendMessage(EVENT_DATA_STATE_CHANGED, new AsyncResult(null, l, null));
+        waitForMs(100);
+        verify(mDc, times(3)).updateLinkProperty(any(DataCallResponse.class));
+        assertEquals(1, mDcc.getSkippedDataCallUpdates());
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.emergency;
+
+import com.android.phone.ecc.nano.ProtobufEccData;
+import com.android.phone.ecc.nano.ProtobufEccData.EccInfo;
+import com.google.protobuf.nano.MessageNano;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+public class EmergencyNumberDatabaseTest extends TestCase {
+    private static EccInfo createEccInfo(String phoneNumber, int type) {
+        EccInfo eccInfo = new EccInfo();
+        eccInfo.phoneNumber = phoneNumber;
+        eccInfo.types = new int[] {type};
+        return eccInfo;
+    }
+
+    private static ProtobufEccData.CountryInfo createCountryInfo(String iso, EccInfo... eccs) {
+        ProtobufEccData.CountryInfo countryInfo = new ProtobufEccData.CountryInfo();
+        countryInfo.isoCode = iso;
+        countryInfo.eccs = eccs;
+        return countryInfo;
+    }
+
+    private static EmergencyNumberDatabase createDatabase(ProtobufEccData.CountryInfo... countries)
+            throws Exception {
+        ProtobufEccData.AllInfo allInfo = new ProtobufEccData.AllInfo();
+        allInfo.countries = countries;
+        EmergencyNumberDatabase database = new EmergencyNumberDatabase(null);
+        assertTrue(database.loadIndex(ByteBuffer.wrap(
+                EmergencyNumberDatabase.buildIndex(MessageNano.toByteArray(allInfo)))));
+        return database;
+    }
+
+    public void testCountryLookup() throws Exception {
+        EmergencyNumberDatabase database = createDatabase(
+                createCountryInfo("US", createEccInfo("911", EccInfo.Type.POLICE)),
+                createCountryInfo("GB", createEccInfo("999", EccInfo.Type.FIRE),
+                        createEccInfo("112", EccInfo.Type.AMBULANCE)));
+
+        ProtobufEccData.CountryInfo us = database.getCountryInfo("us");
+        assertEquals(1, us.eccs.length);
+        assertEquals("911", us.eccs[0].phoneNumber);
+
+        ProtobufEccData.CountryInfo gb = database.getCountryInfo("GB");
+        assertEquals(2, gb.eccs.length);
+        assertEquals("999", gb.eccs[0].phoneNumber);
+        assertEquals("112", gb.eccs[1].phoneNumber);
+        assertSame(gb, database.getCountryInfo("gb"));
+
+        assertNull(database.getCountryInfo("fr"));
+    }
+
+    public void testDuplicateCountriesAreMerged() throws Exception {
+        EmergencyNumberDatabase database = createDatabase(
+                createCountryInfo("US", createEccInfo("911", EccInfo.Type.POLICE)),
+                createCountryInfo("US", createEccInfo("112", EccInfo.Type.POLICE)));
+
+        ProtobufEccData.CountryInfo us = database.getCountryInfo("us");
+        assertEquals(2, us.eccs.length);
+        assertEquals("911", us.eccs[0].phoneNumber);
+        assertEquals("112", us.eccs[1].phoneNumber);
+    }
+
+    public void testRejectsCorruptIndex() throws Exception {
+        EmergencyNumberDatabase database = new EmergencyNumberDatabase(null);
+        assertFalse(database.loadIndex(ByteBuffer.wrap(new byte[] {0, 0, 0, 0})));
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.emergency;
+
+import android.telephony.emergency.EmergencyNumber;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class EmergencyNumberTrieTest extends TestCase {
+    private static EmergencyNumber createNumber(String number, int sources) {
+        return new EmergencyNumber(number, "us", "",
+                EmergencyNumber.EMERGENCY_SERVICE_CATEGORY_UNSPECIFIED,
+                new ArrayList<String>(), sources, EmergencyNumber.EMERGENCY_CALL_ROUTING_UNKNOWN);
+    }
+
+    public void testExactMatch() throws Exception {
+        EmergencyNumber num911 = createNumber("911",
+                EmergencyNumber.EMERGENCY_NUMBER_SOURCE_DATABASE);
+        EmergencyNumber num112 = createNumber("112",
+                EmergencyNumber.EMERGENCY_NUMBER_SOURCE_SIM);
+        EmergencyNumberTrie trie = new EmergencyNumberTrie(Arrays.asList(num911, num112));
+
+        assertTrue(trie.hasExactMatch("911"));
+        assertTrue(trie.hasExactMatch("112"));
+        assertFalse(trie.hasExactMatch("91"));
+        assertFalse(trie.hasExactMatch("9111"));
+        assertFalse(trie.hasExactMatch(""));
+        assertSame(num911, trie.getExactMatch("911"));
+        assertNull(trie.getExactMatch("999"));
+    }
+
+    public void testPrefixMatch() throws Exception {
+        EmergencyNumberTrie trie = new EmergencyNumberTrie(Arrays.asList(
+                createNumber("911", EmergencyNumber.EMERGENCY_NUMBER_SOURCE_DATABASE),
+                createNumber("*112", EmergencyNumber.EMERGENCY_NUMBER_SOURCE_NETWORK_SIGNALING)));
+
+        assertTrue(trie.hasPrefixMatch("911"));
+        assertTrue(trie.hasPrefixMatch("9112345"));
+        assertTrue(trie.hasPrefixMatch("*1120"));
+        assertFalse(trie.hasPrefixMatch("91"));
+        assertFalse(trie.hasPrefixMatch("1911"));
+        assertFalse(trie.hasPrefixMatch("112"));
+    }
+
+    public void testMatchesKeepListOrder() throws Exception {
+        EmergencyNumber first = createNumber("112",
+                EmergencyNumber.EMERGENCY_NUMBER_SOURCE_DATABASE);
+        EmergencyNumber second = createNumber("112",
+                EmergencyNumber.EMERGENCY_NUMBER_SOURCE_SIM);
+        EmergencyNumberTrie trie = new EmergencyNumberTrie(Arrays.asList(first, second));
+
+        List<EmergencyNumber> matches = trie.getExactMatches("112");
+        assertEquals(2, matches.size());
+        assertSame(first, matches.get(0));
+        assertSame(second, matches.get(1));
+        assertTrue(trie.getExactMatches("911").isEmpty());
+    }
+
+    public void testUnindexedCharacters() throws Exception {
+        EmergencyNumber unusual = createNumber("11A",
+                EmergencyNumber.EMERGENCY_NUMBER_SOURCE_DATABASE);
+        EmergencyNumberTrie trie = new EmergencyNumberTrie(Arrays.asList(unusual));
+
+        assertSame(unusual, trie.getExactMatch("11A"));
+        assertTrue(trie.hasPrefixMatch("11A2"));
+        assertFalse(trie.hasPrefixMatch("11"));
+    }
+}
@@ -48,6 +48,7 @@ import android.os.RemoteException;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.provider.Telephony;
+import android.telephony.CarrierConfigManager;
 import android.telephony.SubscriptionManager;
 import android.test.mock.MockContentResolver;
 
@@ -930,6 +931,42 @@ public class GsmInboundSmsHandlerTest extends TelephonyTest {
         verifySmsIntentBroadcasts(0);
     }
 
+    @Test
+    @MediumTest
+    public void testBroadcastUndeliveredDeletesExpiredSegments() throws Exception {
+        replaceInstance(SmsBroadcastUndelivered.class, "instance", null, null);
+        mContextFixture.getCarrierConfigBundle().putLong(
+                CarrierConfigManager.KEY_UNDELIVERED_SMS_MESSAGE_EXPIRATION_TIME, 0);
+
+        // add incomplete segments of two messages to db
+        InboundSmsTracker[] trackers = new InboundSmsTracker[2];
+        for (int i = 0; i < trackers.length; i++) {
+            trackers[i] = new InboundSmsTracker(
+                    mSmsPdu, /* pdu */
+                    System.currentTimeMillis() - 1000, /* timestamp */
+                    -1, /* destPort */
+                    false, /* is3gpp2 */
+                    "1234567890", /* address */
+                    "1234567890", /* displayAddress */
+                    i + 1, /* referenceNumber */
+                    1, /* sequenceNumber */
+                    2, /* messageCount */
+                    false, /* is3gpp2WapPdu */
+                    mMessageBodyPart1, /* messageBody */
+                    false, /* isClass0 */
+                    mSubId0);
+            mContentProvider.insert(sRawUri, trackers[i].getContentValues());
+        }
+        doReturn(trackers[0]).doReturn(trackers[1]).when(mTelephonyComponentFactory)
+                .makeInboundSmsTracker(any(Cursor.class), anyBoolean());
+
+        SmsBroadcastUndelivered.initialize(mContext, mGsmInboundSmsHandler, mCdmaInboundSmsHandler);
+        // wait for ScanRawTableThread
+        waitForMs(200);
+
+        assertEquals(0, mContentProvider.getNumRows());
+    }
+
     @Test
     @MediumTest
     public void testBroadcastUndeliveredMultiSim() throws Exception {
@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.uicc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.os.AsyncResult;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.preference.PreferenceManager;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.TelephonyTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class SimReadPlannerTest extends TelephonyTest {
+    private static final long TIMEOUT_MS = 1000;
+    private static final String AID = "A0000000871002";
+    private static final int MAX_PENDING_READS = 2;
+    private static final String ICCID = "8901260000000000001";
+    private static final int EVENT_CACHE_CHANGED = 1;
+
+    private HandlerThread mHandlerThread;
+    private Handler mHandler;
+    private UsimFileHandler mFh;
+    private SimReadPlanner mPlanner;
+    private SimFileCache mFileCache;
+    private SimReadPlanner mCachingPlanner;
+    // The EFs loaded, in the order their results were received
+    private final List<Integer> mLoadedEfs = new ArrayList<>();
+    private final List<AsyncResult> mResults = new ArrayList<>();
+
+    private class PlannerHandlerThread extends HandlerThread {
+        private PlannerHandlerThread(String name) {
+            super(name);
+        }
+
+        @Override
+        public void onLooperPrepared() {
+            mFh = new UsimFileHandler(mUiccCardApplication3gpp, AID, mSimulatedCommands);
+            mPlanner = new SimReadPlanner(getLooper(), mFh, MAX_PENDING_READS,
+                    null /* fileCache */);
+            mFileCache = new SimFileCache(mContext, 0 /* phoneId */);
+            mFileCache.clear();
+            mCachingPlanner = new SimReadPlanner(getLooper(), mFh, MAX_PENDING_READS,
+                    mFileCache);
+            mHandler = new Handler(getLooper()) {
+                @Override
+                public void handleMessage(Message msg) {
+                    mLoadedEfs.add(msg.what);
+                    mResults.add((AsyncResult) msg.obj);
+                }
+            };
+            setReady(true);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp(getClass().getSimpleName());
+        mSimulatedCommands.setIccFile(IccConstants.EF_AD, new byte[] {0, 0, 0, 2});
+        mSimulatedCommands.setIccFile(IccConstants.EF_GID1, new byte[] {0x12, 0x34});
+        mSimulatedCommands.setIccFile(IccConstants.EF_SPDI, new byte[] {(byte) 0xa3, 0});
+        mSimulatedCommands.setIccFile(IccConstants.EF_SST, new byte[] {1, 2, 3});
+        mSimulatedCommands.setIccLinearFixedFile(IccConstants.EF_PNN, 3,
+                new byte[][] {{1, 1, 1}, {2, 2, 2}, {3, 3, 3}, {4, 4, 4}, {5, 5, 5}, {6, 6, 6}});
+        mHandlerThread = new PlannerHandlerThread(TAG);
+        mHandlerThread.start();
+        waitUntilReady();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mHandlerThread.quit();
+        super.tearDown();
+    }
+
+    private void runOnHandler(Runnable r) {
+        mHandler.post(r);
+        // Each read takes a few messages
+        for (int i = 0; i < 20; i++) {
+            waitForHandlerAction(mHandler, TIMEOUT_MS);
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testEssentialReadsFirst() {
+        runOnHandler(() -> {
+            mPlanner.loadEFTransparent(IccConstants.EF_SPDI, false,
+                    mHandler.obtainMessage(IccConstants.EF_SPDI));
+            mPlanner.loadEFTransparent(IccConstants.EF_SST, false,
+                    mHandler.obtainMessage(IccConstants.EF_SST));
+            mPlanner.loadEFLinearFixed(IccConstants.EF_PNN, 1, false,
+                    mHandler.obtainMessage(IccConstants.EF_PNN));
+            mPlanner.loadEFTransparent(IccConstants.EF_AD, true,
+                    mHandler.obtainMessage(IccConstants.EF_AD));
+            mPlanner.loadEFTransparent(IccConstants.EF_GID1, true,
+                    mHandler.obtainMessage(IccConstants.EF_GID1));
+        });
+
+        assertEquals(5, mLoadedEfs.size());
+        // The first optional reads were started before the essential ones were queued, the
+        // others wait behind the essential reads
+        assertTrue(mLoadedEfs.indexOf(IccConstants.EF_AD) < mLoadedEfs.indexOf(
+                IccConstants.EF_PNN));
+        assertTrue(mLoadedEfs.indexOf(IccConstants.EF_GID1) < mLoadedEfs.indexOf(
+                IccConstants.EF_PNN));
+        assertEquals(MAX_PENDING_READS, mPlanner.getMaxObservedPendingReads());
+
+        AsyncResult ad = mResults.get(mLoadedEfs.indexOf(IccConstants.EF_AD));
+        assertNull(ad.exception);
+        assertArrayEquals(new byte[] {0, 0, 0, 2}, (byte[]) ad.result);
+        AsyncResult pnn = mResults.get(mLoadedEfs.indexOf(IccConstants.EF_PNN));
+        assertArrayEquals(new byte[] {1, 1, 1}, (byte[]) pnn.result);
+
+        List<SimReadPlanner.Read> trace = mPlanner.getTrace();
+        assertEquals(5, trace.size());
+        for (SimReadPlanner.Read read : trace) {
+            assertTrue(read.mSuccess);
+            assertTrue(read.getQueueTimeMs() >= 0);
+            assertTrue(read.getReadTimeMs() >= 0);
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void testMissingFile() {
+        runOnHandler(() -> mPlanner.loadEFTransparent(IccConstants.EF_CFF_CPHS, false,
+                mHandler.obtainMessage(IccConstants.EF_CFF_CPHS)));
+
+        assertEquals(1, mResults.size());
+        assertTrue(mResults.get(0).exception instanceof IccFileNotFound);
+        assertFalse(mPlanner.getTrace().get(0).mSuccess);
+    }
+
+    @Test
+    @SmallTest
+    public void testEfHeaderCached() {
+        runOnHandler(() -> mFh.loadEFTransparent(IccConstants.EF_AD,
+                mHandler.obtainMessage(IccConstants.EF_AD)));
+        // GET RESPONSE and READ BINARY
+        assertEquals(2, mSimulatedCommands.getIccIoCount());
+        assertEquals(1, mFh.getEfHeaderCacheMisses());
+
+        runOnHandler(() -> mFh.loadEFTransparent(IccConstants.EF_AD,
+                mHandler.obtainMessage(IccConstants.EF_AD)));
+        assertEquals(3, mSimulatedCommands.getIccIoCount());
+        assertEquals(1, mFh.getEfHeaderCacheHits());
+        assertArrayEquals((byte[]) mResults.get(0).result, (byte[]) mResults.get(1).result);
+
+        // A refresh may have changed the files
+        mFh.clearEfHeaders();
+        runOnHandler(() -> mFh.loadEFTransparent(IccConstants.EF_AD,
+                mHandler.obtainMessage(IccConstants.EF_AD)));
+        assertEquals(5, mSimulatedCommands.getIccIoCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testEfHeaderInvalidatedByRefresh() {
+        mFh.setIccId(ICCID);
+        // Nothing left from the other tests
+        IccFileHandler.clearEfHeaders(ICCID);
+        runOnHandler(() -> mFh.loadEFTransparent(IccConstants.EF_AD,
+                mHandler.obtainMessage(IccConstants.EF_AD)));
+        assertEquals(2, mSimulatedCommands.getIccIoCount());
+
+        // The EF was updated
+        mFh.removeEfHeader(IccConstants.EF_AD);
+        runOnHandler(() -> mFh.loadEFTransparent(IccConstants.EF_AD,
+                mHandler.obtainMessage(IccConstants.EF_AD)));
+        assertEquals(4, mSimulatedCommands.getIccIoCount());
+
+        // The headers of the card are kept for its next applications, until a refresh resets it
+        UsimFileHandler fh = new UsimFileHandler(mUiccCardApplication3gpp, AID,
+                mSimulatedCommands);
+        fh.setIccId(ICCID);
+        runOnHandler(() -> fh.loadEFTransparent(IccConstants.EF_AD,
+                mHandler.obtainMessage(IccConstants.EF_AD)));
+        assertEquals(5, mSimulatedCommands.getIccIoCount());
+
+        IccFileHandler.clearEfHeaders(ICCID);
+        runOnHandler(() -> fh.loadEFTransparent(IccConstants.EF_AD,
+                mHandler.obtainMessage(IccConstants.EF_AD)));
+        assertEquals(7, mSimulatedCommands.getIccIoCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testLoadEFLinearFixedAll() {
+        runOnHandler(() -> mFh.loadEFLinearFixedAll(IccConstants.EF_PNN,
+                mHandler.obtainMessage(IccConstants.EF_PNN)));
+
+        assertEquals(1, mResults.size());
+        assertNull(mResults.get(0).exception);
+        ArrayList<byte[]> records = (ArrayList<byte[]>) mResults.get(0).result;
+        assertEquals(6, records.size());
+        for (int i = 0; i < records.size(); i++) {
+            byte b = (byte) (i + 1);
+            assertArrayEquals(new byte[] {b, b, b}, records.get(i));
+        }
+        // GET RESPONSE and one READ RECORD per record
+        assertEquals(7, mSimulatedCommands.getIccIoCount());
+    }
+
+    private void loadAdFromCachingPlanner(String iccId) {
+        runOnHandler(() -> {
+            mCachingPlanner.startLoading(mHandler.obtainMessage(EVENT_CACHE_CHANGED));
+            mCachingPlanner.loadEFTransparent(IccConstants.EF_AD, true,
+                    mHandler.obtainMessage(IccConstants.EF_AD));
+            mCachingPlanner.onIccIdLoaded(iccId);
+        });
+    }
+
+    @Test
+    @SmallTest
+    public void testFilesCachedByIccId() {
+        // Nothing cached yet: the EF is read, and stored once the ICCID is known
+        runOnHandler(() -> {
+            mCachingPlanner.startLoading(mHandler.obtainMessage(EVENT_CACHE_CHANGED));
+            mCachingPlanner.loadEFTransparent(IccConstants.EF_AD, true,
+                    mHandler.obtainMessage(IccConstants.EF_AD));
+            mCachingPlanner.loadEFTransparent(IccConstants.EF_ICCID, true,
+                    mHandler.obtainMessage(IccConstants.EF_ICCID));
+        });
+        assertEquals(2, mLoadedEfs.size());
+        assertNull(mFileCache.getIccId());
+        runOnHandler(() -> mCachingPlanner.onIccIdLoaded(ICCID));
+        assertEquals(ICCID, mFileCache.getIccId());
+        assertArrayEquals(new byte[] {0, 0, 0, 2}, mFileCache.get(IccConstants.EF_AD, 0));
+        // Only the static EFs are cached
+        assertNull(mFileCache.get(IccConstants.EF_ICCID, 0));
+
+        // The same card: the EF is served from the cache, and checked in the background
+        mLoadedEfs.clear();
+        mResults.clear();
+        int ioCount = mSimulatedCommands.getIccIoCount();
+        loadAdFromCachingPlanner(ICCID);
+        assertEquals(1, mCachingPlanner.getCacheHits());
+        assertEquals(IccConstants.EF_AD, (int) mLoadedEfs.get(0));
+        assertArrayEquals(new byte[] {0, 0, 0, 2}, (byte[]) mResults.get(0).result);
+        assertFalse(mLoadedEfs.contains(EVENT_CACHE_CHANGED));
+        assertTrue(mSimulatedCommands.getIccIoCount() > ioCount);
+
+        // Another card: the cache is dropped
+        mLoadedEfs.clear();
+        mResults.clear();
+        mSimulatedCommands.setIccFile(IccConstants.EF_AD, new byte[] {0, 0, 0, 3});
+        loadAdFromCachingPlanner("8901260000000000002");
+        assertEquals(1, mCachingPlanner.getCacheHits());
+        assertArrayEquals(new byte[] {0, 0, 0, 3}, (byte[]) mResults.get(0).result);
+        assertEquals("8901260000000000002", mFileCache.getIccId());
+    }
+
+    @Test
+    @SmallTest
+    public void testCachedFileChanged() {
+        mFileCache.put(ICCID, IccConstants.EF_AD, 0, new byte[] {0, 0, 0, 3});
+
+        loadAdFromCachingPlanner(ICCID);
+
+        // The stale contents are served first, then the caller is told to load them again
+        assertEquals(IccConstants.EF_AD, (int) mLoadedEfs.get(0));
+        assertArrayEquals(new byte[] {0, 0, 0, 3}, (byte[]) mResults.get(0).result);
+        assertTrue(mLoadedEfs.contains(EVENT_CACHE_CHANGED));
+        assertArrayEquals(new byte[] {0, 0, 0, 2}, mFileCache.get(IccConstants.EF_AD, 0));
+    }
+
+    @Test
+    @SmallTest
+    public void testCacheVersion() {
+        mFileCache.put(ICCID, IccConstants.EF_AD, 0, new byte[] {0, 0, 0, 2});
+        assertEquals(ICCID, new SimFileCache(mContext, 0 /* phoneId */).getIccId());
+
+        PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                .putInt("sim_file_cache_0_version", SimFileCache.VERSION + 1).commit();
+        SimFileCache cache = new SimFileCache(mContext, 0 /* phoneId */);
+        assertNull(cache.getIccId());
+        assertNull(cache.get(IccConstants.EF_AD, 0));
+    }
+}
@@ -55,6 +55,7 @@ public class UiccControllerTest extends TelephonyTest {
     private static final int ICC_CHANGED_EVENT = 0;
     private static final int EVENT_GET_ICC_STATUS_DONE = 3;
     private static final int EVENT_GET_SLOT_STATUS_DONE = 4;
+    private static final int EVENT_SIM_REFRESH = 8;
     @Mock
     private Handler mMockedHandler;
     @Mock
@@ -479,4 +480,34 @@ public class UiccControllerTest extends TelephonyTest {
         assertEquals(mUiccControllerUT.convertToPublicCardId(knownEidFromApdu),
                 mUiccControllerUT.getCardIdForDefaultEuicc());
     }
+
+    @Test
+    public void testSimRefreshResetClearsFileCache() {
+        // Mock out UiccSlots
+        mUiccControllerUT.mUiccSlots[0] = mMockSlot;
+        doReturn(mMockCard).when(mMockSlot).getUiccCard();
+        doReturn("123451234567890").when(mMockCard).getIccId();
+
+        SimFileCache fileCache = new SimFileCache(mContext, 0 /* phoneId */);
+        fileCache.put("123451234567890", IccConstants.EF_AD, 0, new byte[] {0, 0, 0, 2});
+
+        // A file update of another EF keeps the cached files
+        IccRefreshResponse resp = new IccRefreshResponse();
+        resp.refreshResult = IccRefreshResponse.REFRESH_RESULT_FILE_UPDATE;
+        resp.efId = IccConstants.EF_MBDN;
+        Message msg = Message.obtain(mUiccControllerUT, EVENT_SIM_REFRESH,
+                new AsyncResult(0 /* phoneId */, resp, null));
+        mUiccControllerUT.handleMessage(msg);
+        assertEquals("123451234567890", fileCache.getIccId());
+
+        // A reset may have changed any file: the records are read again from the card
+        resp = new IccRefreshResponse();
+        resp.refreshResult = IccRefreshResponse.REFRESH_RESULT_RESET;
+        msg = Message.obtain(mUiccControllerUT, EVENT_SIM_REFRESH,
+                new AsyncResult(0 /* phoneId */, resp, null));
+        mUiccControllerUT.handleMessage(msg);
+        verify(mMockCard).resetAppWithAid(null, true /* reset */);
+        assertNull(fileCache.getIccId());
+        assertNull(fileCache.get(IccConstants.EF_AD, 0));
+    }
 }
@@ -239,6 +239,82 @@ public class EuiccCardTest extends TelephonyTest {
         verifyStoreData(channel, "BF2D0D5C0B5A909192B79F709599BF76");
     }
 
+    @Test
+    public void testGetAllProfiles_cached() {
+        int channel = mockLogicalChannelResponses(
+                "BF2D14A012E3105A0A896700000000004523019F7001019000");
+
+        ResultCaptor<EuiccProfileInfo[]> resultCaptor = new ResultCaptor<>();
+        mEuiccCard.getAllProfiles(resultCaptor, mHandler);
+        resultCaptor.await();
+        assertUnexpectedException(resultCaptor.exception);
+
+        // Served from memory
+        ResultCaptor<EuiccProfileInfo[]> cachedResultCaptor = new ResultCaptor<>();
+        mEuiccCard.getAllProfiles(cachedResultCaptor, mHandler);
+        cachedResultCaptor.await();
+        assertUnexpectedException(cachedResultCaptor.exception);
+        assertArrayEquals(resultCaptor.result, cachedResultCaptor.result);
+
+        ResultCaptor<EuiccProfileInfo> profileCaptor = new ResultCaptor<>();
+        mEuiccCard.getProfile("98760000000000543210", profileCaptor, mHandler);
+        profileCaptor.await();
+        assertUnexpectedException(profileCaptor.exception);
+        assertEquals(resultCaptor.result[0], profileCaptor.result);
+
+        verifyStoreData(channel, "BF2D0D5C0B5A909192B79F709599BF76");
+    }
+
+    @Test
+    public void testGetAllProfiles_invalidatedBySwitchToProfile() {
+        int channel = mockLogicalChannelResponses(
+                "BF2D14A012E3105A0A896700000000004523019F7001019000",
+                "BF31038001009000",
+                "BF2D14A012E3105A0A896700000000004523019F7001009000");
+
+        ResultCaptor<EuiccProfileInfo[]> resultCaptor = new ResultCaptor<>();
+        mEuiccCard.getAllProfiles(resultCaptor, mHandler);
+        resultCaptor.await();
+        assertEquals(EuiccProfileInfo.PROFILE_STATE_ENABLED, resultCaptor.result[0].getState());
+
+        ResultCaptor<Void> switchCaptor = new ResultCaptor<>();
+        mEuiccCard.switchToProfile("98760000000000543210", true, switchCaptor, mHandler);
+        switchCaptor.await();
+        assertUnexpectedException(switchCaptor.exception);
+
+        // Read again from the card
+        resultCaptor = new ResultCaptor<>();
+        mEuiccCard.getAllProfiles(resultCaptor, mHandler);
+        resultCaptor.await();
+        assertUnexpectedException(resultCaptor.exception);
+        assertEquals(EuiccProfileInfo.PROFILE_STATE_DISABLED, resultCaptor.result[0].getState());
+        verify(mMockCi, times(2)).iccTransmitApduLogicalChannel(eq(channel), eq(0x80 | channel),
+                eq(0xE2), eq(0x91), eq(0), eq(16), eq("BF2D0D5C0B5A909192B79F709599BF76"), any());
+    }
+
+    @Test
+    public void testGetAllProfiles_invalidatedByUpdate() {
+        int channel = mockLogicalChannelResponses(
+                "BF2D14A012E3105A0A896700000000004523019F7001019000",
+                "BF2D14A012E3105A0A896700000000004523019F7001009000");
+
+        ResultCaptor<EuiccProfileInfo[]> resultCaptor = new ResultCaptor<>();
+        mEuiccCard.getAllProfiles(resultCaptor, mHandler);
+        resultCaptor.await();
+        assertEquals(EuiccProfileInfo.PROFILE_STATE_ENABLED, resultCaptor.result[0].getState());
+
+        mEuiccCard.update(mContextFixture.getTestDouble(), mMockCi, mMockIccCardStatus);
+
+        // Read again from the card
+        resultCaptor = new ResultCaptor<>();
+        mEuiccCard.getAllProfiles(resultCaptor, mHandler);
+        resultCaptor.await();
+        assertUnexpectedException(resultCaptor.exception);
+        assertEquals(EuiccProfileInfo.PROFILE_STATE_DISABLED, resultCaptor.result[0].getState());
+        verify(mMockCi, times(2)).iccTransmitApduLogicalChannel(eq(channel), eq(0x80 | channel),
+                eq(0xE2), eq(0x91), eq(0), eq(16), eq("BF2D0D5C0B5A909192B79F709599BF76"), any());
+    }
+
     @Test
     public void testFSuffix() {
         // iccID is 987600000000005432FF.
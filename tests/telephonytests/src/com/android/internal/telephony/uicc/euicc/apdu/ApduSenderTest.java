@@ -23,7 +23,9 @@ import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.after;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
@@ -309,6 +311,35 @@ public class ApduSenderTest {
                 eq(1), eq(0xFF), eq(s2), any());
     }
 
+    @Test
+    public void testSendStoreDataBytes() throws InterruptedException {
+        String aid = "B2C3D4";
+        ApduSender sender = new ApduSender(mMockCi, aid, false /* supportExtendedApdu */);
+
+        int channel = LogicalChannelMocker.mockOpenLogicalChannelResponse(mMockCi, "9000");
+        LogicalChannelMocker.mockSendToLogicalChannel(mMockCi, channel, "9000", "9000",
+                "B2222B9000");
+        LogicalChannelMocker.mockCloseLogicalChannel(mMockCi, channel);
+
+        // The segments are sent in hex, as with hex command data.
+        String s1 = new String(new char[0xFF]).replace("\0", "AA");
+        String s2 = new String(new char[0xFF]).replace("\0", "0B");
+        String s3 = new String(new char[16]).replace("\0", "FC");
+        byte[] longData = IccUtils.hexStringToBytes(s1 + s2 + s3);
+        sender.send((selectResponse, requestBuilder) -> {
+            requestBuilder.addStoreData(longData);
+        }, mResponseCaptor, mHandler);
+        mResponseCaptor.await();
+
+        assertEquals("B2222B", IccUtils.bytesToHexString(mResponseCaptor.response));
+        verify(mMockCi).iccTransmitApduLogicalChannel(eq(channel), eq(0x81), eq(0xE2), eq(0x11),
+                eq(0), eq(0xFF), eq(s1), any());
+        verify(mMockCi).iccTransmitApduLogicalChannel(eq(channel), eq(0x81), eq(0xE2), eq(0x11),
+                eq(1), eq(0xFF), eq(s2), any());
+        verify(mMockCi).iccTransmitApduLogicalChannel(eq(channel), eq(0x81), eq(0xE2), eq(0x91),
+                eq(2), eq(16), eq(s3), any());
+    }
+
     @Test
     public void testSendStoreDataLen0() throws InterruptedException {
         String aid = "B2C3D4";
@@ -361,11 +392,11 @@ public class ApduSenderTest {
     }
 
     @Test
-    public void testChannelAlreadyOpened() throws InterruptedException {
+    public void testSendWhileChannelOpened() throws InterruptedException {
         String aid = "B2C3D4";
         ApduSender sender = new ApduSender(mMockCi, aid, false /* supportExtendedApdu */);
 
-        int channel = LogicalChannelMocker.mockOpenLogicalChannelResponse(mMockCi, "9000");
+        int channel = LogicalChannelMocker.mockOpenLogicalChannelResponse(mMockCi, "A1A1A19000");
         LogicalChannelMocker.mockCloseLogicalChannel(mMockCi, channel);
 
         ResponseCaptor outerResponseCaptor = new ResponseCaptor();
@@ -378,8 +409,116 @@ public class ApduSenderTest {
         mResponseCaptor.await();
         outerResponseCaptor.await();
 
-        assertNull("Should not open channel when another one is already opened.", mSelectResponse);
-        assertTrue(mResponseCaptor.exception instanceof ApduException);
+        // The second operation is queued and run on the same channel.
+        assertEquals("A1A1A19000", IccUtils.bytesToHexString(mSelectResponse));
+        assertNull(mResponseCaptor.exception);
+        assertNull(outerResponseCaptor.exception);
+        verify(mMockCi, times(1)).iccOpenLogicalChannel(eq(aid), anyInt(), any());
+        verify(mMockCi, times(1)).iccCloseLogicalChannel(eq(channel), any());
+        assertEquals(1, sender.getChannelOpenCount());
+        assertEquals(2, sender.getOperationCount());
+    }
+
+    @Test
+    public void testQueuedByPriority() throws InterruptedException {
+        String aid = "B2C3D4";
+        ApduSender sender = new ApduSender(mMockCi, aid, false /* supportExtendedApdu */);
+
+        int channel = LogicalChannelMocker.mockOpenLogicalChannelResponse(mMockCi, "9000");
+        LogicalChannelMocker.mockSendToLogicalChannel(mMockCi, channel, "A19000", "A29000",
+                "A39000");
+        LogicalChannelMocker.mockCloseLogicalChannel(mMockCi, channel);
+
+        ResponseCaptor normalResponseCaptor = new ResponseCaptor();
+        ResponseCaptor highResponseCaptor = new ResponseCaptor();
+        sender.send((selectResponse, requestBuilder) -> {
+            sender.send((selectResponseOther, requestBuilderOther) ->
+                    requestBuilderOther.addApdu(10, 1, 2, 3, 0, "b"),
+                    normalResponseCaptor, mHandler);
+            sender.send((selectResponseOther, requestBuilderOther) ->
+                    requestBuilderOther.addApdu(10, 1, 2, 3, 0, "c"),
+                    highResponseCaptor, mHandler, ApduSender.PRIORITY_HIGH);
+            requestBuilder.addApdu(10, 1, 2, 3, 0, "a");
+        }, mResponseCaptor, mHandler);
+        mResponseCaptor.await();
+        normalResponseCaptor.await();
+        highResponseCaptor.await();
+
+        assertEquals("A1", IccUtils.bytesToHexString(mResponseCaptor.response));
+        assertEquals("A2", IccUtils.bytesToHexString(highResponseCaptor.response));
+        assertEquals("A3", IccUtils.bytesToHexString(normalResponseCaptor.response));
         verify(mMockCi, times(1)).iccOpenLogicalChannel(eq(aid), anyInt(), any());
+        verify(mMockCi, times(1)).iccCloseLogicalChannel(eq(channel), any());
+    }
+
+    @Test
+    public void testChannelKeptOpenUntilIdle() throws InterruptedException {
+        String aid = "B2C3D4";
+        ApduSender sender = new ApduSender(mMockCi, aid, false /* supportExtendedApdu */,
+                500 /* idleTimeoutMs */);
+
+        int channel = LogicalChannelMocker.mockOpenLogicalChannelResponse(mMockCi, "9000");
+        LogicalChannelMocker.mockSendToLogicalChannel(mMockCi, channel, "A19000", "A29000");
+        LogicalChannelMocker.mockCloseLogicalChannel(mMockCi, channel);
+
+        sender.send((selectResponse, requestBuilder) -> requestBuilder.addApdu(10, 1, 2, 3, 0, "a"),
+                mResponseCaptor, mHandler);
+        mResponseCaptor.await();
+        ResponseCaptor secondResponseCaptor = new ResponseCaptor();
+        sender.send((selectResponse, requestBuilder) -> requestBuilder.addApdu(10, 1, 2, 3, 0, "b"),
+                secondResponseCaptor, mHandler);
+        secondResponseCaptor.await();
+
+        assertEquals("A1", IccUtils.bytesToHexString(mResponseCaptor.response));
+        assertEquals("A2", IccUtils.bytesToHexString(secondResponseCaptor.response));
+        verify(mMockCi, times(1)).iccOpenLogicalChannel(eq(aid), anyInt(), any());
+        verify(mMockCi, never()).iccCloseLogicalChannel(anyInt(), any());
+
+        // Closed once idle
+        verify(mMockCi, timeout(WAIT_TIMEOUT_MLLIS)).iccCloseLogicalChannel(eq(channel), any());
+    }
+
+    @Test
+    public void testResetChannel() throws InterruptedException {
+        String aid = "B2C3D4";
+        ApduSender sender = new ApduSender(mMockCi, aid, false /* supportExtendedApdu */,
+                500 /* idleTimeoutMs */);
+
+        int channel = LogicalChannelMocker.mockOpenLogicalChannelResponse(mMockCi, "9000");
+        LogicalChannelMocker.mockSendToLogicalChannel(mMockCi, channel, "A19000", "A29000");
+        LogicalChannelMocker.mockCloseLogicalChannel(mMockCi, channel);
+
+        sender.send((selectResponse, requestBuilder) -> requestBuilder.addApdu(10, 1, 2, 3, 0, "a"),
+                mResponseCaptor, mHandler);
+        mResponseCaptor.await();
+
+        // The card was reset: the channel it had is not closed, and a new one is opened
+        sender.resetChannel();
+        verify(mMockCi, after(1000).never()).iccCloseLogicalChannel(anyInt(), any());
+        ResponseCaptor secondResponseCaptor = new ResponseCaptor();
+        sender.send((selectResponse, requestBuilder) -> requestBuilder.addApdu(10, 1, 2, 3, 0, "b"),
+                secondResponseCaptor, mHandler);
+        secondResponseCaptor.await();
+
+        assertEquals("A2", IccUtils.bytesToHexString(secondResponseCaptor.response));
+        verify(mMockCi, times(2)).iccOpenLogicalChannel(eq(aid), anyInt(), any());
+    }
+
+    @Test
+    public void testChannelClosedOnError() throws InterruptedException {
+        String aid = "B2C3D4";
+        ApduSender sender = new ApduSender(mMockCi, aid, false /* supportExtendedApdu */,
+                60 * 1000 /* idleTimeoutMs */);
+
+        int channel = LogicalChannelMocker.mockOpenLogicalChannelResponse(mMockCi, "9000");
+        LogicalChannelMocker.mockSendToLogicalChannel(mMockCi, channel, "6985");
+        LogicalChannelMocker.mockCloseLogicalChannel(mMockCi, channel);
+
+        sender.send((selectResponse, requestBuilder) -> requestBuilder.addApdu(10, 1, 2, 3, 0, "a"),
+                mResponseCaptor, mHandler);
+        mResponseCaptor.await();
+
+        assertEquals(0x6985, ((ApduException) mResponseCaptor.exception).getApduStatus());
+        verify(mMockCi).iccCloseLogicalChannel(eq(channel), any());
     }
 }
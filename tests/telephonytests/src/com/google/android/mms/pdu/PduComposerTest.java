@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import static org.mockito.Mockito.mock;
+
+import android.content.Context;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+public class PduComposerTest extends TestCase {
+    private static SendReq createSendReq(byte[]... partData) {
+        SendReq sendReq = new SendReq();
+        sendReq.addTo(new EncodedStringValue("+15555550100"));
+        PduBody body = new PduBody();
+        for (int i = 0; i < partData.length; i++) {
+            PduPart part = new PduPart();
+            part.setContentType("application/octet-stream".getBytes());
+            part.setContentLocation(("part" + i).getBytes());
+            part.setData(partData[i]);
+            body.addPart(part);
+        }
+        sendReq.setBody(body);
+        return sendReq;
+    }
+
+    @SmallTest
+    public void testMakeRoundTrip() {
+        byte[] large = new byte[200 * 1024];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) (i * 31);
+        }
+        byte[] pdu = new PduComposer(mock(Context.class),
+                createSendReq("hello".getBytes(), large)).make();
+        assertNotNull(pdu);
+
+        SendReq parsed = (SendReq) new PduParser(pdu, true).parse();
+        assertNotNull(parsed);
+        assertEquals(2, parsed.getBody().getPartsNum());
+        assertTrue(Arrays.equals("hello".getBytes(), parsed.getBody().getPart(0).getData()));
+        assertTrue(Arrays.equals(large, parsed.getBody().getPart(1).getData()));
+    }
+
+    @SmallTest
+    public void testMakeToStreamMatchesMake() throws Exception {
+        SendReq sendReq = createSendReq("hello".getBytes(), new byte[4096]);
+        byte[] expected = new PduComposer(mock(Context.class), sendReq).make();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(new PduComposer(mock(Context.class), sendReq).make(out));
+        assertTrue(Arrays.equals(expected, out.toByteArray()));
+    }
+
+    @SmallTest
+    public void testMakeWithoutBody() throws Exception {
+        byte[] expected = new PduComposer(mock(Context.class), createSendReq()).make();
+        assertNotNull(expected);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(new PduComposer(mock(Context.class), createSendReq()).make(out));
+        assertEquals(expected.length, out.size());
+    }
+}
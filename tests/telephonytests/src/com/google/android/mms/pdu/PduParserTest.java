@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import static org.mockito.Mockito.mock;
+
+import android.content.Context;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class PduParserTest extends TestCase {
+    private static byte[] composeSendReq(byte[]... partData) {
+        SendReq sendReq = new SendReq();
+        sendReq.addTo(new EncodedStringValue("+15555550100"));
+        PduBody body = new PduBody();
+        for (int i = 0; i < partData.length; i++) {
+            PduPart part = new PduPart();
+            part.setContentType("application/octet-stream".getBytes());
+            part.setContentLocation(("part" + i).getBytes());
+            part.setData(partData[i]);
+            body.addPart(part);
+        }
+        sendReq.setBody(body);
+        return new PduComposer(mock(Context.class), sendReq).make();
+    }
+
+    private static void assertSameParts(MultimediaMessagePdu expected,
+            MultimediaMessagePdu actual) {
+        PduBody expectedBody = expected.getBody();
+        PduBody actualBody = actual.getBody();
+        assertEquals(expectedBody.getPartsNum(), actualBody.getPartsNum());
+        for (int i = 0; i < expectedBody.getPartsNum(); i++) {
+            PduPart expectedPart = expectedBody.getPart(i);
+            PduPart actualPart = actualBody.getPart(i);
+            assertTrue(Arrays.equals(expectedPart.getContentType(), actualPart.getContentType()));
+            assertTrue(Arrays.equals(expectedPart.getContentLocation(),
+                    actualPart.getContentLocation()));
+            assertEquals(expectedPart.getDataLength(), actualPart.getDataLength());
+            assertTrue(Arrays.equals(expectedPart.getData(), actualPart.getData()));
+        }
+    }
+
+    @SmallTest
+    public void testParseByteBufferMatchesByteArray() {
+        byte[] large = new byte[64 * 1024];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) i;
+        }
+        byte[] pdu = composeSendReq("hello".getBytes(), large);
+        assertNotNull(pdu);
+
+        MultimediaMessagePdu expected = (MultimediaMessagePdu) new PduParser(pdu, true).parse();
+        assertNotNull(expected);
+        assertEquals(2, expected.getBody().getPartsNum());
+
+        // Heap buffer not starting at the backing array's first byte.
+        ByteBuffer heap = ByteBuffer.allocate(pdu.length + 3);
+        heap.position(3);
+        heap.put(pdu);
+        heap.position(3);
+        assertSameParts(expected,
+                (MultimediaMessagePdu) new PduParser(heap, true).parse());
+        assertEquals(3, heap.position());
+
+        // Buffer without a backing array, as for memory-mapped files.
+        ByteBuffer direct = ByteBuffer.allocateDirect(pdu.length);
+        direct.put(pdu);
+        direct.flip();
+        assertSameParts(expected,
+                (MultimediaMessagePdu) new PduParser(direct, true).parse());
+    }
+
+    @SmallTest
+    public void testPartDataIsSliceOfBuffer() {
+        byte[] pdu = composeSendReq("hello".getBytes());
+        ByteBuffer buffer = ByteBuffer.wrap(pdu);
+        MultimediaMessagePdu parsed = (MultimediaMessagePdu) new PduParser(buffer, true).parse();
+
+        ByteBuffer data = parsed.getBody().getPart(0).getDataBuffer();
+        assertTrue(data.isReadOnly());
+        assertEquals(5, data.remaining());
+        assertEquals('h', data.get(0));
+    }
+
+    @SmallTest
+    public void testByteBufferInputStream() {
+        ByteBufferInputStream stream = new ByteBufferInputStream(
+                ByteBuffer.wrap(new byte[] {1, 2, (byte) 0xFF, 4}));
+        assertEquals(4, stream.available());
+        assertEquals(1, stream.read());
+        stream.mark(1);
+        assertEquals(2, stream.read());
+        stream.reset();
+
+        ByteBuffer slice = stream.slice(2);
+        assertEquals(2, slice.remaining());
+        assertEquals(2, slice.get(0));
+        assertNull(stream.slice(2));
+
+        byte[] b = new byte[3];
+        assertEquals(1, stream.read(b, 0, 3));
+        assertEquals(4, b[0]);
+        assertEquals(-1, stream.read());
+        assertEquals(-1, stream.read(b, 0, 3));
+    }
+
+    @SmallTest
+    public void testByteBufferInputStreamSkip() {
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[] {0, 1, 2, 3, 4, 5, 6});
+        buffer.position(1);
+
+        ByteBufferInputStream stream = new ByteBufferInputStream(buffer);
+        assertEquals(2, stream.skip(2));
+        assertEquals(4, stream.available());
+        byte[] b = new byte[4];
+        assertEquals(4, stream.read(b, 0, 4));
+        assertTrue(Arrays.equals(new byte[] {3, 4, 5, 6}, b));
+        assertEquals(0, stream.skip(2));
+
+        // Direct buffers have no backing array
+        ByteBuffer direct = ByteBuffer.allocateDirect(3);
+        direct.put(new byte[] {7, 8, 9}).flip();
+        stream = new ByteBufferInputStream(direct);
+        assertEquals(3, stream.read(b, 1, 3));
+        assertTrue(Arrays.equals(new byte[] {3, 7, 8, 9}, b));
+        assertEquals(-1, stream.read(b, 0, 1));
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.content.res.AssetFileDescriptor;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.Telephony.Mms;
+import android.provider.Telephony.Mms.Addr;
+import android.provider.Telephony.Mms.Part;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.google.android.mms.MmsException;
+
+import junit.framework.TestCase;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+public class PduPersisterTest extends TestCase {
+    private FakeMmsProvider mProvider;
+    private PduPersister mPersister;
+
+    /**
+     * MMS provider keeping its pdu, part and addr rows in memory.
+     */
+    private static class FakeMmsProvider extends MockContentProvider {
+        final ArrayList<Long> mMessages = new ArrayList<>();
+        // Part and address rows, holding the ID of their message in Part.MSG_ID / Addr.MSG_ID
+        final HashMap<Long, ContentValues> mParts = new HashMap<>();
+        final ArrayList<ContentValues> mAddresses = new ArrayList<>();
+        int mBatchCount;
+        boolean mFailBatch;
+        // Operations applied by a failing batch before it fails
+        int mFailBatchAfter;
+        private long mNextId = 1;
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) {
+            List<String> segments = uri.getPathSegments();
+            long id = mNextId++;
+            values = new ContentValues(values);
+            if (segments.size() == 1) {
+                mMessages.add(id);
+                return ContentUris.withAppendedId(Mms.CONTENT_URI, id);
+            } else if ("part".equals(segments.get(1))) {
+                values.put(Part.MSG_ID, Long.parseLong(segments.get(0)));
+                mParts.put(id, values);
+                return Uri.parse("content://mms/part/" + id);
+            } else {
+                values.put(Addr.MSG_ID, Long.parseLong(segments.get(0)));
+                mAddresses.add(values);
+                return Uri.parse("content://mms/" + segments.get(0) + "/addr/" + id);
+            }
+        }
+
+        @Override
+        public int update(Uri uri, ContentValues values, String selection,
+                String[] selectionArgs) {
+            List<String> segments = uri.getPathSegments();
+            if ("part".equals(segments.get(0))) {
+                ContentValues part = mParts.get(Long.parseLong(segments.get(1)));
+                if (part == null) {
+                    return 0;
+                }
+                part.putAll(values);
+                return 1;
+            } else if (segments.size() != 2 || !"part".equals(segments.get(1))) {
+                // Updates of the message itself
+                return 1;
+            }
+            int count = 0;
+            for (ContentValues part : getParts(Long.parseLong(segments.get(0)))) {
+                part.putAll(values);
+                count++;
+            }
+            return count;
+        }
+
+        @Override
+        public int delete(Uri uri, String selection, String[] selectionArgs) {
+            List<String> segments = uri.getPathSegments();
+            if ("part".equals(segments.get(0))) {
+                return mParts.remove(Long.parseLong(segments.get(1))) != null ? 1 : 0;
+            }
+            long msgId = Long.parseLong(segments.get(0));
+            int count = 0;
+            if (segments.size() == 1) {
+                count = mMessages.remove(Long.valueOf(msgId)) ? 1 : 0;
+                mParts.values().removeAll(getParts(msgId));
+                mAddresses.removeAll(getAddresses(msgId));
+            } else if ("part".equals(segments.get(1))) {
+                count = getParts(msgId).size();
+                mParts.values().removeAll(getParts(msgId));
+            } else {
+                // Only deleting by type is supported
+                int type = Integer.parseInt(selection.substring((Addr.TYPE + "=").length()));
+                Iterator<ContentValues> it = mAddresses.iterator();
+                while (it.hasNext()) {
+                    ContentValues address = it.next();
+                    if (address.getAsLong(Addr.MSG_ID) == msgId
+                            && address.getAsInteger(Addr.TYPE) == type) {
+                        it.remove();
+                        count++;
+                    }
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+                throws OperationApplicationException {
+            mBatchCount++;
+            ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+            for (int i = 0; i < operations.size(); i++) {
+                if (mFailBatch && i == mFailBatchAfter) {
+                    throw new OperationApplicationException("Failing the batch");
+                }
+                results[i] = operations.get(i).apply(this, results, i);
+            }
+            return results;
+        }
+
+        @Override
+        public AssetFileDescriptor openAssetFile(Uri uri, String mode)
+                throws FileNotFoundException {
+            throw new FileNotFoundException("No storage for " + uri);
+        }
+
+        ArrayList<ContentValues> getParts(long msgId) {
+            ArrayList<ContentValues> parts = new ArrayList<>();
+            for (ContentValues part : mParts.values()) {
+                if (part.getAsLong(Part.MSG_ID) == msgId) {
+                    parts.add(part);
+                }
+            }
+            return parts;
+        }
+
+        ArrayList<ContentValues> getAddresses(long msgId) {
+            ArrayList<ContentValues> addresses = new ArrayList<>();
+            for (ContentValues address : mAddresses) {
+                if (address.getAsLong(Addr.MSG_ID) == msgId) {
+                    addresses.add(address);
+                }
+            }
+            return addresses;
+        }
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+        mProvider = new FakeMmsProvider();
+        MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider("mms", mProvider);
+        resolver.addProvider("mms-sms", new MockContentProvider() {
+            @Override
+            public Cursor query(Uri uri, String[] projection, String selection,
+                    String[] selectionArgs, String sortOrder) {
+                // Thread ID lookups
+                MatrixCursor cursor = new MatrixCursor(new String[] {Mms._ID});
+                cursor.addRow(new Object[] {1L});
+                return cursor;
+            }
+        });
+        Context context = mock(Context.class);
+        doReturn(resolver).when(context).getContentResolver();
+        mPersister = PduPersister.getPduPersister(context);
+    }
+
+    private static SendReq createSendReq(int recipients, String... partTypes) {
+        SendReq sendReq = new SendReq();
+        for (int i = 0; i < recipients; i++) {
+            sendReq.addTo(new EncodedStringValue("+1555555010" + i));
+        }
+        PduBody body = new PduBody();
+        for (int i = 0; i < partTypes.length; i++) {
+            PduPart part = new PduPart();
+            part.setContentType(partTypes[i].getBytes());
+            part.setContentLocation(("part" + i).getBytes());
+            part.setData(("data" + i).getBytes());
+            body.addPart(part);
+        }
+        sendReq.setBody(body);
+        return sendReq;
+    }
+
+    private static int countAddresses(List<ContentValues> addresses, int type) {
+        int count = 0;
+        for (ContentValues address : addresses) {
+            if (address.getAsInteger(Addr.TYPE) == type) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @SmallTest
+    public void testPersistMultipleAddresses() throws Exception {
+        Uri uri = mPersister.persist(createSendReq(5, "text/plain", "text/plain", "text/plain"),
+                Mms.Sent.CONTENT_URI, false, false, null);
+
+        long msgId = ContentUris.parseId(uri);
+        assertEquals(1, mProvider.mMessages.size());
+        assertEquals(msgId, (long) mProvider.mMessages.get(0));
+        // One batch inserting the parts, one moving them and saving the addresses
+        assertEquals(2, mProvider.mBatchCount);
+
+        ArrayList<ContentValues> parts = mProvider.getParts(msgId);
+        assertEquals(3, parts.size());
+        for (ContentValues part : parts) {
+            assertTrue(part.getAsString(Part.TEXT).startsWith("data"));
+        }
+        assertEquals(mProvider.mParts.size(), parts.size());
+
+        ArrayList<ContentValues> addresses = mProvider.getAddresses(msgId);
+        assertEquals(6, addresses.size());
+        assertEquals(5, countAddresses(addresses, PduHeaders.TO));
+        assertEquals(1, countAddresses(addresses, PduHeaders.FROM));
+    }
+
+    @SmallTest
+    public void testUpdateHeadersReplacesAddresses() throws Exception {
+        Uri uri = mPersister.persist(createSendReq(5, "text/plain"), Mms.Sent.CONTENT_URI,
+                false, false, null);
+        long msgId = ContentUris.parseId(uri);
+
+        mPersister.updateHeaders(uri, createSendReq(2));
+
+        ArrayList<ContentValues> addresses = mProvider.getAddresses(msgId);
+        assertEquals(2, countAddresses(addresses, PduHeaders.TO));
+        assertEquals(1, countAddresses(addresses, PduHeaders.FROM));
+    }
+
+    @SmallTest
+    public void testUpdateHeadersBatchFailure() throws Exception {
+        Uri uri = mPersister.persist(createSendReq(3, "text/plain"), Mms.Sent.CONTENT_URI,
+                false, false, null);
+        long msgId = ContentUris.parseId(uri);
+
+        // The old addresses are deleted and only one new address is inserted by the batch
+        mProvider.mFailBatch = true;
+        mProvider.mFailBatchAfter = 2;
+        mPersister.updateHeaders(uri, createSendReq(2));
+
+        // The addresses are updated one by one instead
+        ArrayList<ContentValues> addresses = mProvider.getAddresses(msgId);
+        assertEquals(2, countAddresses(addresses, PduHeaders.TO));
+        assertEquals(1, countAddresses(addresses, PduHeaders.FROM));
+    }
+
+    @SmallTest
+    public void testPersistBatchFailure() {
+        mProvider.mFailBatch = true;
+        try {
+            mPersister.persist(createSendReq(3, "text/plain"), Mms.Sent.CONTENT_URI,
+                    false, false, null);
+            fail("Expected MmsException");
+        } catch (MmsException expected) {
+        }
+
+        assertTrue(mProvider.mMessages.isEmpty());
+        assertTrue(mProvider.mParts.isEmpty());
+        assertTrue(mProvider.mAddresses.isEmpty());
+    }
+
+    @SmallTest
+    public void testPersistPartDataFailure() {
+        // The image part's data cannot be written, the text part's goes in its row
+        try {
+            mPersister.persist(createSendReq(3, "text/plain", "image/jpeg"),
+                    Mms.Sent.CONTENT_URI, false, false, null);
+            fail("Expected MmsException");
+        } catch (MmsException expected) {
+        }
+
+        // No part is left behind, and no message was saved
+        assertEquals(1, mProvider.mBatchCount);
+        assertTrue(mProvider.mParts.isEmpty());
+        assertTrue(mProvider.mMessages.isEmpty());
+        assertTrue(mProvider.mAddresses.isEmpty());
+    }
+
+    @SmallTest
+    public void testPersistPartDataFailureSinglePart() {
+        PduPart part = new PduPart();
+        part.setContentType("image/jpeg".getBytes());
+        part.setData(new byte[] {1, 2, 3});
+        try {
+            mPersister.persistPart(part, 1, null);
+            fail("Expected MmsException");
+        } catch (MmsException expected) {
+        }
+
+        assertTrue(mProvider.mParts.isEmpty());
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.util;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class AbstractCacheTest extends TestCase {
+    private static class TestCache extends AbstractCache<String, String> {
+        final List<String> mEvicted = new ArrayList<>();
+
+        TestCache(int maxSize, int evictionPolicy) {
+            super(maxSize, evictionPolicy);
+        }
+
+        @Override
+        protected int sizeOf(String key, String value) {
+            return value.length();
+        }
+
+        @Override
+        protected void onEvicted(String key, String value) {
+            mEvicted.add(key);
+        }
+    }
+
+    @SmallTest
+    public void testLruEviction() {
+        TestCache cache = new TestCache(3, AbstractCache.EVICTION_POLICY_LRU);
+        assertTrue(cache.put("a", "1"));
+        assertTrue(cache.put("b", "2"));
+        assertTrue(cache.put("c", "3"));
+        assertEquals("1", cache.get("a"));
+
+        assertTrue(cache.put("d", "4"));
+        assertNull(cache.get("b"));
+        assertEquals("1", cache.get("a"));
+        assertEquals(3, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals("[b]", cache.mEvicted.toString());
+    }
+
+    @SmallTest
+    public void testLfuEviction() {
+        TestCache cache = new TestCache(3, AbstractCache.EVICTION_POLICY_LFU);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.put("c", "3");
+        cache.get("a");
+        cache.get("a");
+        cache.get("b");
+        cache.get("c");
+        cache.get("c");
+
+        cache.put("d", "4");
+        assertEquals("[b]", cache.mEvicted.toString());
+        cache.put("e", "5");
+        assertEquals("[b, d]", cache.mEvicted.toString());
+    }
+
+    @SmallTest
+    public void testWeightedBound() {
+        TestCache cache = new TestCache(5, AbstractCache.EVICTION_POLICY_LRU);
+        cache.put("a", "11");
+        cache.put("b", "22");
+        assertEquals(4, cache.weight());
+
+        cache.put("c", "333");
+        assertEquals("[a]", cache.mEvicted.toString());
+        assertEquals(5, cache.weight());
+
+        assertFalse(cache.put("d", "666666"));
+        assertEquals("333", cache.get("c"));
+
+        cache.put("c", "4444");
+        assertEquals("[a, b]", cache.mEvicted.toString());
+        assertEquals(4, cache.weight());
+        assertEquals(1, cache.size());
+        assertEquals("4444", cache.purge("c"));
+        assertEquals(0, cache.weight());
+    }
+}
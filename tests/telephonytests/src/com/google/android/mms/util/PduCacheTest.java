@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.util;
+
+import android.net.Uri;
+import android.provider.Telephony.Mms;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.google.android.mms.pdu.GenericPdu;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+public class PduCacheTest extends TestCase {
+    private static final long THREAD_1 = 1;
+    private static final long THREAD_2 = 2;
+
+    private PduCache mCache;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        mCache = PduCache.getInstance();
+        mCache.purgeAll();
+    }
+
+    public void tearDown() throws Exception {
+        mCache.purgeAll();
+        super.tearDown();
+    }
+
+    private static Uri messageUri(long id) {
+        return Uri.withAppendedPath(Mms.CONTENT_URI, Long.toString(id));
+    }
+
+    private void put(long id, int msgBox, long threadId) {
+        assertTrue(mCache.put(messageUri(id), new PduCacheEntry(new GenericPdu(), msgBox,
+                threadId)));
+    }
+
+    private static HashSet<Uri> uris(long... ids) {
+        HashSet<Uri> uris = new HashSet<>();
+        for (long id : ids) {
+            uris.add(messageUri(id));
+        }
+        return uris;
+    }
+
+    /** Checks that the index sets hold exactly the cached entries. */
+    private void assertIndexed(int msgBox, long threadId, HashSet<Uri> expected) {
+        assertEquals(expected, mCache.getMessageBoxKeys(msgBox));
+        assertEquals(expected, mCache.getThreadKeys(threadId));
+    }
+
+    @SmallTest
+    public void testPut() {
+        put(1, Mms.MESSAGE_BOX_INBOX, THREAD_1);
+        put(2, Mms.MESSAGE_BOX_INBOX, THREAD_1);
+        put(3, Mms.MESSAGE_BOX_SENT, THREAD_2);
+        assertIndexed(Mms.MESSAGE_BOX_INBOX, THREAD_1, uris(1, 2));
+        assertIndexed(Mms.MESSAGE_BOX_SENT, THREAD_2, uris(3));
+
+        // Replacing an entry moves it to its new message box and thread
+        put(2, Mms.MESSAGE_BOX_SENT, THREAD_2);
+        assertIndexed(Mms.MESSAGE_BOX_INBOX, THREAD_1, uris(1));
+        assertIndexed(Mms.MESSAGE_BOX_SENT, THREAD_2, uris(2, 3));
+
+        // A message box specific uri is stored under the generic one
+        assertTrue(mCache.put(Uri.withAppendedPath(Mms.Inbox.CONTENT_URI, "4"),
+                new PduCacheEntry(new GenericPdu(), Mms.MESSAGE_BOX_INBOX, THREAD_1)));
+        assertIndexed(Mms.MESSAGE_BOX_INBOX, THREAD_1, uris(1, 4));
+        assertNotNull(mCache.get(messageUri(4)));
+    }
+
+    @SmallTest
+    public void testPurge() {
+        put(1, Mms.MESSAGE_BOX_INBOX, THREAD_1);
+        put(2, Mms.MESSAGE_BOX_INBOX, THREAD_2);
+        put(3, Mms.MESSAGE_BOX_SENT, THREAD_2);
+        put(4, Mms.MESSAGE_BOX_SENT, THREAD_1);
+
+        // Single entry
+        assertNotNull(mCache.purge(messageUri(1)));
+        assertNull(mCache.get(messageUri(1)));
+        assertEquals(uris(2), mCache.getMessageBoxKeys(Mms.MESSAGE_BOX_INBOX));
+        assertEquals(uris(4), mCache.getThreadKeys(THREAD_1));
+
+        // By message box
+        assertNull(mCache.purge(Mms.Sent.CONTENT_URI));
+        assertNull(mCache.get(messageUri(3)));
+        assertNull(mCache.get(messageUri(4)));
+        assertTrue(mCache.getMessageBoxKeys(Mms.MESSAGE_BOX_SENT).isEmpty());
+        assertTrue(mCache.getThreadKeys(THREAD_1).isEmpty());
+        assertEquals(uris(2), mCache.getThreadKeys(THREAD_2));
+
+        // By thread
+        put(5, Mms.MESSAGE_BOX_SENT, THREAD_1);
+        assertNull(mCache.purge(Uri.parse("content://mms-sms/conversations/" + THREAD_2)));
+        assertNull(mCache.get(messageUri(2)));
+        assertTrue(mCache.getMessageBoxKeys(Mms.MESSAGE_BOX_INBOX).isEmpty());
+        assertTrue(mCache.getThreadKeys(THREAD_2).isEmpty());
+        assertIndexed(Mms.MESSAGE_BOX_SENT, THREAD_1, uris(5));
+    }
+
+    @SmallTest
+    public void testPurgeAll() {
+        for (long id : Arrays.asList(1L, 2L, 3L)) {
+            put(id, Mms.MESSAGE_BOX_INBOX, THREAD_1);
+        }
+        mCache.setUpdating(messageUri(1), true);
+
+        mCache.purgeAll();
+        assertEquals(0, mCache.size());
+        assertIndexed(Mms.MESSAGE_BOX_INBOX, THREAD_1, new HashSet<Uri>());
+        assertFalse(mCache.isUpdating(messageUri(1)));
+
+        put(4, Mms.MESSAGE_BOX_INBOX, THREAD_1);
+        assertIndexed(Mms.MESSAGE_BOX_INBOX, THREAD_1, uris(4));
+    }
+}